@@ -9,9 +9,22 @@
  */
 package org.openmrs.module.voiddataarchiver;
 
+import java.util.Date;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveTargetProvider;
+import org.openmrs.module.voiddataarchiver.api.db.hibernate.VoidTrackingInterceptor;
+import org.openmrs.module.voiddataarchiver.task.FlushVoidCountersTask;
+import org.openmrs.module.voiddataarchiver.task.PurgeArchivesTask;
+import org.openmrs.module.voiddataarchiver.task.RefreshTableStatisticsTask;
+import org.openmrs.scheduler.SchedulerException;
+import org.openmrs.scheduler.SchedulerService;
+import org.openmrs.scheduler.Task;
+import org.openmrs.scheduler.TaskDefinition;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
@@ -24,6 +37,22 @@ public class VoidDataArchiverActivator extends BaseModuleActivator {
 	 * @see #started()
 	 */
 	public void started() {
+		registerTask(RefreshTableStatisticsTask.TASK_NAME, RefreshTableStatisticsTask.class,
+		    "Recomputes total and voided row counts of voidable tables in the background", 15 * 60L);
+		registerTask(FlushVoidCountersTask.TASK_NAME, FlushVoidCountersTask.class,
+		    "Writes the voided row counts kept in memory to the statistics snapshot", 60L);
+		registerTask(PurgeArchivesTask.TASK_NAME, PurgeArchivesTask.class,
+		    "Deletes archived rows whose retention period has passed", 24 * 60 * 60L);
+		
+		VoidTrackingInterceptor tracker = getVoidTrackingInterceptor();
+		tracker.setEnabled(Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		    VoidDataArchiverConfig.GP_TRACKING_ENABLED, "false").trim()));
+		Context.getAdministrationService().addGlobalPropertyListener(tracker);
+		
+		ArchiveTargetProvider targetProvider = getArchiveTargetProvider();
+		targetProvider.configure(Context.getAdministrationService().getGlobalProperty(
+		    VoidDataArchiverConfig.GP_ARCHIVE_TARGET));
+		Context.getAdministrationService().addGlobalPropertyListener(targetProvider);
 		log.info("Started VoidData Archiver");
 	}
 	
@@ -31,7 +60,52 @@ public class VoidDataArchiverActivator extends BaseModuleActivator {
 	 * @see #shutdown()
 	 */
 	public void shutdown() {
+		VoidTrackingInterceptor tracker = getVoidTrackingInterceptor();
+		tracker.setEnabled(false);
+		Context.getAdministrationService().removeGlobalPropertyListener(tracker);
+		Context.getAdministrationService().removeGlobalPropertyListener(getArchiveTargetProvider());
+		try {
+			Context.getService(VoidDataArchiverService.class).flushVoidCounters();
+		}
+		catch (Exception e) {
+			log.warn("Failed to flush void counters on shutdown: " + e.getMessage());
+		}
 		log.info("Shutdown VoidData Archiver");
 	}
 	
+	private VoidTrackingInterceptor getVoidTrackingInterceptor() {
+		return Context.getRegisteredComponent("voiddataarchiver.VoidTrackingInterceptor", VoidTrackingInterceptor.class);
+	}
+	
+	private ArchiveTargetProvider getArchiveTargetProvider() {
+		return Context.getRegisteredComponent("voiddataarchiver.ArchiveTargetProvider", ArchiveTargetProvider.class);
+	}
+	
+	/**
+	 * Creates and schedules the given task unless a task with that name already exists, in which case
+	 * the scheduler starts it on startup as configured by the administrator.
+	 */
+	private void registerTask(String name, Class<? extends Task> taskClass, String description,
+	        long repeatIntervalSeconds) {
+		SchedulerService scheduler = Context.getSchedulerService();
+		if (scheduler.getTaskByName(name) != null) {
+			return;
+		}
+		TaskDefinition task = new TaskDefinition();
+		task.setName(name);
+		task.setDescription(description);
+		task.setTaskClass(taskClass.getName());
+		task.setStartTime(new Date());
+		task.setRepeatInterval(repeatIntervalSeconds);
+		task.setStartOnStartup(true);
+		scheduler.saveTaskDefinition(task);
+		try {
+			scheduler.scheduleTask(task);
+			log.info("Scheduled task: " + name);
+		}
+		catch (SchedulerException e) {
+			log.error("Failed to schedule task: " + name, e);
+		}
+	}
+
 }
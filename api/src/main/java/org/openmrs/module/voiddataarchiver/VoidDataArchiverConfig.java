@@ -18,4 +18,79 @@ import org.springframework.stereotype.Component;
 public class VoidDataArchiverConfig {
 	
 	public final static String MODULE_PRIVILEGE = "VoidData Archiver Privilege";
+	
+	/**
+	 * Global property selecting how table statistics are computed, "exact" or "estimated".
+	 */
+	public final static String GP_STATISTICS_MODE = "voiddataarchiver.statistics.mode";
+	
+	/**
+	 * Global property holding the number of independent tables archived at the same time.
+	 */
+	public final static String GP_ARCHIVAL_WORKERS = "voiddataarchiver.archival.workers";
+	
+	/**
+	 * The number of archival workers when {@link #GP_ARCHIVAL_WORKERS} is not set, the same as its
+	 * default value in config.xml.
+	 */
+	public final static int DEFAULT_ARCHIVAL_WORKERS = 2;
+	
+	/**
+	 * Global properties bounding the adaptive archive batch size.
+	 */
+	public final static String GP_BATCH_MIN_SIZE = "voiddataarchiver.batch.minSize";
+	
+	public final static String GP_BATCH_MAX_SIZE = "voiddataarchiver.batch.maxSize";
+	
+	/**
+	 * Global property holding the per-batch latency, in milliseconds, the batch size is tuned for.
+	 */
+	public final static String GP_BATCH_TARGET_LATENCY_MS = "voiddataarchiver.batch.targetLatencyMs";
+	
+	/**
+	 * Global property holding an optional SQL query returning the replication lag in seconds.
+	 */
+	public final static String GP_REPLICA_LAG_QUERY = "voiddataarchiver.batch.replicaLagQuery";
+	
+	/**
+	 * Global property holding the replication lag, in seconds, above which archival slows down.
+	 */
+	public final static String GP_MAX_REPLICA_LAG_SECONDS = "voiddataarchiver.batch.maxReplicaLagSeconds";
+	
+	/**
+	 * Global property enabling incremental tracking of voided rows. When true, rows voided through the
+	 * API are recorded in a queue, and archival and statistics read that queue instead of scanning
+	 * tables for voided rows, apart from a daily full scan.
+	 */
+	public final static String GP_TRACKING_ENABLED = "voiddataarchiver.tracking.enabled";
+	
+	/**
+	 * Global property holding the per-table retention rules, see
+	 * {@link org.openmrs.module.voiddataarchiver.api.RetentionPolicy}.
+	 */
+	public final static String GP_RETENTION_RULES = "voiddataarchiver.retention.rules";
+	
+	/**
+	 * Global property holding the directory archive tables are exported to. Defaults to
+	 * voiddataarchiver/exports in the application data directory.
+	 */
+	public final static String GP_EXPORT_DIRECTORY = "voiddataarchiver.export.directory";
+	
+	/**
+	 * Global property enabling the export of archive tables to files at the end of every archival, so
+	 * that archived rows leave the database.
+	 */
+	public final static String GP_EXPORT_AFTER_ARCHIVAL = "voiddataarchiver.export.afterArchival";
+	
+	/**
+	 * Global property choosing where archive tables live, see
+	 * {@link org.openmrs.module.voiddataarchiver.api.db.ArchiveTargetProvider}.
+	 */
+	public final static String GP_ARCHIVE_TARGET = "voiddataarchiver.archive.target";
+	
+	/**
+	 * Global property enabling pipelined archival, where the next batch of a table is selected while
+	 * the previous ones are copied and deleted on other threads.
+	 */
+	public final static String GP_ARCHIVAL_PIPELINED = "voiddataarchiver.archival.pipelined";
 }
@@ -0,0 +1,49 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.advice;
+
+import java.lang.reflect.Method;
+
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.db.UserNameCache;
+import org.springframework.aop.AfterReturningAdvice;
+
+/**
+ * Keeps the {@link UserNameCache} in step with user edits. Registered in config.xml on the user and
+ * person services: a user that is saved, retired or purged is discarded from the cache, and any
+ * change to a person discards the whole cache, as person ids do not map to user ids.
+ */
+public class UserNameCacheAdvice implements AfterReturningAdvice {
+	
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if (!(name.startsWith("save") || name.startsWith("retire") || name.startsWith("unretire")
+		        || name.startsWith("void") || name.startsWith("unvoid") || name.startsWith("purge")
+		        || name.startsWith("change"))) {
+			return;
+		}
+		UserNameCache cache = Context.getRegisteredComponent("voiddataarchiver.UserNameCache", UserNameCache.class);
+		User user = null;
+		if (args != null) {
+			for (Object arg : args) {
+				if (arg instanceof User) {
+					user = (User) arg;
+				}
+			}
+		}
+		if (user != null && user.getUserId() != null) {
+			cache.invalidate(user.getUserId());
+		} else {
+			cache.invalidate();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Selects the archived rows to restore with {@link VoidDataArchiverService#restoreTable(String,
+ * RestoreCriteria)}. All criteria that are set must match; criteria left unset match every row. A
+ * criterion on a column the table does not have is an error.
+ */
+public class RestoreCriteria {
+	
+	private Set<String> uuids = new LinkedHashSet<String>();
+	
+	private Date voidedFrom;
+	
+	private Date voidedTo;
+	
+	private Integer voidedBy;
+	
+	private String voidReasonPattern;
+	
+	private Integer personId;
+	
+	public Set<String> getUuids() {
+		return uuids;
+	}
+	
+	/**
+	 * @param uuids restore only the rows with these uuids
+	 */
+	public void setUuids(Set<String> uuids) {
+		this.uuids = uuids != null ? uuids : new LinkedHashSet<String>();
+	}
+	
+	public Date getVoidedFrom() {
+		return voidedFrom;
+	}
+	
+	/**
+	 * @param voidedFrom restore only rows voided at or after this time
+	 */
+	public void setVoidedFrom(Date voidedFrom) {
+		this.voidedFrom = voidedFrom;
+	}
+	
+	public Date getVoidedTo() {
+		return voidedTo;
+	}
+	
+	/**
+	 * @param voidedTo restore only rows voided before this time
+	 */
+	public void setVoidedTo(Date voidedTo) {
+		this.voidedTo = voidedTo;
+	}
+	
+	public Integer getVoidedBy() {
+		return voidedBy;
+	}
+	
+	/**
+	 * @param voidedBy restore only rows voided by the user with this id
+	 */
+	public void setVoidedBy(Integer voidedBy) {
+		this.voidedBy = voidedBy;
+	}
+	
+	public String getVoidReasonPattern() {
+		return voidReasonPattern;
+	}
+	
+	/**
+	 * @param voidReasonPattern restore only rows whose void reason matches this SQL LIKE pattern, e.g.
+	 *            "%entered in error%"
+	 */
+	public void setVoidReasonPattern(String voidReasonPattern) {
+		this.voidReasonPattern = voidReasonPattern;
+	}
+	
+	public Integer getPersonId() {
+		return personId;
+	}
+	
+	/**
+	 * @param personId restore only rows of this person, matched on the person_id or patient_id column
+	 */
+	public void setPersonId(Integer personId) {
+		this.personId = personId;
+	}
+	
+	/**
+	 * @return true if no criterion is set, so that every archived row matches
+	 */
+	public boolean isEmpty() {
+		return uuids.isEmpty() && voidedFrom == null && voidedTo == null && voidedBy == null
+		        && (voidReasonPattern == null || voidReasonPattern.isEmpty()) && personId == null;
+	}
+}
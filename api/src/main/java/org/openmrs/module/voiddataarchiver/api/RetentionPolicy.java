@@ -0,0 +1,161 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openmrs.api.APIException;
+
+/**
+ * Per-table retention rules, parsed from the
+ * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_RETENTION_RULES} global
+ * property. Rules are separated by semicolons, each naming a table, or * for all tables without a
+ * rule of their own, followed by its settings:
+ * 
+ * <pre>
+ * obs: archive=90d, purge=7y; *: archive=30d
+ * </pre>
+ * 
+ * archive is how long voided rows stay in their table before they are archived, purge how long
+ * archived rows are kept before they are deleted for good. Periods are a number followed by d, w, m
+ * or y. Without a rule, voided rows are archived at once and never purged.
+ */
+public class RetentionPolicy {
+	
+	/**
+	 * Rule applied to the tables without a rule of their own.
+	 */
+	public static final String ANY_TABLE = "*";
+	
+	private final Map<String, Period[]> rules = new HashMap<String, Period[]>();
+	
+	/**
+	 * @param rules the rules, null or empty for none
+	 * @return the policy
+	 * @throws APIException if the rules cannot be parsed
+	 */
+	public static RetentionPolicy parse(String rules) {
+		RetentionPolicy policy = new RetentionPolicy();
+		if (rules == null) {
+			return policy;
+		}
+		for (String rule : rules.split(";")) {
+			if (rule.trim().isEmpty()) {
+				continue;
+			}
+			int colon = rule.indexOf(':');
+			if (colon < 1) {
+				throw new APIException("Retention rule without a table: " + rule.trim());
+			}
+			String table = rule.substring(0, colon).trim().toLowerCase();
+			Period[] periods = new Period[2];
+			for (String setting : rule.substring(colon + 1).split(",")) {
+				String[] pair = setting.split("=");
+				if (pair.length != 2) {
+					throw new APIException("Invalid retention setting for " + table + ": " + setting.trim());
+				}
+				String name = pair[0].trim();
+				if ("archive".equals(name)) {
+					periods[0] = Period.parse(pair[1].trim());
+				} else if ("purge".equals(name)) {
+					periods[1] = Period.parse(pair[1].trim());
+				} else {
+					throw new APIException("Unknown retention setting for " + table + ": " + name);
+				}
+			}
+			policy.rules.put(table, periods);
+		}
+		return policy;
+	}
+	
+	/**
+	 * @param tableName the source table
+	 * @param now the current time
+	 * @return the time before which voided rows of the table are archived, null to archive them all
+	 */
+	public Date getArchiveCutoff(String tableName, Date now) {
+		return getCutoff(tableName, 0, now);
+	}
+	
+	/**
+	 * @param tableName the source table
+	 * @param now the current time
+	 * @return the time before which archived rows of the table are purged, null to keep them all
+	 */
+	public Date getPurgeCutoff(String tableName, Date now) {
+		return getCutoff(tableName, 1, now);
+	}
+	
+	private Date getCutoff(String tableName, int setting, Date now) {
+		Period[] periods = rules.get(tableName.toLowerCase());
+		if (periods == null) {
+			periods = rules.get(ANY_TABLE);
+		}
+		return periods != null && periods[setting] != null ? periods[setting].before(now) : null;
+	}
+	
+	/**
+	 * A number of days, weeks, months or years.
+	 */
+	private static final class Period {
+		
+		private final int amount;
+		
+		private final int field;
+		
+		private Period(int amount, int field) {
+			this.amount = amount;
+			this.field = field;
+		}
+		
+		static Period parse(String period) {
+			if (period.length() < 2) {
+				throw new APIException("Invalid retention period: " + period);
+			}
+			int field;
+			switch (Character.toLowerCase(period.charAt(period.length() - 1))) {
+				case 'd':
+					field = Calendar.DAY_OF_MONTH;
+					break;
+				case 'w':
+					field = Calendar.WEEK_OF_YEAR;
+					break;
+				case 'm':
+					field = Calendar.MONTH;
+					break;
+				case 'y':
+					field = Calendar.YEAR;
+					break;
+				default:
+					throw new APIException("Invalid retention period unit: " + period);
+			}
+			try {
+				int amount = Integer.parseInt(period.substring(0, period.length() - 1).trim());
+				if (amount < 0) {
+					throw new APIException("Negative retention period: " + period);
+				}
+				return new Period(amount, field);
+			}
+			catch (NumberFormatException e) {
+				throw new APIException("Invalid retention period: " + period, e);
+			}
+		}
+		
+		Date before(Date now) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTime(now);
+			calendar.add(field, -amount);
+			return calendar.getTime();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+/**
+ * How table statistics are computed.
+ */
+public enum StatisticsMode {
+	
+	/**
+	 * Total and voided counts come from one conditional-aggregation scan per table.
+	 */
+	EXACT,
+	
+	/**
+	 * Totals come from the database's row estimates (information_schema.TABLES or pg_class) and voided
+	 * counts of large tables are extrapolated from a bounded sample. Small tables are still counted
+	 * exactly.
+	 */
+	ESTIMATED
+}
@@ -13,6 +13,14 @@ public class TableInfo {
 	
 	private Long voidedRecords;
 	
+	private boolean totalEstimated;
+	
+	private boolean voidedEstimated;
+	
+	private java.util.Date lastRefreshed;
+	
+	private Long scanDurationMs;
+	
 	public TableInfo() {
 	}
 	
@@ -53,14 +61,49 @@ public class TableInfo {
 		this.voidedRecords = voidedRecords;
 	}
 	
-	private java.util.List<java.util.Map<String, Object>> voidedEntries;
+	/**
+	 * @return true if {@link #getTotalRecords()} is a row estimate rather than an exact count
+	 */
+	public boolean isTotalEstimated() {
+		return totalEstimated;
+	}
+	
+	public void setTotalEstimated(boolean totalEstimated) {
+		this.totalEstimated = totalEstimated;
+	}
 	
-	public java.util.List<java.util.Map<String, Object>> getVoidedEntries() {
-		return voidedEntries;
+	/**
+	 * @return true if {@link #getVoidedRecords()} is extrapolated from a sample rather than an exact
+	 *         count
+	 */
+	public boolean isVoidedEstimated() {
+		return voidedEstimated;
+	}
+	
+	public void setVoidedEstimated(boolean voidedEstimated) {
+		this.voidedEstimated = voidedEstimated;
+	}
+	
+	/**
+	 * @return when the statistics were last computed, null if the table has not been scanned yet
+	 */
+	public java.util.Date getLastRefreshed() {
+		return lastRefreshed;
+	}
+	
+	public void setLastRefreshed(java.util.Date lastRefreshed) {
+		this.lastRefreshed = lastRefreshed;
+	}
+	
+	/**
+	 * @return how long the last statistics scan of this table took, in milliseconds
+	 */
+	public Long getScanDurationMs() {
+		return scanDurationMs;
 	}
 	
-	public void setVoidedEntries(java.util.List<java.util.Map<String, Object>> voidedEntries) {
-		this.voidedEntries = voidedEntries;
+	public void setScanDurationMs(Long scanDurationMs) {
+		this.scanDurationMs = scanDurationMs;
 	}
 	
 	private String prettyName;
@@ -0,0 +1,42 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+/**
+ * The names a user who voided rows is shown with.
+ */
+public final class UserName {
+	
+	private final String username;
+	
+	private final String displayName;
+	
+	/**
+	 * @param username the username, or the system id of a user without one
+	 * @param displayName the preferred name of the user's person, null if it has none
+	 */
+	public UserName(String username, String displayName) {
+		this.username = username;
+		this.displayName = displayName;
+	}
+	
+	public String getUsername() {
+		return username;
+	}
+	
+	public String getDisplayName() {
+		return displayName;
+	}
+	
+	@Override
+	public String toString() {
+		return displayName != null ? displayName + " (" + username + ")" : username;
+	}
+}
@@ -9,9 +9,19 @@
  */
 package org.openmrs.module.voiddataarchiver.api;
 
+import java.io.File;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveExporter;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveFileReader;
+import org.openmrs.module.voiddataarchiver.api.db.BatchCursor;
+import org.openmrs.module.voiddataarchiver.api.db.ExportManifest;
+import org.openmrs.module.voiddataarchiver.api.job.ArchivalJob;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 /**
@@ -20,6 +30,11 @@ import org.springframework.transaction.annotation.Transactional;
  */
 public interface VoidDataArchiverService extends OpenmrsService {
 	
+	/**
+	 * The largest page of rows returned by {@link #getVoidedRows(String, boolean, String, int)}.
+	 */
+	int MAX_PAGE_SIZE = 500;
+	
 	/**
 	 * Returns an item by uuid. It can be called by any authenticated user. It is fetched in read
 	 * only transaction.
@@ -31,22 +46,255 @@ public interface VoidDataArchiverService extends OpenmrsService {
 	
 	/**
 	 * Gets a list of information about all tables, including voided data counts for voidable
-	 * tables.
+	 * tables. The counts are read from the snapshot maintained by
+	 * {@link #refreshTableStatistics(String)}, see {@link TableInfo#getLastRefreshed()}, plus the voids
+	 * and unvoids counted in memory since the last {@link #flushVoidCounters()}.
 	 * 
 	 * @return list of TableInfo objects
 	 */
 	@Transactional(readOnly = true)
 	List<TableInfo> getAllTableInfo();
 	
+	/**
+	 * Gets the voidable tables whose statistics are missing or stale. Statistics of tables that are
+	 * expensive to scan go stale proportionally more slowly. When voided rows are tracked, statistics
+	 * are kept current by {@link #flushVoidCounters()} and only missing ones are due.
+	 * 
+	 * @return names of the tables to refresh
+	 */
+	@Transactional(readOnly = true)
+	List<String> getTablesDueForStatisticsRefresh();
+	
+	/**
+	 * Recomputes the total and voided counts of a voidable table and stores them in the statistics
+	 * snapshot.
+	 * 
+	 * @param tableName the voidable table
+	 * @return the new statistics
+	 */
+	@Transactional
+	TableInfo refreshTableStatistics(String tableName);
+	
 	/**
 	 * Archives voided data for the specified table (and its hierarchy based on dependencies). If
-	 * tableName is null, archives ALL voided data in the system.
+	 * tableName is null, archives ALL voided data in the system. Rows voided more recently than the
+	 * retention rules allow are left in place, see {@link RetentionPolicy}. Runs outside of any
+	 * transaction: every batch is committed on its own through
+	 * {@link #archiveBatch(String, int, BatchCursor, Date)}, and a run that is interrupted resumes from
+	 * its last committed batch the next time.
 	 * 
 	 * @param tableName the name of the table to archive, or null for global archive.
+	 * @throws org.openmrs.api.APIException if any table failed, once the others are archived
 	 */
-	@Transactional
 	void runArchival(String tableName);
 	
+	/**
+	 * Same as {@link #runArchival(String)}, reporting progress to the given job and honouring its
+	 * pause and cancel requests between batches.
+	 * 
+	 * @param tableName the name of the table to archive, or null for global archive.
+	 * @param job the job to report to
+	 */
+	void runArchival(String tableName, ArchivalJob job);
+	
+	/**
+	 * Archives the voided rows of a single table, without regard to its dependencies. Used by
+	 * {@link #runArchival(String, ArchivalJob)} to process independent tables concurrently.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @param job the job to report to, which must already contain the table
+	 */
+	void archiveTable(String tableName, ArchivalJob job);
+	
+	/**
+	 * Ensures the archive table of a table exists and returns where archival of the table starts.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @return the checkpoint of an unfinished earlier run, or a new cursor
+	 */
+	@Transactional
+	BatchCursor prepareTableArchival(String tableName);
+	
+	/**
+	 * Moves the next batch of voided rows of a table to its archive table, and records the new
+	 * position of the cursor as the table's checkpoint, in a transaction of its own. When no rows are
+	 * left the checkpoint is removed.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @param limit the maximum number of rows to move
+	 * @param cursor the position of the run, advanced past the moved rows
+	 * @param voidedBefore only move rows voided before this time, null for all voided rows
+	 * @return the number of rows moved, 0 when the table is done
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	int archiveBatch(String tableName, int limit, BatchCursor cursor, Date voidedBefore);
+	
+	/**
+	 * Selects the keys of the next batch of voided rows of a table, the read stage of a pipelined
+	 * archival. See {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_ARCHIVAL_PIPELINED}.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @param limit the maximum number of rows to select
+	 * @param cursor the read position of the run, advanced past the selected rows
+	 * @param voidedBefore only select rows voided before this time, null for all voided rows
+	 * @return the keys of the rows, empty when the table is done
+	 */
+	@Transactional(readOnly = true)
+	List<Object[]> selectArchivalBatch(String tableName, int limit, BatchCursor cursor, Date voidedBefore);
+	
+	/**
+	 * Copies a batch of voided rows to an archive table in another database, the write stage of a
+	 * pipelined archival. The copies are committed on the archive connection, which may be handed
+	 * out through the OpenMRS transaction, so the transaction is not read-only.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @param keys the keys selected by {@link #selectArchivalBatch(String, int, BatchCursor, Date)}
+	 * @return the keys of the rows copied
+	 */
+	@Transactional
+	List<Object[]> copyArchivalBatch(String tableName, List<Object[]> keys);
+	
+	/**
+	 * Moves a batch of voided rows to the archive table, or only deletes them if they have been
+	 * copied already, and records the cursor as the table's checkpoint, in a transaction of its own.
+	 * The delete stage of a pipelined archival.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @param keys the keys of the rows
+	 * @param copied true if {@link #copyArchivalBatch(String, List)} copied the rows
+	 * @param cursor the position of the run, already past the rows
+	 * @return the number of rows moved
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	int completeArchivalBatch(String tableName, List<Object[]> keys, boolean copied, BatchCursor cursor);
+	
+	/**
+	 * Moves the next batch of rows recorded in the void queue of a table to its archive table, in a
+	 * transaction of its own. Used instead of scanning the table for voided rows when
+	 * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_TRACKING_ENABLED} is set.
+	 * 
+	 * @param tableName the name of the table to archive
+	 * @param limit the maximum number of queue entries to consume
+	 * @param voidedBefore only consume entries queued before this time, null for all entries
+	 * @return the number of queue entries consumed, 0 when the queue of the table is empty
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	int archiveQueuedBatch(String tableName, int limit, Date voidedBefore);
+	
+	/**
+	 * @param tableName the name of a table
+	 * @return the number of rows of the table waiting in the void queue, such as rows voided after
+	 *         the archive cutoff of its retention rule
+	 */
+	@Transactional(readOnly = true)
+	long getQueuedVoidCount(String tableName);
+	
+	/**
+	 * Deletes archived rows for good once the purge period of their table's retention rule has passed,
+	 * see {@link RetentionPolicy}. Runs outside of any transaction: every batch is committed on its
+	 * own through {@link #purgeArchiveBatch(String, int, Date)}.
+	 * 
+	 * @return the number of rows purged
+	 */
+	long purgeArchives();
+	
+	/**
+	 * Deletes the next batch of rows voided before the given time from the archive table of a table,
+	 * in a transaction of its own.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @param limit the maximum number of rows to delete
+	 * @param voidedBefore the time before which archived rows are purged
+	 * @return the number of rows deleted, 0 when none are left
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	int purgeArchiveBatch(String tableName, int limit, Date voidedBefore);
+	
+	/**
+	 * @return the retention rules configured in the
+	 *         {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_RETENTION_RULES}
+	 *         global property
+	 * @throws org.openmrs.api.APIException if the rules cannot be parsed
+	 */
+	@Transactional(readOnly = true)
+	RetentionPolicy getRetentionPolicy();
+	
+	/**
+	 * Writes the voided counts kept in memory since the last flush to the statistics snapshot. Called
+	 * periodically by the FlushVoidCountersTask; counts that cannot be written are kept for the next
+	 * flush.
+	 * 
+	 * @return the number of tables whose voided count changed
+	 */
+	@Transactional
+	int flushVoidCounters();
+	
+	/**
+	 * Measures replication lag with the query configured in the
+	 * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_REPLICA_LAG_QUERY} global
+	 * property. Archival slows down while the lag is too high.
+	 * 
+	 * @return the lag in seconds, or null if no query is configured or it returned nothing
+	 */
+	@Transactional(readOnly = true)
+	Long getReplicaLagSeconds();
+	
+	/**
+	 * Creates the indexes used by selective restores, browsing and purging on the archive table of
+	 * the given table, if missing. Archival calls this once a table has been loaded, so the indexes
+	 * are built in one pass rather than maintained row by row during the load.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 */
+	@Transactional
+	void ensureArchiveIndexes(String tableName);
+	
+	/**
+	 * @return the statistics snapshot of all scanned tables, by table name
+	 */
+	@Transactional(readOnly = true)
+	Map<String, TableInfo> getTableStatistics();
+	
+	/**
+	 * Starts {@link #runArchival(String)} in the background and returns immediately.
+	 * 
+	 * @param tableName the name of the table to archive, or null for global archive.
+	 * @return the job, whose progress can be polled with {@link #getJob(Long)}
+	 */
+	ArchivalJob submitArchival(String tableName);
+	
+	/**
+	 * @param jobId the job id
+	 * @return the job, or null if there is no such job
+	 */
+	ArchivalJob getJob(Long jobId);
+	
+	/**
+	 * @return all known jobs, most recent first
+	 */
+	List<ArchivalJob> getJobs();
+	
+	/**
+	 * Pauses a running job after its current batch.
+	 * 
+	 * @param jobId the job id
+	 */
+	void pauseJob(Long jobId);
+	
+	/**
+	 * Resumes a paused job.
+	 * 
+	 * @param jobId the job id
+	 */
+	void resumeJob(Long jobId);
+	
+	/**
+	 * Cancels a queued or running job. A running job stops after its current batch.
+	 * 
+	 * @param jobId the job id
+	 */
+	void cancelJob(Long jobId);
+	
 	/**
 	 * Gets a list of all archived tables.
 	 * 
@@ -56,13 +304,222 @@ public interface VoidDataArchiverService extends OpenmrsService {
 	List<TableInfo> getArchivedTables();
 	
 	/**
-	 * Restores an archived table to its original state.
+	 * Restores an archived table to its original state. Rows are moved back in batches, each
+	 * committed on its own, and an interrupted restore resumes from its last committed batch the next
+	 * time. The archive table is dropped once it has been verified to be empty.
 	 * 
 	 * @param tableName the name of the source table (e.g. "visit")
 	 */
-	@Transactional
 	void restoreTable(String tableName);
 	
+	/**
+	 * Restores only the archived rows of a table that match the given criteria, e.g. a few obs voided
+	 * by mistake, leaving the rest of the archive in place. The archive table is dropped only if
+	 * nothing is left in it.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @param criteria selects the rows to restore
+	 * @return the number of rows restored
+	 */
+	long restoreTable(String tableName, RestoreCriteria criteria);
+	
+	/**
+	 * Same as {@link #restoreTable(String, RestoreCriteria)}, reporting progress to the given job and
+	 * honouring its pause and cancel requests between batches.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param criteria selects the rows to restore, null to restore the whole table
+	 * @param job the job to report to
+	 * @return the number of rows restored
+	 */
+	long restoreTable(String tableName, RestoreCriteria criteria, ArchivalJob job);
+	
+	/**
+	 * Starts {@link #restoreTable(String)} in the background and returns immediately.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @return the job, whose progress can be polled with {@link #getJob(Long)}
+	 */
+	ArchivalJob submitRestore(String tableName);
+	
+	/**
+	 * Starts {@link #restoreTable(String, RestoreCriteria)} in the background and returns
+	 * immediately.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @param criteria selects the rows to restore
+	 * @return the job, whose progress can be polled with {@link #getJob(Long)}
+	 */
+	ArchivalJob submitRestore(String tableName, RestoreCriteria criteria);
+	
+	/**
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @return the checkpoint of an unfinished earlier restore of the whole table, or a new cursor
+	 */
+	@Transactional(readOnly = true)
+	BatchCursor prepareTableRestore(String tableName);
+	
+	/**
+	 * Moves the next batch of matching archived rows back to the source table, in a transaction of
+	 * its own. When restoring the whole table, the new position of the cursor is recorded as the
+	 * checkpoint of the archive table; a selective restore simply starts over. When the archive has
+	 * been read the checkpoint is removed, and the archive table is dropped if it is empty.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param criteria selects the rows to restore, null to restore the whole table
+	 * @param limit the maximum number of rows to move
+	 * @param cursor the position of the run, advanced past the moved rows
+	 * @return the number of rows moved back, 0 when the restore is done
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	int restoreBatch(String tableName, RestoreCriteria criteria, int limit, BatchCursor cursor);
+	
+	/**
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param criteria selects the rows to count, null to count all of them
+	 * @return the number of matching rows in the archive table of the table
+	 */
+	@Transactional(readOnly = true)
+	long getArchivedRowCount(String tableName, RestoreCriteria criteria);
+	
+	/**
+	 * Reads one page of the voided rows of a table, for browsing them without loading them all. Pages
+	 * are keyset paginated, so every page costs the same however deep into the table it is.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param archived true to browse the archive table of the table, false for the voided rows still
+	 *            in the table
+	 * @param afterKey {@link VoidedRowPage#getNextKey()} of the previous page, null for the first page
+	 * @param pageSize the maximum number of rows, capped at {@value #MAX_PAGE_SIZE}
+	 * @return the page
+	 */
+	@Transactional(readOnly = true)
+	VoidedRowPage getVoidedRows(String tableName, boolean archived, String afterKey, int pageSize);
+	
+	/**
+	 * Moves the rows of an archive table out of the database, to gzip compressed NDJSON chunk files
+	 * described by a manifest in the
+	 * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_EXPORT_DIRECTORY}. Runs
+	 * without a transaction: each chunk is read by a keyset query in a transaction of its own, and its
+	 * rows are deleted in another once the chunk is on disk. Honours pause and cancel requests of the
+	 * job between chunks; a cancelled export leaves an incomplete manifest listing the chunks already
+	 * written.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @param job the job to report to
+	 * @return the manifest file
+	 */
+	File exportArchive(String tableName, ArchivalJob job);
+	
+	/**
+	 * Starts an export of the archive table of a table to the export directory, see
+	 * {@link #exportArchive(String, ArchivalJob)}.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @return the export, to pass to {@link #exportArchiveChunk(ArchiveExporter.Export)}
+	 */
+	@Transactional(readOnly = true)
+	ArchiveExporter.Export startArchiveExport(String tableName);
+	
+	/**
+	 * Writes the next chunk of an export in a short transaction of its own, which only reads.
+	 * 
+	 * @param export the export
+	 * @return the keys of the rows in the chunk, to delete with
+	 *         {@link #deleteArchivedRows(String, List)}; empty once the export is complete
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW, readOnly = true)
+	List<Object[]> exportArchiveChunk(ArchiveExporter.Export export);
+	
+	/**
+	 * Starts {@link #exportArchive(String, ArchivalJob)} in the background and returns immediately.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @return the job, whose progress can be polled with {@link #getJob(Long)}
+	 */
+	ArchivalJob submitExport(String tableName);
+	
+	/**
+	 * Deletes exported rows from the archive table of a table, in a transaction of its own.
+	 * 
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @param keys the keys of the exported rows
+	 * @return the number of rows deleted
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	int deleteArchivedRows(String tableName, List<Object[]> keys);
+	
+	/**
+	 * @return the file names of the export manifests in the export directory, most recent first
+	 */
+	List<String> getExports();
+	
+	/**
+	 * Loads an export back into the archive table of its table, creating the archive table if needed,
+	 * one chunk per transaction. Rows already in the archive table are skipped, so an interrupted
+	 * import can simply be run again. The rows can then be restored as usual.
+	 * 
+	 * @param manifestName the file name of the manifest, see {@link #getExports()}
+	 * @param job the job to report to
+	 * @return the number of rows imported
+	 */
+	long importArchive(String manifestName, ArchivalJob job);
+	
+	/**
+	 * Starts {@link #importArchive(String, ArchivalJob)} in the background and returns immediately.
+	 * 
+	 * @param manifestName the file name of the manifest, see {@link #getExports()}
+	 * @return the job, whose progress can be polled with {@link #getJob(Long)}
+	 */
+	ArchivalJob submitImport(String manifestName);
+	
+	/**
+	 * Loads one chunk of an export into the archive table of its table, in a transaction of its own.
+	 * The chunk is rejected if it does not match its manifest.
+	 * 
+	 * @param manifest the manifest of the export
+	 * @param directory the directory of the manifest and its chunks
+	 * @param chunk the chunk index, from 0
+	 * @return the number of rows inserted
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	long importArchiveChunk(ExportManifest manifest, File directory, int chunk);
+	
+	/**
+	 * Looks up rows in an export without importing it, by uuid or by the key of the table. These
+	 * lookups binary search the index of each chunk and decode only the blocks holding matches; any
+	 * other column is matched by scanning the chunks. See {@link ArchiveFileReader}.
+	 * 
+	 * @param manifestName the file name of the manifest, see {@link #getExports()}
+	 * @param column the column to match, e.g. "uuid" or "obs_id"
+	 * @param values the values to look for, each expected to match at most one row
+	 * @return the void details of the matching rows
+	 */
+	List<VoidedEntry> findExportedRows(String manifestName, String column, Set<String> values);
+	
+	/**
+	 * Restores individual rows from an export without importing all of it: the rows are looked up in
+	 * the export as in {@link #findExportedRows(String, String, Set)}, loaded into the archive table
+	 * of their table, created if needed, and then restored like
+	 * {@link #restoreTable(String, RestoreCriteria)} restores rows selected by uuid.
+	 * 
+	 * @param manifestName the file name of the manifest, see {@link #getExports()}
+	 * @param uuids the uuids of the rows to restore
+	 * @return the number of rows restored
+	 */
+	long restoreExportedRows(String manifestName, Set<String> uuids);
+	
+	/**
+	 * Loads rows found in an export into the archive table of its table, in a transaction of its own.
+	 * The archive table must exist.
+	 * 
+	 * @param manifest the manifest of the export
+	 * @param rows the rows, as returned by {@link ArchiveFileReader#findRows(String, java.util.Collection)}
+	 * @return the number of rows inserted
+	 */
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	long importArchiveRows(ExportManifest manifest, List<List<String>> rows);
+	
 	/**
 	 * Drops an archive table.
 	 * 
@@ -0,0 +1,75 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+import java.util.Date;
+
+/**
+ * An immutable voided row of a table, as listed in a {@link VoidedRowPage}. Only holds the id of the
+ * user who voided the row; the page resolves each distinct user once, see
+ * {@link VoidedRowPage#getUser(int)}.
+ */
+public final class VoidedEntry {
+	
+	/**
+	 * {@link #getDateVoidedMillis()} of a row without a void date.
+	 */
+	public static final long NO_DATE = Long.MIN_VALUE;
+	
+	private final String uuid;
+	
+	private final int voidedById;
+	
+	private final long dateVoided;
+	
+	private final String voidReason;
+	
+	/**
+	 * @param uuid the uuid of the row, null if the table has no uuid column
+	 * @param voidedById the id of the user who voided the row, 0 if unknown
+	 * @param dateVoided when the row was voided in epoch milliseconds, {@link #NO_DATE} if unknown
+	 * @param voidReason the void reason, may be null
+	 */
+	public VoidedEntry(String uuid, int voidedById, long dateVoided, String voidReason) {
+		this.uuid = uuid;
+		this.voidedById = voidedById;
+		this.dateVoided = dateVoided;
+		this.voidReason = voidReason;
+	}
+	
+	public String getUuid() {
+		return uuid;
+	}
+	
+	/**
+	 * @return the id of the user who voided the row, 0 if unknown
+	 */
+	public int getVoidedById() {
+		return voidedById;
+	}
+	
+	/**
+	 * @return when the row was voided in epoch milliseconds, {@link #NO_DATE} if unknown
+	 */
+	public long getDateVoidedMillis() {
+		return dateVoided;
+	}
+	
+	/**
+	 * @return a new Date of when the row was voided, or null if unknown
+	 */
+	public Date getDateVoided() {
+		return dateVoided != NO_DATE ? new Date(dateVoided) : null;
+	}
+	
+	public String getVoidReason() {
+		return voidReason;
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of voided rows of a table, as returned by
+ * {@link VoidDataArchiverService#getVoidedRows(String, boolean, String, int)}. Rows are listed by
+ * descending key; the next page is requested with {@link #getNextKey()}.
+ */
+public class VoidedRowPage {
+	
+	private final String tableName;
+	
+	private final boolean archived;
+	
+	private final List<VoidedEntry> rows;
+	
+	private final Map<Integer, UserName> users;
+	
+	private final String nextKey;
+	
+	/**
+	 * @param tableName the source table
+	 * @param archived true if the rows were read from the archive table
+	 * @param rows the rows of the page
+	 * @param users the users who voided the rows, by user id
+	 * @param nextKey the key to request the next page after, or null if this is the last page
+	 */
+	public VoidedRowPage(String tableName, boolean archived, List<VoidedEntry> rows, Map<Integer, UserName> users,
+	        String nextKey) {
+		this.tableName = tableName;
+		this.archived = archived;
+		this.rows = rows;
+		this.users = users;
+		this.nextKey = nextKey;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public boolean isArchived() {
+		return archived;
+	}
+	
+	public List<VoidedEntry> getRows() {
+		return rows;
+	}
+	
+	/**
+	 * @return the users who voided the rows of the page, by user id
+	 */
+	public Map<Integer, UserName> getUsers() {
+		return users;
+	}
+	
+	/**
+	 * @param userId a {@link VoidedEntry#getVoidedById()}
+	 * @return the user, or null if unknown
+	 */
+	public UserName getUser(int userId) {
+		return users.get(userId);
+	}
+	
+	public String getNextKey() {
+		return nextKey;
+	}
+}
@@ -9,9 +9,20 @@
  */
 package org.openmrs.module.voiddataarchiver.api.dao;
 
+import java.io.File;
+import java.io.Serializable;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import org.openmrs.module.voiddataarchiver.api.RestoreCriteria;
+import org.openmrs.module.voiddataarchiver.api.StatisticsMode;
 import org.openmrs.module.voiddataarchiver.api.TableInfo;
+import org.openmrs.module.voiddataarchiver.api.VoidedRowPage;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveExporter;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveFileReader;
+import org.openmrs.module.voiddataarchiver.api.db.BatchCursor;
+import org.openmrs.module.voiddataarchiver.api.db.ExportManifest;
 
 /**
  * Database access for VoidDataArchiver
@@ -20,12 +31,53 @@ public interface VoidDataArchiverDao {
 	
 	/**
 	 * Gets a list of information about all tables, including voided data counts for voidable
-	 * tables.
+	 * tables. The counts are read from the statistics snapshot and are null for tables that have not
+	 * been scanned yet.
 	 * 
 	 * @return list of TableInfo objects
 	 */
 	List<TableInfo> getAllTableInfo();
 	
+	/**
+	 * Reads the statistics snapshot without sampling any voided entries.
+	 * 
+	 * @return statistics by table name, only for tables that have been scanned
+	 */
+	java.util.Map<String, TableInfo> getTableStatistics();
+	
+	/**
+	 * Reads the database's row estimates of all tables, for {@link StatisticsMode#ESTIMATED}.
+	 * 
+	 * @return estimated row count by table name, empty if the database does not expose estimates
+	 */
+	java.util.Map<String, Long> getRowEstimates();
+	
+	/**
+	 * Computes the total and voided counts of a voidable table, timing the scan.
+	 * 
+	 * @param tableName the voidable table
+	 * @param mode exact counts or row estimates
+	 * @param rowEstimates the result of {@link #getRowEstimates()}, only used in estimated mode
+	 * @return the statistics, with last refreshed time and scan duration set
+	 */
+	TableInfo collectTableStatistics(String tableName, StatisticsMode mode, java.util.Map<String, Long> rowEstimates);
+	
+	/**
+	 * Stores the statistics of a table in the statistics snapshot, replacing any previous values.
+	 * 
+	 * @param info the statistics as returned by {@link #collectTableStatistics}
+	 */
+	void saveTableStatistics(TableInfo info);
+	
+	/**
+	 * Adjusts the snapshot counts of a table after rows were moved in or out of it, so the snapshot
+	 * stays accurate between refreshes. Does nothing if the table has not been scanned yet.
+	 * 
+	 * @param tableName the source table
+	 * @param rowsDelta the change in both total and voided rows, negative when rows were archived
+	 */
+	void adjustTableStatistics(String tableName, long rowsDelta);
+	
 	/**
 	 * Creates (if invalid/missing) the archive table for the given source table. Also performs
 	 * schema sync if the table exists but is missing columns.
@@ -35,13 +87,145 @@ public interface VoidDataArchiverDao {
 	void createArchiveTable(String tableName);
 	
 	/**
-	 * Moves a batch of voided rows from source to archive.
+	 * Creates the indexes archive-side queries need on the archive table of the given table, if they
+	 * do not exist yet. Meant to be called after a bulk load, see
+	 * {@link org.openmrs.module.voiddataarchiver.api.db.ArchiveIndexManager}.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 */
+	void ensureArchiveIndexes(String tableName);
+	
+	/**
+	 * Moves the next batch of voided rows from source to archive, in descending primary key order.
+	 * Runs in the caller's transaction; it is up to the caller to keep that transaction short.
 	 * 
 	 * @param tableName the name of the source table
 	 * @param limit batch size (e.g. 1000)
-	 * @return number of rows moved
+	 * @param cursor the position of the run, advanced past the moved rows; use a new cursor for each
+	 *            run over a table
+	 * @param voidedBefore only move rows voided before this time, null for all voided rows
+	 * @return number of rows deleted from the source table, 0 when no voided rows are left; a batch
+	 *         whose rows were all unvoided in the meantime is skipped
+	 */
+	int archiveBatch(String tableName, int limit, BatchCursor cursor, Date voidedBefore);
+	
+	/**
+	 * Selects the keys of the next batch of voided rows, the first step of
+	 * {@link #archiveBatch(String, int, BatchCursor, Date)}.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param limit batch size
+	 * @param cursor the position of the run, advanced past the selected rows
+	 * @param voidedBefore only select rows voided before this time, null for all voided rows
+	 * @return the keys of the rows, in descending order
+	 */
+	List<Object[]> selectVoidedKeys(String tableName, int limit, BatchCursor cursor, Date voidedBefore);
+	
+	/**
+	 * @return true if archive tables are reached through the OpenMRS connection, so that rows are
+	 *         copied and deleted in one transaction; false if {@link #copyToArchive(String, List)}
+	 *         copies them beforehand
 	 */
-	int archiveBatch(String tableName, int limit);
+	boolean isArchiveConnectionShared();
+	
+	/**
+	 * Copies voided rows to an archive table in another database, where the copies are committed
+	 * right away. Rows already archived are skipped.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param keys the keys of the rows
+	 * @return the keys of the rows that were still voided and are now archived
+	 */
+	List<Object[]> copyToArchive(String tableName, List<Object[]> keys);
+	
+	/**
+	 * Moves the voided rows with the given keys to the archive table. Runs in the caller's
+	 * transaction.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param keys the keys of the rows
+	 * @param copied true if the rows have already been copied by {@link #copyToArchive(String, List)}
+	 *            and only need to be deleted
+	 * @return the number of rows deleted from the source table
+	 */
+	int moveToArchive(String tableName, List<Object[]> keys, boolean copied);
+	
+	/**
+	 * Records newly voided rows in the void queue, in the caller's transaction. Rows of tables whose
+	 * key spans several columns are skipped.
+	 * 
+	 * @param idsByTable the ids of the voided rows by table name
+	 */
+	void queueVoidedRows(Map<String, List<Serializable>> idsByTable);
+	
+	/**
+	 * Adds to the voided counts of the statistics snapshot. Tables that have not been scanned yet are
+	 * skipped, their first scan counts all their voided rows.
+	 * 
+	 * @param deltas the change in voided rows by table name
+	 */
+	void addVoidedCounts(Map<String, Long> deltas);
+	
+	/**
+	 * Moves the next batch of queued voided rows of a table to its archive table and removes their
+	 * entries from the queue, adjusting the statistics snapshot for the moved rows. Rows that were
+	 * unvoided since they were queued are left alone. Runs in the caller's transaction.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param limit the maximum number of queue entries to consume
+	 * @param voidedBefore only consume entries queued before this time, null for all entries
+	 * @return the number of queue entries consumed, 0 when none are left
+	 */
+	int archiveQueuedBatch(String tableName, int limit, Date voidedBefore);
+	
+	/**
+	 * @param tableName the name of the source table
+	 * @return the number of entries in the void queue of the table
+	 */
+	long countQueuedVoids(String tableName);
+	
+	/**
+	 * Deletes the next batch of rows voided before the given time from the archive table of a table,
+	 * for good. Runs in the caller's transaction.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param limit the maximum number of rows to delete
+	 * @param voidedBefore the time before which archived rows are purged
+	 * @return the number of rows deleted, 0 when none are left
+	 */
+	int purgeArchiveBatch(String tableName, int limit, Date voidedBefore);
+	
+	/**
+	 * Runs a query returning the replication lag of the database.
+	 * 
+	 * @param query SQL returning the lag in seconds in the first column of its first row
+	 * @return the lag in seconds, or null if the query returned no row or a null value
+	 */
+	Long getReplicaLagSeconds(String query);
+	
+	/**
+	 * Gets the checkpoint left by an unfinished run over a table: the source table of an archival
+	 * run, or the archive table of a restore run.
+	 * 
+	 * @param tableName the table the run reads
+	 * @return the cursor to resume from, or null if there is no unfinished run
+	 */
+	BatchCursor getCheckpoint(String tableName);
+	
+	/**
+	 * Records how far the run over a table got.
+	 * 
+	 * @param tableName the table the run reads
+	 * @param cursor the position of the run
+	 */
+	void saveCheckpoint(String tableName, BatchCursor cursor);
+	
+	/**
+	 * Removes the checkpoint of a table once the run over it is complete.
+	 * 
+	 * @param tableName the table the run reads
+	 */
+	void deleteCheckpoint(String tableName);
 	
 	/**
 	 * Retrieves the foreign key relationships between tables.
@@ -58,11 +242,94 @@ public interface VoidDataArchiverDao {
 	List<TableInfo> getArchivedTables();
 	
 	/**
-	 * Restores data from the archive table back to the source table.
+	 * Moves the next batch of rows from the archive table back to the source table, in descending key
+	 * order. Rows whose key already exists in the source are not copied but are removed from the
+	 * archive all the same; rows that could not be copied stay in the archive. Runs in the caller's
+	 * transaction.
 	 * 
 	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param criteria selects the archived rows to restore, null for all of them
+	 * @param limit batch size
+	 * @param cursor the position of the run over the archive table, advanced past the batch
+	 * @return number of rows moved back, 0 when the archive has been read completely; a batch of
+	 *         rows that could not go back is skipped
+	 */
+	int restoreBatch(String tableName, RestoreCriteria criteria, int limit, BatchCursor cursor);
+	
+	/**
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param criteria selects the archived rows to count, null for all of them
+	 * @return the number of matching rows in the archive table of the table
+	 */
+	long countArchivedRows(String tableName, RestoreCriteria criteria);
+	
+	/**
+	 * @param tableName the table
+	 * @return the exact number of rows in the table
+	 */
+	long countRows(String tableName);
+	
+	/**
+	 * Reads a page of voided rows of a table, by descending key. Only the uuid and void columns are
+	 * read, and the names of the users who voided them are looked up once per page.
+	 * 
+	 * @param tableName the name of the source table (e.g. "visit")
+	 * @param archived true to read the archive table of the table, false for the voided rows still in
+	 *            the table
+	 * @param afterKey the next key of the previous page, null for the first page
+	 * @param pageSize the maximum number of rows to read
+	 * @return the page
+	 */
+	VoidedRowPage getVoidedRows(String tableName, boolean archived, String afterKey, int pageSize);
+	
+	/**
+	 * Starts an export of the archive table of a table to compressed chunk files, see
+	 * {@link ArchiveExporter}.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param directory the directory to write the manifest and chunks to
+	 * @return the export
+	 */
+	ArchiveExporter.Export startArchiveExport(String tableName, File directory);
+	
+	/**
+	 * Writes the next chunk of an export, in the caller's transaction, which only reads.
+	 * 
+	 * @param export the export, see {@link #startArchiveExport(String, File)}
+	 * @return the keys of the rows in the chunk, empty once the export is complete
+	 */
+	List<Object[]> exportArchiveChunk(ArchiveExporter.Export export);
+	
+	/**
+	 * Deletes the rows with the given keys from the archive table of a table, in the caller's
+	 * transaction.
+	 * 
+	 * @param tableName the name of the source table
+	 * @param keys the keys of the rows to delete
+	 * @return the number of rows deleted
+	 */
+	int deleteArchivedRows(String tableName, List<Object[]> keys);
+	
+	/**
+	 * Loads one chunk of an export into the archive table of its table, in the caller's transaction.
+	 * The archive table must exist.
+	 * 
+	 * @param manifest the manifest of the export
+	 * @param directory the directory of the manifest and its chunks
+	 * @param chunk the chunk index, from 0
+	 * @return the number of rows inserted
+	 */
+	long importArchiveChunk(ExportManifest manifest, File directory, int chunk);
+	
+	/**
+	 * Loads rows found in an export into the archive table of their table, in the caller's
+	 * transaction. The archive table must exist.
+	 * 
+	 * @param manifest the manifest of the export
+	 * @param rows the rows, as returned by {@link ArchiveFileReader#findRows(String, java.util.Collection)}
+	 * @return the number of rows inserted
 	 */
-	void restoreTable(String tableName);
+	long importArchiveRows(ExportManifest manifest, List<List<String>> rows);
 	
 	/**
 	 * Drops the specified table. Use with caution!
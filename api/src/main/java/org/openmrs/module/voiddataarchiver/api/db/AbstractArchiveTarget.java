@@ -0,0 +1,134 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base class of the {@link ArchiveTarget}s of this module. Defaults to archive tables named
+ * "archive_" + table, reached through the OpenMRS connection and looked up through
+ * {@link DatabaseMetaData} in the catalog and schema given by the subclass.
+ */
+public abstract class AbstractArchiveTarget implements ArchiveTarget {
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	@Override
+	public boolean isSharedConnection() {
+		return true;
+	}
+	
+	@Override
+	public Connection getConnection(Connection openmrsConnection) throws SQLException {
+		return openmrsConnection;
+	}
+	
+	@Override
+	public void releaseConnection(Connection archiveConnection) throws SQLException {
+	}
+	
+	@Override
+	public String getArchiveTableName(String tableName) {
+		return PREFIX + tableName;
+	}
+	
+	@Override
+	public String getCatalog(Connection archiveConnection) throws SQLException {
+		return archiveConnection.getCatalog();
+	}
+	
+	@Override
+	public String getSchema(Connection archiveConnection) throws SQLException {
+		return null;
+	}
+	
+	@Override
+	public TableMetadata getArchiveTable(Connection archiveConnection, String tableName) throws SQLException {
+		String archiveTableName = PREFIX + tableName;
+		TableMetadata table = null;
+		// Underscores are wildcards in the pattern, so the names are compared again
+		ResultSet rs = archiveConnection.getMetaData().getColumns(getCatalog(archiveConnection),
+		    getSchema(archiveConnection), archiveTableName, "%");
+		try {
+			while (rs.next()) {
+				if (!archiveTableName.equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+					continue;
+				}
+				if (table == null) {
+					table = new TableMetadata(rs.getString("TABLE_NAME"));
+				}
+				table.addColumn(new ColumnMetadata(rs.getString("COLUMN_NAME"), rs.getString("TYPE_NAME"), rs
+				        .getInt("DATA_TYPE"), rs.getInt("COLUMN_SIZE")));
+			}
+		}
+		finally {
+			rs.close();
+		}
+		return table;
+	}
+	
+	@Override
+	public List<String> getArchivedTableNames(Connection archiveConnection) throws SQLException {
+		List<String> names = new ArrayList<String>();
+		ResultSet rs = archiveConnection.getMetaData().getTables(getCatalog(archiveConnection),
+		    getSchema(archiveConnection), "%", new String[] { "TABLE" });
+		try {
+			while (rs.next()) {
+				String name = rs.getString("TABLE_NAME");
+				if (name.toLowerCase().startsWith(PREFIX)) {
+					names.add(name.substring(PREFIX.length()));
+				}
+			}
+		}
+		finally {
+			rs.close();
+		}
+		return names;
+	}
+	
+	/**
+	 * Creates the archive table as a copy of the source table's definition, which requires the
+	 * archive table to be reachable from the OpenMRS connection.
+	 */
+	@Override
+	public void createArchiveTable(Connection openmrsConnection, Connection archiveConnection, TableMetadata sourceTable)
+	        throws SQLException {
+		String tableName = sourceTable.getName();
+		List<String> statements = ArchiverDialect.forConnection(archiveConnection).getCreateArchiveTable(
+		    getArchiveTableName(tableName), tableName, sourceTable.getPrimaryKeyColumns());
+		Statement stmt = archiveConnection.createStatement();
+		try {
+			for (String sql : statements) {
+				stmt.execute(sql);
+			}
+		}
+		finally {
+			stmt.close();
+		}
+	}
+	
+	@Override
+	public void invalidate() {
+	}
+	
+	@Override
+	public String toString() {
+		return getDescription();
+	}
+}
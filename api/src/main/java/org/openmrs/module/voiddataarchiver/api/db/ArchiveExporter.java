@@ -0,0 +1,389 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Streams an archive table to gzip compressed NDJSON chunk files, described by an
+ * {@link ExportManifest}. Each chunk is read by a keyset query of its own and written as rows
+ * arrive, so the table is never held in memory and no cursor stays open between chunks; only the
+ * keys of the current chunk are kept, to return them once the chunk is on disk. See
+ * {@link ChunkFormat} for the line format.
+ * <p>
+ * Each chunk is a series of independently compressed gzip members of {@link #ROWS_PER_BLOCK} rows,
+ * which read as one stream but can also be decoded one at a time, and comes with an
+ * {@link ExportIndex} of the block holding each row.
+ */
+@Component("voiddataarchiver.ArchiveExporter")
+public class ArchiveExporter {
+	
+	/**
+	 * Rows per chunk file, which bounds both the file size and the keys held in memory.
+	 */
+	static final int ROWS_PER_CHUNK = 50000;
+	
+	/**
+	 * Rows per compressed block, the most a single row lookup decodes.
+	 */
+	static final int ROWS_PER_BLOCK = 1000;
+	
+	/**
+	 * Rows fetched per round trip by drivers that honour the fetch size.
+	 */
+	static final int FETCH_SIZE = 1000;
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * An export in progress: its manifest and the key of the last row exported, below which the next
+	 * chunk continues. Holds no database resources, so each chunk can be read in a transaction of its
+	 * own.
+	 */
+	public static class Export {
+		
+		private final String archiveTableName;
+		
+		private final TableKey key;
+		
+		private final List<String> columns;
+		
+		private final int[] types;
+		
+		private final int[] keyColumns;
+		
+		private final int uuidColumn;
+		
+		private final int indexedKeyColumn;
+		
+		private final ExportManifest manifest;
+		
+		private final File directory;
+		
+		private final String baseName;
+		
+		private final File manifestFile;
+		
+		private Object[] lastKey;
+		
+		private Export(String archiveTableName, TableKey key, List<String> columns, int[] types, int[] keyColumns,
+		    int uuidColumn, int indexedKeyColumn, ExportManifest manifest, File directory, String baseName) {
+			this.archiveTableName = archiveTableName;
+			this.key = key;
+			this.columns = columns;
+			this.types = types;
+			this.keyColumns = keyColumns;
+			this.uuidColumn = uuidColumn;
+			this.indexedKeyColumn = indexedKeyColumn;
+			this.manifest = manifest;
+			this.directory = directory;
+			this.baseName = baseName;
+			this.manifestFile = new File(directory, baseName + ".properties");
+		}
+		
+		public ExportManifest getManifest() {
+			return manifest;
+		}
+		
+		public File getManifestFile() {
+			return manifestFile;
+		}
+		
+		/**
+		 * @return true once every row of the archive table has been exported
+		 */
+		public boolean isComplete() {
+			return manifest.isComplete();
+		}
+	}
+	
+	/**
+	 * Starts an export of all rows of an archive table. Nothing is written until the first chunk.
+	 * 
+	 * @param tableName the source table of the archive table
+	 * @param archiveTableName the name of the archive table in SQL, see
+	 *            {@link ArchiveTarget#getArchiveTableName(String)}
+	 * @param archiveTable the archive table
+	 * @param key the key of the archive table
+	 * @param directory the directory to write the manifest and chunks to
+	 * @return the export, to pass to {@link #exportChunk(Connection, Export)} until it is complete
+	 */
+	public Export start(String tableName, String archiveTableName, TableMetadata archiveTable, TableKey key,
+	        File directory) {
+		List<String> columns = archiveTable.getColumnNames();
+		int[] types = new int[columns.size()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = archiveTable.getColumn(columns.get(i)).getDataType();
+		}
+		int[] keyColumns = new int[key.size()];
+		for (int i = 0; i < keyColumns.length; i++) {
+			keyColumns[i] = columns.indexOf(archiveTable.getColumn(key.getColumns().get(i).getName()).getName()) + 1;
+		}
+		ColumnMetadata uuid = archiveTable.getColumn("uuid");
+		int uuidColumn = uuid != null ? columns.indexOf(uuid.getName()) + 1 : 0;
+		int indexedKeyColumn = keyColumns.length == 1 && isInteger(types[keyColumns[0] - 1]) ? keyColumns[0] : 0;
+		
+		ExportManifest manifest = new ExportManifest(tableName, columns, types);
+		if (indexedKeyColumn > 0) {
+			manifest.setKeyColumn(columns.get(indexedKeyColumn - 1));
+		}
+		String baseName = archiveTable.getName() + "-" + new SimpleDateFormat("yyyyMMdd'T'HHmmss").format(new Date());
+		return new Export(archiveTableName, key, columns, types, keyColumns, uuidColumn, indexedKeyColumn, manifest,
+		        directory, baseName);
+	}
+	
+	/**
+	 * Writes the next chunk of an export: up to {@link #ROWS_PER_CHUNK} rows with keys below the last
+	 * row exported, read by one keyset query, so a chunk only holds a cursor for as long as it takes
+	 * to write it. The chunk file and the manifest listing it are synced to disk before this returns;
+	 * the export is complete once a chunk comes back short.
+	 * 
+	 * @param connection the connection to the archive table
+	 * @param export the export, see {@link #start(String, String, TableMetadata, TableKey, File)}
+	 * @return the keys of the rows in the chunk, empty if no rows were left
+	 */
+	public List<Object[]> exportChunk(Connection connection, Export export) throws SQLException, IOException {
+		List<Object[]> keys = new ArrayList<Object[]>();
+		if (export.isComplete()) {
+			return keys;
+		}
+		ExportManifest manifest = export.manifest;
+		StringBuilder select = new StringBuilder("SELECT ");
+		for (int i = 0; i < export.columns.size(); i++) {
+			select.append(i > 0 ? ", " : "").append(export.columns.get(i));
+		}
+		select.append(" FROM ").append(export.archiveTableName);
+		if (export.lastKey != null) {
+			select.append(" WHERE ").append(export.key.getBeforePredicate());
+		}
+		select.append(" ORDER BY ").append(export.key.getDescendingOrder()).append(" LIMIT ").append(ROWS_PER_CHUNK);
+		
+		ArchiverDialect dialect = ArchiverDialect.forConnection(connection);
+		PreparedStatement stmt = connection.prepareStatement(select.toString(), ResultSet.TYPE_FORWARD_ONLY,
+		    ResultSet.CONCUR_READ_ONLY);
+		ChunkWriter chunk = null;
+		try {
+			stmt.setFetchSize(dialect.getStreamingFetchSize(FETCH_SIZE));
+			if (export.lastKey != null) {
+				export.key.bindBefore(stmt, 1, export.lastKey);
+			}
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				if (chunk == null) {
+					String chunkName = String.format("%s-%05d.ndjson.gz", export.baseName, manifest.getChunkCount() + 1);
+					chunk = new ChunkWriter(new File(export.directory, chunkName));
+					chunk.writeHeader(manifest.getSchemaHeader());
+				}
+				String rowUuid = export.uuidColumn > 0 ? rs.getString(export.uuidColumn) : null;
+				Long indexedKey = export.indexedKeyColumn > 0 ? rs.getLong(export.indexedKeyColumn) : null;
+				chunk.writeRow(rs, export.types, new ExportIndex.Entry(rowUuid, indexedKey));
+				Object[] rowKey = new Object[export.keyColumns.length];
+				for (int i = 0; i < export.keyColumns.length; i++) {
+					rowKey[i] = rs.getObject(export.keyColumns[i]);
+				}
+				keys.add(rowKey);
+			}
+			rs.close();
+			
+			if (chunk != null) {
+				ChunkWriter full = chunk;
+				chunk = null;
+				String checksum = full.finish();
+				manifest.addChunk(full.file.getName(), full.rows, checksum);
+				export.lastKey = keys.get(keys.size() - 1);
+			}
+			if (keys.size() < ROWS_PER_CHUNK) {
+				manifest.setComplete(true);
+				log.info("Exported " + manifest.getRowCount() + " rows of " + export.archiveTableName + " to "
+				        + export.manifestFile);
+			}
+			manifest.store(export.manifestFile);
+			return keys;
+		}
+		finally {
+			stmt.close();
+			if (chunk != null) {
+				// Not listed in the manifest yet, and its rows are still in the database
+				chunk.abort();
+			}
+		}
+	}
+	
+	private static boolean isInteger(int type) {
+		return type == Types.TINYINT || type == Types.SMALLINT || type == Types.INTEGER || type == Types.BIGINT;
+	}
+	
+	/**
+	 * A chunk file being written, checksummed as it is compressed, one gzip member per block.
+	 */
+	private static class ChunkWriter {
+		
+		private final File file;
+		
+		private final File indexFile;
+		
+		private final FileOutputStream fileOut;
+		
+		private final MessageDigest digest;
+		
+		private final CountingOutputStream out;
+		
+		private final List<ExportIndex.Entry> entries = new ArrayList<ExportIndex.Entry>();
+		
+		private GZIPOutputStream gzipOut;
+		
+		private Writer writer;
+		
+		private long blockOffset;
+		
+		private int blockStart;
+		
+		private long rows;
+		
+		ChunkWriter(File file) throws IOException {
+			this.file = file;
+			this.indexFile = new File(file.getParentFile(), ExportIndex.getIndexFile(file.getName()));
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			fileOut = new FileOutputStream(file);
+			out = new CountingOutputStream(new DigestOutputStream(new BufferedOutputStream(fileOut, 65536), digest));
+		}
+		
+		/**
+		 * Writes the schema header as a block of its own.
+		 */
+		void writeHeader(String header) throws IOException {
+			startBlock();
+			writer.write(header);
+			writer.write('\n');
+			endBlock();
+		}
+		
+		void writeRow(ResultSet rs, int[] types, ExportIndex.Entry entry) throws SQLException, IOException {
+			if (writer == null) {
+				startBlock();
+			}
+			ChunkFormat.writeRow(writer, rs, types);
+			entries.add(entry);
+			if (++rows % ROWS_PER_BLOCK == 0) {
+				endBlock();
+			}
+		}
+		
+		private void startBlock() throws IOException {
+			blockOffset = out.count;
+			blockStart = entries.size();
+			gzipOut = new GZIPOutputStream(out, 65536);
+			writer = new BufferedWriter(new OutputStreamWriter(gzipOut, "UTF-8"));
+		}
+		
+		private void endBlock() throws IOException {
+			writer.flush();
+			gzipOut.finish();
+			int length = (int) (out.count - blockOffset);
+			for (int i = blockStart; i < entries.size(); i++) {
+				entries.get(i).setBlock(blockOffset, length);
+			}
+			writer = null;
+			gzipOut = null;
+		}
+		
+		/**
+		 * Closes the file once it and its index are synced to disk.
+		 * 
+		 * @return the SHA-256 checksum of the file, in hex
+		 */
+		String finish() throws IOException {
+			try {
+				if (writer != null) {
+					endBlock();
+				}
+				out.flush();
+				fileOut.getFD().sync();
+			}
+			finally {
+				fileOut.close();
+			}
+			ExportIndex.write(indexFile, entries);
+			return ChunkFormat.hex(digest.digest());
+		}
+		
+		void abort() {
+			try {
+				fileOut.close();
+			}
+			catch (IOException ignored) {}
+			for (File f : new File[] { file, indexFile }) {
+				if (f.exists() && !f.delete()) {
+					f.deleteOnExit();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Counts the bytes written to the chunk file, to record where each block starts. Does not close
+	 * the underlying stream, since every block's gzip stream is finished on top of it.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		
+		private long count;
+		
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+import org.openmrs.module.voiddataarchiver.api.VoidedEntry;
+
+/**
+ * Finds rows of an export without importing it. Lookups by uuid, or by key for tables with a single
+ * integer key, binary search the memory mapped {@link ExportIndex} of each chunk and decode only the
+ * blocks holding matches, mapped straight from the chunk file; each block is checked against its
+ * gzip CRC, not the checksum of the whole chunk. Lookups by other columns, and lookups in exports
+ * written before chunks were indexed, scan the chunks.
+ */
+public class ArchiveFileReader {
+	
+	private final File directory;
+	
+	private final ExportManifest manifest;
+	
+	/**
+	 * @param directory the directory of the manifest and its chunks
+	 * @param manifest the manifest of the export
+	 */
+	public ArchiveFileReader(File directory, ExportManifest manifest) {
+		this.directory = directory;
+		this.manifest = manifest;
+	}
+	
+	public ExportManifest getManifest() {
+		return manifest;
+	}
+	
+	/**
+	 * Finds the rows whose value of a column is one of the given values. Each value is expected to
+	 * match at most one row, as is the case for uuids and keys.
+	 * 
+	 * @param column the column to match, case insensitive
+	 * @param values the values to look for
+	 * @return the matching rows in no particular order, each holding its values as text in manifest
+	 *         column order, see {@link ChunkFormat#parseRow(String)}
+	 * @throws IllegalArgumentException if the export has no such column
+	 * @throws IOException if a chunk or index cannot be read or is corrupt
+	 */
+	public List<List<String>> findRows(String column, Collection<String> values) throws IOException {
+		int columnIndex = getColumnIndex(column);
+		if (columnIndex < 0) {
+			throw new IllegalArgumentException("The export of " + manifest.getTableName() + " has no column " + column);
+		}
+		boolean byUuid = "uuid".equalsIgnoreCase(column);
+		boolean byKey = column.equalsIgnoreCase(manifest.getKeyColumn());
+		Set<String> wanted = new HashSet<String>();
+		for (String value : values) {
+			if (!byKey) {
+				wanted.add(value);
+				continue;
+			}
+			try {
+				// As written by ChunkFormat, so " 042" still finds 42
+				wanted.add(String.valueOf(Long.parseLong(value.trim())));
+			}
+			catch (NumberFormatException e) {
+				// Cannot match an integer key
+			}
+		}
+		
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (int chunk = 0; chunk < manifest.getChunkCount() && !wanted.isEmpty(); chunk++) {
+			String chunkFile = manifest.getChunkFile(chunk);
+			File indexFile = new File(directory, ExportIndex.getIndexFile(chunkFile));
+			if ((byUuid || byKey) && indexFile.isFile()) {
+				findInBlocks(ExportIndex.open(indexFile), new File(directory, chunkFile), byUuid, columnIndex, wanted,
+				    rows);
+			} else {
+				InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(new File(directory,
+				        chunkFile)), 65536), 65536);
+				scan(in, columnIndex, wanted, rows);
+			}
+		}
+		return rows;
+	}
+	
+	/**
+	 * @param row a row returned by {@link #findRows(String, Collection)}
+	 * @return the void details of the row
+	 */
+	public VoidedEntry toVoidedEntry(List<String> row) {
+		String uuid = getValue(row, "uuid");
+		String voidedBy = getValue(row, "voided_by");
+		String dateVoided = getValue(row, "date_voided");
+		try {
+			return new VoidedEntry(uuid, voidedBy != null ? Integer.parseInt(voidedBy) : 0,
+			        dateVoided != null ? Long.parseLong(dateVoided) : VoidedEntry.NO_DATE, getValue(row, "void_reason"));
+		}
+		catch (NumberFormatException e) {
+			return new VoidedEntry(uuid, 0, VoidedEntry.NO_DATE, getValue(row, "void_reason"));
+		}
+	}
+	
+	private String getValue(List<String> row, String column) {
+		int index = getColumnIndex(column);
+		return index >= 0 ? row.get(index) : null;
+	}
+	
+	private int getColumnIndex(String column) {
+		List<String> columns = manifest.getColumnNames();
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).equalsIgnoreCase(column)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private void findInBlocks(ExportIndex index, File chunkFile, boolean byUuid, int columnIndex, Set<String> wanted,
+	        List<List<String>> rows) throws IOException {
+		// Several values may share a block; decode each once, in file order
+		Set<ExportIndex.Block> blocks = new TreeSet<ExportIndex.Block>(new Comparator<ExportIndex.Block>() {
+			
+			@Override
+			public int compare(ExportIndex.Block a, ExportIndex.Block b) {
+				return Long.compare(a.getOffset(), b.getOffset());
+			}
+		});
+		for (String value : wanted) {
+			ExportIndex.Block block = byUuid ? index.findUuid(value) : index.findKey(Long.parseLong(value));
+			if (block != null) {
+				blocks.add(block);
+			}
+		}
+		if (blocks.isEmpty()) {
+			return;
+		}
+		FileChannel channel = FileChannel.open(chunkFile.toPath());
+		try {
+			for (ExportIndex.Block block : blocks) {
+				if (block.getOffset() + block.getLength() > channel.size()) {
+					throw new IOException("The index of " + chunkFile + " points past its end");
+				}
+				ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, block.getOffset(), block.getLength());
+				scan(new GZIPInputStream(new ByteBufferInputStream(mapped)), columnIndex, wanted, rows);
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Reads rows from a decompressed stream, moving those whose value is wanted from the wanted values
+	 * to the rows, and closes the stream.
+	 */
+	private void scan(InputStream in, int columnIndex, Set<String> wanted, List<List<String>> rows)
+	        throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			String line;
+			while (!wanted.isEmpty() && (line = reader.readLine()) != null) {
+				// Skip blank lines and the schema header
+				if (line.isEmpty() || line.charAt(0) != '[') {
+					continue;
+				}
+				List<String> row = ChunkFormat.parseRow(line);
+				if (columnIndex < row.size() && wanted.remove(row.get(columnIndex))) {
+					rows.add(row);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Reads a mapped block without copying it to the heap first.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		
+		private final ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Loads the chunk files written by {@link ArchiveExporter} back into archive tables, from where they
+ * can be restored as usual. A chunk is streamed line by line into batched inserts, so it is never
+ * held in memory, and it is only accepted if its schema header, row count and checksum match the
+ * manifest.
+ */
+@Component("voiddataarchiver.ArchiveImporter")
+public class ArchiveImporter {
+	
+	/**
+	 * Rows sent to the database per batch of inserts.
+	 */
+	static final int BATCH_SIZE = 1000;
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * Inserts the rows of one chunk into the archive table of the manifest's table, which must exist.
+	 * Rows already in the archive table are skipped, so a chunk can be imported again after an
+	 * interrupted import, and so can a chunk that failed half way on a connection in auto-commit mode.
+	 * 
+	 * @param archiveTableName the name of the archive table in SQL, see
+	 *            {@link ArchiveTarget#getArchiveTableName(String)}
+	 * @param key the key of the table
+	 * @param manifest the manifest of the export
+	 * @param directory the directory of the manifest and its chunks
+	 * @param chunk the chunk index, from 0
+	 * @return the number of rows inserted
+	 * @throws IOException if the chunk is missing, corrupt or does not match the manifest
+	 */
+	public long importChunk(Connection connection, String archiveTableName, TableKey key, ExportManifest manifest,
+	        File directory, int chunk) throws SQLException, IOException {
+		File file = new File(directory, manifest.getChunkFile(chunk));
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		DigestInputStream digestIn = new DigestInputStream(new BufferedInputStream(new FileInputStream(file), 65536),
+		        digest);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(digestIn, 65536), "UTF-8"));
+		try {
+			String header = reader.readLine();
+			if (!manifest.getSchemaHeader().equals(header)) {
+				throw new IOException("The schema header of " + file + " does not match its manifest");
+			}
+			
+			int[] types = manifest.getColumnTypes();
+			long rows = 0;
+			long inserted = 0;
+			PreparedStatement insert = prepareInsert(connection, archiveTableName, key, manifest);
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty()) {
+						continue;
+					}
+					ChunkFormat.bindRow(insert, ChunkFormat.parseRow(line), types);
+					insert.addBatch();
+					if (++rows % BATCH_SIZE == 0) {
+						inserted += sum(insert.executeBatch());
+					}
+				}
+				if (rows % BATCH_SIZE != 0) {
+					inserted += sum(insert.executeBatch());
+				}
+			}
+			finally {
+				insert.close();
+			}
+			
+			// Run any bytes after the end of the compressed data through the digest too
+			byte[] buffer = new byte[8192];
+			while (digestIn.read(buffer) != -1) {}
+			if (!ChunkFormat.hex(digest.digest()).equals(manifest.getChunkChecksum(chunk))) {
+				throw new IOException("The checksum of " + file + " does not match its manifest");
+			}
+			if (rows != manifest.getChunkRows(chunk)) {
+				throw new IOException(file + " has " + rows + " rows, its manifest lists "
+				        + manifest.getChunkRows(chunk));
+			}
+			log.debug("Imported " + inserted + " of " + rows + " rows from " + file + " into " + archiveTableName);
+			return inserted;
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Inserts rows found by an {@link ArchiveFileReader} into the archive table of the manifest's
+	 * table, which must exist, skipping rows already in it.
+	 * 
+	 * @param archiveTableName the name of the archive table in SQL
+	 * @param key the key of the table
+	 * @param manifest the manifest of the export the rows were read from
+	 * @param rows the rows, as returned by {@link ArchiveFileReader#findRows(String, java.util.Collection)}
+	 * @return the number of rows inserted
+	 */
+	public long importRows(Connection connection, String archiveTableName, TableKey key, ExportManifest manifest,
+	        List<List<String>> rows) throws SQLException {
+		int[] types = manifest.getColumnTypes();
+		long inserted = 0;
+		PreparedStatement insert = prepareInsert(connection, archiveTableName, key, manifest);
+		try {
+			for (int i = 0; i < rows.size(); i++) {
+				ChunkFormat.bindRow(insert, rows.get(i), types);
+				insert.addBatch();
+				if ((i + 1) % BATCH_SIZE == 0 || i == rows.size() - 1) {
+					inserted += sum(insert.executeBatch());
+				}
+			}
+		}
+		finally {
+			insert.close();
+		}
+		return inserted;
+	}
+	
+	private static PreparedStatement prepareInsert(Connection connection, String archiveTableName, TableKey key,
+	        ExportManifest manifest) throws SQLException {
+		return connection.prepareStatement(ArchiverDialect.forConnection(connection).getInsertIgnoreRow(archiveTableName,
+		    manifest.getColumnNames(), key));
+	}
+	
+	private static long sum(int[] updateCounts) {
+		long total = 0;
+		for (int count : updateCounts) {
+			if (count > 0) {
+				total += count;
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Maintains the indexes of archive tables. Archive tables are queried differently from their source
+ * tables: by uuid, void date, voider and person when restoring selectively, browsing or purging,
+ * and by key when restoring. So the secondary indexes a freshly created archive table inherits from
+ * its source are dropped before the first bulk load, which then only maintains the primary key, and
+ * the indexes archive-side queries need are created once the load is done.
+ */
+@Component("voiddataarchiver.ArchiveIndexManager")
+public class ArchiveIndexManager {
+	
+	/**
+	 * Columns indexed on every archive table that has them.
+	 */
+	static final String[] INDEXED_COLUMNS = { "uuid", "date_voided", "voided_by", "person_id", "patient_id" };
+	
+	/**
+	 * Prefix of the indexes created by this class.
+	 */
+	static final String INDEX_PREFIX = "va_";
+	
+	/**
+	 * Index names are limited to 64 characters on MySQL and 63 on PostgreSQL.
+	 */
+	static final int MAX_INDEX_NAME_LENGTH = 63;
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * Drops all indexes of an archive table except its primary key. Meant for a freshly created,
+	 * still empty archive table.
+	 * 
+	 * @param connection the archive connection
+	 * @param target where the archive table lives
+	 * @param tableName the source table of the archive table
+	 * @return the names of the dropped indexes
+	 */
+	public List<String> dropSecondaryIndexes(Connection connection, ArchiveTarget target, String tableName)
+	        throws SQLException {
+		String archiveTableName = target.getArchiveTableName(tableName);
+		String schema = target.getSchema(connection);
+		List<String> dropped = new ArrayList<String>();
+		String primaryKeyName = getPrimaryKeyName(connection, target, tableName);
+		ArchiverDialect dialect = ArchiverDialect.forConnection(connection);
+		Statement stmt = connection.createStatement();
+		try {
+			for (String index : getIndexes(connection, target, tableName).keySet()) {
+				if ("PRIMARY".equalsIgnoreCase(index) || index.equalsIgnoreCase(primaryKeyName)) {
+					continue;
+				}
+				for (String sql : dialect.getDropIndex(archiveTableName, schema, index)) {
+					stmt.execute(sql);
+				}
+				dropped.add(index);
+			}
+		}
+		finally {
+			stmt.close();
+		}
+		if (!dropped.isEmpty()) {
+			log.info("Dropped inherited indexes " + dropped + " from " + archiveTableName);
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Creates the indexes archive-side queries need, unless an index leading with the same column
+	 * already exists: one on the key columns if the table has no primary key, and one on each of
+	 * {@link #INDEXED_COLUMNS} the table has.
+	 * 
+	 * @param connection the archive connection
+	 * @param target where the archive table lives
+	 * @param tableName the source table of the archive table
+	 * @param archiveTable the metadata of the archive table
+	 * @param key the key of the source table
+	 * @return the names of the created indexes
+	 */
+	public List<String> ensureIndexes(Connection connection, ArchiveTarget target, String tableName,
+	        TableMetadata archiveTable, TableKey key) throws SQLException {
+		String archiveTableName = target.getArchiveTableName(tableName);
+		Map<String, List<String>> indexes = getIndexes(connection, target, tableName);
+		List<List<String>> wanted = new ArrayList<List<String>>();
+		List<String> keyColumns = new ArrayList<String>();
+		for (ColumnMetadata column : key.getColumns()) {
+			keyColumns.add(column.getName());
+		}
+		wanted.add(keyColumns);
+		for (String column : INDEXED_COLUMNS) {
+			if (archiveTable.hasColumn(column)) {
+				List<String> columns = new ArrayList<String>();
+				columns.add(column);
+				wanted.add(columns);
+			}
+		}
+		
+		List<String> created = new ArrayList<String>();
+		Statement stmt = connection.createStatement();
+		try {
+			for (List<String> columns : wanted) {
+				if (isIndexed(indexes, columns.get(0))) {
+					continue;
+				}
+				String name = indexName(ArchiveTarget.PREFIX + tableName, columns);
+				StringBuilder columnList = new StringBuilder();
+				for (String column : columns) {
+					columnList.append(columnList.length() > 0 ? ", " : "").append(column);
+				}
+				stmt.execute("CREATE INDEX " + name + " ON " + archiveTableName + " (" + columnList + ")");
+				created.add(name);
+			}
+		}
+		finally {
+			stmt.close();
+		}
+		if (!created.isEmpty()) {
+			log.info("Created indexes " + created + " on " + archiveTableName);
+		}
+		return created;
+	}
+	
+	/**
+	 * @return the columns of each index of the table, by index name, in column order
+	 */
+	private Map<String, List<String>> getIndexes(Connection connection, ArchiveTarget target, String tableName)
+	        throws SQLException {
+		Map<String, List<String>> indexes = new LinkedHashMap<String, List<String>>();
+		DatabaseMetaData dbmd = connection.getMetaData();
+		ResultSet rs = dbmd.getIndexInfo(target.getCatalog(connection), target.getSchema(connection),
+		    ArchiveTarget.PREFIX + tableName, false, true);
+		try {
+			while (rs.next()) {
+				String index = rs.getString("INDEX_NAME");
+				String column = rs.getString("COLUMN_NAME");
+				if (index == null || column == null) {
+					continue;
+				}
+				if (!indexes.containsKey(index)) {
+					indexes.put(index, new ArrayList<String>());
+				}
+				// Rows come ordered by index name and ORDINAL_POSITION
+				indexes.get(index).add(column);
+			}
+		}
+		finally {
+			rs.close();
+		}
+		return indexes;
+	}
+	
+	private boolean isIndexed(Map<String, List<String>> indexes, String leadingColumn) {
+		for (List<String> columns : indexes.values()) {
+			if (!columns.isEmpty() && columns.get(0).equalsIgnoreCase(leadingColumn)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private String getPrimaryKeyName(Connection connection, ArchiveTarget target, String tableName)
+	        throws SQLException {
+		ResultSet rs = connection.getMetaData().getPrimaryKeys(target.getCatalog(connection), target.getSchema(connection),
+		    ArchiveTarget.PREFIX + tableName);
+		try {
+			return rs.next() ? rs.getString("PK_NAME") : null;
+		}
+		finally {
+			rs.close();
+		}
+	}
+	
+	/**
+	 * @return a name like "va_archive_obs_date_voided", shortened with a hash if too long
+	 */
+	String indexName(String tableName, List<String> columns) {
+		StringBuilder name = new StringBuilder(INDEX_PREFIX).append(tableName);
+		for (String column : columns) {
+			name.append("_").append(column);
+		}
+		if (name.length() <= MAX_INDEX_NAME_LENGTH) {
+			return name.toString().toLowerCase();
+		}
+		String hash = Integer.toHexString(name.toString().hashCode());
+		return (name.substring(0, MAX_INDEX_NAME_LENGTH - hash.length() - 1) + "_" + hash).toLowerCase();
+	}
+}
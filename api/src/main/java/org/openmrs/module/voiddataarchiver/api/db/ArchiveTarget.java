@@ -0,0 +1,102 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Where archive tables live. The DAO asks the target for the connection holding the archive tables
+ * and for the names to use in SQL, so archived rows can be kept next to their source tables, in a
+ * separate schema of the same server, or in another database altogether. The target in use is
+ * chosen by {@link ArchiveTargetProvider}.
+ * <p>
+ * Targets sharing the OpenMRS connection move rows with single INSERT ... SELECT statements in the
+ * OpenMRS transaction. Other targets hand out connections of their own in auto-commit mode, and
+ * rows are streamed between the two connections; they are always written to their destination
+ * before they are deleted from their origin, so an interruption can leave a row in both places but
+ * never in neither.
+ */
+public interface ArchiveTarget {
+	
+	/**
+	 * Prefix of the name of the archive table of a table.
+	 */
+	String PREFIX = "archive_";
+	
+	/**
+	 * @return a short description for logs, e.g. "schema archive_db"
+	 */
+	String getDescription();
+	
+	/**
+	 * @return true if the archive tables can be reached through the OpenMRS connection, so statements
+	 *         may read a source table and write an archive table at once
+	 */
+	boolean isSharedConnection();
+	
+	/**
+	 * @param openmrsConnection the connection of the current OpenMRS transaction
+	 * @return the given connection if {@link #isSharedConnection()}, otherwise a new connection in
+	 *         auto-commit mode that must be handed back with {@link #releaseConnection(Connection)}
+	 */
+	Connection getConnection(Connection openmrsConnection) throws SQLException;
+	
+	/**
+	 * @param archiveConnection a connection returned by {@link #getConnection(Connection)}
+	 */
+	void releaseConnection(Connection archiveConnection) throws SQLException;
+	
+	/**
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @return the name of its archive table as used in SQL on the archive connection, qualified with
+	 *         the schema where needed
+	 */
+	String getArchiveTableName(String tableName);
+	
+	/**
+	 * @return the catalog of the archive tables, to look them up with
+	 *         {@link java.sql.DatabaseMetaData}
+	 */
+	String getCatalog(Connection archiveConnection) throws SQLException;
+	
+	/**
+	 * @return the schema of the archive tables, to look them up with
+	 *         {@link java.sql.DatabaseMetaData}, null for any
+	 */
+	String getSchema(Connection archiveConnection) throws SQLException;
+	
+	/**
+	 * @param tableName the name of the source table (e.g. "obs")
+	 * @return the columns of its archive table, or null if there is none
+	 */
+	TableMetadata getArchiveTable(Connection archiveConnection, String tableName) throws SQLException;
+	
+	/**
+	 * @return the names of the source tables that have an archive table
+	 */
+	List<String> getArchivedTableNames(Connection archiveConnection) throws SQLException;
+	
+	/**
+	 * Creates the empty archive table of a table, with the same columns and primary key.
+	 * 
+	 * @param openmrsConnection the connection of the current OpenMRS transaction
+	 * @param archiveConnection the archive connection
+	 * @param sourceTable the source table
+	 */
+	void createArchiveTable(Connection openmrsConnection, Connection archiveConnection, TableMetadata sourceTable)
+	        throws SQLException;
+	
+	/**
+	 * Called after archive tables are created, altered or dropped, to discard cached metadata.
+	 */
+	void invalidate();
+}
@@ -0,0 +1,129 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.APIException;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the {@link ArchiveTarget} in use, configured by the
+ * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_ARCHIVE_TARGET} global
+ * property:
+ * <ul>
+ * <li>empty: archive tables in the OpenMRS schema</li>
+ * <li>"schema:name": archive tables in the given schema of the OpenMRS database server</li>
+ * <li>"jndi:name": archive tables in the database of the DataSource bound to the given JNDI name,
+ * e.g. "jndi:java:comp/env/jdbc/openmrs_archive"</li>
+ * </ul>
+ * Other modules can plug in a target of their own with {@link #setTarget(ArchiveTarget)}. Archive
+ * tables are not moved when the target changes; restore them first.
+ */
+@Component("voiddataarchiver.ArchiveTargetProvider")
+public class ArchiveTargetProvider implements GlobalPropertyListener {
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	@Autowired
+	private SchemaCatalog schemaCatalog;
+	
+	private volatile ArchiveTarget target;
+	
+	private volatile String error;
+	
+	/**
+	 * @param schemaCatalog the schemaCatalog to set
+	 */
+	public void setSchemaCatalog(SchemaCatalog schemaCatalog) {
+		this.schemaCatalog = schemaCatalog;
+	}
+	
+	/**
+	 * @return the target in use, archive tables in the OpenMRS schema unless configured otherwise
+	 * @throws APIException if the configured target is invalid, rather than archiving to the OpenMRS
+	 *             schema against the administrator's intent
+	 */
+	public ArchiveTarget getTarget() {
+		if (error != null) {
+			throw new APIException(error);
+		}
+		ArchiveTarget current = target;
+		return current != null ? current : new SameSchemaArchiveTarget(schemaCatalog);
+	}
+	
+	/**
+	 * @param target the target to use from now on
+	 */
+	public void setTarget(ArchiveTarget target) {
+		this.target = target;
+		this.error = null;
+		log.info("Archiving to " + target.getDescription());
+	}
+	
+	/**
+	 * Sets the target described by a value of the global property.
+	 * 
+	 * @param value the property value, null or empty for the OpenMRS schema
+	 */
+	public void configure(String value) {
+		String spec = value != null ? value.trim() : "";
+		try {
+			if (spec.isEmpty()) {
+				setTarget(new SameSchemaArchiveTarget(schemaCatalog));
+			} else if (spec.startsWith("schema:")) {
+				setTarget(new SeparateSchemaArchiveTarget(spec.substring("schema:".length()).trim()));
+			} else if (spec.startsWith("jndi:")) {
+				String name = spec.substring("jndi:".length()).trim();
+				setTarget(new DataSourceArchiveTarget((DataSource) new InitialContext().lookup(name), name));
+			} else {
+				throw new IllegalArgumentException("expected schema:name or jndi:name");
+			}
+		}
+		catch (NamingException e) {
+			fail(spec, e.getMessage());
+		}
+		catch (ClassCastException e) {
+			fail(spec, "not a DataSource");
+		}
+		catch (IllegalArgumentException e) {
+			fail(spec, e.getMessage());
+		}
+	}
+	
+	private void fail(String spec, String reason) {
+		target = null;
+		error = "Invalid value for " + VoidDataArchiverConfig.GP_ARCHIVE_TARGET + ": " + spec + " (" + reason + ")";
+		log.error(error);
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return VoidDataArchiverConfig.GP_ARCHIVE_TARGET.equals(propertyName);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		configure(newValue.getPropertyValue());
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		configure(null);
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The SQL the archiver needs that differs between databases. The base class emits standard SQL and
+ * is used for databases without a dialect of their own; every statement it builds takes SQL
+ * fragments and names the caller has already validated. Plain {@code SELECT ... LIMIT n} is
+ * understood by every supported database and is not part of the dialect.
+ */
+public class ArchiverDialect {
+	
+	private static final ArchiverDialect MYSQL = new MySqlArchiverDialect();
+	
+	private static final ArchiverDialect POSTGRESQL = new PostgreSqlArchiverDialect();
+	
+	private static final ArchiverDialect H2 = new H2ArchiverDialect();
+	
+	private static final ArchiverDialect STANDARD = new ArchiverDialect();
+	
+	/**
+	 * @param connection a connection to the database
+	 * @return the dialect of the database
+	 */
+	public static ArchiverDialect forConnection(Connection connection) throws SQLException {
+		return forProductName(connection.getMetaData().getDatabaseProductName());
+	}
+	
+	static ArchiverDialect forProductName(String productName) {
+		String product = productName != null ? productName.toLowerCase() : "";
+		if (product.contains("mysql") || product.contains("mariadb")) {
+			return MYSQL;
+		} else if (product.contains("postgresql")) {
+			return POSTGRESQL;
+		} else if (product.contains("h2")) {
+			return H2;
+		}
+		return STANDARD;
+	}
+	
+	public String getName() {
+		return "standard";
+	}
+	
+	/**
+	 * @return true if a schema is addressed as a catalog through JDBC, as on MySQL
+	 */
+	public boolean isCatalogSchema() {
+		return false;
+	}
+	
+	/**
+	 * @return the condition selecting voided rows, written for the type the database gives the
+	 *         voided column
+	 */
+	public String getVoidedPredicate() {
+		return "voided = TRUE";
+	}
+	
+	/**
+	 * @param archiveTableName the name of the archive table
+	 * @param tableName the name of the source table
+	 * @param primaryKey the primary key columns of the source table, may be empty
+	 * @return the statements creating an empty archive table with the columns and key of the source
+	 *         table
+	 */
+	public List<String> getCreateArchiveTable(String archiveTableName, String tableName, List<String> primaryKey) {
+		List<String> statements = new ArrayList<String>();
+		statements.add("CREATE TABLE " + archiveTableName + " AS SELECT * FROM " + tableName + " WHERE 1=0");
+		if (!primaryKey.isEmpty()) {
+			// The copied columns may come out nullable, which a primary key does not allow
+			for (String column : primaryKey) {
+				statements.add("ALTER TABLE " + archiveTableName + " ALTER COLUMN " + column + " SET NOT NULL");
+			}
+			statements.add("ALTER TABLE " + archiveTableName + " ADD PRIMARY KEY (" + join(primaryKey) + ")");
+		}
+		return statements;
+	}
+	
+	/**
+	 * @param tableName the table of the index
+	 * @param schema the schema of the table, null for the default schema
+	 * @param indexName the index to drop
+	 * @return the statements dropping the index
+	 */
+	public List<String> getDropIndex(String tableName, String schema, String indexName) {
+		List<String> statements = new ArrayList<String>();
+		statements.add("DROP INDEX " + (schema != null ? schema + "." : "") + indexName);
+		return statements;
+	}
+	
+	/**
+	 * Builds an insert of the rows of a query that skips rows whose key is already in the table and
+	 * leaves the rows that are there untouched.
+	 * 
+	 * @param tableName the table to insert into, which has the columns of the query in the same order
+	 * @param query the query selecting the rows
+	 * @param key the key of the table
+	 * @return the statement
+	 */
+	public String getInsertIgnore(String tableName, String query, TableKey key) {
+		return "INSERT INTO " + tableName + " SELECT * FROM (" + query + ") r WHERE NOT EXISTS (SELECT 1 FROM "
+		        + tableName + " x WHERE " + key.getJoinCondition("x", "r") + ")";
+	}
+	
+	/**
+	 * Builds an insert of one row, given as one parameter per column, that skips the row if its key
+	 * is already in the table, see {@link #getInsertIgnore(String, String, TableKey)}.
+	 * 
+	 * @param tableName the table to insert into
+	 * @param columns the columns of the parameters, in order
+	 * @param key the key of the table, whose columns must be among the given ones
+	 * @return the statement
+	 */
+	public String getInsertIgnoreRow(String tableName, List<String> columns, TableKey key) {
+		// Standard SQL cannot refer to a parameter twice, a duplicate fails the batch
+		return "INSERT INTO " + tableName + " (" + join(columns) + ") VALUES (" + parameters(columns.size()) + ")";
+	}
+	
+	/**
+	 * @param tableName the table to delete from
+	 * @param condition the condition of the rows to delete
+	 * @param limit the maximum number of rows to delete
+	 * @return a statement deleting at most the given number of rows
+	 */
+	public String getDeleteLimit(String tableName, String condition, int limit) {
+		return "DELETE FROM " + tableName + " WHERE " + condition + " LIMIT " + limit;
+	}
+	
+	/**
+	 * Builds a query that moves rows from one table to another with the same columns in a single
+	 * statement and returns the number of rows removed as its only result. A row only leaves the
+	 * first table once its key is in the other one: rows whose key was already there are removed
+	 * without being copied, rows that could not be copied for any other reason, e.g. a conflict on
+	 * another unique column, stay where they are.
+	 * 
+	 * @param fromTable the table to move rows out of
+	 * @param toTable the table to move rows into
+	 * @param condition the condition of the rows to move, its parameters are bound once
+	 * @param key the key of both tables
+	 * @return the query, or null if the database needs an insert followed by a delete
+	 */
+	public String getMoveStatement(String fromTable, String toTable, String condition, TableKey key) {
+		return null;
+	}
+	
+	/**
+	 * Turns foreign key checks of the connection off or back on, so that rows can be moved while
+	 * rows of other tables still refer to them. A no-op where the database does not allow it.
+	 * 
+	 * @param connection the connection
+	 * @param enabled false to turn the checks off, true to turn them back on
+	 */
+	public void setForeignKeyChecks(Connection connection, boolean enabled) throws SQLException {
+	}
+	
+	/**
+	 * @param fetchSize the fetch size for ordinary result sets
+	 * @return the fetch size that streams a large result instead of buffering it
+	 */
+	public int getStreamingFetchSize(int fetchSize) {
+		return fetchSize;
+	}
+	
+	protected String parameters(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			sb.append(i > 0 ? ", ?" : "?");
+		}
+		return sb.toString();
+	}
+	
+	protected String join(List<String> columns) {
+		StringBuilder sb = new StringBuilder();
+		for (String column : columns) {
+			sb.append(sb.length() > 0 ? ", " : "").append(column);
+		}
+		return sb.toString();
+	}
+	
+	protected void execute(Connection connection, String sql) throws SQLException {
+		java.sql.Statement stmt = connection.createStatement();
+		try {
+			stmt.execute(sql);
+		}
+		finally {
+			stmt.close();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+/**
+ * Keyset position of a batched run over a table. Batches are selected in descending key order, and
+ * each batch only reads keys below the last key of the previous one, so a whole run is a single pass
+ * over the primary key index instead of a rescan per batch.
+ * <p>
+ * The cursor is saved as a checkpoint in the same transaction as each batch, so an interrupted run
+ * can resume from it.
+ */
+public class BatchCursor {
+	
+	private Object[] lastKey;
+	
+	private long rowsMoved;
+	
+	/**
+	 * @return the smallest key processed so far, one value per {@link TableKey} column, or null if no
+	 *         batch has been processed yet
+	 */
+	public Object[] getLastKey() {
+		return lastKey;
+	}
+	
+	public void setLastKey(Object[] lastKey) {
+		this.lastKey = lastKey;
+	}
+	
+	/**
+	 * @return the number of rows moved so far, including those of earlier runs resumed by this one
+	 */
+	public long getRowsMoved() {
+		return rowsMoved;
+	}
+	
+	public void setRowsMoved(long rowsMoved) {
+		this.rowsMoved = rowsMoved;
+	}
+}
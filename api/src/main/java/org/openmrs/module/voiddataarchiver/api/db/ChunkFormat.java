@@ -0,0 +1,282 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The line format of export chunks: one JSON array per row, holding the values of the columns in
+ * manifest order. Values are written according to their SQL type so they can be bound back without
+ * guessing: numbers as JSON numbers, dates as epoch milliseconds, binary values as base64 strings.
+ */
+final class ChunkFormat {
+	
+	private ChunkFormat() {
+	}
+	
+	/**
+	 * Appends the current row of a result set as a JSON array.
+	 * 
+	 * @param types the SQL types of the columns, in result set order
+	 */
+	static void writeRow(Appendable out, ResultSet rs, int[] types) throws SQLException, IOException {
+		out.append('[');
+		for (int i = 0; i < types.length; i++) {
+			if (i > 0) {
+				out.append(',');
+			}
+			String value = readValue(rs, i + 1, types[i]);
+			out.append(value != null ? value : "null");
+		}
+		out.append("]\n");
+	}
+	
+	private static String readValue(ResultSet rs, int column, int type) throws SQLException {
+		switch (type) {
+			case Types.BIT:
+			case Types.BOOLEAN: {
+				boolean value = rs.getBoolean(column);
+				return rs.wasNull() ? null : String.valueOf(value);
+			}
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT: {
+				long value = rs.getLong(column);
+				return rs.wasNull() ? null : String.valueOf(value);
+			}
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE: {
+				BigDecimal value = rs.getBigDecimal(column);
+				return value != null ? value.toPlainString() : null;
+			}
+			case Types.DATE: {
+				java.sql.Date value = rs.getDate(column);
+				return value != null ? String.valueOf(value.getTime()) : null;
+			}
+			case Types.TIME: {
+				java.sql.Time value = rs.getTime(column);
+				return value != null ? String.valueOf(value.getTime()) : null;
+			}
+			case Types.TIMESTAMP: {
+				java.sql.Timestamp value = rs.getTimestamp(column);
+				return value != null ? String.valueOf(value.getTime()) : null;
+			}
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB: {
+				byte[] value = rs.getBytes(column);
+				return value != null ? quote(Base64.getEncoder().encodeToString(value)) : null;
+			}
+			default:
+				return quote(rs.getString(column));
+		}
+	}
+	
+	/**
+	 * Binds the values of a row read by {@link #parseRow(String)} to the first parameters of a
+	 * statement.
+	 * 
+	 * @param types the SQL types of the columns, in parameter order
+	 */
+	static void bindRow(PreparedStatement ps, List<String> values, int[] types) throws SQLException {
+		if (values.size() != types.length) {
+			throw new SQLException("Expected " + types.length + " values but found " + values.size());
+		}
+		for (int i = 0; i < types.length; i++) {
+			String value = values.get(i);
+			int index = i + 1;
+			if (value == null) {
+				ps.setNull(index, types[i]);
+				continue;
+			}
+			switch (types[i]) {
+				case Types.BIT:
+				case Types.BOOLEAN:
+					ps.setBoolean(index, Boolean.parseBoolean(value));
+					break;
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+				case Types.BIGINT:
+					ps.setLong(index, Long.parseLong(value));
+					break;
+				case Types.DECIMAL:
+				case Types.NUMERIC:
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+					ps.setBigDecimal(index, new BigDecimal(value));
+					break;
+				case Types.DATE:
+					ps.setDate(index, new java.sql.Date(Long.parseLong(value)));
+					break;
+				case Types.TIME:
+					ps.setTime(index, new java.sql.Time(Long.parseLong(value)));
+					break;
+				case Types.TIMESTAMP:
+					ps.setTimestamp(index, new java.sql.Timestamp(Long.parseLong(value)));
+					break;
+				case Types.BINARY:
+				case Types.VARBINARY:
+				case Types.LONGVARBINARY:
+				case Types.BLOB:
+					ps.setBytes(index, Base64.getDecoder().decode(value));
+					break;
+				default:
+					ps.setString(index, value);
+			}
+		}
+	}
+	
+	/**
+	 * Parses a line written by {@link #writeRow(Appendable, ResultSet, int[])}.
+	 * 
+	 * @return the values as text, strings unescaped, null for JSON null
+	 * @throws IOException if the line is not a JSON array of scalar values
+	 */
+	static List<String> parseRow(String line) throws IOException {
+		List<String> values = new ArrayList<String>();
+		int pos = skipSpace(line, 0);
+		if (pos >= line.length() || line.charAt(pos) != '[') {
+			throw new IOException("Row is not a JSON array: " + abbreviate(line));
+		}
+		pos = skipSpace(line, pos + 1);
+		if (pos < line.length() && line.charAt(pos) == ']') {
+			return values;
+		}
+		while (pos < line.length()) {
+			if (line.charAt(pos) == '"') {
+				StringBuilder value = new StringBuilder();
+				pos = unquote(line, pos + 1, value);
+				values.add(value.toString());
+			} else {
+				int end = pos;
+				while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != ']') {
+					end++;
+				}
+				String token = line.substring(pos, end).trim();
+				values.add("null".equals(token) ? null : token);
+				pos = end;
+			}
+			pos = skipSpace(line, pos);
+			if (pos < line.length() && line.charAt(pos) == ']') {
+				return values;
+			}
+			if (pos >= line.length() || line.charAt(pos) != ',') {
+				break;
+			}
+			pos = skipSpace(line, pos + 1);
+		}
+		throw new IOException("Unterminated row: " + abbreviate(line));
+	}
+	
+	/**
+	 * @return the value as a quoted, escaped JSON string, or null
+	 */
+	static String quote(String value) {
+		if (value == null) {
+			return null;
+		}
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+	
+	/**
+	 * @return the bytes in lower case hex, e.g. for a checksum
+	 */
+	static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+	
+	/**
+	 * @return the position after the closing quote
+	 */
+	private static int unquote(String line, int pos, StringBuilder value) throws IOException {
+		while (pos < line.length()) {
+			char c = line.charAt(pos++);
+			if (c == '"') {
+				return pos;
+			}
+			if (c != '\\') {
+				value.append(c);
+				continue;
+			}
+			if (pos >= line.length()) {
+				break;
+			}
+			char escaped = line.charAt(pos++);
+			switch (escaped) {
+				case 'u':
+					if (pos + 4 > line.length()) {
+						throw new IOException("Invalid escape in row: " + abbreviate(line));
+					}
+					value.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				default:
+					value.append(escaped);
+			}
+		}
+		throw new IOException("Unterminated string in row: " + abbreviate(line));
+	}
+	
+	private static int skipSpace(String line, int pos) {
+		while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+	
+	private static String abbreviate(String line) {
+		return line.length() > 80 ? line.substring(0, 80) + "..." : line;
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+/**
+ * Immutable description of a single column, as loaded by the {@link SchemaCatalog}.
+ */
+public class ColumnMetadata {
+	
+	private final String name;
+	
+	private final String typeName;
+	
+	private final int dataType;
+	
+	private final int size;
+	
+	public ColumnMetadata(String name, String typeName, int dataType, int size) {
+		this.name = name;
+		this.typeName = typeName;
+		this.dataType = dataType;
+		this.size = size;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getTypeName() {
+		return typeName;
+	}
+	
+	/**
+	 * @return the SQL type from {@link java.sql.Types}
+	 */
+	public int getDataType() {
+		return dataType;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return the column type as used in an ALTER TABLE ... ADD COLUMN statement, e.g. "VARCHAR(255)"
+	 */
+	public String getDefinition() {
+		return typeName + "(" + size + ")";
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+/**
+ * Keeps archive tables in another database, reached through a DataSource of its own, so that
+ * archived rows and the I/O of archiving them leave the OpenMRS database server. The archive
+ * database is expected to be of the same kind as the OpenMRS one, as archive tables are created
+ * with the column types of their source tables.
+ */
+public class DataSourceArchiveTarget extends AbstractArchiveTarget {
+	
+	private final DataSource dataSource;
+	
+	private final String name;
+	
+	/**
+	 * @param dataSource the archive database
+	 * @param name names the DataSource in logs, e.g. its JNDI name
+	 */
+	public DataSourceArchiveTarget(DataSource dataSource, String name) {
+		this.dataSource = dataSource;
+		this.name = name;
+	}
+	
+	@Override
+	public String getDescription() {
+		return "DataSource " + name;
+	}
+	
+	@Override
+	public boolean isSharedConnection() {
+		return false;
+	}
+	
+	@Override
+	public Connection getConnection(Connection openmrsConnection) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		connection.setAutoCommit(true);
+		return connection;
+	}
+	
+	@Override
+	public void releaseConnection(Connection archiveConnection) throws SQLException {
+		archiveConnection.close();
+	}
+	
+	/**
+	 * Creates the archive table from the column definitions of the source table, as it cannot be
+	 * copied across connections.
+	 */
+	@Override
+	public void createArchiveTable(Connection openmrsConnection, Connection archiveConnection, TableMetadata sourceTable)
+	        throws SQLException {
+		StringBuilder create = new StringBuilder("CREATE TABLE ").append(getArchiveTableName(sourceTable.getName()));
+		create.append(" (");
+		ResultSet rs = openmrsConnection.getMetaData().getColumns(openmrsConnection.getCatalog(), null,
+		    sourceTable.getName(), "%");
+		try {
+			boolean first = true;
+			while (rs.next()) {
+				if (!sourceTable.getName().equalsIgnoreCase(rs.getString("TABLE_NAME"))) {
+					continue;
+				}
+				create.append(first ? "" : ", ").append(rs.getString("COLUMN_NAME")).append(" ");
+				create.append(getColumnType(rs.getString("TYPE_NAME"), rs.getInt("DATA_TYPE"), rs.getInt("COLUMN_SIZE"),
+				    rs.getInt("DECIMAL_DIGITS")));
+				first = false;
+			}
+		}
+		finally {
+			rs.close();
+		}
+		List<String> primaryKey = sourceTable.getPrimaryKeyColumns();
+		if (!primaryKey.isEmpty()) {
+			create.append(", PRIMARY KEY (");
+			for (int i = 0; i < primaryKey.size(); i++) {
+				create.append(i > 0 ? ", " : "").append(primaryKey.get(i));
+			}
+			create.append(")");
+		}
+		create.append(")");
+		
+		Statement stmt = archiveConnection.createStatement();
+		try {
+			stmt.execute(create.toString());
+		}
+		finally {
+			stmt.close();
+		}
+	}
+	
+	/**
+	 * @return the type of a column in a CREATE TABLE statement, with a length only for the types
+	 *         that take one
+	 */
+	static String getColumnType(String typeName, int dataType, int size, int decimalDigits) {
+		switch (dataType) {
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.BINARY:
+			case Types.VARBINARY:
+				return typeName + "(" + size + ")";
+			case Types.DECIMAL:
+			case Types.NUMERIC:
+				return typeName + "(" + size + "," + decimalDigits + ")";
+			default:
+				return typeName;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The sorted key index of an export chunk, written next to it by {@link ArchiveExporter}. Maps the
+ * uuid and, for tables with a single integer key, the key of every row to the compressed block of
+ * the chunk holding it. The index is memory mapped and binary searched in place, so a lookup only
+ * touches the pages it compares and the one block it decodes.
+ * <p>
+ * Layout, big endian: a magic number, the number of uuid entries and the number of key entries,
+ * followed by the uuid entries sorted by uuid and the key entries sorted by key. A uuid entry is the
+ * uuid in ASCII padded with zeros to {@link #UUID_WIDTH} bytes, a key entry the key as a long, each
+ * followed by the offset and length of its block.
+ */
+public class ExportIndex {
+	
+	/**
+	 * "VDI1"
+	 */
+	static final int MAGIC = 0x56444931;
+	
+	/**
+	 * Bytes reserved for a uuid, the width of the uuid columns of OpenMRS.
+	 */
+	static final int UUID_WIDTH = 38;
+	
+	private static final int HEADER_SIZE = 12;
+	
+	private static final int BLOCK_REF_SIZE = 12;
+	
+	private static final int UUID_ENTRY_SIZE = UUID_WIDTH + BLOCK_REF_SIZE;
+	
+	private static final int KEY_ENTRY_SIZE = 8 + BLOCK_REF_SIZE;
+	
+	private final ByteBuffer buffer;
+	
+	private final int uuidCount;
+	
+	private final int keyCount;
+	
+	/**
+	 * A compressed block of a chunk file.
+	 */
+	public static final class Block {
+		
+		private final long offset;
+		
+		private final int length;
+		
+		Block(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		public long getOffset() {
+			return offset;
+		}
+		
+		public int getLength() {
+			return length;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Block && ((Block) o).offset == offset;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (int) (offset ^ (offset >>> 32));
+		}
+	}
+	
+	/**
+	 * A row to index, collected while its block is written.
+	 */
+	static final class Entry {
+		
+		private final String uuid;
+		
+		private final Long key;
+		
+		private long offset;
+		
+		private int length;
+		
+		/**
+		 * @param uuid the uuid of the row, or null to leave it out of the uuid index
+		 * @param key the key of the row, or null to leave it out of the key index
+		 */
+		Entry(String uuid, Long key) {
+			this.uuid = uuid != null && uuid.length() <= UUID_WIDTH ? uuid : null;
+			this.key = key;
+		}
+		
+		void setBlock(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	private ExportIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not an export index");
+		}
+		uuidCount = buffer.getInt(4);
+		keyCount = buffer.getInt(8);
+		long expectedSize = HEADER_SIZE + (long) uuidCount * UUID_ENTRY_SIZE + (long) keyCount * KEY_ENTRY_SIZE;
+		if (uuidCount < 0 || keyCount < 0 || buffer.capacity() != expectedSize) {
+			throw new IOException("Truncated export index");
+		}
+	}
+	
+	/**
+	 * @param chunkFile the file name of a chunk
+	 * @return the file name of the index of the chunk
+	 */
+	public static String getIndexFile(String chunkFile) {
+		String base = chunkFile.endsWith(".ndjson.gz") ? chunkFile.substring(0, chunkFile.length() - 10) : chunkFile;
+		return base + ".idx";
+	}
+	
+	/**
+	 * Maps an index file read only. The mapping stays valid after the file is closed and is released
+	 * with the returned index.
+	 * 
+	 * @throws IOException if the file cannot be read or is not an index
+	 */
+	public static ExportIndex open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath());
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			try {
+				return new ExportIndex(buffer);
+			}
+			catch (IOException e) {
+				throw new IOException(e.getMessage() + ": " + file, e);
+			}
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * Sorts the entries and writes them to a file, synced to disk.
+	 */
+	static void write(File file, List<Entry> entries) throws IOException {
+		List<Entry> uuids = new ArrayList<Entry>();
+		List<Entry> keys = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (entry.uuid != null) {
+				uuids.add(entry);
+			}
+			if (entry.key != null) {
+				keys.add(entry);
+			}
+		}
+		Collections.sort(uuids, new Comparator<Entry>() {
+			
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.uuid.compareTo(b.uuid);
+			}
+		});
+		Collections.sort(keys, new Comparator<Entry>() {
+			
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.key, b.key);
+			}
+		});
+		
+		FileOutputStream fileOut = new FileOutputStream(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(uuids.size());
+			out.writeInt(keys.size());
+			byte[] uuid = new byte[UUID_WIDTH];
+			for (Entry entry : uuids) {
+				byte[] ascii = entry.uuid.getBytes(StandardCharsets.US_ASCII);
+				System.arraycopy(ascii, 0, uuid, 0, ascii.length);
+				Arrays.fill(uuid, ascii.length, UUID_WIDTH, (byte) 0);
+				out.write(uuid);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+			}
+			for (Entry entry : keys) {
+				out.writeLong(entry.key);
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+			}
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	public int getUuidCount() {
+		return uuidCount;
+	}
+	
+	public int getKeyCount() {
+		return keyCount;
+	}
+	
+	/**
+	 * @return the block holding the row with the given uuid, or null if the chunk has no such row
+	 */
+	public Block findUuid(String uuid) {
+		if (uuid.length() > UUID_WIDTH) {
+			return null;
+		}
+		byte[] wanted = new byte[UUID_WIDTH];
+		byte[] ascii = uuid.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(ascii, 0, wanted, 0, ascii.length);
+		int low = 0;
+		int high = uuidCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = HEADER_SIZE + mid * UUID_ENTRY_SIZE;
+			int cmp = compareUuid(entry, wanted);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return blockAt(entry + UUID_WIDTH);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the block holding the row with the given key, or null if the chunk has no such row
+	 */
+	public Block findKey(long key) {
+		int keys = HEADER_SIZE + uuidCount * UUID_ENTRY_SIZE;
+		int low = 0;
+		int high = keyCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int entry = keys + mid * KEY_ENTRY_SIZE;
+			long cmp = buffer.getLong(entry);
+			if (cmp < key) {
+				low = mid + 1;
+			} else if (cmp > key) {
+				high = mid - 1;
+			} else {
+				return blockAt(entry + 8);
+			}
+		}
+		return null;
+	}
+	
+	private int compareUuid(int entry, byte[] wanted) {
+		for (int i = 0; i < UUID_WIDTH; i++) {
+			int cmp = (buffer.get(entry + i) & 0xff) - (wanted[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return 0;
+	}
+	
+	private Block blockAt(int pos) {
+		return new Block(buffer.getLong(pos), buffer.getInt(pos + 8));
+	}
+}
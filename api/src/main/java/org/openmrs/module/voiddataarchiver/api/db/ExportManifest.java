@@ -0,0 +1,245 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Describes an export of an archive table: the source table, the columns and their SQL types, and
+ * the chunk files holding the rows with their row counts and SHA-256 checksums. Stored as a
+ * properties file next to the chunks, and rewritten after every chunk so that it lists every chunk
+ * whose rows may already have left the database, even if the export is interrupted.
+ */
+public class ExportManifest {
+	
+	private final String tableName;
+	
+	private final List<String> columnNames;
+	
+	private final int[] columnTypes;
+	
+	private final List<String> chunkFiles = new ArrayList<String>();
+	
+	private final List<Long> chunkRows = new ArrayList<Long>();
+	
+	private final List<String> chunkChecksums = new ArrayList<String>();
+	
+	private String keyColumn;
+	
+	private long created = System.currentTimeMillis();
+	
+	private boolean complete;
+	
+	/**
+	 * @param tableName the source table of the exported archive table
+	 * @param columnNames the exported columns
+	 * @param columnTypes the SQL types of the columns, from {@link java.sql.Types}
+	 */
+	public ExportManifest(String tableName, List<String> columnNames, int[] columnTypes) {
+		if (columnNames.size() != columnTypes.length) {
+			throw new IllegalArgumentException("Expected one type per column");
+		}
+		this.tableName = tableName;
+		this.columnNames = Collections.unmodifiableList(new ArrayList<String>(columnNames));
+		this.columnTypes = columnTypes.clone();
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public List<String> getColumnNames() {
+		return columnNames;
+	}
+	
+	public int[] getColumnTypes() {
+		return columnTypes.clone();
+	}
+	
+	/**
+	 * @return the single integer key column whose values are in each chunk's {@link ExportIndex}, or
+	 *         null if the table has a composite or non-numeric key
+	 */
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+	
+	public void setKeyColumn(String keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+	
+	public long getCreated() {
+		return created;
+	}
+	
+	/**
+	 * @return true once every row of the archive table has been exported
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	public void setComplete(boolean complete) {
+		this.complete = complete;
+	}
+	
+	public int getChunkCount() {
+		return chunkFiles.size();
+	}
+	
+	/**
+	 * @param chunk the chunk index, from 0
+	 * @return the file name of the chunk, relative to the manifest
+	 */
+	public String getChunkFile(int chunk) {
+		return chunkFiles.get(chunk);
+	}
+	
+	public long getChunkRows(int chunk) {
+		return chunkRows.get(chunk);
+	}
+	
+	/**
+	 * @return the SHA-256 checksum of the compressed chunk file, in hex
+	 */
+	public String getChunkChecksum(int chunk) {
+		return chunkChecksums.get(chunk);
+	}
+	
+	public void addChunk(String file, long rows, String checksum) {
+		chunkFiles.add(file);
+		chunkRows.add(rows);
+		chunkChecksums.add(checksum);
+	}
+	
+	/**
+	 * @return the number of rows in all chunks
+	 */
+	public long getRowCount() {
+		long rows = 0;
+		for (Long chunk : chunkRows) {
+			rows += chunk;
+		}
+		return rows;
+	}
+	
+	/**
+	 * @return the first line of every chunk, naming the table and the columns with their types
+	 */
+	public String getSchemaHeader() {
+		StringBuilder header = new StringBuilder("{\"table\":").append(ChunkFormat.quote(tableName));
+		header.append(",\"columns\":[");
+		for (int i = 0; i < columnNames.size(); i++) {
+			if (i > 0) {
+				header.append(",");
+			}
+			header.append("{\"name\":").append(ChunkFormat.quote(columnNames.get(i)));
+			header.append(",\"type\":").append(columnTypes[i]).append("}");
+		}
+		return header.append("]}").toString();
+	}
+	
+	/**
+	 * Writes the manifest to a temporary file and renames it over the given one, so a reader never
+	 * sees a half written manifest.
+	 */
+	public void store(File file) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("table", tableName);
+		properties.setProperty("created", String.valueOf(created));
+		if (keyColumn != null) {
+			properties.setProperty("key", keyColumn);
+		}
+		properties.setProperty("complete", String.valueOf(complete));
+		properties.setProperty("rows", String.valueOf(getRowCount()));
+		properties.setProperty("columns", String.valueOf(columnNames.size()));
+		for (int i = 0; i < columnNames.size(); i++) {
+			properties.setProperty("column." + i + ".name", columnNames.get(i));
+			properties.setProperty("column." + i + ".type", String.valueOf(columnTypes[i]));
+		}
+		properties.setProperty("chunks", String.valueOf(chunkFiles.size()));
+		for (int i = 0; i < chunkFiles.size(); i++) {
+			properties.setProperty("chunk." + i + ".file", chunkFiles.get(i));
+			properties.setProperty("chunk." + i + ".rows", String.valueOf(chunkRows.get(i)));
+			properties.setProperty("chunk." + i + ".sha256", chunkChecksums.get(i));
+		}
+		
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			properties.store(out, "Export of archive_" + tableName);
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// Windows does not rename over an existing file
+			if (!file.delete() || !temp.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		}
+	}
+	
+	/**
+	 * @param file a manifest written by {@link #store(File)}
+	 * @return the manifest
+	 * @throws IOException if the file cannot be read or is not a manifest
+	 */
+	public static ExportManifest load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		try {
+			int columns = Integer.parseInt(required(properties, "columns", file));
+			List<String> names = new ArrayList<String>();
+			int[] types = new int[columns];
+			for (int i = 0; i < columns; i++) {
+				names.add(required(properties, "column." + i + ".name", file));
+				types[i] = Integer.parseInt(required(properties, "column." + i + ".type", file));
+			}
+			ExportManifest manifest = new ExportManifest(required(properties, "table", file), names, types);
+			manifest.keyColumn = properties.getProperty("key");
+			manifest.created = Long.parseLong(required(properties, "created", file));
+			manifest.complete = Boolean.parseBoolean(properties.getProperty("complete"));
+			int chunks = Integer.parseInt(required(properties, "chunks", file));
+			for (int i = 0; i < chunks; i++) {
+				manifest.addChunk(required(properties, "chunk." + i + ".file", file),
+				    Long.parseLong(required(properties, "chunk." + i + ".rows", file)),
+				    required(properties, "chunk." + i + ".sha256", file));
+			}
+			return manifest;
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("Invalid export manifest " + file, e);
+		}
+	}
+	
+	private static String required(Properties properties, String key, File file) throws IOException {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			throw new IOException("Export manifest " + file + " has no " + key);
+		}
+		return value;
+	}
+}
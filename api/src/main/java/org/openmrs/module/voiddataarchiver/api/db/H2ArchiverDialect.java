@@ -0,0 +1,59 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.util.List;
+
+/**
+ * H2, as used by the OpenMRS test database. It has no insert that skips existing rows, so rows are
+ * filtered with {@code NOT EXISTS} like in standard SQL; unlike {@code MERGE} this never overwrites
+ * a row that is already there.
+ * <p>
+ * Foreign key checks stay on: {@code SET REFERENTIAL_INTEGRITY} applies to the whole database, so
+ * one archival worker turning them back on would do so in the middle of another worker's move.
+ * Like on PostgreSQL, tables are archived children first instead.
+ */
+public class H2ArchiverDialect extends ArchiverDialect {
+	
+	@Override
+	public String getName() {
+		return "h2";
+	}
+	
+	@Override
+	public String getInsertIgnoreRow(String tableName, List<String> columns, TableKey key) {
+		// Indexed parameters let the key condition reuse the values of the key columns
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < columns.size(); i++) {
+			values.append(i > 0 ? ", ?" : "?").append(i + 1);
+		}
+		StringBuilder condition = new StringBuilder();
+		for (ColumnMetadata column : key.getColumns()) {
+			int index = indexOf(columns, column.getName());
+			if (index < 0) {
+				throw new IllegalArgumentException("The key column " + column.getName() + " is not inserted into "
+				        + tableName);
+			}
+			condition.append(condition.length() > 0 ? " AND x." : "x.").append(column.getName()).append(" = ?")
+			        .append(index + 1);
+		}
+		return "INSERT INTO " + tableName + " (" + join(columns) + ") SELECT " + values
+		        + " WHERE NOT EXISTS (SELECT 1 FROM " + tableName + " x WHERE " + condition + ")";
+	}
+	
+	private static int indexOf(List<String> columns, String column) {
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).equalsIgnoreCase(column)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
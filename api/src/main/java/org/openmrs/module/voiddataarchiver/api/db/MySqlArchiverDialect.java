@@ -0,0 +1,75 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MySQL and MariaDB: {@code INSERT IGNORE ... SELECT} followed by a {@code DELETE}, with foreign key
+ * checks turned off for the session.
+ */
+public class MySqlArchiverDialect extends ArchiverDialect {
+	
+	@Override
+	public String getName() {
+		return "mysql";
+	}
+	
+	@Override
+	public boolean isCatalogSchema() {
+		return true;
+	}
+	
+	@Override
+	public String getVoidedPredicate() {
+		// voided is a BIT(1) or TINYINT(1) column
+		return "voided = 1";
+	}
+	
+	@Override
+	public List<String> getCreateArchiveTable(String archiveTableName, String tableName, List<String> primaryKey) {
+		List<String> statements = new ArrayList<String>();
+		statements.add("CREATE TABLE " + archiveTableName + " LIKE " + tableName);
+		return statements;
+	}
+	
+	@Override
+	public List<String> getDropIndex(String tableName, String schema, String indexName) {
+		List<String> statements = new ArrayList<String>();
+		statements.add("DROP INDEX " + indexName + " ON " + tableName);
+		return statements;
+	}
+	
+	@Override
+	public String getInsertIgnore(String tableName, String query, TableKey key) {
+		return "INSERT IGNORE INTO " + tableName + " " + query;
+	}
+	
+	@Override
+	public String getInsertIgnoreRow(String tableName, List<String> columns, TableKey key) {
+		return "INSERT IGNORE INTO " + tableName + " (" + join(columns) + ") VALUES (" + parameters(columns.size())
+		        + ")";
+	}
+	
+	@Override
+	public void setForeignKeyChecks(Connection connection, boolean enabled) throws SQLException {
+		// A session setting, which must be restored before the connection goes back to the pool
+		execute(connection, "SET FOREIGN_KEY_CHECKS = " + (enabled ? 1 : 0));
+	}
+	
+	@Override
+	public int getStreamingFetchSize(int fetchSize) {
+		// Connector/J only streams rows instead of buffering the whole result for this fetch size
+		return Integer.MIN_VALUE;
+	}
+}
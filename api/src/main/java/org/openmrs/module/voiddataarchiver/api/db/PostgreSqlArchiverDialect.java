@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PostgreSQL: rows are moved by a single {@code DELETE ... RETURNING} feeding an
+ * {@code INSERT ... ON CONFLICT DO NOTHING}. Foreign key checks cannot be turned off without
+ * superuser rights, so they stay on; tables are archived children first.
+ */
+public class PostgreSqlArchiverDialect extends ArchiverDialect {
+	
+	@Override
+	public String getName() {
+		return "postgresql";
+	}
+	
+	@Override
+	public List<String> getCreateArchiveTable(String archiveTableName, String tableName, List<String> primaryKey) {
+		List<String> statements = new ArrayList<String>();
+		statements.add("CREATE TABLE " + archiveTableName + " (LIKE " + tableName
+		        + " INCLUDING DEFAULTS INCLUDING IDENTITY INCLUDING INDEXES)");
+		return statements;
+	}
+	
+	@Override
+	public List<String> getDropIndex(String tableName, String schema, String indexName) {
+		List<String> statements = new ArrayList<String>();
+		// Unique indexes copied by LIKE ... INCLUDING INDEXES belong to a constraint of the same name
+		statements.add("ALTER TABLE " + tableName + " DROP CONSTRAINT IF EXISTS " + indexName);
+		statements.add("DROP INDEX IF EXISTS " + (schema != null ? schema + "." : "") + indexName);
+		return statements;
+	}
+	
+	@Override
+	public String getInsertIgnore(String tableName, String query, TableKey key) {
+		return "INSERT INTO " + tableName + " " + query + " ON CONFLICT DO NOTHING";
+	}
+	
+	@Override
+	public String getInsertIgnoreRow(String tableName, List<String> columns, TableKey key) {
+		return "INSERT INTO " + tableName + " (" + join(columns) + ") VALUES (" + parameters(columns.size())
+		        + ") ON CONFLICT DO NOTHING";
+	}
+	
+	@Override
+	public String getDeleteLimit(String tableName, String condition, int limit) {
+		return "DELETE FROM " + tableName + " WHERE ctid IN (SELECT ctid FROM " + tableName + " WHERE " + condition
+		        + " LIMIT " + limit + ")";
+	}
+	
+	@Override
+	public String getMoveStatement(String fromTable, String toTable, String condition, TableKey key) {
+		StringBuilder matchedKey = new StringBuilder();
+		for (ColumnMetadata column : key.getColumns()) {
+			matchedKey.append(matchedKey.length() > 0 ? ", m." : "m.").append(column.getName());
+		}
+		// All parts see the tables as they were before the statement, so the EXISTS finds the rows
+		// that were already in the other table and the inserted rows come from RETURNING
+		return "WITH matched AS (SELECT * FROM " + fromTable + " WHERE " + condition + "), inserted AS ("
+		        + getInsertIgnore(toTable, "SELECT * FROM matched", key) + " RETURNING " + key.getColumnList()
+		        + "), settled AS (SELECT " + key.getColumnList() + " FROM inserted UNION SELECT " + matchedKey
+		        + " FROM matched m WHERE EXISTS (SELECT 1 FROM " + toTable + " t WHERE " + key.getJoinCondition("t", "m")
+		        + ")), moved AS (DELETE FROM " + fromTable + " f USING settled s WHERE " + key.getJoinCondition("f", "s")
+		        + " AND f." + getVoidedPredicate() + " RETURNING 1) SELECT COUNT(*) FROM moved";
+	}
+}
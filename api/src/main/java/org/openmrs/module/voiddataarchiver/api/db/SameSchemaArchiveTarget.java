@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps archive tables next to their source tables in the OpenMRS schema, the default. Archive
+ * tables are looked up in the {@link SchemaCatalog} like any other table.
+ */
+public class SameSchemaArchiveTarget extends AbstractArchiveTarget {
+	
+	private final SchemaCatalog schemaCatalog;
+	
+	public SameSchemaArchiveTarget(SchemaCatalog schemaCatalog) {
+		this.schemaCatalog = schemaCatalog;
+	}
+	
+	@Override
+	public String getDescription() {
+		return "the OpenMRS schema";
+	}
+	
+	@Override
+	public TableMetadata getArchiveTable(Connection archiveConnection, String tableName) throws SQLException {
+		return schemaCatalog.getTable(archiveConnection, PREFIX + tableName);
+	}
+	
+	@Override
+	public List<String> getArchivedTableNames(Connection archiveConnection) throws SQLException {
+		List<String> names = new ArrayList<String>();
+		for (TableMetadata table : schemaCatalog.getTables(archiveConnection)) {
+			if (table.getName().toLowerCase().startsWith(PREFIX)) {
+				names.add(table.getName().substring(PREFIX.length()));
+			}
+		}
+		return names;
+	}
+	
+	@Override
+	public void invalidate() {
+		schemaCatalog.invalidate();
+	}
+}
@@ -0,0 +1,253 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory catalog of the tables, columns, primary keys and foreign keys of the OpenMRS schema.
+ * <p>
+ * The catalog is loaded in one bulk pass (one getTables and one getColumns call, plus a single
+ * information_schema query for the keys on MySQL and PostgreSQL) and then reused until the schema
+ * fingerprint changes. The fingerprint is derived from the liquibase changelog, so core and module
+ * upgrades invalidate it automatically; code that changes the schema itself (e.g. creating or
+ * dropping archive tables) must call {@link #invalidate()}. The fingerprint is read at most once per
+ * {@link #FINGERPRINT_CHECK_INTERVAL_MS}, lookups in between are served from memory.
+ */
+@Component("voiddataarchiver.SchemaCatalog")
+public class SchemaCatalog {
+	
+	private static final String CHANGELOG_TABLE = "liquibasechangelog";
+	
+	/**
+	 * Upper bound on the age of a snapshot, to pick up schema changes made outside liquibase.
+	 */
+	private static final long MAX_SNAPSHOT_AGE_MS = 10 * 60 * 1000L;
+	
+	/**
+	 * How long a snapshot is used without reading the changelog fingerprint again, so that the many
+	 * lookups of a job or a page cost one query at most.
+	 */
+	static final long FINGERPRINT_CHECK_INTERVAL_MS = 30 * 1000L;
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	private volatile Snapshot snapshot;
+	
+	/**
+	 * @param connection the connection to load the catalog with, if it is missing or stale
+	 * @return all tables of the schema, ordered by name
+	 */
+	public List<TableMetadata> getTables(Connection connection) throws SQLException {
+		return new ArrayList<TableMetadata>(getSnapshot(connection).tables.values());
+	}
+	
+	/**
+	 * @param connection the connection to load the catalog with, if it is missing or stale
+	 * @param tableName the table name (case insensitive)
+	 * @return the table, or null if it does not exist
+	 */
+	public TableMetadata getTable(Connection connection, String tableName) throws SQLException {
+		return getSnapshot(connection).tables.get(tableName);
+	}
+	
+	/**
+	 * Discards the cached catalog so that the next access reloads it.
+	 */
+	public void invalidate() {
+		snapshot = null;
+	}
+	
+	private Snapshot getSnapshot(Connection connection) throws SQLException {
+		Snapshot current = snapshot;
+		if (isCurrent(connection, current)) {
+			return current;
+		}
+		synchronized (this) {
+			current = snapshot;
+			if (isCurrent(connection, current)) {
+				return current;
+			}
+			long start = System.currentTimeMillis();
+			current = load(connection);
+			snapshot = current;
+			log.info("Loaded schema catalog with " + current.tables.size() + " tables in "
+			        + (System.currentTimeMillis() - start) + " ms");
+			return current;
+		}
+	}
+	
+	private boolean isCurrent(Connection connection, Snapshot current) throws SQLException {
+		if (current == null || current.isExpired()) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (now - current.fingerprintCheckedAt < FINGERPRINT_CHECK_INTERVAL_MS) {
+			return true;
+		}
+		if (!current.fingerprint.equals(readFingerprint(connection, current.changelogTable))) {
+			return false;
+		}
+		current.fingerprintCheckedAt = now;
+		return true;
+	}
+	
+	private String readFingerprint(Connection connection, String changelogTable) throws SQLException {
+		if (changelogTable == null) {
+			return "";
+		}
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT COUNT(*), MAX(DATEEXECUTED) FROM " + changelogTable);
+			String fingerprint = rs.next() ? rs.getLong(1) + "|" + rs.getString(2) : "";
+			rs.close();
+			return fingerprint;
+		}
+		finally {
+			stmt.close();
+		}
+	}
+	
+	private Snapshot load(Connection connection) throws SQLException {
+		DatabaseMetaData dbmd = connection.getMetaData();
+		String catalog = connection.getCatalog();
+		Map<String, TableMetadata> tables = new TreeMap<String, TableMetadata>(String.CASE_INSENSITIVE_ORDER);
+		
+		ResultSet rs = dbmd.getTables(catalog, null, "%", new String[] { "TABLE" });
+		while (rs.next()) {
+			String tableName = rs.getString("TABLE_NAME");
+			tables.put(tableName, new TableMetadata(tableName));
+		}
+		rs.close();
+		
+		rs = dbmd.getColumns(catalog, null, "%", "%");
+		while (rs.next()) {
+			TableMetadata table = tables.get(rs.getString("TABLE_NAME"));
+			if (table != null) {
+				table.addColumn(new ColumnMetadata(rs.getString("COLUMN_NAME"), rs.getString("TYPE_NAME"), rs
+				        .getInt("DATA_TYPE"), rs.getInt("COLUMN_SIZE")));
+			}
+		}
+		rs.close();
+		
+		String dbProduct = dbmd.getDatabaseProductName().toLowerCase();
+		if (dbProduct.contains("mysql") || dbProduct.contains("mariadb")) {
+			loadKeys(connection, tables, "SELECT TABLE_NAME, COLUMN_NAME, "
+			        + "CASE WHEN CONSTRAINT_NAME = 'PRIMARY' THEN 'PRIMARY KEY' ELSE 'FOREIGN KEY' END, "
+			        + "ORDINAL_POSITION, REFERENCED_TABLE_NAME FROM information_schema.KEY_COLUMN_USAGE "
+			        + "WHERE TABLE_SCHEMA = DATABASE() AND (CONSTRAINT_NAME = 'PRIMARY' OR REFERENCED_TABLE_NAME IS NOT NULL)");
+		} else if (dbProduct.contains("postgresql")) {
+			loadKeys(connection, tables, "SELECT tc.table_name, kcu.column_name, tc.constraint_type, "
+			        + "kcu.ordinal_position, ccu.table_name FROM information_schema.table_constraints tc "
+			        + "JOIN information_schema.key_column_usage kcu ON kcu.constraint_schema = tc.constraint_schema "
+			        + "AND kcu.constraint_name = tc.constraint_name AND kcu.table_name = tc.table_name "
+			        + "LEFT JOIN information_schema.constraint_column_usage ccu ON tc.constraint_type = 'FOREIGN KEY' "
+			        + "AND ccu.constraint_schema = tc.constraint_schema AND ccu.constraint_name = tc.constraint_name "
+			        + "WHERE tc.table_schema = current_schema() AND tc.constraint_type IN ('PRIMARY KEY', 'FOREIGN KEY')");
+		} else {
+			loadKeysFromMetaData(dbmd, catalog, tables);
+		}
+		
+		String changelogTable = null;
+		TableMetadata changelog = tables.get(CHANGELOG_TABLE);
+		if (changelog != null) {
+			changelogTable = changelog.getName();
+		}
+		return new Snapshot(tables, changelogTable, readFingerprint(connection, changelogTable));
+	}
+	
+	/**
+	 * Loads primary and foreign keys of all tables from a query returning table name, column name,
+	 * constraint type ('PRIMARY KEY' or 'FOREIGN KEY'), ordinal position and referenced table.
+	 */
+	private void loadKeys(Connection connection, Map<String, TableMetadata> tables, String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			while (rs.next()) {
+				TableMetadata table = tables.get(rs.getString(1));
+				if (table == null) {
+					continue;
+				}
+				if ("PRIMARY KEY".equals(rs.getString(3))) {
+					table.addPrimaryKeyColumn(rs.getInt(4), rs.getString(2));
+				} else {
+					table.addParentTable(rs.getString(5));
+				}
+			}
+			rs.close();
+		}
+		finally {
+			stmt.close();
+		}
+	}
+	
+	/**
+	 * Fallback for databases without a usable information_schema (e.g. H2), which still needs two
+	 * metadata calls per table but only once per catalog load.
+	 */
+	private void loadKeysFromMetaData(DatabaseMetaData dbmd, String catalog, Map<String, TableMetadata> tables)
+	        throws SQLException {
+		for (TableMetadata table : tables.values()) {
+			ResultSet rs = dbmd.getPrimaryKeys(catalog, null, table.getName());
+			while (rs.next()) {
+				table.addPrimaryKeyColumn(rs.getInt("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+			}
+			rs.close();
+			
+			try {
+				rs = dbmd.getImportedKeys(catalog, null, table.getName());
+			}
+			catch (SQLException e) {
+				log.debug("Failed to read foreign keys of " + table.getName(), e);
+				continue;
+			}
+			while (rs.next()) {
+				table.addParentTable(rs.getString("PKTABLE_NAME"));
+			}
+			rs.close();
+		}
+	}
+	
+	private static class Snapshot {
+		
+		private final Map<String, TableMetadata> tables;
+		
+		private final String changelogTable;
+		
+		private final String fingerprint;
+		
+		private final long loadedAt = System.currentTimeMillis();
+		
+		private volatile long fingerprintCheckedAt = loadedAt;
+		
+		Snapshot(Map<String, TableMetadata> tables, String changelogTable, String fingerprint) {
+			this.tables = tables;
+			this.changelogTable = changelogTable;
+			this.fingerprint = fingerprint;
+		}
+		
+		boolean isExpired() {
+			return System.currentTimeMillis() - loadedAt > MAX_SNAPSHOT_AGE_MS;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Keeps archive tables in a separate schema of the OpenMRS database server, a database of its own
+ * on MySQL. Rows still move with single statements in the OpenMRS transaction, but archived data
+ * no longer takes up space in the OpenMRS schema and can be backed up, stored and replicated
+ * separately.
+ */
+public class SeparateSchemaArchiveTarget extends AbstractArchiveTarget {
+	
+	private final String schema;
+	
+	/**
+	 * @param schema the name of the schema, which is created if missing
+	 */
+	public SeparateSchemaArchiveTarget(String schema) {
+		if (!schema.matches("[A-Za-z0-9_]+")) {
+			throw new IllegalArgumentException("Invalid schema name: " + schema);
+		}
+		this.schema = schema;
+	}
+	
+	public String getSchemaName() {
+		return schema;
+	}
+	
+	@Override
+	public String getDescription() {
+		return "schema " + schema;
+	}
+	
+	@Override
+	public String getArchiveTableName(String tableName) {
+		return schema + "." + PREFIX + tableName;
+	}
+	
+	@Override
+	public String getCatalog(Connection archiveConnection) throws SQLException {
+		// MySQL reports its databases as catalogs
+		return ArchiverDialect.forConnection(archiveConnection).isCatalogSchema() ? schema : archiveConnection
+		        .getCatalog();
+	}
+	
+	@Override
+	public String getSchema(Connection archiveConnection) throws SQLException {
+		return ArchiverDialect.forConnection(archiveConnection).isCatalogSchema() ? null : schema;
+	}
+	
+	@Override
+	public void createArchiveTable(Connection openmrsConnection, Connection archiveConnection, TableMetadata sourceTable)
+	        throws SQLException {
+		Statement stmt = archiveConnection.createStatement();
+		try {
+			stmt.execute("CREATE SCHEMA IF NOT EXISTS " + schema);
+		}
+		finally {
+			stmt.close();
+		}
+		super.createArchiveTable(openmrsConnection, archiveConnection, sourceTable);
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The columns identifying the rows of a table for batched moves: its primary key, which may span
+ * several columns, or its uuid column if it has no primary key. A key value is an Object[] with one
+ * element per column, in key order. Builds the SQL fragments for keyset pagination and for matching
+ * a chunk of keys, so that batches are driven by the key index whatever the shape of the key.
+ */
+public class TableKey {
+	
+	private final List<ColumnMetadata> columns;
+	
+	private TableKey(List<ColumnMetadata> columns) {
+		this.columns = Collections.unmodifiableList(columns);
+	}
+	
+	/**
+	 * @param table the table
+	 * @return the key of the table, or null if it has neither a primary key nor a uuid column
+	 */
+	public static TableKey forTable(TableMetadata table) {
+		List<ColumnMetadata> columns = new ArrayList<ColumnMetadata>();
+		for (String name : table.getPrimaryKeyColumns()) {
+			columns.add(table.getColumn(name));
+		}
+		if (columns.isEmpty() && table.hasColumn("uuid")) {
+			columns.add(table.getColumn("uuid"));
+		}
+		return columns.isEmpty() ? null : new TableKey(columns);
+	}
+	
+	public List<ColumnMetadata> getColumns() {
+		return columns;
+	}
+	
+	public int size() {
+		return columns.size();
+	}
+	
+	/**
+	 * @return the key columns separated by commas, e.g. "obs_id" or "patient_id, identifier_type"
+	 */
+	public String getColumnList() {
+		return join(", ", "");
+	}
+	
+	/**
+	 * @return an ORDER BY list sorting rows by descending key
+	 */
+	public String getDescendingOrder() {
+		return join(", ", " DESC");
+	}
+	
+	/**
+	 * @param alias the alias of the table the columns belong to
+	 * @param otherAlias the alias of the table to compare with
+	 * @return a condition matching rows of both tables that have the same key
+	 */
+	public String getJoinCondition(String alias, String otherAlias) {
+		StringBuilder sb = new StringBuilder();
+		for (ColumnMetadata column : columns) {
+			if (sb.length() > 0) {
+				sb.append(" AND ");
+			}
+			sb.append(alias).append(".").append(column.getName()).append(" = ").append(otherAlias).append(".")
+			        .append(column.getName());
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Builds a condition selecting the rows with a key lower than a given key, to be bound with
+	 * {@link #bindBefore(PreparedStatement, int, Object[])}. For a composite key (a, b) this is
+	 * {@code a <= ? AND (a < ? OR (a = ? AND b < ?))}, the leading bound letting the database range
+	 * scan the key index where it would not use it for a row value comparison.
+	 * 
+	 * @return the condition
+	 */
+	public String getBeforePredicate() {
+		if (columns.size() == 1) {
+			return columns.get(0).getName() + " < ?";
+		}
+		StringBuilder sb = new StringBuilder(columns.get(0).getName()).append(" <= ? AND (");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				sb.append(" OR ");
+			}
+			sb.append("(");
+			for (int j = 0; j < i; j++) {
+				sb.append(columns.get(j).getName()).append(" = ? AND ");
+			}
+			sb.append(columns.get(i).getName()).append(" < ?)");
+		}
+		return sb.append(")").toString();
+	}
+	
+	/**
+	 * Binds the parameters of {@link #getBeforePredicate()}.
+	 * 
+	 * @return the index of the next parameter
+	 */
+	public int bindBefore(PreparedStatement ps, int index, Object[] key) throws SQLException {
+		if (columns.size() > 1) {
+			ps.setObject(index++, key[0]);
+		}
+		for (int i = 0; i < columns.size(); i++) {
+			for (int j = 0; j <= i; j++) {
+				ps.setObject(index++, key[j]);
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Builds a condition matching any of the given number of keys, to be bound with
+	 * {@link #bindKeys(PreparedStatement, int, List, int)}: an IN list for a single column key, OR-ed
+	 * column equalities for a composite key.
+	 * 
+	 * @param count the number of keys
+	 * @return the condition
+	 */
+	public String getMatchPredicate(int count) {
+		StringBuilder sb = new StringBuilder();
+		if (columns.size() == 1) {
+			sb.append(columns.get(0).getName()).append(" IN (");
+			for (int i = 0; i < count; i++) {
+				sb.append(i > 0 ? ", ?" : "?");
+			}
+			return sb.append(")").toString();
+		}
+		sb.append("(");
+		for (int i = 0; i < count; i++) {
+			sb.append(i > 0 ? " OR (" : "(").append(join(" AND ", " = ?")).append(")");
+		}
+		return sb.append(")").toString();
+	}
+	
+	/**
+	 * Binds the parameters of {@link #getMatchPredicate(int)}. When there are fewer keys than
+	 * parameters the last key is repeated, which matches the same row again, so a statement can be
+	 * reused for a short chunk.
+	 * 
+	 * @return the index of the next parameter
+	 */
+	public int bindKeys(PreparedStatement ps, int index, List<Object[]> keys, int count) throws SQLException {
+		for (int i = 0; i < count; i++) {
+			Object[] key = keys.get(Math.min(i, keys.size() - 1));
+			for (Object value : key) {
+				ps.setObject(index++, value);
+			}
+		}
+		return index;
+	}
+	
+	/**
+	 * Reads a key from the current row of a result set whose first columns are
+	 * {@link #getColumnList()}. Date and time columns are read as their java.sql types whatever the
+	 * driver's default, so that {@link #format(Object[])} writes them in the form {@link #parse(String)}
+	 * reads.
+	 */
+	public Object[] readKey(ResultSet rs) throws SQLException {
+		Object[] key = new Object[columns.size()];
+		for (int i = 0; i < key.length; i++) {
+			switch (columns.get(i).getDataType()) {
+				case Types.DATE:
+					key[i] = rs.getDate(i + 1);
+					break;
+				case Types.TIME:
+					key[i] = rs.getTime(i + 1);
+					break;
+				case Types.TIMESTAMP:
+					key[i] = rs.getTimestamp(i + 1);
+					break;
+				default:
+					key[i] = rs.getObject(i + 1);
+			}
+		}
+		return key;
+	}
+	
+	/**
+	 * @return the key as text, for storing in a checkpoint
+	 */
+	public String format(Object[] key) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			for (int i = 0; i < key.length; i++) {
+				if (i > 0) {
+					sb.append(",");
+				}
+				sb.append(URLEncoder.encode(String.valueOf(key[i]), "UTF-8"));
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Parses a key formatted by {@link #format(Object[])}, converting numeric and date and time
+	 * columns back to their types so that they compare as such rather than as text.
+	 * 
+	 * @return the key, or null if the text does not have one value per key column
+	 */
+	public Object[] parse(String text) {
+		String[] parts = text.split(",", -1);
+		if (parts.length != columns.size()) {
+			return null;
+		}
+		Object[] key = new Object[parts.length];
+		try {
+			for (int i = 0; i < parts.length; i++) {
+				String value = URLDecoder.decode(parts[i], "UTF-8");
+				switch (columns.get(i).getDataType()) {
+					case Types.TINYINT:
+					case Types.SMALLINT:
+					case Types.INTEGER:
+					case Types.BIGINT:
+						key[i] = Long.valueOf(value);
+						break;
+					case Types.DECIMAL:
+					case Types.NUMERIC:
+						key[i] = new BigDecimal(value);
+						break;
+					case Types.DATE:
+						key[i] = Date.valueOf(value);
+						break;
+					case Types.TIME:
+						key[i] = Time.valueOf(value);
+						break;
+					case Types.TIMESTAMP:
+						key[i] = Timestamp.valueOf(value);
+						break;
+					default:
+						key[i] = value;
+				}
+			}
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return key;
+	}
+	
+	private String join(String separator, String suffix) {
+		StringBuilder sb = new StringBuilder();
+		for (ColumnMetadata column : columns) {
+			if (sb.length() > 0) {
+				sb.append(separator);
+			}
+			sb.append(column.getName()).append(suffix);
+		}
+		return sb.toString();
+	}
+}
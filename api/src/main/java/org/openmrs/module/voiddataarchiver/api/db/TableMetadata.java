@@ -0,0 +1,100 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Columns, primary key and foreign key parents of a single table, as loaded by the
+ * {@link SchemaCatalog}. Instances are populated while the catalog is loaded and must be treated as
+ * read-only afterwards.
+ */
+public class TableMetadata {
+	
+	private final String name;
+	
+	private final Map<String, ColumnMetadata> columns = new LinkedHashMap<String, ColumnMetadata>();
+	
+	private final Map<String, ColumnMetadata> columnsByLowerName = new LinkedHashMap<String, ColumnMetadata>();
+	
+	private final TreeMap<Integer, String> primaryKeyColumns = new TreeMap<Integer, String>();
+	
+	private final List<String> parentTables = new ArrayList<String>();
+	
+	public TableMetadata(String name) {
+		this.name = name;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public boolean hasColumn(String columnName) {
+		return columnsByLowerName.containsKey(columnName.toLowerCase());
+	}
+	
+	/**
+	 * @return the column with the given name (case insensitive), or null if there is none
+	 */
+	public ColumnMetadata getColumn(String columnName) {
+		return columnsByLowerName.get(columnName.toLowerCase());
+	}
+	
+	/**
+	 * @return the column names in ordinal order
+	 */
+	public List<String> getColumnNames() {
+		return new ArrayList<String>(columns.keySet());
+	}
+	
+	/**
+	 * @return the primary key columns ordered by key sequence, empty if the table has no primary key
+	 */
+	public List<String> getPrimaryKeyColumns() {
+		return Collections.unmodifiableList(new ArrayList<String>(primaryKeyColumns.values()));
+	}
+	
+	/**
+	 * @return the tables referenced by foreign keys of this table, excluding self-references
+	 */
+	public List<String> getParentTables() {
+		return Collections.unmodifiableList(parentTables);
+	}
+	
+	public boolean isVoidable() {
+		return hasColumn("voided");
+	}
+	
+	void addColumn(ColumnMetadata column) {
+		columns.put(column.getName(), column);
+		columnsByLowerName.put(column.getName().toLowerCase(), column);
+	}
+	
+	void addPrimaryKeyColumn(int keySequence, String columnName) {
+		primaryKeyColumns.put(keySequence, columnName);
+	}
+	
+	void addParentTable(String parentTable) {
+		if (parentTable == null || parentTable.equalsIgnoreCase(name)) {
+			return;
+		}
+		for (String existing : parentTables) {
+			if (existing.equalsIgnoreCase(parentTable)) {
+				return;
+			}
+		}
+		parentTables.add(parentTable);
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.voiddataarchiver.api.StatisticsMode;
+import org.openmrs.module.voiddataarchiver.api.TableInfo;
+import org.springframework.stereotype.Component;
+
+/**
+ * Computes total and voided row counts of voidable tables.
+ * <p>
+ * In {@link StatisticsMode#EXACT} mode both numbers come from a single conditional-aggregation pass
+ * over the table. In {@link StatisticsMode#ESTIMATED} mode the total comes from the database's own
+ * row estimate and the voided count of tables above {@link #EXACT_COUNT_THRESHOLD} rows is
+ * extrapolated from a sample of {@link #SAMPLE_SIZE} rows; the corresponding flags on
+ * {@link TableInfo} are set accordingly.
+ * <p>
+ * Voided rows cluster at the old end of most tables, so the sample is spread over
+ * {@link #SAMPLE_RANGES} evenly spaced ranges of the key, each read through the key index. Tables
+ * without a single numeric key column fall back to the first rows the database returns, which
+ * makes their voided figure a rough heuristic only.
+ */
+@Component("voiddataarchiver.TableStatisticsEngine")
+public class TableStatisticsEngine {
+	
+	/**
+	 * Tables estimated to have at most this many rows are counted exactly even in estimated mode.
+	 */
+	static final long EXACT_COUNT_THRESHOLD = 100000L;
+	
+	static final int SAMPLE_SIZE = 10000;
+	
+	static final int SAMPLE_RANGES = 10;
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * Reads the row estimates of all tables in one query.
+	 * 
+	 * @return estimated row count by table name (case insensitive), empty if the database does not
+	 *         expose estimates
+	 */
+	public Map<String, Long> getRowEstimates(Connection connection) throws SQLException {
+		Map<String, Long> estimates = new TreeMap<String, Long>(String.CASE_INSENSITIVE_ORDER);
+		String dbProduct = connection.getMetaData().getDatabaseProductName().toLowerCase();
+		String sql;
+		if (dbProduct.contains("mysql") || dbProduct.contains("mariadb")) {
+			sql = "SELECT TABLE_NAME, TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE()";
+		} else if (dbProduct.contains("postgresql")) {
+			sql = "SELECT c.relname, c.reltuples FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+			        + "WHERE c.relkind = 'r' AND n.nspname = current_schema()";
+		} else {
+			return estimates;
+		}
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			while (rs.next()) {
+				estimates.put(rs.getString(1), Math.max(0L, rs.getLong(2)));
+			}
+			rs.close();
+		}
+		finally {
+			stmt.close();
+		}
+		return estimates;
+	}
+	
+	/**
+	 * Fills in the total and voided counts of a voidable table.
+	 * 
+	 * @param connection the connection to query with
+	 * @param tableName the voidable table
+	 * @param key the key of the table, or null if it has none; only used in estimated mode
+	 * @param info the info to fill in
+	 * @param mode exact or estimated
+	 * @param rowEstimates the result of {@link #getRowEstimates(Connection)}, only used in estimated
+	 *            mode
+	 */
+	public void collect(Connection connection, String tableName, TableKey key, TableInfo info, StatisticsMode mode,
+	        Map<String, Long> rowEstimates) throws SQLException {
+		Long estimate = rowEstimates != null ? rowEstimates.get(tableName) : null;
+		String voidedCount = "SUM(CASE WHEN " + ArchiverDialect.forConnection(connection).getVoidedPredicate()
+		        + " THEN 1 ELSE 0 END)";
+		if (mode == StatisticsMode.EXACT || estimate == null || estimate <= EXACT_COUNT_THRESHOLD) {
+			long[] counts = count(connection, "SELECT COUNT(*), " + voidedCount + " FROM " + tableName);
+			info.setTotalRecords(counts[0]);
+			info.setVoidedRecords(counts[1]);
+			info.setTotalEstimated(false);
+			info.setVoidedEstimated(false);
+			return;
+		}
+		
+		long[] sample;
+		if (key != null && key.size() == 1 && isNumeric(key.getColumns().get(0))) {
+			sample = sampleKeyRanges(connection, tableName, key.getColumnList(), voidedCount);
+		} else {
+			sample = count(connection, "SELECT COUNT(*), " + voidedCount + " FROM (SELECT voided FROM " + tableName
+			        + " LIMIT " + SAMPLE_SIZE + ") s");
+		}
+		long voided = sample[0] > 0 ? Math.round((double) sample[1] / sample[0] * estimate) : 0L;
+		if (sample[1] > 0 && voided == 0) {
+			voided = 1;
+		}
+		info.setTotalRecords(estimate);
+		info.setVoidedRecords(voided);
+		info.setTotalEstimated(true);
+		info.setVoidedEstimated(true);
+	}
+	
+	/**
+	 * Samples up to {@link #SAMPLE_SIZE} / {@link #SAMPLE_RANGES} rows from the start of each of
+	 * {@link #SAMPLE_RANGES} evenly spaced ranges between the lowest and highest key.
+	 * 
+	 * @return the sampled and voided row counts
+	 */
+	private long[] sampleKeyRanges(Connection connection, String tableName, String keyColumn, String voidedCount)
+	        throws SQLException {
+		long[] bounds = count(connection, "SELECT MIN(" + keyColumn + "), MAX(" + keyColumn + ") FROM " + tableName);
+		long span = bounds[1] - bounds[0] + 1;
+		long[] sample = new long[2];
+		PreparedStatement ps = connection.prepareStatement("SELECT COUNT(*), " + voidedCount + " FROM (SELECT voided FROM "
+		        + tableName + " WHERE " + keyColumn + " >= ? AND " + keyColumn + " < ? ORDER BY " + keyColumn + " LIMIT "
+		        + SAMPLE_SIZE / SAMPLE_RANGES + ") s");
+		try {
+			for (int i = 0; i < SAMPLE_RANGES; i++) {
+				ps.setLong(1, bounds[0] + span * i / SAMPLE_RANGES);
+				ps.setLong(2, bounds[0] + span * (i + 1) / SAMPLE_RANGES);
+				ResultSet rs = ps.executeQuery();
+				if (rs.next()) {
+					sample[0] += rs.getLong(1);
+					sample[1] += rs.getLong(2);
+				}
+				rs.close();
+			}
+		}
+		finally {
+			ps.close();
+		}
+		return sample;
+	}
+	
+	private static boolean isNumeric(ColumnMetadata column) {
+		switch (column.getDataType()) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return true;
+			default:
+				return false;
+		}
+	}
+	
+	private long[] count(Connection connection, String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			long[] counts = new long[2];
+			if (rs.next()) {
+				counts[0] = rs.getLong(1);
+				counts[1] = rs.getLong(2);
+			}
+			rs.close();
+			return counts;
+		}
+		finally {
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openmrs.module.voiddataarchiver.api.UserName;
+import org.springframework.stereotype.Component;
+
+/**
+ * Names of users by user id, shared by all queries that list voided rows. The same few users void
+ * most rows, so resolving them here keeps those queries on the voided table alone instead of joining
+ * users into each of them.
+ * <p>
+ * The cache holds the {@value #MAX_USERS} most recently used users. Missing users are loaded in bulk,
+ * with one query per {@value #LOOKUP_CHUNK_SIZE} ids. Entries are discarded when a user or person
+ * is saved, see {@link org.openmrs.module.voiddataarchiver.advice.UserNameCacheAdvice}.
+ */
+@Component("voiddataarchiver.UserNameCache")
+public class UserNameCache {
+	
+	private static final int MAX_USERS = 1000;
+	
+	private static final int LOOKUP_CHUNK_SIZE = 100;
+	
+	private final Map<Integer, UserName> users = new LinkedHashMap<Integer, UserName>(16, 0.75f, true) {
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, UserName> eldest) {
+			return size() > MAX_USERS;
+		}
+	};
+	
+	/**
+	 * Resolves user ids, loading those that are not cached yet.
+	 * 
+	 * @param connection the connection to load missing users with
+	 * @param userIds the user ids
+	 * @return the names of the users that exist, by user id
+	 */
+	public Map<Integer, UserName> getUsers(Connection connection, Iterable<Integer> userIds) throws SQLException {
+		Map<Integer, UserName> found = new HashMap<Integer, UserName>();
+		Set<Integer> missingIds = new LinkedHashSet<Integer>();
+		synchronized (users) {
+			for (Integer userId : userIds) {
+				UserName user = users.get(userId);
+				if (user != null) {
+					found.put(userId, user);
+				} else {
+					missingIds.add(userId);
+				}
+			}
+		}
+		List<Integer> missing = new ArrayList<Integer>(missingIds);
+		
+		// Queried outside the lock, at worst two threads load the same user
+		for (int from = 0; from < missing.size(); from += LOOKUP_CHUNK_SIZE) {
+			Map<Integer, UserName> loaded = loadUsers(connection,
+			    missing.subList(from, Math.min(from + LOOKUP_CHUNK_SIZE, missing.size())));
+			synchronized (users) {
+				users.putAll(loaded);
+			}
+			found.putAll(loaded);
+		}
+		return found;
+	}
+	
+	/**
+	 * Discards a cached user.
+	 * 
+	 * @param userId the user id
+	 */
+	public void invalidate(Integer userId) {
+		synchronized (users) {
+			users.remove(userId);
+		}
+	}
+	
+	/**
+	 * Discards all cached users.
+	 */
+	public void invalidate() {
+		synchronized (users) {
+			users.clear();
+		}
+	}
+	
+	private Map<Integer, UserName> loadUsers(Connection connection, List<Integer> userIds) throws SQLException {
+		StringBuilder in = new StringBuilder();
+		for (int i = 0; i < userIds.size(); i++) {
+			in.append(i > 0 ? ", ?" : "?");
+		}
+		Map<Integer, UserName> loaded = new HashMap<Integer, UserName>();
+		PreparedStatement ps = connection.prepareStatement("SELECT u.user_id, u.username, u.system_id, pn.given_name, "
+		        + "pn.family_name FROM users u LEFT JOIN person_name pn ON pn.person_id = u.person_id "
+		        + "AND pn.preferred = TRUE AND pn.voided = FALSE WHERE u.user_id IN (" + in + ")");
+		try {
+			for (int i = 0; i < userIds.size(); i++) {
+				ps.setInt(i + 1, userIds.get(i));
+			}
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				String username = rs.getString(2);
+				if (username == null || username.length() == 0) {
+					username = rs.getString(3);
+				}
+				String displayName = join(rs.getString(4), rs.getString(5));
+				loaded.put(rs.getInt(1), new UserName(username, displayName));
+			}
+			rs.close();
+		}
+		finally {
+			ps.close();
+		}
+		return loaded;
+	}
+	
+	/**
+	 * @return the non-empty names separated by a space, or null if both are empty
+	 */
+	private String join(String givenName, String familyName) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : new String[] { givenName, familyName }) {
+			if (name != null && name.trim().length() > 0) {
+				sb.append(sb.length() > 0 ? " " : "").append(name.trim());
+			}
+		}
+		return sb.length() > 0 ? sb.toString() : null;
+	}
+}
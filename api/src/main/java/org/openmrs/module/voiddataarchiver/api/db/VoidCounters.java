@@ -0,0 +1,94 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Changes to the voided row counts of tables not yet written to the statistics snapshot, fed by
+ * {@link org.openmrs.module.voiddataarchiver.api.db.hibernate.VoidTrackingInterceptor} as rows are
+ * voided and unvoided. Counts are kept in {@link LongAdder}s, which stripe concurrent updates, so
+ * threads saving data never contend on a counter. They are periodically written to the snapshot with
+ * {@link #drain()}; until then readers add {@link #getPending(String)} to the snapshot counts.
+ */
+@Component("voiddataarchiver.VoidCounters")
+public class VoidCounters {
+	
+	private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	
+	/**
+	 * @param tableName the table
+	 * @param delta the change in voided rows, negative for unvoided rows
+	 */
+	public void add(String tableName, long delta) {
+		LongAdder counter = counters.get(tableName);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = counters.putIfAbsent(tableName, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.add(delta);
+	}
+	
+	/**
+	 * @param deltas changes in voided rows by table, e.g. the result of a {@link #drain()} that could
+	 *            not be written
+	 */
+	public void addAll(Map<String, Long> deltas) {
+		for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+			add(delta.getKey(), delta.getValue());
+		}
+	}
+	
+	/**
+	 * @param tableName the table
+	 * @return the change in voided rows of the table not yet written to the snapshot
+	 */
+	public long getPending(String tableName) {
+		LongAdder counter = counters.get(tableName);
+		return counter != null ? counter.sum() : 0;
+	}
+	
+	/**
+	 * Takes the pending changes of all tables, resetting them.
+	 * 
+	 * @return the non-zero changes in voided rows by table
+	 */
+	public Map<String, Long> drain() {
+		Map<String, Long> deltas = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			long delta = counter.getValue().sumThenReset();
+			if (delta != 0) {
+				deltas.put(counter.getKey(), delta);
+			}
+		}
+		return deltas;
+	}
+	
+	/**
+	 * Discards the pending changes of a table, whose voided rows are about to be counted anew.
+	 * 
+	 * @param tableName the table
+	 */
+	public void reset(String tableName) {
+		LongAdder counter = counters.get(tableName);
+		if (counter != null) {
+			counter.reset();
+		}
+	}
+}
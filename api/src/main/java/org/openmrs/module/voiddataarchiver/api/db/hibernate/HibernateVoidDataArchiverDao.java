@@ -13,18 +13,45 @@
  */
 package org.openmrs.module.voiddataarchiver.api.db.hibernate;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.SessionFactory;
+import org.openmrs.module.voiddataarchiver.api.RestoreCriteria;
+import org.openmrs.module.voiddataarchiver.api.StatisticsMode;
 import org.openmrs.module.voiddataarchiver.api.TableInfo;
+import org.openmrs.module.voiddataarchiver.api.UserName;
+import org.openmrs.module.voiddataarchiver.api.VoidedEntry;
+import org.openmrs.module.voiddataarchiver.api.VoidedRowPage;
 import org.openmrs.module.voiddataarchiver.api.dao.VoidDataArchiverDao;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveExporter;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveImporter;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveIndexManager;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveTarget;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveTargetProvider;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiverDialect;
+import org.openmrs.module.voiddataarchiver.api.db.BatchCursor;
+import org.openmrs.module.voiddataarchiver.api.db.ColumnMetadata;
+import org.openmrs.module.voiddataarchiver.api.db.ExportManifest;
+import org.openmrs.module.voiddataarchiver.api.db.SchemaCatalog;
+import org.openmrs.module.voiddataarchiver.api.db.TableKey;
+import org.openmrs.module.voiddataarchiver.api.db.TableMetadata;
+import org.openmrs.module.voiddataarchiver.api.db.TableStatisticsEngine;
+import org.openmrs.module.voiddataarchiver.api.db.UserNameCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Hibernate implementation of {@link VoidDataArchiverDao}.
@@ -34,9 +61,43 @@ public class HibernateVoidDataArchiverDao implements VoidDataArchiverDao {
 	
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
+	/** Snapshot of table statistics maintained by the statistics refresh task, see liquibase.xml */
+	private static final String STATS_TABLE = "voiddataarchiver_table_stats";
+	
+	private static final String CHECKPOINT_TABLE = "voiddataarchiver_checkpoint";
+	
+	/** Rows voided since they were last archived, see VoidTrackingInterceptor */
+	private static final String VOID_QUEUE_TABLE = "voiddataarchiver_void_queue";
+	
+	/**
+	 * Number of keys bound per INSERT and DELETE statement of a batch.
+	 */
+	private static final int KEY_CHUNK_SIZE = 100;
+	
 	@Autowired
 	private SessionFactory sessionFactory;
 	
+	@Autowired
+	private SchemaCatalog schemaCatalog;
+	
+	@Autowired
+	private TableStatisticsEngine statisticsEngine;
+	
+	@Autowired
+	private ArchiveIndexManager archiveIndexManager;
+	
+	@Autowired
+	private UserNameCache userNameCache;
+	
+	@Autowired
+	private ArchiveExporter archiveExporter;
+	
+	@Autowired
+	private ArchiveImporter archiveImporter;
+	
+	@Autowired
+	private ArchiveTargetProvider archiveTargetProvider;
+	
 	/**
 	 * @param sessionFactory the sessionFactory to set
 	 */
@@ -51,6 +112,82 @@ public class HibernateVoidDataArchiverDao implements VoidDataArchiverDao {
 		return sessionFactory;
 	}
 	
+	/**
+	 * @param schemaCatalog the schemaCatalog to set
+	 */
+	public void setSchemaCatalog(SchemaCatalog schemaCatalog) {
+		this.schemaCatalog = schemaCatalog;
+	}
+	
+	/**
+	 * @param statisticsEngine the statisticsEngine to set
+	 */
+	public void setStatisticsEngine(TableStatisticsEngine statisticsEngine) {
+		this.statisticsEngine = statisticsEngine;
+	}
+	
+	/**
+	 * @param archiveIndexManager the archiveIndexManager to set
+	 */
+	public void setArchiveIndexManager(ArchiveIndexManager archiveIndexManager) {
+		this.archiveIndexManager = archiveIndexManager;
+	}
+	
+	/**
+	 * @param userNameCache the userNameCache to set
+	 */
+	public void setUserNameCache(UserNameCache userNameCache) {
+		this.userNameCache = userNameCache;
+	}
+	
+	/**
+	 * @param archiveExporter the archiveExporter to set
+	 */
+	public void setArchiveExporter(ArchiveExporter archiveExporter) {
+		this.archiveExporter = archiveExporter;
+	}
+	
+	/**
+	 * @param archiveImporter the archiveImporter to set
+	 */
+	public void setArchiveImporter(ArchiveImporter archiveImporter) {
+		this.archiveImporter = archiveImporter;
+	}
+	
+	/**
+	 * @param archiveTargetProvider the archiveTargetProvider to set
+	 */
+	public void setArchiveTargetProvider(ArchiveTargetProvider archiveTargetProvider) {
+		this.archiveTargetProvider = archiveTargetProvider;
+	}
+	
+	/**
+	 * Work that also needs the connection to the archive tables of the current {@link ArchiveTarget},
+	 * which is the OpenMRS connection itself unless archive tables live in another database.
+	 */
+	private abstract class ArchiveWork implements org.hibernate.jdbc.Work {
+		
+		protected final ArchiveTarget target = archiveTargetProvider.getTarget();
+		
+		@Override
+		public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+			java.sql.Connection archive = target.getConnection(connection);
+			try {
+				execute(connection, archive);
+			}
+			finally {
+				target.releaseConnection(archive);
+			}
+		}
+		
+		/**
+		 * @param connection the OpenMRS connection
+		 * @param archive the archive connection
+		 */
+		protected abstract void execute(java.sql.Connection connection, java.sql.Connection archive)
+		        throws java.sql.SQLException;
+	}
+	
 	@Override
 	public List<TableInfo> getAllTableInfo() {
 		final List<TableInfo> tableInfos = new ArrayList<TableInfo>();
@@ -59,517 +196,1512 @@ public class HibernateVoidDataArchiverDao implements VoidDataArchiverDao {
 			
 			@Override
 			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				java.sql.DatabaseMetaData dbmd = connection.getMetaData();
-				// Retrieve all tables (TABLE type only)
-				java.sql.ResultSet tables = dbmd.getTables(null, null, "%", new String[] { "TABLE" });
+				// Statistics come from the snapshot maintained by the background refresher
+				Map<String, TableInfo> snapshot = readStatisticsSnapshot(connection);
 				
-				while (tables.next()) {
-					String tableName = tables.getString("TABLE_NAME");
+				for (TableMetadata table : schemaCatalog.getTables(connection)) {
+					String tableName = table.getName();
 					
-					log.info("Found table: " + tableName);
-					
-					if (tableName.toLowerCase().startsWith("liquibase")
-					        || tableName.toLowerCase().startsWith("databasechangelog")
-					        || tableName.toLowerCase().startsWith("archive_")) {
-						log.info("Skipping table: " + tableName);
+					if (isInternalTable(tableName)) {
+						log.debug("Skipping table: " + tableName);
 						continue;
 					}
 					
-					// Check if table has "voided" column
-					boolean isVoidable = false;
-					java.sql.ResultSet columns = dbmd.getColumns(null, null, tableName, "voided");
-					if (columns.next()) {
-						isVoidable = true;
-					}
-					columns.close();
+					boolean isVoidable = table.isVoidable();
 					
-					TableInfo info = new TableInfo(tableName, isVoidable);
+					TableInfo info = snapshot.get(tableName);
+					if (info == null || !isVoidable) {
+						info = new TableInfo(tableName, isVoidable);
+					}
+					info.setTableName(tableName);
+					info.setVoidable(isVoidable);
 					info.setPrettyName(prettifyTableName(tableName));
 					
-					if (isVoidable) {
-						java.sql.Statement stmt = null;
-						java.sql.ResultSet rs = null;
-						try {
-							stmt = connection.createStatement();
-							
-							// Count total records (live + voided)
-							String totalCountSql = "SELECT COUNT(*) FROM " + tableName;
-							rs = stmt.executeQuery(totalCountSql);
-							if (rs.next()) {
-								info.setTotalRecords(rs.getLong(1));
-							}
-							rs.close();
-							
-							// Count voided records
-							String countSql = "SELECT COUNT(*) FROM " + tableName + " WHERE voided = 1";
-							rs = stmt.executeQuery(countSql);
-							if (rs.next()) {
-								long count = rs.getLong(1);
-								info.setVoidedRecords(count);
-								
-								if (count > 0) {
-									boolean hasUuid = hasColumn(dbmd, tableName, "uuid");
-									boolean hasVoidedBy = hasColumn(dbmd, tableName, "voided_by");
-									boolean hasDateVoided = hasColumn(dbmd, tableName, "date_voided");
-									boolean hasVoidReason = hasColumn(dbmd, tableName, "void_reason");
-									
-									StringBuilder selectCols = new StringBuilder();
-									if (hasUuid)
-										selectCols.append("t.uuid");
-									else
-										selectCols.append("'' as uuid");
-									selectCols.append(", ");
-									if (hasVoidedBy)
-										selectCols.append("t.voided_by");
-									else
-										selectCols.append("null as voided_by");
-									selectCols.append(", ");
-									if (hasVoidedBy)
-										selectCols.append("u.username");
-									else
-										selectCols.append("null as username");
-									selectCols.append(", ");
-									if (hasDateVoided)
-										selectCols.append("t.date_voided");
-									else
-										selectCols.append("null as date_voided");
-									selectCols.append(", ");
-									if (hasVoidReason)
-										selectCols.append("t.void_reason");
-									else
-										selectCols.append("'' as void_reason");
-									
-									String entriesSql = "select " + selectCols.toString() + " from " + tableName + " t ";
-									if (hasVoidedBy) {
-										entriesSql += "left join users u on t.voided_by = u.user_id ";
-									}
-									entriesSql += "where t.voided = 1";
-									
-									if (hasDateVoided)
-										entriesSql += " order by t.date_voided desc";
-									
-									java.sql.Statement maxStmt = connection.createStatement();
-									maxStmt.setMaxRows(50);
-									java.sql.ResultSet entriesRs = maxStmt.executeQuery(entriesSql);
-									
-									List<Map<String, Object>> voidedEntries = new ArrayList<Map<String, Object>>();
-									while (entriesRs.next()) {
-										Map<String, Object> entry = new HashMap<String, Object>();
-										entry.put("uuid", entriesRs.getString(1));
-										String voidedById = entriesRs.getString(2);
-										String username = entriesRs.getString(3);
-										if (username != null && !username.isEmpty()) {
-											entry.put("voidedBy", username);
-										} else if (voidedById != null) {
-											entry.put("voidedBy", "User #" + voidedById);
-										} else {
-											entry.put("voidedBy", "");
-										}
-										entry.put("dateVoided", entriesRs.getDate(4));
-										entry.put("voidReason", entriesRs.getString(5));
-										voidedEntries.add(entry);
-									}
-									info.setVoidedEntries(voidedEntries);
-									entriesRs.close();
-									maxStmt.close();
-								}
-							}
-						}
-						catch (Exception e) {
-							log.warn("Failed to query voided data for table " + tableName + ": " + e.getMessage());
-							info.setVoidedRecords(0L);
-						}
-						finally {
-							if (rs != null)
-								try {
-									rs.close();
-								}
-								catch (Exception e) {}
-							if (stmt != null)
-								try {
-									stmt.close();
-								}
-								catch (Exception e) {}
-						}
-					} else {
+					// Voided rows themselves are only read on demand, see getVoidedRows
+					if (!isVoidable) {
 						info.setVoidedRecords(0L);
 					}
 					
 					tableInfos.add(info);
 				}
-				tables.close();
-			}
-			
-			private boolean hasColumn(java.sql.DatabaseMetaData dbmd, String tableName, String columnName)
-			        throws java.sql.SQLException {
-				java.sql.ResultSet rs = dbmd.getColumns(null, null, tableName, columnName);
-				boolean exists = rs.next();
-				rs.close();
-				return exists;
 			}
 		});
 		
 		return tableInfos;
 	}
 	
+	/**
+	 * Reads all rows of the statistics snapshot table.
+	 * 
+	 * @return statistics by table name (case insensitive)
+	 */
+	private Map<String, TableInfo> readStatisticsSnapshot(java.sql.Connection connection) throws java.sql.SQLException {
+		Map<String, TableInfo> snapshot = new java.util.TreeMap<String, TableInfo>(String.CASE_INSENSITIVE_ORDER);
+		java.sql.Statement stmt = connection.createStatement();
+		try {
+			java.sql.ResultSet rs = stmt.executeQuery("SELECT table_name, total_records, voided_records, total_estimated, "
+			        + "voided_estimated, last_refreshed, scan_duration_ms FROM " + STATS_TABLE);
+			while (rs.next()) {
+				TableInfo info = new TableInfo(rs.getString(1), true);
+				info.setTotalRecords(rs.getLong(2));
+				info.setVoidedRecords(rs.getLong(3));
+				info.setTotalEstimated(rs.getBoolean(4));
+				info.setVoidedEstimated(rs.getBoolean(5));
+				info.setLastRefreshed(rs.getTimestamp(6));
+				info.setScanDurationMs(rs.getLong(7));
+				snapshot.put(info.getTableName(), info);
+			}
+			rs.close();
+		}
+		finally {
+			stmt.close();
+		}
+		return snapshot;
+	}
+	
 	@Override
-	public void createArchiveTable(final String tableName) {
+	public Map<String, TableInfo> getTableStatistics() {
+		final Map<String, TableInfo> statistics = new java.util.TreeMap<String, TableInfo>(String.CASE_INSENSITIVE_ORDER);
 		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
 			
 			@Override
 			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				String archiveTableName = "archive_" + tableName;
-				java.sql.DatabaseMetaData dbmd = connection.getMetaData();
-				java.sql.ResultSet tables = dbmd.getTables(null, null, archiveTableName, new String[] { "TABLE" });
-				boolean archiveExists = tables.next();
-				tables.close();
-				
-				if (!archiveExists) {
-					log.info("Creating archive table: " + archiveTableName);
-					String dbProduct = dbmd.getDatabaseProductName().toLowerCase();
-					String createSql;
-					if (dbProduct.contains("mysql")) {
-						createSql = "CREATE TABLE " + archiveTableName + " LIKE " + tableName;
-					} else if (dbProduct.contains("postgresql")) {
-						createSql = "CREATE TABLE " + archiveTableName + " (LIKE " + tableName
-						        + " INCLUDING DEFAULTS INCLUDING IDENTITY INCLUDING INDEXES)";
-					} else {
-						createSql = "CREATE TABLE " + archiveTableName + " AS SELECT * FROM " + tableName + " WHERE 1=0";
-					}
-					java.sql.Statement stmt = connection.createStatement();
-					stmt.execute(createSql);
-					stmt.close();
-				} else {
-					List<String> sourceColumns = getColumnNames(dbmd, tableName);
-					List<String> archiveColumns = getColumnNames(dbmd, archiveTableName);
-					sourceColumns.removeAll(archiveColumns);
-					if (!sourceColumns.isEmpty()) {
-						log.info("Syncing schema for " + archiveTableName + ". Adding columns: " + sourceColumns);
-						java.sql.Statement stmt = connection.createStatement();
-						for (String missingCol : sourceColumns) {
-							String colDef = getColumnDefinition(dbmd, tableName, missingCol);
-							if (colDef != null) {
-								try {
-									stmt.execute("ALTER TABLE " + archiveTableName + " ADD COLUMN " + missingCol + " "
-									        + colDef);
-								}
-								catch (Exception e) {
-									log.error("Failed to sync column " + missingCol, e);
-								}
-							}
-						}
-						stmt.close();
-					}
-				}
-			}
-			
-			private List<String> getColumnNames(java.sql.DatabaseMetaData dbmd, String tName) throws java.sql.SQLException {
-				List<String> cols = new ArrayList<String>();
-				java.sql.ResultSet rs = dbmd.getColumns(null, null, tName, "%");
-				while (rs.next()) {
-					cols.add(rs.getString("COLUMN_NAME"));
-				}
-				rs.close();
-				return cols;
+				statistics.putAll(readStatisticsSnapshot(connection));
 			}
+		});
+		return statistics;
+	}
+	
+	@Override
+	public Map<String, Long> getRowEstimates() {
+		final Map<String, Long> estimates = new HashMap<String, Long>();
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
 			
-			private String getColumnDefinition(java.sql.DatabaseMetaData dbmd, String tName, String cName)
-			        throws java.sql.SQLException {
-				java.sql.ResultSet rs = dbmd.getColumns(null, null, tName, cName);
-				if (rs.next()) {
-					String type = rs.getString("TYPE_NAME");
-					int size = rs.getInt("COLUMN_SIZE");
-					return type + "(" + size + ")";
-				}
-				return null;
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				estimates.putAll(statisticsEngine.getRowEstimates(connection));
 			}
 		});
+		return estimates;
 	}
 	
 	@Override
-	public int archiveBatch(final String tableName, final int limit) {
-		final List<Object> idsToMove = new ArrayList<Object>();
-		final String[] pkColumn = new String[1];
-		
+	public TableInfo collectTableStatistics(final String tableName, final StatisticsMode mode,
+	        final Map<String, Long> rowEstimates) {
+		final TableInfo info = new TableInfo(tableName, true);
 		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
 			
 			@Override
 			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				java.sql.DatabaseMetaData dbmd = connection.getMetaData();
-				java.sql.ResultSet pkRs = dbmd.getPrimaryKeys(null, null, tableName);
-				if (pkRs.next()) {
-					pkColumn[0] = pkRs.getString("COLUMN_NAME");
-				} else {
-					pkColumn[0] = "uuid";
-				}
-				pkRs.close();
-				
-				String selectSql = "SELECT " + pkColumn[0] + " FROM " + tableName + " WHERE voided = 1 ORDER BY "
-				        + pkColumn[0] + " DESC LIMIT " + limit;
-				java.sql.Statement stmt = connection.createStatement();
-				java.sql.ResultSet rs = stmt.executeQuery(selectSql);
-				while (rs.next()) {
-					idsToMove.add(rs.getObject(1));
-				}
-				rs.close();
-				stmt.close();
+				long start = System.currentTimeMillis();
+				TableMetadata table = schemaCatalog.getTable(connection, tableName);
+				statisticsEngine.collect(connection, tableName, table != null ? TableKey.forTable(table) : null, info, mode,
+				    rowEstimates);
+				info.setScanDurationMs(System.currentTimeMillis() - start);
+				info.setLastRefreshed(new java.util.Date());
 			}
 		});
-		
-		if (idsToMove.isEmpty()) {
-			return 0;
-		}
-		
+		return info;
+	}
+	
+	@Override
+	public void saveTableStatistics(final TableInfo info) {
 		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
 			
 			@Override
 			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				boolean oldAutoCommit = connection.getAutoCommit();
-				java.sql.Statement stmt = null;
+				java.sql.PreparedStatement update = connection.prepareStatement("UPDATE " + STATS_TABLE
+				        + " SET total_records = ?, voided_records = ?, total_estimated = ?, voided_estimated = ?, "
+				        + "last_refreshed = ?, scan_duration_ms = ? WHERE table_name = ?");
+				int updated;
 				try {
-					connection.setAutoCommit(false);
-					stmt = connection.createStatement();
-					
-					// CRITICAL: Disable FK checks so that cross-table references
-					// (e.g. orders -> encounter, obs -> encounter) don't block deletion.
-					// This is the standard approach for MySQL data migration/archival.
-					stmt.execute("SET FOREIGN_KEY_CHECKS = 0");
-					
-					String archiveTableName = "archive_" + tableName;
-					StringBuilder idListBuilder = new StringBuilder();
-					for (Object id : idsToMove) {
-						if (idListBuilder.length() > 0)
-							idListBuilder.append(",");
-						if (id instanceof String) {
-							idListBuilder.append("'").append(id).append("'");
-						} else {
-							idListBuilder.append(id);
-						}
-					}
-					String idList = idListBuilder.toString();
-					
-					// 1. Copy data to archive (INSERT IGNORE to skip any duplicates from prior
-					// failed attempts)
-					String insertSql = "INSERT IGNORE INTO " + archiveTableName + " SELECT * FROM " + tableName + " WHERE "
-					        + pkColumn[0] + " IN (" + idList + ")";
-					int inserted = stmt.executeUpdate(insertSql);
-					log.info("Copied " + inserted + " rows from " + tableName + " to " + archiveTableName);
-					
-					// 2. Delete data from source
-					String deleteSql = "DELETE FROM " + tableName + " WHERE " + pkColumn[0] + " IN (" + idList + ")";
-					int deleted = stmt.executeUpdate(deleteSql);
-					log.info("Deleted " + deleted + " rows from " + tableName);
-					
-					// 3. Re-enable FK checks BEFORE commit
-					stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
-					
-					connection.commit();
+					bindStatistics(update, info);
+					update.setString(7, info.getTableName());
+					updated = update.executeUpdate();
+				}
+				finally {
+					update.close();
 				}
-				catch (Exception e) {
-					log.error("Failed to archive batch for " + tableName + ". Rolling back.", e);
+				if (updated == 0) {
+					java.sql.PreparedStatement insert = connection.prepareStatement("INSERT INTO " + STATS_TABLE
+					        + " (total_records, voided_records, total_estimated, voided_estimated, last_refreshed, "
+					        + "scan_duration_ms, table_name) VALUES (?, ?, ?, ?, ?, ?, ?)");
 					try {
-						if (stmt != null) {
-							stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
-						}
+						bindStatistics(insert, info);
+						insert.setString(7, info.getTableName());
+						insert.executeUpdate();
 					}
-					catch (Exception ignored) {}
-					connection.rollback();
-					throw new java.sql.SQLException("Failed to archive batch " + tableName, e);
-				}
-				finally {
-					if (stmt != null) {
-						try {
-							stmt.close();
-						}
-						catch (Exception ignored) {}
+					finally {
+						insert.close();
 					}
-					connection.setAutoCommit(oldAutoCommit);
 				}
 			}
+			
+			private void bindStatistics(java.sql.PreparedStatement ps, TableInfo info) throws java.sql.SQLException {
+				ps.setLong(1, info.getTotalRecords() != null ? info.getTotalRecords() : 0L);
+				ps.setLong(2, info.getVoidedRecords() != null ? info.getVoidedRecords() : 0L);
+				ps.setBoolean(3, info.isTotalEstimated());
+				ps.setBoolean(4, info.isVoidedEstimated());
+				ps.setTimestamp(5, new java.sql.Timestamp(info.getLastRefreshed() != null ? info.getLastRefreshed()
+				        .getTime() : System.currentTimeMillis()));
+				ps.setLong(6, info.getScanDurationMs() != null ? info.getScanDurationMs() : 0L);
+			}
 		});
-		
-		return idsToMove.size();
 	}
 	
 	@Override
-	public Map<String, List<String>> getTableDependencies() {
-		final Map<String, List<String>> dependencies = new HashMap<String, List<String>>();
-		
+	public void adjustTableStatistics(final String tableName, final long rowsDelta) {
 		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
 			
 			@Override
 			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				java.sql.DatabaseMetaData dbmd = connection.getMetaData();
-				// Get all tables first
-				java.sql.ResultSet tables = dbmd.getTables(null, null, "%", new String[] { "TABLE" });
-				List<String> tableNames = new ArrayList<String>();
-				while (tables.next()) {
-					String t = tables.getString("TABLE_NAME");
-					if (!t.toLowerCase().startsWith("liquibase") && !t.toLowerCase().startsWith("databasechangelog")
-					        && !t.toLowerCase().startsWith("archive_")) {
-						tableNames.add(t);
-					}
-				}
-				tables.close();
+				java.sql.PreparedStatement ps = connection.prepareStatement("UPDATE " + STATS_TABLE
+				        + " SET total_records = total_records + ?, voided_records = voided_records + ? WHERE table_name = ?");
+				try {
+					ps.setLong(1, rowsDelta);
+					ps.setLong(2, rowsDelta);
+					ps.setString(3, tableName);
+					ps.executeUpdate();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void createArchiveTable(final String tableName) {
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				String archiveTableName = target.getArchiveTableName(tableName);
+				TableMetadata sourceTable = schemaCatalog.getTable(connection, tableName);
+				TableMetadata archiveTable = target.getArchiveTable(archive, tableName);
 				
-				for (String childTable : tableNames) {
-					java.sql.ResultSet importedKeys = null;
-					try {
-						importedKeys = dbmd.getImportedKeys(null, null, childTable);
-					}
-					catch (Exception e) {
-						// Ignore errors for specific tables if any
-						continue;
+				if (archiveTable == null) {
+					if (sourceTable == null) {
+						throw new java.sql.SQLException("Table " + tableName + " does not exist");
 					}
-					
-					List<String> parents = new ArrayList<String>();
-					while (importedKeys.next()) {
-						String parentTable = importedKeys.getString("PKTABLE_NAME");
-						// Avoid self-references or duplicates
-						if (parentTable != null && !parentTable.equalsIgnoreCase(childTable)
-						        && !parents.contains(parentTable)) {
-							parents.add(parentTable);
+					log.info("Creating archive table " + archiveTableName + " in " + target.getDescription());
+					target.createArchiveTable(connection, archive, sourceTable);
+					// Indexes are built after the bulk load, see ensureArchiveIndexes
+					archiveIndexManager.dropSecondaryIndexes(archive, target, tableName);
+					target.invalidate();
+				} else if (sourceTable != null) {
+					List<String> missingColumns = new ArrayList<String>();
+					for (String column : sourceTable.getColumnNames()) {
+						if (!archiveTable.hasColumn(column)) {
+							missingColumns.add(column);
 						}
 					}
-					importedKeys.close();
-					if (!parents.isEmpty()) {
-						dependencies.put(childTable, parents);
+					if (!missingColumns.isEmpty()) {
+						log.info("Syncing schema for " + archiveTableName + ". Adding columns: " + missingColumns);
+						java.sql.Statement stmt = archive.createStatement();
+						for (String missingCol : missingColumns) {
+							ColumnMetadata column = sourceTable.getColumn(missingCol);
+							try {
+								stmt.execute("ALTER TABLE " + archiveTableName + " ADD COLUMN " + missingCol + " "
+								        + column.getDefinition());
+							}
+							catch (Exception e) {
+								log.error("Failed to sync column " + missingCol, e);
+							}
+						}
+						stmt.close();
+						target.invalidate();
 					}
 				}
 			}
 		});
-		return dependencies;
 	}
 	
-	private String prettifyTableName(String tableName) {
-		if (tableName == null || tableName.isEmpty()) {
-			return tableName;
-		}
-		
-		String[] parts = tableName.split("_");
-		StringBuilder pretty = new StringBuilder();
-		for (String part : parts) {
-			if (part.length() > 0) {
-				pretty.append(Character.toUpperCase(part.charAt(0)));
-				if (part.length() > 1) {
-					pretty.append(part.substring(1).toLowerCase());
+	@Override
+	public void ensureArchiveIndexes(final String tableName) {
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				TableMetadata archiveTable = target.getArchiveTable(archive, tableName);
+				if (archiveTable == null) {
+					return;
 				}
-				pretty.append(" ");
+				archiveIndexManager.ensureIndexes(archive, target, tableName, archiveTable,
+				    getTableKey(connection, tableName));
+			}
+		});
+	}
+	
+	@Override
+	public int archiveBatch(final String tableName, final int limit, final BatchCursor cursor,
+	        final Date voidedBefore) {
+		while (true) {
+			List<Object[]> idsToMove = selectVoidedKeys(tableName, limit, cursor, voidedBefore);
+			if (idsToMove.isEmpty()) {
+				return 0;
+			}
+			// Rows unvoided since they were selected stay behind and are not counted as moved
+			int moved = moveToArchive(tableName, idsToMove, false);
+			if (moved > 0) {
+				return moved;
 			}
 		}
-		return pretty.toString().trim();
 	}
 	
 	@Override
-	public List<TableInfo> getArchivedTables() {
-		final List<TableInfo> archivedTables = new ArrayList<TableInfo>();
-		
+	public List<Object[]> selectVoidedKeys(final String tableName, final int limit, final BatchCursor cursor,
+	        final Date voidedBefore) {
+		final List<Object[]> keys = new ArrayList<Object[]>();
 		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
 			
 			@Override
 			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				java.sql.DatabaseMetaData dbmd = connection.getMetaData();
-				java.sql.ResultSet tables = dbmd.getTables(null, null, "archive_%", new String[] { "TABLE" });
-				
-				// First pass: collect all archive table info
-				List<String> allArchiveNames = new ArrayList<String>();
-				while (tables.next()) {
-					allArchiveNames.add(tables.getString("TABLE_NAME"));
+				TableKey key = getTableKey(connection, tableName);
+				if (voidedBefore != null) {
+					requireColumn(schemaCatalog.getTable(connection, tableName), "date_voided");
 				}
-				tables.close();
-				
-				// Second pass: count rows and skip empties
 				
-				for (String archiveTableName : allArchiveNames) {
-					String sourceTableName = archiveTableName.substring("archive_".length());
-					
-					java.sql.Statement stmt = connection.createStatement();
-					java.sql.ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + archiveTableName);
-					long rowCount = 0;
-					if (rs.next()) {
-						rowCount = rs.getLong(1);
-					}
-					rs.close();
-					stmt.close();
-					
-					// Skip empty archive tables
-					if (rowCount == 0) {
-						continue;
-					}
-					
-					TableInfo info = new TableInfo(sourceTableName, true);
-					info.setPrettyName(prettifyTableName(sourceTableName) + " (Archived)");
-					info.setTotalRecords(rowCount);
-					archivedTables.add(info);
+				// Seek past the previous batch instead of rescanning from the top of the table
+				String selectSql = "SELECT " + key.getColumnList() + " FROM " + tableName + " WHERE "
+				        + ArchiverDialect.forConnection(connection).getVoidedPredicate()
+				        + (cursor.getLastKey() != null ? " AND " + key.getBeforePredicate() : "")
+				        + (voidedBefore != null ? " AND date_voided < ?" : "") + " ORDER BY "
+				        + key.getDescendingOrder() + " LIMIT " + limit;
+				java.sql.PreparedStatement stmt = connection.prepareStatement(selectSql);
+				int index = 1;
+				if (cursor.getLastKey() != null) {
+					index = key.bindBefore(stmt, index, cursor.getLastKey());
+				}
+				if (voidedBefore != null) {
+					stmt.setTimestamp(index, new java.sql.Timestamp(voidedBefore.getTime()));
+				}
+				java.sql.ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					keys.add(key.readKey(rs));
 				}
+				rs.close();
+				stmt.close();
 			}
 		});
-		return archivedTables;
+		
+		if (!keys.isEmpty()) {
+			cursor.setLastKey(keys.get(keys.size() - 1));
+		}
+		return keys;
 	}
 	
 	@Override
-	public void restoreTable(final String tableName) {
-		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+	public boolean isArchiveConnectionShared() {
+		return archiveTargetProvider.getTarget().isSharedConnection();
+	}
+	
+	@Override
+	public List<Object[]> copyToArchive(final String tableName, final List<Object[]> keys) {
+		final List<Object[]> copied = new ArrayList<Object[]>();
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
 			
 			@Override
-			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				String archiveTableName = "archive_" + tableName;
-				
-				// 0. Get PK column
-				String pkColumn = "uuid";
-				java.sql.DatabaseMetaData dbmd = connection.getMetaData();
-				java.sql.ResultSet pkRs = dbmd.getPrimaryKeys(null, null, tableName);
-				if (pkRs.next()) {
-					pkColumn = pkRs.getString("COLUMN_NAME");
-				}
-				pkRs.close();
-				
-				// 1. Restore data (ignoring duplicates if they already exist in source)
-				// Using standard SQL: INSERT INTO target SELECT * FROM source WHERE pk NOT IN
-				// (SELECT pk FROM target)
-				String restoreSql = "INSERT INTO " + tableName + " SELECT * FROM " + archiveTableName + " WHERE " + pkColumn
-				        + " NOT IN (SELECT " + pkColumn + " FROM " + tableName + ")";
-				
-				java.sql.Statement stmt = connection.createStatement();
-				try {
-					// Disable FK checks for the same reason as archiveBatch
-					stmt.execute("SET FOREIGN_KEY_CHECKS = 0");
-					
-					log.info("Restoring table " + tableName + " from " + archiveTableName);
-					int rows = stmt.executeUpdate(restoreSql);
-					log.info("Restored " + rows + " rows. (Skipped duplicates)");
-					
-					// 2. Drop archive table after successful restore
-					String dropSql = "DROP TABLE " + archiveTableName;
-					stmt.execute(dropSql);
-					
-					stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
-				}
-				finally {
-					try {
-						stmt.execute("SET FOREIGN_KEY_CHECKS = 1");
-					}
-					catch (Exception ignored) {}
-					stmt.close();
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				if (target.isSharedConnection()) {
+					throw new java.sql.SQLException("Rows of " + tableName + " are copied as they are moved");
 				}
+				copied.addAll(copyRows(connection, tableName, archive, target.getArchiveTableName(tableName),
+				    getTableKey(connection, tableName), keys, true));
 			}
 		});
+		return copied;
 	}
 	
 	@Override
-	public void dropArchiveTable(final String tableName) {
-		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+	public int moveToArchive(final String tableName, final List<Object[]> keys, final boolean copied) {
+		final int[] moved = new int[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
 			
 			@Override
-			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
-				if (!tableName.toLowerCase().startsWith("archive_")) {
-					log.warn("Attempted to drop non-archive table: " + tableName + ". Operation blocked.");
-					return;
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				moved[0] = moveToArchive(connection, archive, target, tableName, getTableKey(connection, tableName),
+				    keys, copied);
+			}
+		});
+		return moved[0];
+	}
+	
+	/**
+	 * Copies the voided rows with the given keys to the archive table, then deletes them from the
+	 * source. Rows that are no longer voided are left alone.
+	 * 
+	 * @param copied true if the rows are already in an archive table in another database
+	 * @return the number of rows deleted from the source
+	 */
+	private int moveToArchive(java.sql.Connection connection, java.sql.Connection archive, ArchiveTarget target,
+	        String tableName, TableKey key, List<Object[]> keys, boolean copied) throws java.sql.SQLException {
+		ArchiverDialect dialect = ArchiverDialect.forConnection(connection);
+		try {
+			// CRITICAL: Disable FK checks so that cross-table references
+			// (e.g. orders -> encounter, obs -> encounter) don't block deletion,
+			// where the database allows it
+			dialect.setForeignKeyChecks(connection, false);
+			
+			String archiveTableName = target.getArchiveTableName(tableName);
+			String condition = key.getMatchPredicate(KEY_CHUNK_SIZE) + " AND " + dialect.getVoidedPredicate();
+			String moveSql = target.isSharedConnection() ? dialect.getMoveStatement(tableName, archiveTableName,
+			    condition, key) : null;
+			if (moveSql != null) {
+				int moved = executeMove(connection, moveSql, key, keys);
+				log.debug("Moved " + moved + " rows from " + tableName + " to " + archiveTableName);
+				return moved;
+			}
+			
+			// 1. Copy data to archive (skipping any duplicates from prior failed attempts)
+			// 2. Delete data from source
+			// Both statements have the same shape for every batch, so the driver and the server
+			// parse them once and reuse the plan
+			List<Object[]> archived = keys;
+			if (target.isSharedConnection()) {
+				java.sql.PreparedStatement insert = connection.prepareStatement(dialect.getInsertIgnore(
+				    archiveTableName, "SELECT * FROM " + tableName + " WHERE " + condition, key));
+				try {
+					for (int from = 0; from < keys.size(); from += KEY_CHUNK_SIZE) {
+						key.bindKeys(insert, 1, keys.subList(from, Math.min(from + KEY_CHUNK_SIZE, keys.size())),
+						    KEY_CHUNK_SIZE);
+						insert.addBatch();
+					}
+					int inserted = sum(insert.executeBatch());
+					log.debug("Copied " + inserted + " rows from " + tableName + " to " + archiveTableName);
 				}
+				finally {
+					insert.close();
+				}
+			} else if (!copied) {
+				// The copies are committed to the archive database before the rows are deleted here
+				archived = copyRows(connection, tableName, archive, archiveTableName, key, keys, true);
+				log.debug("Copied " + archived.size() + " rows from " + tableName + " to " + archiveTableName + " in "
+				        + target.getDescription());
+			}
+			
+			java.sql.PreparedStatement delete = connection.prepareStatement("DELETE FROM " + tableName + " WHERE "
+			        + condition);
+			try {
+				for (int from = 0; from < archived.size(); from += KEY_CHUNK_SIZE) {
+					key.bindKeys(delete, 1, archived.subList(from, Math.min(from + KEY_CHUNK_SIZE, archived.size())),
+					    KEY_CHUNK_SIZE);
+					delete.addBatch();
+				}
+				int deleted = archived.isEmpty() ? 0 : sum(delete.executeBatch());
+				log.debug("Deleted " + deleted + " rows from " + tableName);
+				return deleted;
+			}
+			finally {
+				delete.close();
+			}
+		}
+		catch (java.sql.SQLException e) {
+			// The caller's transaction is rolled back by the exception
+			throw new java.sql.SQLException("Failed to archive batch " + tableName, e);
+		}
+		finally {
+			// Foreign key checks are a connection setting and the connection goes back to the pool
+			try {
+				dialect.setForeignKeyChecks(connection, true);
+			}
+			catch (Exception ignored) {}
+		}
+	}
+	
+	/**
+	 * Runs a statement of {@link ArchiverDialect#getMoveStatement(String, String, String, TableKey)} for every
+	 * chunk of keys, one round trip per chunk.
+	 * 
+	 * @return the number of rows moved
+	 */
+	private int executeMove(java.sql.Connection connection, String moveSql, TableKey key, List<Object[]> keys)
+	        throws java.sql.SQLException {
+		java.sql.PreparedStatement move = connection.prepareStatement(moveSql);
+		try {
+			int moved = 0;
+			for (int from = 0; from < keys.size(); from += KEY_CHUNK_SIZE) {
+				key.bindKeys(move, 1, keys.subList(from, Math.min(from + KEY_CHUNK_SIZE, keys.size())), KEY_CHUNK_SIZE);
+				java.sql.ResultSet rs = move.executeQuery();
+				if (rs.next()) {
+					moved += rs.getInt(1);
+				}
+				rs.close();
+			}
+			return moved;
+		}
+		finally {
+			move.close();
+		}
+	}
+	
+	/**
+	 * Streams the rows with the given keys from a table on one connection to the table of the same
+	 * name on another connection, where the columns of the source table must exist, in one batch of
+	 * inserts per chunk of keys. Used when archive tables are in another database.
+	 * 
+	 * @param from the connection to read from
+	 * @param fromTable the table to read from
+	 * @param to the connection to write to
+	 * @param toTable the table to write to
+	 * @param key the key of both tables
+	 * @param keys the keys of the rows to copy
+	 * @param archiving true to copy voided rows to an archive table, skipping rows already archived;
+	 *            false to copy rows back to their source table, failing on rows already there
+	 * @return the keys of the copied rows
+	 */
+	private List<Object[]> copyRows(java.sql.Connection from, String fromTable, java.sql.Connection to,
+	        String toTable, TableKey key, List<Object[]> keys, boolean archiving) throws java.sql.SQLException {
+		TableMetadata source = schemaCatalog.getTable(archiving ? from : to, archiving ? fromTable : toTable);
+		List<String> columns = source.getColumnNames();
+		StringBuilder columnList = new StringBuilder();
+		StringBuilder params = new StringBuilder();
+		for (String column : columns) {
+			columnList.append(columnList.length() > 0 ? ", " : "").append(column);
+			params.append(params.length() > 0 ? ", ?" : "?");
+		}
+		
+		List<Object[]> copied = new ArrayList<Object[]>();
+		java.sql.PreparedStatement select = from.prepareStatement("SELECT " + key.getColumnList() + ", " + columnList
+		        + " FROM " + fromTable + " WHERE " + key.getMatchPredicate(KEY_CHUNK_SIZE)
+		        + (archiving ? " AND " + ArchiverDialect.forConnection(from).getVoidedPredicate() : ""));
+		java.sql.PreparedStatement insert = to.prepareStatement(archiving ? ArchiverDialect.forConnection(to)
+		        .getInsertIgnoreRow(toTable, columns, key) : "INSERT INTO " + toTable + " (" + columnList + ") VALUES ("
+		        + params + ")");
+		try {
+			for (int chunk = 0; chunk < keys.size(); chunk += KEY_CHUNK_SIZE) {
+				key.bindKeys(select, 1, keys.subList(chunk, Math.min(chunk + KEY_CHUNK_SIZE, keys.size())),
+				    KEY_CHUNK_SIZE);
+				java.sql.ResultSet rs = select.executeQuery();
+				int rows = 0;
+				while (rs.next()) {
+					copied.add(key.readKey(rs));
+					for (int i = 0; i < columns.size(); i++) {
+						insert.setObject(i + 1, rs.getObject(key.size() + i + 1));
+					}
+					insert.addBatch();
+					rows++;
+				}
+				rs.close();
+				if (rows > 0) {
+					insert.executeBatch();
+				}
+			}
+		}
+		finally {
+			select.close();
+			insert.close();
+		}
+		return copied;
+	}
+	
+	/**
+	 * Deletes the rows with the given keys from a table.
+	 * 
+	 * @return the number of rows deleted
+	 */
+	private int deleteKeys(java.sql.Connection connection, String tableName, TableKey key, List<Object[]> keys)
+	        throws java.sql.SQLException {
+		if (keys.isEmpty()) {
+			return 0;
+		}
+		java.sql.PreparedStatement delete = connection.prepareStatement("DELETE FROM " + tableName + " WHERE "
+		        + key.getMatchPredicate(KEY_CHUNK_SIZE));
+		try {
+			for (int from = 0; from < keys.size(); from += KEY_CHUNK_SIZE) {
+				List<Object[]> chunk = keys.subList(from, Math.min(from + KEY_CHUNK_SIZE, keys.size()));
+				key.bindKeys(delete, 1, chunk, KEY_CHUNK_SIZE);
+				delete.addBatch();
+			}
+			return sum(delete.executeBatch());
+		}
+		finally {
+			delete.close();
+		}
+	}
+	
+	@Override
+	public void queueVoidedRows(final Map<String, List<Serializable>> idsByTable) {
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				java.sql.PreparedStatement ps = connection.prepareStatement("INSERT INTO " + VOID_QUEUE_TABLE
+				        + " (table_name, row_key, date_queued) VALUES (?, ?, ?)");
+				try {
+					java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+					for (Map.Entry<String, List<Serializable>> entry : idsByTable.entrySet()) {
+						TableMetadata table = schemaCatalog.getTable(connection, entry.getKey());
+						TableKey key = table != null ? TableKey.forTable(table) : null;
+						if (key == null || key.size() != 1) {
+							continue;
+						}
+						for (Serializable id : entry.getValue()) {
+							ps.setString(1, table.getName());
+							ps.setString(2, key.format(new Object[] { id }));
+							ps.setTimestamp(3, now);
+							ps.addBatch();
+						}
+					}
+					ps.executeBatch();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void addVoidedCounts(final Map<String, Long> deltas) {
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				java.sql.PreparedStatement ps = connection.prepareStatement("UPDATE " + STATS_TABLE
+				        + " SET voided_records = voided_records + ? WHERE table_name = ?");
+				try {
+					for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+						ps.setLong(1, delta.getValue());
+						ps.setString(2, delta.getKey());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+	}
+	
+	@Override
+	public int archiveQueuedBatch(final String tableName, final int limit, final Date voidedBefore) {
+		final int[] consumed = new int[1];
+		final int[] moved = new int[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				TableKey key = getTableKey(connection, tableName);
+				
+				// Rows are queued as they are voided, so the queue date stands in for date_voided
+				java.sql.PreparedStatement select = connection.prepareStatement("SELECT queue_id, row_key FROM "
+				        + VOID_QUEUE_TABLE + " WHERE table_name = ?" + (voidedBefore != null ? " AND date_queued < ?" : "")
+				        + " ORDER BY queue_id LIMIT " + limit);
+				List<Long> queueIds = new ArrayList<Long>();
+				List<Object[]> keys = new ArrayList<Object[]>();
+				try {
+					select.setString(1, tableName);
+					if (voidedBefore != null) {
+						select.setTimestamp(2, new java.sql.Timestamp(voidedBefore.getTime()));
+					}
+					java.sql.ResultSet rs = select.executeQuery();
+					while (rs.next()) {
+						queueIds.add(rs.getLong(1));
+						Object[] rowKey = key.size() == 1 ? key.parse(rs.getString(2)) : null;
+						if (rowKey != null) {
+							keys.add(rowKey);
+						}
+					}
+					rs.close();
+				}
+				finally {
+					select.close();
+				}
+				if (queueIds.isEmpty()) {
+					return;
+				}
+				
+				// Unvoided rows stay, and were counted out by VoidCounters when they were unvoided
+				int rowsMoved = keys.isEmpty() ? 0 : moveToArchive(connection, archive, target, tableName, key,
+				    keys, false);
+				
+				java.sql.PreparedStatement delete = connection.prepareStatement("DELETE FROM " + VOID_QUEUE_TABLE
+				        + " WHERE queue_id = ?");
+				try {
+					for (Long queueId : queueIds) {
+						delete.setLong(1, queueId);
+						delete.addBatch();
+					}
+					delete.executeBatch();
+				}
+				finally {
+					delete.close();
+				}
+				log.debug("Consumed " + queueIds.size() + " queued voids of " + tableName + ", archived " + rowsMoved
+				        + " rows");
+				consumed[0] = queueIds.size();
+				moved[0] = rowsMoved;
+			}
+		});
+		if (moved[0] > 0) {
+			adjustTableStatistics(tableName, -moved[0]);
+		}
+		return consumed[0];
+	}
+	
+	@Override
+	public long countQueuedVoids(final String tableName) {
+		final long[] count = new long[1];
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				java.sql.PreparedStatement ps = connection.prepareStatement("SELECT COUNT(*) FROM " + VOID_QUEUE_TABLE
+				        + " WHERE table_name = ?");
+				try {
+					ps.setString(1, tableName);
+					java.sql.ResultSet rs = ps.executeQuery();
+					if (rs.next()) {
+						count[0] = rs.getLong(1);
+					}
+					rs.close();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+		return count[0];
+	}
+	
+	@Override
+	public int purgeArchiveBatch(final String tableName, final int limit, final Date voidedBefore) {
+		final int[] deleted = new int[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				String archiveTableName = target.getArchiveTableName(tableName);
+				TableMetadata archiveTable = target.getArchiveTable(archive, tableName);
+				if (archiveTable == null) {
+					return;
+				}
+				requireColumn(archiveTable, "date_voided");
+				// A range scan of the date_voided index ArchiveIndexManager creates on every archive table
+				java.sql.PreparedStatement ps = archive.prepareStatement(ArchiverDialect.forConnection(archive)
+				        .getDeleteLimit(archiveTableName, "date_voided < ?", limit));
+				try {
+					ps.setTimestamp(1, new java.sql.Timestamp(voidedBefore.getTime()));
+					deleted[0] = ps.executeUpdate();
+				}
+				finally {
+					ps.close();
+				}
+				log.debug("Purged " + deleted[0] + " rows from " + archiveTableName);
+			}
+		});
+		return deleted[0];
+	}
+	
+	@Override
+	public Long getReplicaLagSeconds(final String query) {
+		final Long[] lag = new Long[1];
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				java.sql.Statement stmt = connection.createStatement();
+				try {
+					java.sql.ResultSet rs = stmt.executeQuery(query);
+					if (rs.next()) {
+						long value = rs.getLong(1);
+						lag[0] = rs.wasNull() ? null : value;
+					}
+					rs.close();
+				}
+				finally {
+					stmt.close();
+				}
+			}
+		});
+		return lag[0];
+	}
+	
+	@Override
+	public BatchCursor getCheckpoint(final String tableName) {
+		final BatchCursor[] cursor = new BatchCursor[1];
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				java.sql.PreparedStatement ps = connection.prepareStatement("SELECT last_key, rows_moved FROM "
+				        + CHECKPOINT_TABLE + " WHERE table_name = ?");
+				try {
+					ps.setString(1, tableName);
+					java.sql.ResultSet rs = ps.executeQuery();
+					if (rs.next()) {
+						Object[] lastKey = getTableKey(connection, keyTableName(tableName)).parse(rs.getString(1));
+						if (lastKey != null) {
+							cursor[0] = new BatchCursor();
+							cursor[0].setLastKey(lastKey);
+							cursor[0].setRowsMoved(rs.getLong(2));
+						} else {
+							// The key of the table changed since the checkpoint was taken
+							log.warn("Ignoring unusable archival checkpoint of " + tableName);
+						}
+					}
+					rs.close();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+		return cursor[0];
+	}
+	
+	@Override
+	public void saveCheckpoint(final String tableName, final BatchCursor cursor) {
+		if (cursor.getLastKey() == null) {
+			return;
+		}
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				String lastKey = getTableKey(connection, keyTableName(tableName)).format(cursor.getLastKey());
+				java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+				java.sql.PreparedStatement update = connection.prepareStatement("UPDATE " + CHECKPOINT_TABLE
+				        + " SET last_key = ?, rows_moved = ?, updated = ? WHERE table_name = ?");
+				int updated;
+				try {
+					update.setString(1, lastKey);
+					update.setLong(2, cursor.getRowsMoved());
+					update.setTimestamp(3, now);
+					update.setString(4, tableName);
+					updated = update.executeUpdate();
+				}
+				finally {
+					update.close();
+				}
+				if (updated == 0) {
+					java.sql.PreparedStatement insert = connection.prepareStatement("INSERT INTO " + CHECKPOINT_TABLE
+					        + " (last_key, rows_moved, updated, table_name) VALUES (?, ?, ?, ?)");
+					try {
+						insert.setString(1, lastKey);
+						insert.setLong(2, cursor.getRowsMoved());
+						insert.setTimestamp(3, now);
+						insert.setString(4, tableName);
+						insert.executeUpdate();
+					}
+					finally {
+						insert.close();
+					}
+				}
+			}
+		});
+	}
+	
+	@Override
+	public void deleteCheckpoint(final String tableName) {
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				java.sql.PreparedStatement ps = connection.prepareStatement("DELETE FROM " + CHECKPOINT_TABLE
+				        + " WHERE table_name = ?");
+				try {
+					ps.setString(1, tableName);
+					ps.executeUpdate();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Translates restore criteria into conditions on an archive table.
+	 * 
+	 * @param table the archive table
+	 * @param criteria the criteria, may be null to select every row
+	 * @param conditions receives one SQL condition per criterion
+	 * @param params receives the parameters of the conditions, in order
+	 * @throws java.sql.SQLException if a criterion refers to a column the table does not have
+	 */
+	void addCriteria(TableMetadata table, RestoreCriteria criteria, List<String> conditions, List<Object> params)
+	        throws java.sql.SQLException {
+		if (criteria == null || criteria.isEmpty()) {
+			return;
+		}
+		if (!criteria.getUuids().isEmpty()) {
+			requireColumn(table, "uuid");
+			StringBuilder in = new StringBuilder();
+			for (String uuid : criteria.getUuids()) {
+				in.append(in.length() == 0 ? "?" : ", ?");
+				params.add(uuid);
+			}
+			conditions.add("uuid IN (" + in + ")");
+		}
+		if (criteria.getVoidedFrom() != null) {
+			requireColumn(table, "date_voided");
+			conditions.add("date_voided >= ?");
+			params.add(new java.sql.Timestamp(criteria.getVoidedFrom().getTime()));
+		}
+		if (criteria.getVoidedTo() != null) {
+			requireColumn(table, "date_voided");
+			conditions.add("date_voided < ?");
+			params.add(new java.sql.Timestamp(criteria.getVoidedTo().getTime()));
+		}
+		if (criteria.getVoidedBy() != null) {
+			requireColumn(table, "voided_by");
+			conditions.add("voided_by = ?");
+			params.add(criteria.getVoidedBy());
+		}
+		if (criteria.getVoidReasonPattern() != null && !criteria.getVoidReasonPattern().isEmpty()) {
+			requireColumn(table, "void_reason");
+			conditions.add("void_reason LIKE ?");
+			params.add(criteria.getVoidReasonPattern());
+		}
+		if (criteria.getPersonId() != null) {
+			List<String> personColumns = new ArrayList<String>();
+			for (String column : new String[] { "person_id", "patient_id" }) {
+				if (table.hasColumn(column)) {
+					personColumns.add(column + " = ?");
+					params.add(criteria.getPersonId());
+				}
+			}
+			if (personColumns.isEmpty()) {
+				throw new java.sql.SQLException("Table " + table.getName() + " is not linked to a person");
+			}
+			conditions.add(personColumns.size() == 1 ? personColumns.get(0) : "(" + personColumns.get(0) + " OR "
+			        + personColumns.get(1) + ")");
+		}
+	}
+	
+	private void requireColumn(TableMetadata table, String column) throws java.sql.SQLException {
+		if (!table.hasColumn(column)) {
+			throw new java.sql.SQLException("Table " + table.getName() + " has no " + column + " column");
+		}
+	}
+	
+	private String where(List<String> conditions) {
+		StringBuilder sb = new StringBuilder();
+		for (String condition : conditions) {
+			sb.append(sb.length() == 0 ? " WHERE " : " AND ").append(condition);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @return the index of the next parameter
+	 */
+	private int bind(java.sql.PreparedStatement ps, List<Object> params) throws java.sql.SQLException {
+		int index = 1;
+		for (Object param : params) {
+			ps.setObject(index++, param);
+		}
+		return index;
+	}
+	
+	/**
+	 * @return the total of a batch update's counts, ignoring those the driver could not report
+	 */
+	private int sum(int[] updateCounts) {
+		int total = 0;
+		for (int count : updateCounts) {
+			if (count > 0) {
+				total += count;
+			}
+		}
+		return total;
+	}
+	
+	@Override
+	public Map<String, List<String>> getTableDependencies() {
+		final Map<String, List<String>> dependencies = new HashMap<String, List<String>>();
+		
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
+				for (TableMetadata table : schemaCatalog.getTables(connection)) {
+					if (isInternalTable(table.getName())) {
+						continue;
+					}
+					List<String> parents = table.getParentTables();
+					if (!parents.isEmpty()) {
+						dependencies.put(table.getName(), new ArrayList<String>(parents));
+					}
+				}
+			}
+		});
+		return dependencies;
+	}
+	
+	/**
+	 * @return the primary key of the table, or its uuid column if it has no primary key
+	 * @throws java.sql.SQLException if the table does not exist or has neither
+	 */
+	private TableKey getTableKey(java.sql.Connection connection, String tableName) throws java.sql.SQLException {
+		TableMetadata table = schemaCatalog.getTable(connection, tableName);
+		if (table == null) {
+			throw new java.sql.SQLException("Table " + tableName + " does not exist");
+		}
+		TableKey key = TableKey.forTable(table);
+		if (key == null) {
+			throw new java.sql.SQLException("Table " + tableName + " has neither a primary key nor a uuid column");
+		}
+		return key;
+	}
+	
+	/**
+	 * @return the table whose key identifies the rows of the given table: the source table for an
+	 *         archive table, the table itself otherwise
+	 */
+	private String keyTableName(String tableName) {
+		return tableName.toLowerCase().startsWith("archive_") ? tableName.substring("archive_".length()) : tableName;
+	}
+	
+	/**
+	 * @return true for liquibase bookkeeping tables, archive tables and the module's own tables, which
+	 *         are never archived
+	 */
+	private boolean isInternalTable(String tableName) {
+		String lowerName = tableName.toLowerCase();
+		return lowerName.startsWith("liquibase") || lowerName.startsWith("databasechangelog")
+		        || lowerName.startsWith("archive_") || lowerName.startsWith("voiddataarchiver_");
+	}
+	
+	private String prettifyTableName(String tableName) {
+		if (tableName == null || tableName.isEmpty()) {
+			return tableName;
+		}
+		
+		String[] parts = tableName.split("_");
+		StringBuilder pretty = new StringBuilder();
+		for (String part : parts) {
+			if (part.length() > 0) {
+				pretty.append(Character.toUpperCase(part.charAt(0)));
+				if (part.length() > 1) {
+					pretty.append(part.substring(1).toLowerCase());
+				}
+				pretty.append(" ");
+			}
+		}
+		return pretty.toString().trim();
+	}
+	
+	@Override
+	public List<TableInfo> getArchivedTables() {
+		final List<TableInfo> archivedTables = new ArrayList<TableInfo>();
+		
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				// Count rows and skip empties
+				for (String sourceTableName : target.getArchivedTableNames(archive)) {
+					String archiveTableName = target.getArchiveTableName(sourceTableName);
+					
+					java.sql.Statement stmt = archive.createStatement();
+					java.sql.ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + archiveTableName);
+					long rowCount = 0;
+					if (rs.next()) {
+						rowCount = rs.getLong(1);
+					}
+					rs.close();
+					stmt.close();
+					
+					// Skip empty archive tables
+					if (rowCount == 0) {
+						continue;
+					}
+					
+					TableInfo info = new TableInfo(sourceTableName, true);
+					info.setPrettyName(prettifyTableName(sourceTableName) + " (Archived)");
+					info.setTotalRecords(rowCount);
+					archivedTables.add(info);
+				}
+			}
+		});
+		return archivedTables;
+	}
+	
+	@Override
+	public int restoreBatch(final String tableName, final RestoreCriteria criteria, final int limit,
+	        final BatchCursor cursor) {
+		while (true) {
+			List<Object[]> keysToRestore = selectArchivedKeys(tableName, criteria, limit, cursor);
+			if (keysToRestore.isEmpty()) {
+				return 0;
+			}
+			// Rows that cannot go back stay archived and are not counted as restored
+			int restored = restoreRows(tableName, keysToRestore);
+			if (restored > 0) {
+				return restored;
+			}
+		}
+	}
+	
+	/**
+	 * Selects the keys of the next batch of archived rows to restore and advances the cursor past
+	 * them.
+	 * 
+	 * @return the keys of the rows, in descending order
+	 */
+	private List<Object[]> selectArchivedKeys(final String tableName, final RestoreCriteria criteria, final int limit,
+	        final BatchCursor cursor) {
+		final List<Object[]> keysToRestore = new ArrayList<Object[]>();
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				// The archive table has the columns of its source, so the source key identifies its rows
+				TableKey key = getTableKey(connection, tableName);
+				TableMetadata archiveTable = target.getArchiveTable(archive, tableName);
+				if (archiveTable == null) {
+					return;
+				}
+				
+				List<String> conditions = new ArrayList<String>();
+				List<Object> params = new ArrayList<Object>();
+				addCriteria(archiveTable, criteria, conditions, params);
+				if (cursor.getLastKey() != null) {
+					conditions.add(key.getBeforePredicate());
+				}
+				String selectSql = "SELECT " + key.getColumnList() + " FROM " + target.getArchiveTableName(tableName)
+				        + where(conditions) + " ORDER BY " + key.getDescendingOrder() + " LIMIT " + limit;
+				java.sql.PreparedStatement stmt = archive.prepareStatement(selectSql);
+				int index = bind(stmt, params);
+				if (cursor.getLastKey() != null) {
+					key.bindBefore(stmt, index, cursor.getLastKey());
+				}
+				java.sql.ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					keysToRestore.add(key.readKey(rs));
+				}
+				rs.close();
+				stmt.close();
+			}
+		});
+		
+		if (!keysToRestore.isEmpty()) {
+			cursor.setLastKey(keysToRestore.get(keysToRestore.size() - 1));
+		}
+		return keysToRestore;
+	}
+	
+	/**
+	 * Moves the archived rows with the given keys back to the source table.
+	 * 
+	 * @return the number of rows moved back
+	 */
+	private int restoreRows(final String tableName, final List<Object[]> keysToRestore) {
+		final int[] restored = new int[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				TableKey key = getTableKey(connection, tableName);
+				String archiveTableName = target.getArchiveTableName(tableName);
+				ArchiverDialect dialect = ArchiverDialect.forConnection(connection);
+				try {
+					// Disable FK checks for the same reason as archiveBatch
+					dialect.setForeignKeyChecks(connection, false);
+					
+					if (target.isSharedConnection()) {
+						restored[0] = restoreInPlace(connection, dialect, tableName, archiveTableName, key, keysToRestore);
+					} else {
+						restored[0] = restoreAcross(connection, archive, target, tableName, key, keysToRestore);
+					}
+				}
+				catch (java.sql.SQLException e) {
+					throw new java.sql.SQLException("Failed to restore batch " + tableName, e);
+				}
+				finally {
+					try {
+						dialect.setForeignKeyChecks(connection, true);
+					}
+					catch (Exception ignored) {}
+				}
+			}
+		});
+		return restored[0];
+	}
+	
+	/**
+	 * Restores rows from an archive table reachable through the OpenMRS connection.
+	 * 
+	 * @return the number of rows moved back
+	 */
+	private int restoreInPlace(java.sql.Connection connection, ArchiverDialect dialect, String tableName,
+	        String archiveTableName, TableKey key, List<Object[]> keys) throws java.sql.SQLException {
+		String match = key.getMatchPredicate(KEY_CHUNK_SIZE);
+		
+		// Rows already back in the source still leave the archive, rows that cannot go back stay
+		String moveSql = dialect.getMoveStatement(archiveTableName, tableName, match, key);
+		if (moveSql != null) {
+			int moved = executeMove(connection, moveSql, key, keys);
+			log.debug("Moved " + moved + " rows from " + archiveTableName + " to " + tableName);
+			return moved;
+		}
+		
+		// 1. Copy back the rows that are not in the source yet
+		// 2. Remove from the archive only the rows whose key is now in the source, so nothing
+		// is lost if a row could not be copied back
+		java.sql.PreparedStatement insert = connection.prepareStatement("INSERT INTO " + tableName + " SELECT a.* FROM "
+		        + archiveTableName + " a WHERE " + match + " AND NOT EXISTS (SELECT 1 FROM " + tableName + " s WHERE "
+		        + key.getJoinCondition("s", "a") + ")");
+		java.sql.PreparedStatement delete = connection.prepareStatement("DELETE FROM " + archiveTableName + " WHERE "
+		        + match + " AND EXISTS (SELECT 1 FROM " + tableName + " s WHERE "
+		        + key.getJoinCondition("s", archiveTableName) + ")");
+		try {
+			for (int from = 0; from < keys.size(); from += KEY_CHUNK_SIZE) {
+				List<Object[]> chunk = keys.subList(from, Math.min(from + KEY_CHUNK_SIZE, keys.size()));
+				key.bindKeys(insert, 1, chunk, KEY_CHUNK_SIZE);
+				insert.addBatch();
+				key.bindKeys(delete, 1, chunk, KEY_CHUNK_SIZE);
+				delete.addBatch();
+			}
+			int restored = sum(insert.executeBatch());
+			log.debug("Restored " + restored + " rows from " + archiveTableName + " to " + tableName);
+			int removed = sum(delete.executeBatch());
+			log.debug("Removed " + removed + " restored rows from " + archiveTableName);
+			return restored;
+		}
+		finally {
+			insert.close();
+			delete.close();
+		}
+	}
+	
+	/**
+	 * Restores rows from an archive table in another database. The rows are removed from the archive
+	 * only once the transaction that copied them back has committed, so a rollback leaves them archived
+	 * and a failed removal leaves rows the next restore removes without copying them again.
+	 * 
+	 * @return the number of rows copied back
+	 */
+	private int restoreAcross(java.sql.Connection connection, java.sql.Connection archive, final ArchiveTarget target,
+	        String tableName, final TableKey key, List<Object[]> keys) throws java.sql.SQLException {
+		final String archiveTableName = target.getArchiveTableName(tableName);
+		
+		// Rows already back in the source only need to leave the archive
+		final List<Object[]> restoredKeys = new ArrayList<Object[]>();
+		Set<String> present = new HashSet<String>();
+		java.sql.PreparedStatement select = connection.prepareStatement("SELECT " + key.getColumnList() + " FROM "
+		        + tableName + " WHERE " + key.getMatchPredicate(KEY_CHUNK_SIZE));
+		try {
+			for (int from = 0; from < keys.size(); from += KEY_CHUNK_SIZE) {
+				key.bindKeys(select, 1, keys.subList(from, Math.min(from + KEY_CHUNK_SIZE, keys.size())),
+				    KEY_CHUNK_SIZE);
+				java.sql.ResultSet rs = select.executeQuery();
+				while (rs.next()) {
+					Object[] presentKey = key.readKey(rs);
+					present.add(key.format(presentKey));
+					restoredKeys.add(presentKey);
+				}
+				rs.close();
+			}
+		}
+		finally {
+			select.close();
+		}
+		List<Object[]> missing = new ArrayList<Object[]>();
+		for (Object[] rowKey : keys) {
+			if (!present.contains(key.format(rowKey))) {
+				missing.add(rowKey);
+			}
+		}
+		
+		List<Object[]> copied = missing.isEmpty() ? missing : copyRows(archive, archiveTableName, connection, tableName,
+		    key, missing, false);
+		log.debug("Restored " + copied.size() + " rows from " + archiveTableName + " to " + tableName);
+		restoredKeys.addAll(copied);
+		
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			log.debug("Removed " + deleteKeys(archive, archiveTableName, key, restoredKeys) + " restored rows from "
+			        + archiveTableName);
+			return copied.size();
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			@Override
+			public void afterCommit() {
+				try {
+					java.sql.Connection afterCommit = target.getConnection(null);
+					try {
+						log.debug("Removed " + deleteKeys(afterCommit, archiveTableName, key, restoredKeys)
+						        + " restored rows from " + archiveTableName);
+					}
+					finally {
+						target.releaseConnection(afterCommit);
+					}
+				}
+				catch (java.sql.SQLException e) {
+					log.warn("Failed to remove restored rows from " + archiveTableName
+					        + ", they are removed by the next restore", e);
+				}
+			}
+		});
+		return copied.size();
+	}
+	
+	@Override
+	public long countArchivedRows(final String tableName, final RestoreCriteria criteria) {
+		final long[] count = new long[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				TableMetadata archiveTable = target.getArchiveTable(archive, tableName);
+				if (archiveTable == null) {
+					return;
+				}
+				List<String> conditions = new ArrayList<String>();
+				List<Object> params = new ArrayList<Object>();
+				addCriteria(archiveTable, criteria, conditions, params);
+				java.sql.PreparedStatement ps = archive.prepareStatement("SELECT COUNT(*) FROM "
+				        + target.getArchiveTableName(tableName) + where(conditions));
+				try {
+					bind(ps, params);
+					java.sql.ResultSet rs = ps.executeQuery();
+					if (rs.next()) {
+						count[0] = rs.getLong(1);
+					}
+					rs.close();
+				}
+				finally {
+					ps.close();
+				}
+			}
+		});
+		return count[0];
+	}
+	
+	@Override
+	public long countRows(final String tableName) {
+		final long[] count = new long[1];
+		sessionFactory.getCurrentSession().doWork(new org.hibernate.jdbc.Work() {
+			
+			@Override
+			public void execute(java.sql.Connection connection) throws java.sql.SQLException {
 				java.sql.Statement stmt = connection.createStatement();
-				stmt.execute("DROP TABLE " + tableName);
+				try {
+					java.sql.ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + tableName);
+					if (rs.next()) {
+						count[0] = rs.getLong(1);
+					}
+					rs.close();
+				}
+				finally {
+					stmt.close();
+				}
+			}
+		});
+		return count[0];
+	}
+	
+	@Override
+	public VoidedRowPage getVoidedRows(final String tableName, final boolean archived, final String afterKey,
+	        final int pageSize) {
+		final List<VoidedEntry> rows = new ArrayList<VoidedEntry>();
+		final Map<Integer, UserName> users = new HashMap<Integer, UserName>();
+		final String[] nextKey = new String[1];
+		
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				// Resolve the name through the catalog, as it ends up in the SQL
+				TableMetadata source = schemaCatalog.getTable(connection, tableName);
+				if (source == null || !source.isVoidable() || isInternalTable(source.getName())) {
+					throw new java.sql.SQLException(tableName + " is not a voidable table");
+				}
+				TableMetadata table = archived ? target.getArchiveTable(archive, source.getName()) : source;
+				if (table == null) {
+					throw new java.sql.SQLException("Table " + source.getName() + " has no archive table");
+				}
+				TableKey key = getTableKey(connection, source.getName());
+				
+				List<String> conditions = new ArrayList<String>();
+				if (!archived) {
+					conditions.add(ArchiverDialect.forConnection(connection).getVoidedPredicate());
+				}
+				Object[] after = null;
+				if (afterKey != null && afterKey.length() > 0) {
+					after = key.parse(afterKey);
+					if (after == null) {
+						throw new java.sql.SQLException("Invalid key for " + tableName + ": " + afterKey);
+					}
+					conditions.add(key.getBeforePredicate());
+				}
+				// One row more than asked tells whether there is a next page
+				String sql = "SELECT " + key.getColumnList() + ", " + columnOrNull(table, "uuid") + ", "
+				        + columnOrNull(table, "voided_by") + ", " + columnOrNull(table, "date_voided") + ", "
+				        + columnOrNull(table, "void_reason") + " FROM "
+				        + (archived ? target.getArchiveTableName(source.getName()) : source.getName()) + where(conditions)
+				        + " ORDER BY " + key.getDescendingOrder() + " LIMIT " + (pageSize + 1);
+				
+				Set<Integer> voidedByIds = new HashSet<Integer>();
+				java.sql.PreparedStatement ps = (archived ? archive : connection).prepareStatement(sql);
+				try {
+					if (after != null) {
+						key.bindBefore(ps, 1, after);
+					}
+					java.sql.ResultSet rs = ps.executeQuery();
+					int offset = key.size();
+					Object[] lastKey = null;
+					while (rs.next()) {
+						if (rows.size() == pageSize) {
+							nextKey[0] = key.format(lastKey);
+							break;
+						}
+						lastKey = key.readKey(rs);
+						int voidedBy = rs.getInt(offset + 2);
+						if (voidedBy != 0) {
+							voidedByIds.add(voidedBy);
+						}
+						java.sql.Timestamp dateVoided = rs.getTimestamp(offset + 3);
+						long voidedAt = dateVoided != null ? dateVoided.getTime() : VoidedEntry.NO_DATE;
+						rows.add(new VoidedEntry(rs.getString(offset + 1), voidedBy, voidedAt, rs.getString(offset + 4)));
+					}
+					rs.close();
+				}
+				finally {
+					ps.close();
+				}
+				
+				users.putAll(userNameCache.getUsers(connection, voidedByIds));
+			}
+		});
+		
+		return new VoidedRowPage(tableName, archived, rows, users, nextKey[0]);
+	}
+	
+	/**
+	 * @return the column for a select list, or NULL if the table does not have it
+	 */
+	private String columnOrNull(TableMetadata table, String column) {
+		return table.hasColumn(column) ? column : "NULL";
+	}
+	
+	@Override
+	public ArchiveExporter.Export startArchiveExport(final String tableName, final File directory) {
+		final ArchiveExporter.Export[] export = new ArchiveExporter.Export[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				String archiveTableName = target.getArchiveTableName(tableName);
+				TableMetadata archiveTable = target.getArchiveTable(archive, tableName);
+				if (archiveTable == null) {
+					throw new java.sql.SQLException("Table " + archiveTableName + " does not exist");
+				}
+				export[0] = archiveExporter.start(tableName, archiveTableName, archiveTable, getTableKey(connection,
+				    tableName), directory);
+			}
+		});
+		return export[0];
+	}
+	
+	@Override
+	public List<Object[]> exportArchiveChunk(final ArchiveExporter.Export export) {
+		final List<Object[]> keys = new ArrayList<Object[]>();
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				try {
+					keys.addAll(archiveExporter.exportChunk(archive, export));
+				}
+				catch (IOException e) {
+					throw new java.sql.SQLException("Failed to export to " + export.getManifestFile(), e);
+				}
+			}
+		});
+		return keys;
+	}
+	
+	@Override
+	public int deleteArchivedRows(final String tableName, final List<Object[]> keys) {
+		final int[] deleted = new int[1];
+		if (keys.isEmpty()) {
+			return 0;
+		}
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				String archiveTableName = target.getArchiveTableName(tableName);
+				deleted[0] = deleteKeys(archive, archiveTableName, getTableKey(connection, tableName), keys);
+				log.debug("Deleted " + deleted[0] + " exported rows from " + archiveTableName);
+			}
+		});
+		return deleted[0];
+	}
+	
+	@Override
+	public long importArchiveChunk(final ExportManifest manifest, final File directory, final int chunk) {
+		final long[] inserted = new long[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				try {
+					inserted[0] = archiveImporter.importChunk(archive,
+					    target.getArchiveTableName(manifest.getTableName()), getTableKey(connection,
+					        manifest.getTableName()), manifest, directory, chunk);
+				}
+				catch (IOException e) {
+					throw new java.sql.SQLException("Failed to import " + manifest.getChunkFile(chunk), e);
+				}
+			}
+		});
+		return inserted[0];
+	}
+	
+	@Override
+	public long importArchiveRows(final ExportManifest manifest, final List<List<String>> rows) {
+		final long[] inserted = new long[1];
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				inserted[0] = archiveImporter.importRows(archive, target.getArchiveTableName(manifest.getTableName()),
+				    getTableKey(connection, manifest.getTableName()), manifest, rows);
+			}
+		});
+		return inserted[0];
+	}
+	
+	@Override
+	public void dropArchiveTable(final String tableName) {
+		sessionFactory.getCurrentSession().doWork(new ArchiveWork() {
+			
+			@Override
+			protected void execute(java.sql.Connection connection, java.sql.Connection archive)
+			        throws java.sql.SQLException {
+				if (!tableName.toLowerCase().startsWith(ArchiveTarget.PREFIX)) {
+					log.warn("Attempted to drop non-archive table: " + tableName + ". Operation blocked.");
+					return;
+				}
+				String archiveTableName = target.getArchiveTableName(tableName.substring(ArchiveTarget.PREFIX.length()));
+				java.sql.Statement stmt = archive.createStatement();
+				stmt.execute("DROP TABLE " + archiveTableName);
 				stmt.close();
-				log.info("Dropped table: " + tableName);
+				target.invalidate();
+				log.info("Dropped table: " + archiveTableName);
 			}
 		});
 	}
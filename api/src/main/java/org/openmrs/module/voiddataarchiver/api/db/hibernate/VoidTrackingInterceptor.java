@@ -0,0 +1,189 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db.hibernate;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.type.Type;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Voidable;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig;
+import org.openmrs.module.voiddataarchiver.api.dao.VoidDataArchiverDao;
+import org.openmrs.module.voiddataarchiver.api.db.VoidCounters;
+import org.springframework.stereotype.Component;
+
+/**
+ * Follows the voided flag of entities saved through the API. OpenMRS chains every Hibernate
+ * interceptor bean into its session factory.
+ * <p>
+ * Every void and unvoid that commits is counted in {@link VoidCounters}, which keeps the voided
+ * counts of the statistics snapshot current without scanning. When enabled with the
+ * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_TRACKING_ENABLED} global
+ * property, voided rows are also recorded in the void queue for archival. They are written to the
+ * queue just before the transaction commits, on the same connection, so the queue only ever holds
+ * voids that were committed. Rows inserted already voided, rows voided with plain SQL and entities
+ * with a composite id are neither counted nor queued; they are still found by the full scan that
+ * rebuilds the statistics once a day, which archival follows with a scan of the table.
+ */
+@Component("voiddataarchiver.VoidTrackingInterceptor")
+public class VoidTrackingInterceptor extends EmptyInterceptor implements GlobalPropertyListener {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final Log log = LogFactory.getLog(VoidTrackingInterceptor.class);
+	
+	private volatile boolean enabled;
+	
+	/**
+	 * The ids of the rows voided in the current transaction, by entity class
+	 */
+	private final transient ThreadLocal<Map<Class<?>, List<Serializable>>> voidedRows =
+	        new ThreadLocal<Map<Class<?>, List<Serializable>>>();
+	
+	/**
+	 * The change in voided rows of the current transaction, by entity class
+	 */
+	private final transient ThreadLocal<Map<Class<?>, long[]>> voidCounts = new ThreadLocal<Map<Class<?>, long[]>>();
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	        String[] propertyNames, Type[] types) {
+		if (!(entity instanceof Voidable) || previousState == null || !(id instanceof Number || id instanceof String)) {
+			return false;
+		}
+		for (int i = 0; i < propertyNames.length; i++) {
+			if ("voided".equals(propertyNames[i])) {
+				boolean wasVoided = Boolean.TRUE.equals(previousState[i]);
+				boolean isVoided = Boolean.TRUE.equals(currentState[i]);
+				if (wasVoided != isVoided) {
+					Class<?> entityClass = Hibernate.getClass(entity);
+					count(entityClass, isVoided ? 1 : -1);
+					if (isVoided && enabled) {
+						queue(entityClass, id);
+					}
+				}
+				break;
+			}
+		}
+		return false;
+	}
+	
+	private void count(Class<?> entityClass, long delta) {
+		Map<Class<?>, long[]> counts = voidCounts.get();
+		if (counts == null) {
+			counts = new HashMap<Class<?>, long[]>();
+			voidCounts.set(counts);
+		}
+		if (!counts.containsKey(entityClass)) {
+			counts.put(entityClass, new long[1]);
+		}
+		counts.get(entityClass)[0] += delta;
+	}
+	
+	private void queue(Class<?> entityClass, Serializable id) {
+		Map<Class<?>, List<Serializable>> rows = voidedRows.get();
+		if (rows == null) {
+			rows = new HashMap<Class<?>, List<Serializable>>();
+			voidedRows.set(rows);
+		}
+		if (!rows.containsKey(entityClass)) {
+			rows.put(entityClass, new ArrayList<Serializable>());
+		}
+		rows.get(entityClass).add(id);
+	}
+	
+	@Override
+	public void beforeTransactionCompletion(Transaction tx) {
+		Map<Class<?>, List<Serializable>> rows = voidedRows.get();
+		if (rows == null || rows.isEmpty()) {
+			return;
+		}
+		voidedRows.remove();
+		Map<String, List<Serializable>> idsByTable = new HashMap<String, List<Serializable>>();
+		for (Map.Entry<Class<?>, List<Serializable>> entry : rows.entrySet()) {
+			String tableName = getTableName(entry.getKey());
+			if (tableName != null) {
+				idsByTable.put(tableName, entry.getValue());
+			}
+		}
+		Context.getRegisteredComponent("voiddataarchiver.VoidDataArchiverDao", VoidDataArchiverDao.class)
+		        .queueVoidedRows(idsByTable);
+	}
+	
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		// Drops the rows of a transaction that was rolled back
+		voidedRows.remove();
+		Map<Class<?>, long[]> counts = voidCounts.get();
+		voidCounts.remove();
+		if (counts == null || tx == null || tx.getStatus() != TransactionStatus.COMMITTED) {
+			return;
+		}
+		VoidCounters counters = Context.getRegisteredComponent("voiddataarchiver.VoidCounters", VoidCounters.class);
+		for (Map.Entry<Class<?>, long[]> entry : counts.entrySet()) {
+			String tableName = getTableName(entry.getKey());
+			if (tableName != null && entry.getValue()[0] != 0) {
+				counters.add(tableName, entry.getValue()[0]);
+			}
+		}
+	}
+	
+	/**
+	 * @return the table an entity class is mapped to, or null if unknown
+	 */
+	private String getTableName(Class<?> entityClass) {
+		SessionFactory sessionFactory = Context.getRegisteredComponent("sessionFactory", SessionFactory.class);
+		ClassMetadata metadata = sessionFactory.getClassMetadata(entityClass);
+		if (!(metadata instanceof AbstractEntityPersister)) {
+			log.debug("Not tracking voided " + entityClass.getName() + ", its table is unknown");
+			return null;
+		}
+		return ((AbstractEntityPersister) metadata).getTableName();
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return VoidDataArchiverConfig.GP_TRACKING_ENABLED.equals(propertyName);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setEnabled(Boolean.parseBoolean(newValue.getPropertyValue()));
+		log.info("Void tracking " + (enabled ? "enabled" : "disabled"));
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		setEnabled(false);
+	}
+}
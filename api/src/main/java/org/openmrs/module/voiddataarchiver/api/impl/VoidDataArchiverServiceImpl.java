@@ -9,7 +9,14 @@
  */
 package org.openmrs.module.voiddataarchiver.api.impl;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -22,19 +29,77 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.APIException;
 import org.openmrs.api.UserService;
+import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig;
+import org.openmrs.module.voiddataarchiver.api.RestoreCriteria;
+import org.openmrs.module.voiddataarchiver.api.RetentionPolicy;
+import org.openmrs.module.voiddataarchiver.api.StatisticsMode;
 import org.openmrs.module.voiddataarchiver.api.TableInfo;
 import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.module.voiddataarchiver.api.VoidedEntry;
+import org.openmrs.module.voiddataarchiver.api.VoidedRowPage;
 import org.openmrs.module.voiddataarchiver.api.dao.VoidDataArchiverDao;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveExporter;
+import org.openmrs.module.voiddataarchiver.api.db.ArchiveFileReader;
+import org.openmrs.module.voiddataarchiver.api.db.BatchCursor;
+import org.openmrs.module.voiddataarchiver.api.db.ExportManifest;
+import org.openmrs.module.voiddataarchiver.api.db.VoidCounters;
+import org.openmrs.module.voiddataarchiver.api.job.AdaptiveBatchSizer;
+import org.openmrs.module.voiddataarchiver.api.job.ArchivalJob;
+import org.openmrs.module.voiddataarchiver.api.job.ArchivalJobEngine;
+import org.openmrs.module.voiddataarchiver.api.job.ArchivalPipeline;
+import org.openmrs.module.voiddataarchiver.api.job.JobStatus;
+import org.openmrs.module.voiddataarchiver.api.job.JobType;
+import org.openmrs.module.voiddataarchiver.api.job.TableProgress;
+import org.openmrs.util.OpenmrsUtil;
 
 public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements VoidDataArchiverService {
 	
 	protected final Log log = LogFactory.getLog(this.getClass());
 	
+	/**
+	 * Statistics younger than this are never refreshed, whatever the table size.
+	 */
+	private static final long MIN_STATISTICS_AGE_MS = 10 * 60 * 1000L;
+	
+	/**
+	 * Statistics are considered stale after this many times the duration of their last scan, so a
+	 * table that takes a minute to count is refreshed at most every 100 minutes.
+	 */
+	private static final long STATISTICS_COST_FACTOR = 100;
+	
+	/**
+	 * While voided rows are tracked, statistics are still rebuilt by a full scan at least this often,
+	 * so that the row counts do not drift and rows voided outside the API are found and archived.
+	 */
+	private static final long TRACKED_STATISTICS_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+	
+	/**
+	 * Size of the first batch of a table, before the batch sizer has measured anything.
+	 */
+	private static final int INITIAL_BATCH_SIZE = 1000;
+	
+	/**
+	 * How many times in a row a batch is retried after a lock wait timeout or deadlock.
+	 */
+	private static final int MAX_LOCK_RETRIES = 5;
+	
+	private static final long REPLICA_LAG_POLL_MS = 1000;
+	
+	/**
+	 * Batches that may wait between two stages of a pipelined archival, see {@link ArchivalPipeline}.
+	 */
+	private static final int PIPELINE_CAPACITY = 2;
+	
 	VoidDataArchiverDao dao;
 	
 	UserService userService;
 	
+	ArchivalJobEngine jobEngine;
+	
+	VoidCounters voidCounters;
+	
 	/**
 	 * Injected in moduleApplicationContext.xml
 	 */
@@ -49,15 +114,157 @@ public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements V
 		this.userService = userService;
 	}
 	
+	/**
+	 * Injected in moduleApplicationContext.xml
+	 */
+	public void setJobEngine(ArchivalJobEngine jobEngine) {
+		this.jobEngine = jobEngine;
+	}
+	
+	/**
+	 * Injected in moduleApplicationContext.xml
+	 */
+	public void setVoidCounters(VoidCounters voidCounters) {
+		this.voidCounters = voidCounters;
+	}
+	
 	@Override
 	public List<TableInfo> getAllTableInfo() throws APIException {
-		return dao.getAllTableInfo();
+		List<TableInfo> infos = dao.getAllTableInfo();
+		for (TableInfo info : infos) {
+			addPendingVoids(info);
+		}
+		return infos;
+	}
+	
+	/**
+	 * Adds the voids and unvoids counted since the last flush to the snapshot counts of a table.
+	 */
+	private void addPendingVoids(TableInfo info) {
+		if (info.getVoidedRecords() == null) {
+			return;
+		}
+		long pending = voidCounters.getPending(info.getTableName());
+		if (pending != 0) {
+			info.setVoidedRecords(Math.max(0, info.getVoidedRecords() + pending));
+		}
+	}
+	
+	@Override
+	public List<String> getTablesDueForStatisticsRefresh() {
+		long now = System.currentTimeMillis();
+		boolean tracking = isVoidTrackingEnabled();
+		List<String> due = new ArrayList<String>();
+		for (TableInfo info : dao.getAllTableInfo()) {
+			if (!info.isVoidable()) {
+				continue;
+			}
+			if (info.getLastRefreshed() == null) {
+				due.add(info.getTableName());
+				continue;
+			}
+			// Tables that are expensive to scan are refreshed proportionally less often, and tracked
+			// tables, whose voided counts are kept current by the tracker, much less often
+			long scanDuration = info.getScanDurationMs() != null ? info.getScanDurationMs() : 0L;
+			long maxAge = Math.max(MIN_STATISTICS_AGE_MS, scanDuration * STATISTICS_COST_FACTOR);
+			if (tracking) {
+				maxAge = Math.max(maxAge, TRACKED_STATISTICS_MAX_AGE_MS);
+			}
+			if (now - info.getLastRefreshed().getTime() >= maxAge) {
+				due.add(info.getTableName());
+			}
+		}
+		return due;
+	}
+	
+	@Override
+	public TableInfo refreshTableStatistics(String tableName) {
+		StatisticsMode mode = getStatisticsMode();
+		Map<String, Long> rowEstimates = mode == StatisticsMode.ESTIMATED ? dao.getRowEstimates() : null;
+		// Voids counted during the scan may be counted twice until the next refresh, never lost
+		voidCounters.reset(tableName);
+		TableInfo info = dao.collectTableStatistics(tableName, mode, rowEstimates);
+		dao.saveTableStatistics(info);
+		return info;
+	}
+	
+	/**
+	 * @return the statistics mode configured in the global property, EXACT if unset or invalid
+	 */
+	private StatisticsMode getStatisticsMode() {
+		String mode = Context.getAdministrationService().getGlobalProperty(VoidDataArchiverConfig.GP_STATISTICS_MODE);
+		if (mode != null && !mode.trim().isEmpty()) {
+			try {
+				return StatisticsMode.valueOf(mode.trim().toUpperCase());
+			}
+			catch (IllegalArgumentException e) {
+				log.warn("Invalid value for " + VoidDataArchiverConfig.GP_STATISTICS_MODE + ": " + mode);
+			}
+		}
+		return StatisticsMode.EXACT;
 	}
 	
 	@Override
 	public void runArchival(String tableName) {
+		ArchivalJob job = new ArchivalJob(0, JobType.ARCHIVE, tableName);
+		runArchival(tableName, job);
+		if (!job.getFailedTables().isEmpty()) {
+			throw new APIException("Archival failed for tables " + job.getFailedTables());
+		}
+	}
+	
+	@Override
+	public ArchivalJob submitArchival(final String tableName) {
+		return jobEngine.submit(JobType.ARCHIVE, tableName, new ArchivalJobEngine.JobTask() {
+			
+			@Override
+			public void run(ArchivalJob job) {
+				Context.getService(VoidDataArchiverService.class).runArchival(tableName, job);
+			}
+		});
+	}
+	
+	@Override
+	public ArchivalJob getJob(Long jobId) {
+		return jobEngine.getJob(jobId);
+	}
+	
+	@Override
+	public List<ArchivalJob> getJobs() {
+		return jobEngine.getJobs();
+	}
+	
+	@Override
+	public void pauseJob(Long jobId) {
+		getExistingJob(jobId).pause();
+	}
+	
+	@Override
+	public void resumeJob(Long jobId) {
+		getExistingJob(jobId).resume();
+	}
+	
+	@Override
+	public void cancelJob(Long jobId) {
+		getExistingJob(jobId).cancel();
+	}
+	
+	private ArchivalJob getExistingJob(Long jobId) {
+		ArchivalJob job = jobEngine.getJob(jobId);
+		if (job == null) {
+			throw new APIException("No archival job with id " + jobId);
+		}
+		return job;
+	}
+	
+	@Override
+	public void runArchival(String tableName, ArchivalJob job) {
+		// This method runs without a transaction, so all database access goes through the service proxy
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		service.flushVoidCounters();
+		
 		// 1. Get Dependencies (Child -> [Parents])
-		Map<String, List<String>> dependencies = dao.getTableDependencies();
+		Map<String, List<String>> dependencies = service.getTableDependencies();
 		
 		// 2. Identify Target Tables
 		Set<String> tablesToProcess = new HashSet<String>();
@@ -101,7 +308,7 @@ public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements V
 			}
 		} else {
 			// Global Archive: All voided tables
-			List<TableInfo> allInfos = dao.getAllTableInfo();
+			List<TableInfo> allInfos = service.getAllTableInfo();
 			for (TableInfo info : allInfos) {
 				if (info.isVoidable() && !info.getTableName().toLowerCase().startsWith("archive_")) {
 					tablesToProcess.add(info.getTableName());
@@ -110,56 +317,550 @@ public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements V
 		}
 		
 		// 3. Topological Sort (Archive Children First)
-		// We sort the subgraph defined by tablesToProcess based on dependencies.
-		List<String> sortedTables = topologicalSort(dependencies, tablesToProcess);
+		// We sort the subgraph defined by tablesToProcess into levels; tables within a level do not
+		// depend on each other and every level only depends on the levels after it.
+		List<List<String>> levels = topologicalSort(dependencies, tablesToProcess);
 		
-		log.info("Archiving order: " + sortedTables);
+		log.info("Archiving order: " + levels);
+		
+		Map<String, TableInfo> statistics = service.getTableStatistics();
+		for (List<String> level : levels) {
+			for (String tName : level) {
+				TableInfo stats = statistics.get(tName);
+				job.addTable(tName, stats != null && stats.getVoidedRecords() != null ? stats.getVoidedRecords() : 0L);
+			}
+		}
 		
-		// 4. Execute Archival
-		for (String tName : sortedTables) {
-			if (tName.toLowerCase().startsWith("archive_")) {
+		// 4. Execute Archival, one level at a time with the tables of a level in parallel
+		final ArchivalJob runningJob = job;
+		int workers = getArchivalWorkers();
+		Set<String> failed = new HashSet<String>();
+		for (List<String> level : levels) {
+			// Moves run without FK checks, so a table must stay while rows referencing it failed to move
+			List<String> runnable = new ArrayList<String>();
+			for (String tName : level) {
+				String failedChild = getFailedChild(dependencies, failed, tName);
+				if (failedChild != null) {
+					log.warn("Skipping archival of " + tName + " because archival of " + failedChild + " failed");
+					job.getTableProgress(tName).finish(JobStatus.FAILED);
+					failed.add(tName);
+				} else {
+					runnable.add(tName);
+				}
+			}
+			if (runnable.isEmpty()) {
 				continue;
 			}
 			try {
-				// Only process if it is voidable (some dependencies might not be voidable, e.g.
-				// system tables,
-				// though unlikely to be picked up unless recursive check adds them)
-				// Actually, if a non-voidable table is a child of a voidable parent, we must
-				// check.
-				// But we can only archive voidable tables.
-				// If a non-voidable child blocks a voidable parent, archival fails for the
-				// parent.
-				// We proceed with best effort.
-				
-				// Ensure archive table exists
-				dao.createArchiveTable(tName);
+				jobEngine.runInParallel(runnable, workers, new ArchivalJobEngine.TableTask() {
+					
+					@Override
+					public void run(String tName) {
+						Context.getService(VoidDataArchiverService.class).archiveTable(tName, runningJob);
+					}
+				});
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new APIException("Interrupted while archiving " + runnable, e);
+			}
+			for (String tName : runnable) {
+				if (job.getTableProgress(tName).getStatus() == JobStatus.FAILED) {
+					failed.add(tName);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void archiveTable(final String tName, ArchivalJob job) {
+		TableProgress progress = job.getTableProgress(tName);
+		if (tName.toLowerCase().startsWith("archive_")) {
+			progress.finish(JobStatus.COMPLETED);
+			return;
+		}
+		if (!job.awaitRunnable()) {
+			progress.finish(JobStatus.CANCELLED);
+			return;
+		}
+		progress.start();
+		try {
+			// Only process if it is voidable (some dependencies might not be voidable, e.g.
+			// system tables,
+			// though unlikely to be picked up unless recursive check adds them)
+			// Actually, if a non-voidable table is a child of a voidable parent, we must
+			// check.
+			// But we can only archive voidable tables.
+			// If a non-voidable child blocks a voidable parent, archival fails for the
+			// parent.
+			// We proceed with best effort.
+			
+			final VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+			final Date voidedBefore = service.getRetentionPolicy().getArchiveCutoff(tName, new Date());
+			if (voidedBefore != null) {
+				log.info("Archiving rows of " + tName + " voided before " + voidedBefore);
+			}
+			
+			// Ensure archive table exists, and pick up where an interrupted run left off
+			BatchCursor cursor = service.prepareTableArchival(tName);
+			if (cursor.getLastKey() != null) {
+				log.info("Resuming archival of " + tName + " after " + cursor.getRowsMoved() + " rows");
+			}
+			
+			// Move data in batches, each committed on its own
+			long totalMoved = 0;
+			if (isVoidTrackingEnabled()) {
+				totalMoved += runBatches(tName, job, progress, new BatchCursor(), new BatchOperation() {
+					
+					@Override
+					public int run(int limit, BatchCursor batchCursor) {
+						return service.archiveQueuedBatch(tName, limit, voidedBefore);
+					}
+				});
+			}
+			// Without tracking, or when the snapshot still counts voided rows the queue did not account
+			// for, e.g. rows voided before tracking was enabled, fall back to scanning the table
+			if (!job.isCancelRequested() && (cursor.getLastKey() != null || needsScan(service, tName, voidedBefore))) {
+				if (isArchivalPipelined()) {
+					totalMoved += runPipelined(tName, job, progress, cursor, voidedBefore);
+				}
+				// Also finishes a pipelined run, removing the checkpoint once no rows are left
+				totalMoved += runBatches(tName, job, progress, cursor, new BatchOperation() {
+					
+					@Override
+					public int run(int limit, BatchCursor batchCursor) {
+						return service.archiveBatch(tName, limit, batchCursor, voidedBefore);
+					}
+				});
+			}
+			
+			if (totalMoved > 0) {
+				log.info("Archived " + totalMoved + " rows from " + tName);
+			}
+			if (!job.isCancelRequested()) {
+				service.ensureArchiveIndexes(tName);
+			}
+			if (!job.isCancelRequested() && isExportAfterArchival() && service.getArchivedRowCount(tName, null) > 0) {
+				service.exportArchive(tName, job);
+			}
+			progress.finish(job.isCancelRequested() ? JobStatus.CANCELLED : JobStatus.COMPLETED);
+		}
+		catch (Exception e) {
+			progress.finish(JobStatus.FAILED);
+			String errorMsg = e.getMessage();
+			if (e.getCause() != null) {
+				errorMsg += " Caused by: " + e.getCause().getMessage();
+			}
+			log.error("Error archiving table " + tName + ": " + errorMsg, e);
+		}
+	}
+	
+	/**
+	 * @param voidedBefore the archive cutoff of the table, null if all voided rows are archived
+	 * @return true unless voided rows are tracked and a recent snapshot counts none left in the table
+	 *         but those still queued because they were voided after the cutoff; a snapshot older than
+	 *         the full rescan interval may miss rows voided outside the API
+	 */
+	private boolean needsScan(VoidDataArchiverService service, String tableName, Date voidedBefore) {
+		if (!isVoidTrackingEnabled()) {
+			return true;
+		}
+		TableInfo stats = service.getTableStatistics().get(tableName);
+		if (stats == null || stats.getLastRefreshed() == null
+		        || System.currentTimeMillis() - stats.getLastRefreshed().getTime() >= TRACKED_STATISTICS_MAX_AGE_MS) {
+			return true;
+		}
+		if (stats.isVoidedEstimated() || stats.getVoidedRecords() == null) {
+			return true;
+		}
+		// The queue was just drained up to the cutoff, so what is left in it is newer than the cutoff
+		long newerThanCutoff = voidedBefore != null && stats.getVoidedRecords() > 0 ? service
+		        .getQueuedVoidCount(tableName) : 0L;
+		return stats.getVoidedRecords() > newerThanCutoff;
+	}
+	
+	@Override
+	public BatchCursor prepareTableArchival(String tableName) {
+		dao.createArchiveTable(tableName);
+		BatchCursor cursor = dao.getCheckpoint(tableName);
+		return cursor != null ? cursor : new BatchCursor();
+	}
+	
+	@Override
+	public int archiveBatch(String tableName, int limit, BatchCursor cursor, Date voidedBefore) {
+		int moved = dao.archiveBatch(tableName, limit, cursor, voidedBefore);
+		if (moved > 0) {
+			cursor.setRowsMoved(cursor.getRowsMoved() + moved);
+			dao.saveCheckpoint(tableName, cursor);
+			dao.adjustTableStatistics(tableName, -moved);
+		} else {
+			dao.deleteCheckpoint(tableName);
+		}
+		return moved;
+	}
+	
+	@Override
+	public List<Object[]> selectArchivalBatch(String tableName, int limit, BatchCursor cursor, Date voidedBefore) {
+		return dao.selectVoidedKeys(tableName, limit, cursor, voidedBefore);
+	}
+	
+	@Override
+	public List<Object[]> copyArchivalBatch(String tableName, List<Object[]> keys) {
+		return dao.copyToArchive(tableName, keys);
+	}
+	
+	@Override
+	public int completeArchivalBatch(String tableName, List<Object[]> keys, boolean copied, BatchCursor cursor) {
+		int moved = dao.moveToArchive(tableName, keys, copied);
+		cursor.setRowsMoved(cursor.getRowsMoved() + moved);
+		dao.saveCheckpoint(tableName, cursor);
+		if (moved > 0) {
+			dao.adjustTableStatistics(tableName, -moved);
+		}
+		return moved;
+	}
+	
+	@Override
+	public int archiveQueuedBatch(String tableName, int limit, Date voidedBefore) {
+		return dao.archiveQueuedBatch(tableName, limit, voidedBefore);
+	}
+	
+	@Override
+	public long getQueuedVoidCount(String tableName) {
+		return dao.countQueuedVoids(tableName);
+	}
+	
+	@Override
+	public long purgeArchives() {
+		// This method runs without a transaction, so all database access goes through the service proxy
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		RetentionPolicy policy = service.getRetentionPolicy();
+		Date now = new Date();
+		long totalPurged = 0;
+		for (TableInfo archived : service.getArchivedTables()) {
+			String tName = archived.getTableName();
+			Date voidedBefore = policy.getPurgeCutoff(tName, now);
+			if (voidedBefore == null) {
+				continue;
+			}
+			AdaptiveBatchSizer sizer = newBatchSizer();
+			long purged = 0;
+			while (true) {
+				int batchSize = sizer.getBatchSize();
+				long batchStart = System.currentTimeMillis();
+				int deleted = service.purgeArchiveBatch(tName, batchSize, voidedBefore);
+				purged += deleted;
+				if (deleted < batchSize) {
+					break;
+				}
+				sizer.batchCompleted(deleted, System.currentTimeMillis() - batchStart);
+			}
+			if (purged > 0) {
+				log.info("Purged " + purged + " archived rows of " + tName + " voided before " + voidedBefore);
+			}
+			totalPurged += purged;
+		}
+		return totalPurged;
+	}
+	
+	@Override
+	public int purgeArchiveBatch(String tableName, int limit, Date voidedBefore) {
+		return dao.purgeArchiveBatch(tableName, limit, voidedBefore);
+	}
+	
+	@Override
+	public RetentionPolicy getRetentionPolicy() {
+		return RetentionPolicy.parse(Context.getAdministrationService().getGlobalProperty(
+		    VoidDataArchiverConfig.GP_RETENTION_RULES));
+	}
+	
+	@Override
+	public int flushVoidCounters() {
+		Map<String, Long> deltas = voidCounters.drain();
+		if (deltas.isEmpty()) {
+			return 0;
+		}
+		try {
+			dao.addVoidedCounts(deltas);
+		}
+		catch (RuntimeException e) {
+			voidCounters.addAll(deltas);
+			throw e;
+		}
+		return deltas.size();
+	}
+	
+	private boolean isExportAfterArchival() {
+		return Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		    VoidDataArchiverConfig.GP_EXPORT_AFTER_ARCHIVAL, "false").trim());
+	}
+	
+	private boolean isArchivalPipelined() {
+		return Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		    VoidDataArchiverConfig.GP_ARCHIVAL_PIPELINED, "false").trim());
+	}
+	
+	private boolean isVoidTrackingEnabled() {
+		return Boolean.parseBoolean(Context.getAdministrationService().getGlobalProperty(
+		    VoidDataArchiverConfig.GP_TRACKING_ENABLED, "false").trim());
+	}
+	
+	@Override
+	public Long getReplicaLagSeconds() {
+		String query = Context.getAdministrationService().getGlobalProperty(VoidDataArchiverConfig.GP_REPLICA_LAG_QUERY);
+		if (query == null || query.trim().isEmpty()) {
+			return null;
+		}
+		return dao.getReplicaLagSeconds(query);
+	}
+	
+	@Override
+	public void ensureArchiveIndexes(String tableName) {
+		dao.ensureArchiveIndexes(tableName);
+	}
+	
+	@Override
+	public Map<String, TableInfo> getTableStatistics() {
+		Map<String, TableInfo> statistics = dao.getTableStatistics();
+		for (TableInfo info : statistics.values()) {
+			addPendingVoids(info);
+		}
+		return statistics;
+	}
+	
+	/**
+	 * A batched move of rows, run in a transaction of its own through the service proxy.
+	 */
+	private interface BatchOperation {
+		
+		/**
+		 * @return the number of rows processed, 0 when there are none left
+		 */
+		int run(int limit, BatchCursor cursor);
+	}
+	
+	/**
+	 * Runs batches until the operation reports no rows left or the job is cancelled, sizing each
+	 * batch by the measured latency of the previous ones, honouring pause requests between batches,
+	 * slowing down while replicas lag and retrying batches rolled back by lock contention.
+	 * 
+	 * @return the number of rows processed
+	 */
+	private long runBatches(String tName, ArchivalJob job, TableProgress progress, BatchCursor cursor,
+	        BatchOperation operation) {
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		AdaptiveBatchSizer sizer = newBatchSizer();
+		int maxReplicaLag = getIntegerGlobalProperty(VoidDataArchiverConfig.GP_MAX_REPLICA_LAG_SECONDS, 10);
+		long totalMoved = 0;
+		int lockRetries = 0;
+		// Pause and cancel requests are honoured between batches
+		while (job.awaitRunnable() && awaitReplicas(service, maxReplicaLag, sizer, job)) {
+			int batchSize = sizer.getBatchSize();
+			Object[] lastKey = cursor.getLastKey();
+			long rowsMoved = cursor.getRowsMoved();
+			long batchStart = System.currentTimeMillis();
+			int moved;
+			try {
+				moved = operation.run(batchSize, cursor);
+			}
+			catch (RuntimeException e) {
+				// The batch was rolled back, so the cursor must not move past it
+				cursor.setLastKey(lastKey);
+				cursor.setRowsMoved(rowsMoved);
+				if (!isLockContention(e) || ++lockRetries > MAX_LOCK_RETRIES) {
+					throw e;
+				}
+				log.warn("Lock contention on " + tName + ", retrying with a smaller batch: " + e.getMessage());
+				sizer.backOff();
+				continue;
+			}
+			long latency = System.currentTimeMillis() - batchStart;
+			lockRetries = 0;
+			totalMoved += moved;
+			progress.batchCompleted(moved, batchSize, latency);
+			if (moved == 0) {
+				break;
+			}
+			sizer.batchCompleted(moved, latency);
+		}
+		return totalMoved;
+	}
+	
+	/**
+	 * A batch of keys on its way through the stages of a pipelined archival.
+	 */
+	private static class KeyBatch {
+		
+		private List<Object[]> keys;
+		
+		private final int limit;
+		
+		private boolean copied;
+		
+		KeyBatch(List<Object[]> keys, int limit) {
+			this.keys = keys;
+			this.limit = limit;
+		}
+	}
+	
+	/**
+	 * Archives voided rows of a table in a pipeline: the next batch is selected while the previous
+	 * ones are copied to an archive in another database and deleted, each stage in transactions of
+	 * its own on its own thread. The cursor only moves past a batch once it is deleted, so the
+	 * checkpoint is as safe as that of {@link #runBatches}. A batch rolled back by lock contention
+	 * stops the pipeline and is left to the serial run that follows.
+	 * 
+	 * @return the number of rows moved
+	 */
+	private long runPipelined(final String tName, final ArchivalJob job, final TableProgress progress,
+	        final BatchCursor cursor, final Date voidedBefore) throws Exception {
+		final VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		final AdaptiveBatchSizer sizer = newBatchSizer();
+		final int maxReplicaLag = getIntegerGlobalProperty(VoidDataArchiverConfig.GP_MAX_REPLICA_LAG_SECONDS, 10);
+		final BatchCursor readCursor = new BatchCursor();
+		readCursor.setLastKey(cursor.getLastKey());
+		final long[] totalMoved = new long[1];
+		
+		ArchivalPipeline<KeyBatch> pipeline = new ArchivalPipeline<KeyBatch>(tName, PIPELINE_CAPACITY,
+		        jobEngine.getSessionExecutor());
+		if (!dao.isArchiveConnectionShared()) {
+			pipeline.addStage("copy", new ArchivalPipeline.Stage<KeyBatch>() {
 				
-				// Move data in batches
-				int totalMoved = 0;
-				int batchSize = 1000;
-				int moved;
-				do {
-					moved = dao.archiveBatch(tName, batchSize);
-					totalMoved += moved;
-					// Safety break or yield?
-					// For now, continue until done.
-				} while (moved > 0);
+				@Override
+				public KeyBatch process(KeyBatch batch) {
+					batch.keys = service.copyArchivalBatch(tName, batch.keys);
+					batch.copied = true;
+					return batch;
+				}
+			});
+		}
+		pipeline.addStage("delete", new ArchivalPipeline.Stage<KeyBatch>() {
+			
+			@Override
+			public KeyBatch process(KeyBatch batch) {
+				Object[] lastKey = cursor.getLastKey();
+				long rowsMoved = cursor.getRowsMoved();
+				long batchStart = System.currentTimeMillis();
+				int moved = 0;
+				if (!batch.keys.isEmpty()) {
+					cursor.setLastKey(batch.keys.get(batch.keys.size() - 1));
+					try {
+						moved = service.completeArchivalBatch(tName, batch.keys, batch.copied, cursor);
+					}
+					catch (RuntimeException e) {
+						cursor.setLastKey(lastKey);
+						cursor.setRowsMoved(rowsMoved);
+						throw e;
+					}
+				}
+				long latency = System.currentTimeMillis() - batchStart;
+				totalMoved[0] += moved;
+				progress.batchCompleted(moved, batch.limit, latency);
+				sizer.batchCompleted(moved, latency);
+				return null;
+			}
+		});
+		
+		try {
+			pipeline.run(new ArchivalPipeline.Source<KeyBatch>() {
 				
-				if (totalMoved > 0) {
-					log.info("Archived " + totalMoved + " rows from " + tName);
+				@Override
+				public KeyBatch next() {
+					if (!job.awaitRunnable() || !awaitReplicas(service, maxReplicaLag, sizer, job)) {
+						return null;
+					}
+					int limit = sizer.getBatchSize();
+					List<Object[]> keys = service.selectArchivalBatch(tName, limit, readCursor, voidedBefore);
+					return keys.isEmpty() ? null : new KeyBatch(keys, limit);
 				}
+			});
+		}
+		catch (RuntimeException e) {
+			if (!isLockContention(e)) {
+				throw e;
 			}
-			catch (Exception e) {
-				String errorMsg = e.getMessage();
-				if (e.getCause() != null) {
-					errorMsg += " Caused by: " + e.getCause().getMessage();
+			log.warn("Lock contention on " + tName + ", continuing without pipelining: " + e.getMessage());
+		}
+		return totalMoved[0];
+	}
+	
+	/**
+	 * @return the number of tables to archive at the same time, at least 1
+	 */
+	private int getArchivalWorkers() {
+		return Math.max(1, getIntegerGlobalProperty(VoidDataArchiverConfig.GP_ARCHIVAL_WORKERS,
+		    VoidDataArchiverConfig.DEFAULT_ARCHIVAL_WORKERS));
+	}
+	
+	private AdaptiveBatchSizer newBatchSizer() {
+		int minSize = getIntegerGlobalProperty(VoidDataArchiverConfig.GP_BATCH_MIN_SIZE, 100);
+		int maxSize = getIntegerGlobalProperty(VoidDataArchiverConfig.GP_BATCH_MAX_SIZE, 5000);
+		int targetLatency = getIntegerGlobalProperty(VoidDataArchiverConfig.GP_BATCH_TARGET_LATENCY_MS, 200);
+		return new AdaptiveBatchSizer(minSize, maxSize, targetLatency, INITIAL_BATCH_SIZE);
+	}
+	
+	/**
+	 * Waits while the replicas lag behind by more than the given number of seconds, shrinking the
+	 * batch size each time the lag is found too high.
+	 * 
+	 * @return false if the job was cancelled or interrupted while waiting
+	 */
+	private boolean awaitReplicas(VoidDataArchiverService service, int maxLagSeconds, AdaptiveBatchSizer sizer,
+	        ArchivalJob job) {
+		Long lag;
+		while ((lag = service.getReplicaLagSeconds()) != null && lag > maxLagSeconds) {
+			log.info("Replication lag is " + lag + "s, pausing archival");
+			sizer.backOff();
+			try {
+				Thread.sleep(REPLICA_LAG_POLL_MS);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if (!job.awaitRunnable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return true if the exception was caused by a lock wait timeout or a deadlock, after which the
+	 *         rolled back batch can be retried
+	 */
+	private boolean isLockContention(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof java.sql.SQLException) {
+				java.sql.SQLException sqlException = (java.sql.SQLException) cause;
+				// MySQL lock wait timeout and deadlock
+				if (sqlException.getErrorCode() == 1205 || sqlException.getErrorCode() == 1213) {
+					return true;
 				}
-				log.error("Error archiving table " + tName + ": " + errorMsg, e);
-				// Continue to next table? Or stop?
-				// If child archival failed, parent archival will likely fail too.
-				
+				// Serialization failure, PostgreSQL deadlock and lock not available
+				String state = sqlException.getSQLState();
+				if ("40001".equals(state) || "40P01".equals(state) || "55P03".equals(state)) {
+					return true;
+				}
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+	
+	private int getIntegerGlobalProperty(String property, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(property);
+		if (value != null && !value.trim().isEmpty()) {
+			try {
+				return Integer.parseInt(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Invalid value for " + property + ": " + value);
 			}
 		}
+		return defaultValue;
 	}
 	
 	public List<TableInfo> getArchivedTables() {
@@ -167,7 +868,115 @@ public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements V
 	}
 	
 	public void restoreTable(String tableName) {
-		dao.restoreTable(tableName);
+		restoreTable(tableName, null, new ArchivalJob(0, JobType.RESTORE, tableName));
+	}
+	
+	@Override
+	public long restoreTable(String tableName, RestoreCriteria criteria) {
+		return restoreTable(tableName, criteria, new ArchivalJob(0, JobType.RESTORE, tableName));
+	}
+	
+	@Override
+	public ArchivalJob submitRestore(String tableName) {
+		return submitRestore(tableName, null);
+	}
+	
+	@Override
+	public ArchivalJob submitRestore(final String tableName, final RestoreCriteria criteria) {
+		return jobEngine.submit(JobType.RESTORE, tableName, new ArchivalJobEngine.JobTask() {
+			
+			@Override
+			public void run(ArchivalJob job) {
+				Context.getService(VoidDataArchiverService.class).restoreTable(tableName, criteria, job);
+			}
+		});
+	}
+	
+	@Override
+	public long restoreTable(final String tableName, final RestoreCriteria criteria, ArchivalJob job) {
+		// Like archival, this runs without a transaction and commits every batch on its own
+		final VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		TableProgress progress = job.addTable(tableName, service.getArchivedRowCount(tableName, criteria));
+		if (!job.awaitRunnable()) {
+			progress.finish(JobStatus.CANCELLED);
+			return 0;
+		}
+		progress.start();
+		try {
+			if (isSelective(criteria)) {
+				// Archives loaded before indexes were provisioned would otherwise be scanned in full
+				service.ensureArchiveIndexes(tableName);
+			}
+			BatchCursor cursor = isSelective(criteria) ? new BatchCursor() : service.prepareTableRestore(tableName);
+			if (cursor.getLastKey() != null) {
+				log.info("Resuming restore of " + tableName + " after " + cursor.getRowsMoved() + " rows");
+			}
+			long restored = runBatches(tableName, job, progress, cursor, new BatchOperation() {
+				
+				@Override
+				public int run(int limit, BatchCursor batchCursor) {
+					return service.restoreBatch(tableName, criteria, limit, batchCursor);
+				}
+			});
+			log.info("Restored " + restored + " rows to " + tableName);
+			progress.finish(job.isCancelRequested() ? JobStatus.CANCELLED : JobStatus.COMPLETED);
+			return restored;
+		}
+		catch (RuntimeException e) {
+			progress.finish(JobStatus.FAILED);
+			throw e;
+		}
+	}
+	
+	@Override
+	public BatchCursor prepareTableRestore(String tableName) {
+		BatchCursor cursor = dao.getCheckpoint("archive_" + tableName);
+		return cursor != null ? cursor : new BatchCursor();
+	}
+	
+	@Override
+	public int restoreBatch(String tableName, RestoreCriteria criteria, int limit, BatchCursor cursor) {
+		String archiveTableName = "archive_" + tableName;
+		int restored = dao.restoreBatch(tableName, criteria, limit, cursor);
+		if (restored > 0) {
+			cursor.setRowsMoved(cursor.getRowsMoved() + restored);
+			// A selective restore is cheap to start over, and must not resume a restore of the whole table
+			if (!isSelective(criteria)) {
+				dao.saveCheckpoint(archiveTableName, cursor);
+			}
+			dao.adjustTableStatistics(tableName, restored);
+			return restored;
+		}
+		if (!isSelective(criteria)) {
+			dao.deleteCheckpoint(archiveTableName);
+		}
+		// Only drop the archive once nothing is left in it. Rows outside the criteria of a selective
+		// restore stay archived by design, only matching rows left behind could not be restored
+		long unrestored = dao.countArchivedRows(tableName, criteria);
+		long remaining = isSelective(criteria) ? dao.countArchivedRows(tableName, null) : unrestored;
+		if (remaining == 0) {
+			dao.dropArchiveTable(archiveTableName);
+		} else if (unrestored > 0) {
+			log.warn("Keeping " + archiveTableName + ": " + unrestored + " rows could not be restored");
+		}
+		return 0;
+	}
+	
+	@Override
+	public long getArchivedRowCount(String tableName, RestoreCriteria criteria) {
+		return dao.countArchivedRows(tableName, criteria);
+	}
+	
+	@Override
+	public VoidedRowPage getVoidedRows(String tableName, boolean archived, String afterKey, int pageSize) {
+		if (pageSize < 1) {
+			throw new APIException("Page size must be positive: " + pageSize);
+		}
+		return dao.getVoidedRows(tableName, archived, afterKey, Math.min(pageSize, MAX_PAGE_SIZE));
+	}
+	
+	private boolean isSelective(RestoreCriteria criteria) {
+		return criteria != null && !criteria.isEmpty();
 	}
 	
 	public Map<String, List<String>> getTableDependencies() {
@@ -178,8 +987,246 @@ public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements V
 		dao.dropArchiveTable(tableName);
 	}
 	
-	private List<String> topologicalSort(Map<String, List<String>> allDeps, Set<String> nodes) {
-		List<String> result = new ArrayList<String>();
+	@Override
+	public File exportArchive(String tableName, ArchivalJob job) {
+		// Like archival, this runs without a transaction: each chunk is read in one of its own, and
+		// its rows only leave the database, in another, once the chunk is on disk
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		String archiveTableName = "archive_" + tableName;
+		TableProgress progress = job.addTable(archiveTableName, service.getArchivedRowCount(tableName, null));
+		progress.start();
+		try {
+			ArchiveExporter.Export export = service.startArchiveExport(tableName);
+			while (!export.isComplete()) {
+				long chunkStart = System.currentTimeMillis();
+				List<Object[]> keys = service.exportArchiveChunk(export);
+				if (!keys.isEmpty()) {
+					service.deleteArchivedRows(tableName, keys);
+				}
+				progress.batchCompleted(keys.size(), keys.size(), System.currentTimeMillis() - chunkStart);
+				if (!export.isComplete() && !job.awaitRunnable()) {
+					log.info("Stopped export of " + archiveTableName + " after " + export.getManifest().getRowCount()
+					        + " rows");
+					break;
+				}
+			}
+			progress.finish(job.isCancelRequested() ? JobStatus.CANCELLED : JobStatus.COMPLETED);
+			return export.getManifestFile();
+		}
+		catch (RuntimeException e) {
+			progress.finish(JobStatus.FAILED);
+			throw e;
+		}
+	}
+	
+	@Override
+	public ArchiveExporter.Export startArchiveExport(String tableName) {
+		return dao.startArchiveExport(tableName, getExportDirectory());
+	}
+	
+	@Override
+	public List<Object[]> exportArchiveChunk(ArchiveExporter.Export export) {
+		return dao.exportArchiveChunk(export);
+	}
+	
+	@Override
+	public ArchivalJob submitExport(final String tableName) {
+		return jobEngine.submit(JobType.EXPORT, tableName, new ArchivalJobEngine.JobTask() {
+			
+			@Override
+			public void run(ArchivalJob job) {
+				Context.getService(VoidDataArchiverService.class).exportArchive(tableName, job);
+			}
+		});
+	}
+	
+	@Override
+	public int deleteArchivedRows(String tableName, List<Object[]> keys) {
+		return dao.deleteArchivedRows(tableName, keys);
+	}
+	
+	@Override
+	public List<String> getExports() {
+		File[] manifests = getExportDirectory().listFiles(new FilenameFilter() {
+			
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".properties");
+			}
+		});
+		if (manifests == null) {
+			return Collections.emptyList();
+		}
+		Arrays.sort(manifests, new Comparator<File>() {
+			
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		List<String> names = new ArrayList<String>();
+		for (File manifest : manifests) {
+			names.add(manifest.getName());
+		}
+		return names;
+	}
+	
+	@Override
+	public long importArchive(String manifestName, ArchivalJob job) {
+		// Like archival, this runs without a transaction and commits every chunk on its own
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		File directory = getExportDirectory();
+		ExportManifest manifest = loadExportManifest(directory, manifestName);
+		String tableName = manifest.getTableName();
+		TableProgress progress = job.addTable("archive_" + tableName, manifest.getRowCount());
+		if (!job.awaitRunnable()) {
+			progress.finish(JobStatus.CANCELLED);
+			return 0;
+		}
+		progress.start();
+		try {
+			if (!manifest.isComplete()) {
+				log.warn("Importing " + manifestName + ", an interrupted export, up to its last chunk");
+			}
+			// Creates the archive table if it was dropped since the export
+			service.prepareTableArchival(tableName);
+			long imported = 0;
+			for (int chunk = 0; chunk < manifest.getChunkCount() && job.awaitRunnable(); chunk++) {
+				long chunkStart = System.currentTimeMillis();
+				imported += service.importArchiveChunk(manifest, directory, chunk);
+				int rows = (int) manifest.getChunkRows(chunk);
+				progress.batchCompleted(rows, rows, System.currentTimeMillis() - chunkStart);
+			}
+			if (!job.isCancelRequested()) {
+				service.ensureArchiveIndexes(tableName);
+			}
+			log.info("Imported " + imported + " rows from " + manifestName + " into archive_" + tableName);
+			progress.finish(job.isCancelRequested() ? JobStatus.CANCELLED : JobStatus.COMPLETED);
+			return imported;
+		}
+		catch (RuntimeException e) {
+			progress.finish(JobStatus.FAILED);
+			throw e;
+		}
+	}
+	
+	@Override
+	public ArchivalJob submitImport(final String manifestName) {
+		return jobEngine.submit(JobType.IMPORT, null, new ArchivalJobEngine.JobTask() {
+			
+			@Override
+			public void run(ArchivalJob job) {
+				Context.getService(VoidDataArchiverService.class).importArchive(manifestName, job);
+			}
+		});
+	}
+	
+	@Override
+	public long importArchiveChunk(ExportManifest manifest, File directory, int chunk) {
+		return dao.importArchiveChunk(manifest, directory, chunk);
+	}
+	
+	@Override
+	public List<VoidedEntry> findExportedRows(String manifestName, String column, Set<String> values) {
+		File directory = getExportDirectory();
+		ArchiveFileReader reader = new ArchiveFileReader(directory, loadExportManifest(directory, manifestName));
+		List<VoidedEntry> entries = new ArrayList<VoidedEntry>();
+		for (List<String> row : findExportedRows(reader, manifestName, column, values)) {
+			entries.add(reader.toVoidedEntry(row));
+		}
+		return entries;
+	}
+	
+	@Override
+	public long restoreExportedRows(String manifestName, Set<String> uuids) {
+		// Runs without a transaction, the rows are committed to the archive table before the restore
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		File directory = getExportDirectory();
+		ExportManifest manifest = loadExportManifest(directory, manifestName);
+		List<List<String>> rows = findExportedRows(new ArchiveFileReader(directory, manifest), manifestName, "uuid",
+		    uuids);
+		if (rows.isEmpty()) {
+			log.info("None of the " + uuids.size() + " uuids are in " + manifestName);
+			return 0;
+		}
+		String tableName = manifest.getTableName();
+		service.prepareTableArchival(tableName);
+		service.importArchiveRows(manifest, rows);
+		RestoreCriteria criteria = new RestoreCriteria();
+		criteria.setUuids(uuids);
+		long restored = service.restoreTable(tableName, criteria);
+		log.info("Restored " + restored + " rows of " + tableName + " from " + manifestName);
+		return restored;
+	}
+	
+	@Override
+	public long importArchiveRows(ExportManifest manifest, List<List<String>> rows) {
+		return dao.importArchiveRows(manifest, rows);
+	}
+	
+	private List<List<String>> findExportedRows(ArchiveFileReader reader, String manifestName, String column,
+	        Set<String> values) {
+		try {
+			return reader.findRows(column, values);
+		}
+		catch (IllegalArgumentException e) {
+			throw new APIException(e.getMessage(), e);
+		}
+		catch (IOException e) {
+			throw new APIException("Cannot read export " + manifestName + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * @return the directory configured in the global property, created if missing
+	 */
+	private File getExportDirectory() {
+		String path = Context.getAdministrationService().getGlobalProperty(VoidDataArchiverConfig.GP_EXPORT_DIRECTORY);
+		File directory = path != null && !path.trim().isEmpty() ? new File(path.trim())
+		        : OpenmrsUtil.getDirectoryInApplicationDataDirectory("voiddataarchiver" + File.separator + "exports");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new APIException("Cannot create the export directory " + directory);
+		}
+		return directory;
+	}
+	
+	private ExportManifest loadExportManifest(File directory, String manifestName) {
+		// Only plain file names, so a request cannot read manifests outside the export directory
+		if (manifestName == null || !manifestName.endsWith(".properties") || manifestName.contains("/")
+		        || manifestName.contains("\\")) {
+			throw new APIException("Invalid export manifest name: " + manifestName);
+		}
+		try {
+			return ExportManifest.load(new File(directory, manifestName));
+		}
+		catch (IOException e) {
+			throw new APIException("Cannot read export manifest " + manifestName + ": " + e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * @param allDeps the parents of each table
+	 * @param failed the tables whose archival failed or was skipped
+	 * @param table a table
+	 * @return a failed table that references the given table, or null if there is none
+	 */
+	String getFailedChild(Map<String, List<String>> allDeps, Set<String> failed, String table) {
+		for (String child : failed) {
+			List<String> parents = allDeps.get(child);
+			if (parents != null && parents.contains(table)) {
+				return child;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Sorts the nodes children first, grouped into levels: a table is placed in the level after the
+	 * last of the tables that reference it, so the tables of one level can be archived concurrently.
+	 * Nodes on a dependency cycle are appended one per level.
+	 */
+	List<List<String>> topologicalSort(Map<String, List<String>> allDeps, Set<String> nodes) {
+		List<List<String>> result = new ArrayList<List<String>>();
 		
 		// Build subgraph adjacency list (Child -> Parent) for the nodes we care about
 		Map<String, List<String>> adj = new HashMap<String, List<String>>();
@@ -208,36 +1255,39 @@ public class VoidDataArchiverServiceImpl extends BaseOpenmrsService implements V
 			}
 		}
 		
-		Queue<String> queue = new LinkedList<String>();
+		List<String> level = new ArrayList<String>();
 		for (String node : nodes) {
 			if (inDegree.get(node) == 0) {
-				queue.add(node);
+				level.add(node);
 			}
 		}
 		
-		while (!queue.isEmpty()) {
-			String u = queue.poll();
-			result.add(u);
+		Set<String> sorted = new HashSet<String>();
+		while (!level.isEmpty()) {
+			result.add(level);
+			sorted.addAll(level);
 			
-			if (adj.containsKey(u)) {
+			List<String> nextLevel = new ArrayList<String>();
+			for (String u : level) {
 				for (String v : adj.get(u)) {
 					inDegree.put(v, inDegree.get(v) - 1);
 					if (inDegree.get(v) == 0) {
-						queue.add(v);
+						nextLevel.add(v);
 					}
 				}
 			}
+			level = nextLevel;
 		}
 		
-		// If cycle detected, result size < nodes size.
+		// If cycle detected, fewer nodes were sorted than requested.
 		// We return result anyway (partial order).
-		if (result.size() != nodes.size()) {
-			log.warn("Dependency cycle detected or disconnected graph components. " + "Sort result size: " + result.size()
-			        + ", expected: " + nodes.size());
-			// Add remaining nodes arbitrarily?
+		if (sorted.size() != nodes.size()) {
+			log.warn("Dependency cycle detected or disconnected graph components. " + "Sort result size: "
+			        + sorted.size() + ", expected: " + nodes.size());
+			// Remaining nodes are processed one at a time, in no particular order
 			for (String node : nodes) {
-				if (!result.contains(node)) {
-					result.add(node);
+				if (!sorted.contains(node)) {
+					result.add(Collections.singletonList(node));
 				}
 			}
 		}
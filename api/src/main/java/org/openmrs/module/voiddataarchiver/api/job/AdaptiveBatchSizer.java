@@ -0,0 +1,76 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+/**
+ * Chooses the size of the next archive batch from the latency of the previous ones, additive increase
+ * / multiplicative decrease: the size grows by a fixed step while full batches finish within the
+ * target latency, and is halved when a batch is too slow or the database signals contention. Small
+ * tables thus quickly reach large, cheap batches, while wide tables settle at a size that keeps lock
+ * times short. Safe to share between the stages of an {@link ArchivalPipeline}.
+ */
+public class AdaptiveBatchSizer {
+	
+	private final int minSize;
+	
+	private final int maxSize;
+	
+	private final long targetLatencyMs;
+	
+	private int batchSize;
+	
+	/**
+	 * @param minSize the smallest batch size, also the step by which the size grows
+	 * @param maxSize the largest batch size
+	 * @param targetLatencyMs the latency a batch should stay under, in milliseconds
+	 * @param initialSize the size of the first batch, clamped to the bounds
+	 */
+	public AdaptiveBatchSizer(int minSize, int maxSize, long targetLatencyMs, int initialSize) {
+		this.minSize = Math.max(1, minSize);
+		this.maxSize = Math.max(this.minSize, maxSize);
+		this.targetLatencyMs = targetLatencyMs;
+		this.batchSize = clamp(initialSize);
+	}
+	
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+	
+	/**
+	 * Adjusts the batch size after a batch completed. A batch that moved fewer rows than requested
+	 * says nothing about larger batches, so it never makes the size grow.
+	 * 
+	 * @param rows the number of rows moved
+	 * @param latencyMs the time the batch took, including its commit
+	 * @return the size of the next batch
+	 */
+	public synchronized int batchCompleted(int rows, long latencyMs) {
+		if (latencyMs > targetLatencyMs) {
+			backOff();
+		} else if (rows >= batchSize) {
+			batchSize = clamp(batchSize + minSize);
+		}
+		return batchSize;
+	}
+	
+	/**
+	 * Halves the batch size, after a slow batch, a lock wait timeout or replica lag.
+	 * 
+	 * @return the size of the next batch
+	 */
+	public synchronized int backOff() {
+		batchSize = clamp(batchSize / 2);
+		return batchSize;
+	}
+	
+	private int clamp(int size) {
+		return Math.min(maxSize, Math.max(minSize, size));
+	}
+}
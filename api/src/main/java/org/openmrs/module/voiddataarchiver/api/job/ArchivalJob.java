@@ -0,0 +1,224 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A background archival or restore run submitted to the {@link ArchivalJobEngine}. Tracks per-table progress
+ * and lets the caller pause, resume or cancel the run; the job thread honours these requests between
+ * batches by calling {@link #awaitRunnable()}.
+ */
+public class ArchivalJob {
+	
+	private final long id;
+	
+	private final JobType type;
+	
+	private final String tableName;
+	
+	private final Date submitted = new Date();
+	
+	private volatile Date started;
+	
+	private volatile Date finished;
+	
+	private volatile String error;
+	
+	private JobStatus status = JobStatus.QUEUED;
+	
+	private boolean pauseRequested;
+	
+	private boolean cancelRequested;
+	
+	private final Map<String, TableProgress> tables = new LinkedHashMap<String, TableProgress>();
+	
+	/**
+	 * @param id the job id
+	 * @param type the operation the job performs
+	 * @param tableName the table the job was submitted for, or null for a global archive
+	 */
+	public ArchivalJob(long id, JobType type, String tableName) {
+		this.id = id;
+		this.type = type;
+		this.tableName = tableName;
+	}
+	
+	public long getId() {
+		return id;
+	}
+	
+	public JobType getType() {
+		return type;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public Date getSubmitted() {
+		return submitted;
+	}
+	
+	public Date getStarted() {
+		return started;
+	}
+	
+	public Date getFinished() {
+		return finished;
+	}
+	
+	public String getError() {
+		return error;
+	}
+	
+	public synchronized JobStatus getStatus() {
+		return status;
+	}
+	
+	/**
+	 * Registers a table to be processed by this job.
+	 * 
+	 * @param table the table name
+	 * @param expectedRows the number of rows expected to be processed
+	 * @return the progress of the table
+	 */
+	public synchronized TableProgress addTable(String table, long expectedRows) {
+		TableProgress progress = new TableProgress(table, expectedRows);
+		tables.put(table, progress);
+		return progress;
+	}
+	
+	public synchronized TableProgress getTableProgress(String table) {
+		return tables.get(table);
+	}
+	
+	public synchronized List<TableProgress> getTables() {
+		return new ArrayList<TableProgress>(tables.values());
+	}
+	
+	/**
+	 * @return the names of the tables that failed, in the order they were added
+	 */
+	public synchronized List<String> getFailedTables() {
+		List<String> failed = new ArrayList<String>();
+		for (TableProgress progress : tables.values()) {
+			if (progress.getStatus() == JobStatus.FAILED) {
+				failed.add(progress.getTableName());
+			}
+		}
+		return failed;
+	}
+	
+	public long getRowsProcessed() {
+		long rows = 0;
+		for (TableProgress progress : getTables()) {
+			rows += progress.getRowsProcessed();
+		}
+		return rows;
+	}
+	
+	public long getExpectedRows() {
+		long rows = 0;
+		for (TableProgress progress : getTables()) {
+			rows += progress.getExpectedRows();
+		}
+		return rows;
+	}
+	
+	/**
+	 * @return overall rows processed per second since the job started
+	 */
+	public double getThroughput() {
+		Date start = started;
+		if (start == null) {
+			return 0;
+		}
+		long elapsed = (finished != null ? finished.getTime() : System.currentTimeMillis()) - start.getTime();
+		return elapsed > 0 ? getRowsProcessed() * 1000.0 / elapsed : 0;
+	}
+	
+	/**
+	 * @return the estimated seconds until the job is done, or null if it cannot be estimated yet
+	 */
+	public Long getEtaSeconds() {
+		if (getStatus().isFinished()) {
+			return 0L;
+		}
+		double throughput = getThroughput();
+		if (throughput <= 0) {
+			return null;
+		}
+		return (long) Math.ceil(Math.max(0, getExpectedRows() - getRowsProcessed()) / throughput);
+	}
+	
+	/**
+	 * Called by the job thread between batches. Blocks while the job is paused.
+	 * 
+	 * @return false if the job has been cancelled and must stop, true to continue
+	 */
+	public synchronized boolean awaitRunnable() {
+		while (pauseRequested && !cancelRequested) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancelRequested = true;
+			}
+		}
+		return !cancelRequested;
+	}
+	
+	public synchronized boolean isCancelRequested() {
+		return cancelRequested;
+	}
+	
+	public synchronized void pause() {
+		if (status == JobStatus.RUNNING) {
+			pauseRequested = true;
+			status = JobStatus.PAUSED;
+		}
+	}
+	
+	public synchronized void resume() {
+		if (status == JobStatus.PAUSED) {
+			pauseRequested = false;
+			status = JobStatus.RUNNING;
+			notifyAll();
+		}
+	}
+	
+	public synchronized void cancel() {
+		if (status.isFinished()) {
+			return;
+		}
+		cancelRequested = true;
+		if (status == JobStatus.QUEUED) {
+			finish(JobStatus.CANCELLED, null);
+		}
+		notifyAll();
+	}
+	
+	synchronized void markStarted() {
+		started = new Date();
+		status = JobStatus.RUNNING;
+	}
+	
+	synchronized void finish(JobStatus finalStatus, String errorMessage) {
+		finished = new Date();
+		status = finalStatus;
+		error = errorMessage;
+	}
+}
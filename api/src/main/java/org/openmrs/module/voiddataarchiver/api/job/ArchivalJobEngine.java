@@ -0,0 +1,285 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs {@link ArchivalJob}s on a bounded pool of background threads, so that long archival runs do
+ * not hold a servlet thread. Jobs are kept in memory; the most recent {@link #MAX_RETAINED_JOBS}
+ * finished jobs remain visible for polling. A job may fan its tables out to worker threads with
+ * {@link #runInParallel(Collection, int, TableTask)}.
+ */
+@Component("voiddataarchiver.ArchivalJobEngine")
+public class ArchivalJobEngine {
+	
+	static final int MAX_CONCURRENT_JOBS = 2;
+	
+	static final int MAX_QUEUED_JOBS = 10;
+	
+	static final int MAX_RETAINED_JOBS = 50;
+	
+	/**
+	 * The work performed by a job. Runs in a background thread with an open OpenMRS session and must
+	 * report progress to, and honour pause and cancel requests of, the given job.
+	 */
+	public interface JobTask {
+		
+		void run(ArchivalJob job) throws Exception;
+	}
+	
+	/**
+	 * Work performed for a single table by a worker thread. Runs with its own OpenMRS session, so
+	 * anything it does through the service proxy gets its own connection and transaction.
+	 */
+	public interface TableTask {
+		
+		void run(String tableName) throws Exception;
+	}
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	private final AtomicLong nextJobId = new AtomicLong(1);
+	
+	private final Map<Long, ArchivalJob> jobs = new LinkedHashMap<Long, ArchivalJob>();
+	
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_CONCURRENT_JOBS, MAX_CONCURRENT_JOBS, 60L,
+	        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_JOBS), new ThreadFactory() {
+		        
+		        private final AtomicInteger threadNumber = new AtomicInteger(1);
+		        
+		        @Override
+		        public Thread newThread(Runnable r) {
+			        Thread thread = new Thread(r, "voiddataarchiver-job-" + threadNumber.getAndIncrement());
+			        thread.setDaemon(true);
+			        return thread;
+		        }
+	        });
+	
+	/**
+	 * Threads are created on demand and retired when idle; each call to
+	 * {@link #runInParallel(Collection, int, TableTask)} bounds how many of them it uses.
+	 */
+	private final ThreadPoolExecutor workerExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+	        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		        
+		        private final AtomicInteger threadNumber = new AtomicInteger(1);
+		        
+		        @Override
+		        public Thread newThread(Runnable r) {
+			        Thread thread = new Thread(r, "voiddataarchiver-worker-" + threadNumber.getAndIncrement());
+			        thread.setDaemon(true);
+			        return thread;
+		        }
+	        });
+	
+	public ArchivalJobEngine() {
+		executor.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * Queues a job.
+	 * 
+	 * @param type the operation the job performs
+	 * @param tableName the table the job is for, or null for a global run
+	 * @param task the work to perform
+	 * @return the queued job
+	 * @throws APIException if too many jobs are already queued
+	 */
+	public ArchivalJob submit(JobType type, String tableName, final JobTask task) {
+		final ArchivalJob job = new ArchivalJob(nextJobId.getAndIncrement(), type, tableName);
+		register(job);
+		try {
+			executor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					runJob(job, task);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			synchronized (jobs) {
+				jobs.remove(job.getId());
+			}
+			throw new APIException("Too many jobs are queued, try again later");
+		}
+		return job;
+	}
+	
+	/**
+	 * @return the job with the given id, or null if it does not exist or has been discarded
+	 */
+	public ArchivalJob getJob(long jobId) {
+		synchronized (jobs) {
+			return jobs.get(jobId);
+		}
+	}
+	
+	/**
+	 * @return all known jobs, most recent first
+	 */
+	public List<ArchivalJob> getJobs() {
+		List<ArchivalJob> result;
+		synchronized (jobs) {
+			result = new ArrayList<ArchivalJob>(jobs.values());
+		}
+		Collections.reverse(result);
+		return result;
+	}
+	
+	/**
+	 * Runs the task for every table on at most the given number of worker threads and waits until
+	 * all tables are done. The tables must not depend on each other. Workers take the next table as
+	 * soon as they finish one, so a single large table does not hold the others back. Failures are
+	 * logged; the task is expected to record them on the job itself.
+	 * 
+	 * @param tables the tables to process
+	 * @param parallelism the maximum number of tables processed at the same time
+	 * @param task the work to perform for each table
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public void runInParallel(Collection<String> tables, int parallelism, final TableTask task)
+	        throws InterruptedException {
+		final Queue<String> ready = new ConcurrentLinkedQueue<String>(tables);
+		int workers = Math.max(1, Math.min(parallelism, tables.size()));
+		final CountDownLatch done = new CountDownLatch(workers);
+		for (int i = 0; i < workers; i++) {
+			workerExecutor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						String table;
+						while ((table = ready.poll()) != null) {
+							runTable(table, task);
+						}
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+	}
+	
+	/**
+	 * @return an executor that runs every task on a worker thread with an OpenMRS session of its own,
+	 *         as the stages of an {@link ArchivalPipeline} need
+	 */
+	public Executor getSessionExecutor() {
+		return new Executor() {
+			
+			@Override
+			public void execute(final Runnable command) {
+				workerExecutor.execute(new Runnable() {
+					
+					@Override
+					public void run() {
+						Context.openSession();
+						try {
+							command.run();
+						}
+						finally {
+							Context.closeSession();
+						}
+					}
+				});
+			}
+		};
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		for (ArchivalJob job : getJobs()) {
+			job.cancel();
+		}
+		executor.shutdownNow();
+		workerExecutor.shutdownNow();
+	}
+	
+	private void runTable(String table, TableTask task) {
+		Context.openSession();
+		try {
+			task.run(table);
+		}
+		catch (Exception e) {
+			log.error("Archival of table " + table + " failed", e);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+	
+	private void runJob(ArchivalJob job, JobTask task) {
+		if (job.isCancelRequested()) {
+			return;
+		}
+		job.markStarted();
+		Context.openSession();
+		try {
+			task.run(job);
+			// Tables fail on their own so that the others can go on, but the job must not look complete
+			List<String> failed = job.getFailedTables();
+			if (!failed.isEmpty()) {
+				job.finish(JobStatus.FAILED, "Failed tables: " + failed);
+			} else {
+				job.finish(job.isCancelRequested() ? JobStatus.CANCELLED : JobStatus.COMPLETED, null);
+			}
+		}
+		catch (Exception e) {
+			log.error(job.getType() + " job " + job.getId() + " failed", e);
+			job.finish(JobStatus.FAILED, e.getMessage());
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+	
+	private void register(ArchivalJob job) {
+		synchronized (jobs) {
+			jobs.put(job.getId(), job);
+			int excess = jobs.size() - MAX_RETAINED_JOBS;
+			for (Iterator<ArchivalJob> it = jobs.values().iterator(); it.hasNext() && excess > 0;) {
+				if (it.next().getStatus().isFinished()) {
+					it.remove();
+					excess--;
+				}
+			}
+		}
+	}
+}
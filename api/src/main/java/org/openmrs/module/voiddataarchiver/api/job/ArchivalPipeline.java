@@ -0,0 +1,231 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the stages of a batched operation at the same time, each on a thread of its own, so that the
+ * next batch is read while the previous ones are being written and deleted. A source produces the
+ * batches and each stage takes the batches of the one before it, in order, from a bounded queue. A
+ * stage that gets ahead blocks on the full queue, so at most {@code capacity} batches wait between
+ * two stages however fast the source is.
+ * <p>
+ * The first failure stops every stage and is rethrown by {@link #run(Source)}; batches still queued at
+ * that point are dropped.
+ * 
+ * @param <T> the type of the batches
+ */
+public class ArchivalPipeline<T> {
+	
+	/**
+	 * Produces the batches of a pipeline.
+	 */
+	public interface Source<T> {
+		
+		/**
+		 * @return the next batch, or null when there are none left
+		 */
+		T next() throws Exception;
+	}
+	
+	/**
+	 * Processes the batches of a pipeline.
+	 */
+	public interface Stage<T> {
+		
+		/**
+		 * @param batch the batch produced by the previous stage
+		 * @return the batch to pass to the next stage, or null to drop it
+		 */
+		T process(T batch) throws Exception;
+	}
+	
+	/**
+	 * How long a blocked stage waits before it checks whether the pipeline has failed.
+	 */
+	private static final long POLL_MS = 100;
+	
+	/**
+	 * Follows the last batch through the queues.
+	 */
+	private static final Object END = new Object();
+	
+	protected final Log log = LogFactory.getLog(this.getClass());
+	
+	private final String name;
+	
+	private final int capacity;
+	
+	private final Executor executor;
+	
+	private final List<String> stageNames = new ArrayList<String>();
+	
+	private final List<Stage<T>> stages = new ArrayList<Stage<T>>();
+	
+	private volatile Throwable failure;
+	
+	/**
+	 * @param name the name of the pipeline, for logging
+	 * @param capacity the number of batches that may wait between two stages
+	 * @param executor runs the source and the stages, needs a thread for each of them
+	 */
+	public ArchivalPipeline(String name, int capacity, Executor executor) {
+		this.name = name;
+		this.capacity = Math.max(1, capacity);
+		this.executor = executor;
+	}
+	
+	/**
+	 * Appends a stage to the pipeline.
+	 * 
+	 * @param stageName the name of the stage, for logging
+	 * @param stage the stage
+	 * @return this pipeline
+	 */
+	public ArchivalPipeline<T> addStage(String stageName, Stage<T> stage) {
+		stageNames.add(stageName);
+		stages.add(stage);
+		return this;
+	}
+	
+	/**
+	 * Passes every batch of the source through the stages and waits until the last one is through, or
+	 * until a stage fails.
+	 * 
+	 * @param source the source of the batches
+	 * @throws Exception the first exception thrown by the source or a stage
+	 */
+	public void run(final Source<T> source) throws Exception {
+		if (stages.isEmpty()) {
+			throw new IllegalStateException("Pipeline " + name + " has no stages");
+		}
+		final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+		for (int i = 0; i < stages.size(); i++) {
+			queues.add(new ArrayBlockingQueue<Object>(capacity));
+		}
+		final CountDownLatch done = new CountDownLatch(stages.size() + 1);
+		
+		executor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					T batch;
+					while (failure == null && (batch = source.next()) != null) {
+						if (!put(queues.get(0), batch)) {
+							return;
+						}
+					}
+					put(queues.get(0), END);
+				}
+				catch (Throwable e) {
+					fail("source", e);
+				}
+				finally {
+					done.countDown();
+				}
+			}
+		});
+		for (int i = 0; i < stages.size(); i++) {
+			final String stageName = stageNames.get(i);
+			final Stage<T> stage = stages.get(i);
+			final BlockingQueue<Object> in = queues.get(i);
+			final BlockingQueue<Object> out = i + 1 < queues.size() ? queues.get(i + 1) : null;
+			executor.execute(new Runnable() {
+				
+				@Override
+				@SuppressWarnings("unchecked")
+				public void run() {
+					try {
+						Object batch;
+						while ((batch = take(in)) != END) {
+							T processed = stage.process((T) batch);
+							if (processed != null && out != null && !put(out, processed)) {
+								return;
+							}
+						}
+						if (out != null) {
+							put(out, END);
+						}
+					}
+					catch (Throwable e) {
+						fail(stageName, e);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		
+		// The stages must be done with the batches before the caller goes on
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			}
+			catch (InterruptedException e) {
+				fail("caller", e);
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		} else if (failure != null) {
+			throw (Error) failure;
+		}
+	}
+	
+	/**
+	 * @return false if the pipeline failed before the batch could be queued
+	 */
+	private boolean put(BlockingQueue<Object> queue, Object batch) throws InterruptedException {
+		while (!queue.offer(batch, POLL_MS, TimeUnit.MILLISECONDS)) {
+			if (failure != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the next batch, or {@link #END} if the pipeline failed
+	 */
+	private Object take(BlockingQueue<Object> queue) throws InterruptedException {
+		Object batch;
+		while ((batch = queue.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+			if (failure != null) {
+				return END;
+			}
+		}
+		return batch;
+	}
+	
+	private synchronized void fail(String stageName, Throwable e) {
+		if (failure == null) {
+			log.debug("Stage " + stageName + " of pipeline " + name + " failed", e);
+			failure = e;
+		}
+	}
+}
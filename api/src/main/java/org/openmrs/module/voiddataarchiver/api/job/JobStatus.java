@@ -0,0 +1,35 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+/**
+ * Lifecycle of an {@link ArchivalJob} and of each table within it.
+ */
+public enum JobStatus {
+	
+	QUEUED,
+	
+	RUNNING,
+	
+	PAUSED,
+	
+	COMPLETED,
+	
+	CANCELLED,
+	
+	FAILED;
+	
+	/**
+	 * @return true if the job or table will not make any more progress
+	 */
+	public boolean isFinished() {
+		return this == COMPLETED || this == CANCELLED || this == FAILED;
+	}
+}
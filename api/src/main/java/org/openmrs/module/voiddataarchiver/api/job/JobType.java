@@ -0,0 +1,36 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+/**
+ * The operation performed by an {@link ArchivalJob}.
+ */
+public enum JobType {
+	
+	/**
+	 * Moves voided rows from source tables to their archive tables.
+	 */
+	ARCHIVE,
+	
+	/**
+	 * Moves archived rows back from an archive table to its source table.
+	 */
+	RESTORE,
+	
+	/**
+	 * Moves the rows of an archive table out of the database to compressed files.
+	 */
+	EXPORT,
+	
+	/**
+	 * Loads exported files back into an archive table.
+	 */
+	IMPORT
+}
@@ -0,0 +1,159 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a single table within an {@link ArchivalJob}. Updated by the job thread after each
+ * batch and read concurrently by the progress endpoint.
+ */
+public class TableProgress {
+	
+	static final int MAX_BATCH_SIZE_HISTORY = 100;
+	
+	private final String tableName;
+	
+	private final long expectedRows;
+	
+	private final AtomicLong rowsProcessed = new AtomicLong();
+	
+	private final AtomicLong batches = new AtomicLong();
+	
+	private volatile JobStatus status = JobStatus.QUEUED;
+	
+	private volatile long startedAt;
+	
+	private volatile long finishedAt;
+	
+	private volatile int lastBatchSize;
+	
+	private volatile long lastBatchMs;
+	
+	private final LinkedList<Integer> batchSizeHistory = new LinkedList<Integer>();
+	
+	/**
+	 * @param tableName the table being processed
+	 * @param expectedRows the number of rows expected to be processed, from the statistics snapshot
+	 */
+	public TableProgress(String tableName, long expectedRows) {
+		this.tableName = tableName;
+		this.expectedRows = expectedRows;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	public long getExpectedRows() {
+		return expectedRows;
+	}
+	
+	public long getRowsProcessed() {
+		return rowsProcessed.get();
+	}
+	
+	public long getBatches() {
+		return batches.get();
+	}
+	
+	/**
+	 * @return the size requested for the most recent batch, 0 before the first batch
+	 */
+	public int getLastBatchSize() {
+		return lastBatchSize;
+	}
+	
+	/**
+	 * @return the duration of the most recent batch in milliseconds, 0 before the first batch
+	 */
+	public long getLastBatchMs() {
+		return lastBatchMs;
+	}
+	
+	/**
+	 * @return the sizes requested for the most recent batches, oldest first, at most
+	 *         {@value #MAX_BATCH_SIZE_HISTORY} of them
+	 */
+	public List<Integer> getBatchSizeHistory() {
+		synchronized (batchSizeHistory) {
+			return new ArrayList<Integer>(batchSizeHistory);
+		}
+	}
+	
+	public JobStatus getStatus() {
+		return status;
+	}
+	
+	public void start() {
+		startedAt = System.currentTimeMillis();
+		status = JobStatus.RUNNING;
+	}
+	
+	/**
+	 * Records a completed batch.
+	 * 
+	 * @param rows the number of rows moved by the batch
+	 * @param batchSize the number of rows the batch was allowed to move
+	 * @param latencyMs the time the batch took, in milliseconds
+	 */
+	public void batchCompleted(int rows, int batchSize, long latencyMs) {
+		rowsProcessed.addAndGet(rows);
+		batches.incrementAndGet();
+		lastBatchSize = batchSize;
+		lastBatchMs = latencyMs;
+		synchronized (batchSizeHistory) {
+			batchSizeHistory.add(batchSize);
+			if (batchSizeHistory.size() > MAX_BATCH_SIZE_HISTORY) {
+				batchSizeHistory.removeFirst();
+			}
+		}
+	}
+	
+	public void finish(JobStatus finalStatus) {
+		finishedAt = System.currentTimeMillis();
+		status = finalStatus;
+	}
+	
+	/**
+	 * @return the time spent on this table so far, in milliseconds
+	 */
+	public long getElapsedMs() {
+		if (startedAt == 0) {
+			return 0;
+		}
+		return (finishedAt != 0 ? finishedAt : System.currentTimeMillis()) - startedAt;
+	}
+	
+	/**
+	 * @return rows processed per second, 0 if nothing has been processed yet
+	 */
+	public double getThroughput() {
+		long elapsed = getElapsedMs();
+		return elapsed > 0 ? getRowsProcessed() * 1000.0 / elapsed : 0;
+	}
+	
+	/**
+	 * @return the estimated seconds until this table is done, or null if it cannot be estimated yet
+	 */
+	public Long getEtaSeconds() {
+		if (status.isFinished()) {
+			return 0L;
+		}
+		double throughput = getThroughput();
+		if (throughput <= 0) {
+			return null;
+		}
+		return (long) Math.ceil(Math.max(0, expectedRows - getRowsProcessed()) / throughput);
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that writes the voided counts kept in memory to the statistics snapshot, so that
+ * they survive a restart. Registered by the module activator.
+ */
+public class FlushVoidCountersTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "VoidData Archiver - Flush Void Counters";
+	
+	private final Log log = LogFactory.getLog(this.getClass());
+	
+	@Override
+	public void execute() {
+		if (isExecuting()) {
+			return;
+		}
+		startExecuting();
+		try {
+			int tables = Context.getService(VoidDataArchiverService.class).flushVoidCounters();
+			log.debug("Flushed void counters of " + tables + " tables");
+		}
+		catch (Exception e) {
+			log.warn("Failed to flush void counters: " + e.getMessage());
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+}
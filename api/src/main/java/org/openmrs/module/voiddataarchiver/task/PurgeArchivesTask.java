@@ -0,0 +1,46 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that deletes archived rows whose retention period has passed, as configured in the
+ * {@value org.openmrs.module.voiddataarchiver.VoidDataArchiverConfig#GP_RETENTION_RULES} global
+ * property. Registered by the module activator.
+ */
+public class PurgeArchivesTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "VoidData Archiver - Purge Archives";
+	
+	private final Log log = LogFactory.getLog(this.getClass());
+	
+	@Override
+	public void execute() {
+		if (isExecuting()) {
+			return;
+		}
+		startExecuting();
+		try {
+			long purged = Context.getService(VoidDataArchiverService.class).purgeArchives();
+			log.debug("Purged " + purged + " archived rows");
+		}
+		catch (Exception e) {
+			log.warn("Failed to purge archives: " + e.getMessage());
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.task;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.TableInfo;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task that recomputes the statistics of voidable tables whose snapshot is missing or
+ * stale, so that counting voided rows never happens on the HTTP thread. Each table is refreshed in
+ * its own transaction. Registered by the module activator.
+ */
+public class RefreshTableStatisticsTask extends AbstractTask {
+	
+	public static final String TASK_NAME = "VoidData Archiver - Refresh Table Statistics";
+	
+	private final Log log = LogFactory.getLog(this.getClass());
+	
+	@Override
+	public void execute() {
+		if (isExecuting()) {
+			return;
+		}
+		startExecuting();
+		try {
+			VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+			// Keeps the voided counts of tables that are not due for a rescan current
+			service.flushVoidCounters();
+			for (String tableName : service.getTablesDueForStatisticsRefresh()) {
+				try {
+					TableInfo info = service.refreshTableStatistics(tableName);
+					log.debug("Refreshed statistics of " + tableName + " in " + info.getScanDurationMs() + " ms");
+				}
+				catch (Exception e) {
+					log.warn("Failed to refresh statistics of " + tableName + ": " + e.getMessage());
+				}
+			}
+		}
+		finally {
+			stopExecuting();
+		}
+	}
+}
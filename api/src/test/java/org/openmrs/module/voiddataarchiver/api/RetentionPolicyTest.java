@@ -0,0 +1,64 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the parsing and cutoffs of retention rules; they have no database or context dependencies.
+ */
+public class RetentionPolicyTest {
+	
+	private static Date date(int year, int month, int day) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day);
+		return calendar.getTime();
+	}
+	
+	@Test
+	public void testAppliesTableRule() {
+		RetentionPolicy policy = RetentionPolicy.parse("obs: archive=90d, purge=7y");
+		Date now = date(2026, 10, 18);
+		assertEquals(date(2026, 7, 20), policy.getArchiveCutoff("obs", now));
+		assertEquals(date(2019, 10, 18), policy.getPurgeCutoff("obs", now));
+	}
+	
+	@Test
+	public void testFallsBackToDefaultRule() {
+		RetentionPolicy policy = RetentionPolicy.parse("obs: archive=2w; *: archive=1m");
+		Date now = date(2026, 10, 18);
+		assertEquals(date(2026, 10, 4), policy.getArchiveCutoff("OBS", now));
+		assertEquals(date(2026, 9, 18), policy.getArchiveCutoff("visit", now));
+		assertNull(policy.getPurgeCutoff("visit", now));
+	}
+	
+	@Test
+	public void testArchivesEverythingWithoutRules() {
+		RetentionPolicy policy = RetentionPolicy.parse(" ");
+		assertNull(policy.getArchiveCutoff("obs", new Date()));
+		assertNull(policy.getPurgeCutoff("obs", new Date()));
+	}
+	
+	@Test(expected = APIException.class)
+	public void testRejectsUnknownUnit() {
+		RetentionPolicy.parse("obs: archive=90x");
+	}
+	
+	@Test(expected = APIException.class)
+	public void testRejectsUnknownSetting() {
+		RetentionPolicy.parse("obs: keep=90d");
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Exports an archive table of an in-memory database to chunk files and imports them back, checking
+ * that every value survives the round trip through {@link ChunkFormat}.
+ */
+public class ArchiveExportImportTest extends BaseH2DatabaseTest {
+	
+	private static final int ROWS = ArchiveExporter.ROWS_PER_CHUNK + 3;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private TableMetadata archiveTable;
+	
+	private TableKey key;
+	
+	@Before
+	public void setUp() throws SQLException {
+		execute("CREATE TABLE archive_obs (obs_id INT PRIMARY KEY, uuid CHAR(38), value_numeric DECIMAL(10, 2), "
+		        + "value_text VARCHAR(255), value_complex VARBINARY(16), date_voided TIMESTAMP, voided BOOLEAN)");
+		archiveTable = new SchemaCatalog().getTable(connection, "archive_obs");
+		key = TableKey.forTable(archiveTable);
+	}
+	
+	@Test
+	public void testExportsChunksAndImportsThemBack() throws Exception {
+		insertRows();
+		List<String> before = readRows();
+		File directory = folder.getRoot();
+		
+		ArchiveExporter exporter = new ArchiveExporter();
+		ArchiveExporter.Export export = exporter.start("obs", "archive_obs", archiveTable, key, directory);
+		List<List<Object[]>> chunks = new ArrayList<List<Object[]>>();
+		while (!export.isComplete()) {
+			chunks.add(exporter.exportChunk(connection, export));
+		}
+		assertEquals(2, chunks.size());
+		assertEquals(ArchiveExporter.ROWS_PER_CHUNK, chunks.get(0).size());
+		assertEquals(ROWS, ((Number) chunks.get(0).get(0)[0]).intValue());
+		assertEquals(3, chunks.get(1).size());
+		assertEquals(1, ((Number) chunks.get(1).get(2)[0]).intValue());
+		execute("TRUNCATE TABLE archive_obs");
+		
+		ExportManifest manifest = ExportManifest.load(export.getManifestFile());
+		assertTrue(manifest.isComplete());
+		assertEquals(2, manifest.getChunkCount());
+		assertEquals(ROWS, manifest.getRowCount());
+		
+		ArchiveImporter importer = new ArchiveImporter();
+		long imported = 0;
+		for (int chunk = 0; chunk < manifest.getChunkCount(); chunk++) {
+			imported += importer.importChunk(connection, "archive_obs", key, manifest, directory, chunk);
+		}
+		assertEquals(ROWS, imported);
+		assertEquals(before, readRows());
+		
+		// A chunk imported again only skips the rows that are already there
+		assertEquals(0, importer.importChunk(connection, "archive_obs", key, manifest, directory, 1));
+		assertEquals(before, readRows());
+	}
+	
+	@Test
+	public void testExportsEmptyTableAsCompleteManifest() throws Exception {
+		ArchiveExporter exporter = new ArchiveExporter();
+		ArchiveExporter.Export export = exporter.start("obs", "archive_obs", archiveTable, key, folder.getRoot());
+		assertTrue(exporter.exportChunk(connection, export).isEmpty());
+		assertTrue(export.isComplete());
+		assertEquals(0, ExportManifest.load(export.getManifestFile()).getChunkCount());
+	}
+	
+	/**
+	 * Fills the table with a full chunk and three more rows, including values that need escaping.
+	 */
+	private void insertRows() throws SQLException {
+		execute("INSERT INTO archive_obs SELECT X, CONCAT('uuid-', X), CASE WHEN MOD(X, 7) = 0 THEN NULL ELSE X / 100.0 "
+		        + "END, 'plain', CASE WHEN MOD(X, 3) = 0 THEN X'00ff80' END, DATEADD('SECOND', X, TIMESTAMP "
+		        + "'2024-01-01 00:00:00'), MOD(X, 2) = 0 FROM SYSTEM_RANGE(1, " + ROWS + ")");
+		// Values that need escaping, in both chunks
+		PreparedStatement update = connection.prepareStatement("UPDATE archive_obs SET value_text = ? WHERE obs_id = ?");
+		String[] texts = { "quote \" and backslash \\", "line\nbreak\ttab", "accents \u00e9 \u00fc \u2695", null };
+		for (int i = 0; i < texts.length; i++) {
+			for (int id : new int[] { i + 1, ROWS - i }) {
+				update.setString(1, texts[i]);
+				update.setInt(2, id);
+				update.executeUpdate();
+			}
+		}
+		update.close();
+	}
+	
+	/**
+	 * @return every row of the table as text, in key order
+	 */
+	private List<String> readRows() throws SQLException {
+		List<String> rows = new ArrayList<String>();
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT * FROM archive_obs ORDER BY obs_id");
+			int columns = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				StringBuilder row = new StringBuilder();
+				for (int i = 1; i <= columns; i++) {
+					Object value = rs.getObject(i);
+					row.append(value instanceof byte[] ? Arrays.toString((byte[]) value) : String.valueOf(value)).append(
+					    '|');
+				}
+				rows.add(row.toString());
+			}
+		}
+		finally {
+			stmt.close();
+		}
+		return rows;
+	}
+}
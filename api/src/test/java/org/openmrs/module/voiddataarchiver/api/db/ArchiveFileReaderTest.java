@@ -0,0 +1,113 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests lookups in an indexed export chunk, laid out the way {@link ArchiveExporter} writes it: a
+ * header block followed by blocks of rows, each its own gzip member.
+ */
+public class ArchiveFileReaderTest {
+	
+	private static final String CHUNK = "archive_obs-1-00001.ndjson.gz";
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private ExportManifest manifest;
+	
+	@Before
+	public void writeChunk() throws Exception {
+		manifest = new ExportManifest("obs", Arrays.asList("obs_id", "uuid", "voided_by", "date_voided", "void_reason"),
+		        new int[] { Types.INTEGER, Types.CHAR, Types.INTEGER, Types.TIMESTAMP, Types.VARCHAR });
+		manifest.setKeyColumn("obs_id");
+		
+		List<ExportIndex.Entry> entries = new ArrayList<ExportIndex.Entry>();
+		FileOutputStream out = new FileOutputStream(new File(folder.getRoot(), CHUNK));
+		try {
+			writeBlock(out, manifest.getSchemaHeader() + "\n");
+			for (int block = 0; block < 3; block++) {
+				long offset = out.getChannel().position();
+				StringBuilder lines = new StringBuilder();
+				List<ExportIndex.Entry> blockEntries = new ArrayList<ExportIndex.Entry>();
+				for (int id = block * 10 + 1; id <= block * 10 + 10; id++) {
+					lines.append("[").append(id).append(",").append(ChunkFormat.quote("uuid-" + id)).append(",1,")
+					        .append(1000L * id).append(",").append(ChunkFormat.quote("reason " + id)).append("]\n");
+					blockEntries.add(new ExportIndex.Entry("uuid-" + id, (long) id));
+				}
+				writeBlock(out, lines.toString());
+				for (ExportIndex.Entry entry : blockEntries) {
+					entry.setBlock(offset, (int) (out.getChannel().position() - offset));
+				}
+				entries.addAll(blockEntries);
+			}
+		}
+		finally {
+			out.close();
+		}
+		Collections.reverse(entries);
+		ExportIndex.write(new File(folder.getRoot(), ExportIndex.getIndexFile(CHUNK)), entries);
+		manifest.addChunk(CHUNK, 30, "unchecked");
+	}
+	
+	private static void writeBlock(FileOutputStream out, String lines) throws Exception {
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(lines.getBytes("UTF-8"));
+		gzip.finish();
+	}
+	
+	@Test
+	public void testFindsRowsThroughIndex() throws Exception {
+		ExportIndex index = ExportIndex.open(new File(folder.getRoot(), ExportIndex.getIndexFile(CHUNK)));
+		assertEquals(30, index.getUuidCount());
+		assertEquals(30, index.getKeyCount());
+		assertEquals(index.findKey(12).getOffset(), index.findUuid("uuid-15").getOffset());
+		assertNotEquals(index.findKey(12).getOffset(), index.findKey(25).getOffset());
+		assertNull(index.findUuid("uuid-99"));
+		assertNull(index.findKey(31));
+		
+		ArchiveFileReader reader = new ArchiveFileReader(folder.getRoot(), manifest);
+		List<List<String>> rows = reader.findRows("uuid", Arrays.asList("uuid-30", "uuid-1", "uuid-99"));
+		assertEquals(2, rows.size());
+		assertEquals("reason 30", reader.toVoidedEntry(rows.get(1)).getVoidReason());
+		assertEquals(30000L, reader.toVoidedEntry(rows.get(1)).getDateVoidedMillis());
+		
+		rows = reader.findRows("OBS_ID", Arrays.asList("017", "x"));
+		assertEquals(1, rows.size());
+		assertEquals("uuid-17", rows.get(0).get(1));
+	}
+	
+	@Test
+	public void testScansChunksWithoutIndex() throws Exception {
+		assertTrue(new File(folder.getRoot(), ExportIndex.getIndexFile(CHUNK)).delete());
+		ArchiveFileReader reader = new ArchiveFileReader(folder.getRoot(), manifest);
+		assertEquals(Arrays.asList("22"), reader.findRows("uuid", Arrays.asList("uuid-22")).get(0).subList(0, 1));
+		assertEquals(1, reader.findRows("void_reason", Arrays.asList("reason 5")).size());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsUnknownColumn() throws Exception {
+		new ArchiveFileReader(folder.getRoot(), manifest).findRows("concept_id", Arrays.asList("1"));
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Types;
+
+import org.junit.Test;
+import org.openmrs.api.APIException;
+import static org.junit.Assert.*;
+
+/**
+ * Tests how the archive target global property is interpreted; none of the targets it creates touch
+ * the database until they are used.
+ */
+public class ArchiveTargetProviderTest {
+	
+	@Test
+	public void testDefaultsToSameSchema() {
+		ArchiveTargetProvider provider = new ArchiveTargetProvider();
+		provider.configure("  ");
+		ArchiveTarget target = provider.getTarget();
+		assertTrue(target instanceof SameSchemaArchiveTarget);
+		assertTrue(target.isSharedConnection());
+		assertEquals("archive_obs", target.getArchiveTableName("obs"));
+	}
+	
+	@Test
+	public void testConfiguresSeparateSchema() {
+		ArchiveTargetProvider provider = new ArchiveTargetProvider();
+		provider.configure("schema: openmrs_archive");
+		ArchiveTarget target = provider.getTarget();
+		assertTrue(target instanceof SeparateSchemaArchiveTarget);
+		assertTrue(target.isSharedConnection());
+		assertEquals("openmrs_archive.archive_obs", target.getArchiveTableName("obs"));
+	}
+	
+	@Test(expected = APIException.class)
+	public void testRejectsUnsafeSchemaName() {
+		ArchiveTargetProvider provider = new ArchiveTargetProvider();
+		provider.configure("schema:archive; DROP TABLE obs");
+		provider.getTarget();
+	}
+	
+	@Test(expected = APIException.class)
+	public void testRejectsUnknownTarget() {
+		ArchiveTargetProvider provider = new ArchiveTargetProvider();
+		provider.configure("ftp://archive");
+		provider.getTarget();
+	}
+	
+	@Test
+	public void testRecoversFromInvalidValue() {
+		ArchiveTargetProvider provider = new ArchiveTargetProvider();
+		provider.configure("ftp://archive");
+		provider.configure(null);
+		assertTrue(provider.getTarget() instanceof SameSchemaArchiveTarget);
+	}
+	
+	@Test
+	public void testColumnTypesForDataSourceTables() {
+		assertEquals("VARCHAR(38)", DataSourceArchiveTarget.getColumnType("VARCHAR", Types.VARCHAR, 38, 0));
+		assertEquals("DECIMAL(10,2)", DataSourceArchiveTarget.getColumnType("DECIMAL", Types.DECIMAL, 10, 2));
+		assertEquals("DATETIME", DataSourceArchiveTarget.getColumnType("DATETIME", Types.TIMESTAMP, 19, 0));
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the SQL each dialect builds, see {@link H2ArchiverDialectTest} for statements run on a database.
+ */
+public class ArchiverDialectTest {
+	
+	@Test
+	public void testChoosesDialectByProductName() {
+		assertEquals("mysql", ArchiverDialect.forProductName("MySQL").getName());
+		assertEquals("mysql", ArchiverDialect.forProductName("MariaDB").getName());
+		assertEquals("postgresql", ArchiverDialect.forProductName("PostgreSQL").getName());
+		assertEquals("h2", ArchiverDialect.forProductName("H2").getName());
+		assertEquals("standard", ArchiverDialect.forProductName("Apache Derby").getName());
+	}
+	
+	@Test
+	public void testInsertIgnore() {
+		TableKey key = TableKey.forTable(table("archive_obs", "obs_id"));
+		assertEquals("INSERT IGNORE INTO archive_obs SELECT * FROM obs WHERE voided = 1", ArchiverDialect
+		        .forProductName("MySQL").getInsertIgnore("archive_obs", "SELECT * FROM obs WHERE voided = 1", key));
+		assertEquals("INSERT INTO archive_obs SELECT * FROM (SELECT * FROM obs WHERE voided = TRUE) r WHERE NOT EXISTS "
+		        + "(SELECT 1 FROM archive_obs x WHERE x.obs_id = r.obs_id)", ArchiverDialect.forProductName("H2")
+		        .getInsertIgnore("archive_obs", "SELECT * FROM obs WHERE voided = TRUE", key));
+	}
+	
+	@Test
+	public void testInsertIgnoreRow() {
+		TableKey key = TableKey.forTable(table("archive_obs", "obs_id"));
+		List<String> columns = Arrays.asList("uuid", "obs_id");
+		assertEquals("INSERT INTO archive_obs (uuid, obs_id) VALUES (?, ?) ON CONFLICT DO NOTHING", ArchiverDialect
+		        .forProductName("PostgreSQL").getInsertIgnoreRow("archive_obs", columns, key));
+		assertEquals("INSERT INTO archive_obs (uuid, obs_id) SELECT ?1, ?2 WHERE NOT EXISTS (SELECT 1 FROM archive_obs x "
+		        + "WHERE x.obs_id = ?2)", ArchiverDialect.forProductName("H2").getInsertIgnoreRow("archive_obs", columns,
+		    key));
+	}
+	
+	@Test
+	public void testMovesInOneStatementOnPostgreSql() {
+		TableKey key = TableKey.forTable(table("obs", "obs_id"));
+		assertNull(ArchiverDialect.forProductName("MySQL").getMoveStatement("obs", "archive_obs", "voided = 1", key));
+		assertEquals("WITH matched AS (SELECT * FROM obs WHERE obs_id IN (?) AND voided = TRUE), inserted AS ("
+		        + "INSERT INTO archive_obs SELECT * FROM matched ON CONFLICT DO NOTHING RETURNING obs_id), settled AS ("
+		        + "SELECT obs_id FROM inserted UNION SELECT m.obs_id FROM matched m WHERE EXISTS (SELECT 1 FROM "
+		        + "archive_obs t WHERE t.obs_id = m.obs_id)), moved AS (DELETE FROM obs f USING settled s WHERE "
+		        + "f.obs_id = s.obs_id AND f.voided = TRUE RETURNING 1) SELECT COUNT(*) FROM moved",
+		    ArchiverDialect.forProductName("PostgreSQL").getMoveStatement("obs", "archive_obs",
+		        "obs_id IN (?) AND voided = TRUE", key));
+	}
+	
+	@Test
+	public void testDeleteLimit() {
+		assertEquals("DELETE FROM archive_obs WHERE date_voided < ? LIMIT 500", ArchiverDialect.forProductName("MySQL")
+		        .getDeleteLimit("archive_obs", "date_voided < ?", 500));
+		assertEquals("DELETE FROM archive_obs WHERE ctid IN (SELECT ctid FROM archive_obs WHERE date_voided < ? "
+		        + "LIMIT 500)",
+		    ArchiverDialect.forProductName("PostgreSQL").getDeleteLimit("archive_obs", "date_voided < ?", 500));
+	}
+	
+	@Test
+	public void testCreateArchiveTable() {
+		assertEquals(Collections.singletonList("CREATE TABLE archive_obs LIKE obs"), ArchiverDialect.forProductName(
+		    "MySQL").getCreateArchiveTable("archive_obs", "obs", Arrays.asList("obs_id")));
+		assertEquals(Arrays.asList("CREATE TABLE archive_obs AS SELECT * FROM obs WHERE 1=0",
+		    "ALTER TABLE archive_obs ALTER COLUMN obs_id SET NOT NULL", "ALTER TABLE archive_obs ADD PRIMARY KEY (obs_id)"),
+		    ArchiverDialect.forProductName("H2").getCreateArchiveTable("archive_obs", "obs", Arrays.asList("obs_id")));
+	}
+	
+	private static TableMetadata table(String name, String... primaryKey) {
+		TableMetadata table = new TableMetadata(name);
+		for (int i = 0; i < primaryKey.length; i++) {
+			table.addColumn(new ColumnMetadata(primaryKey[i], "INT", java.sql.Types.INTEGER, 11));
+			table.addPrimaryKeyColumn(i + 1, primaryKey[i]);
+		}
+		return table;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Base class for tests of code that only needs a JDBC connection, run against an in-memory H2
+ * database of their own rather than the OpenMRS context of {@code BaseModuleContextSensitiveTest}.
+ * The database is created empty before each test and dropped after it.
+ */
+public abstract class BaseH2DatabaseTest {
+	
+	protected Connection connection;
+	
+	@Before
+	public void openDatabase() throws SQLException {
+		// Named after the test class, so that test classes never share a database
+		connection = DriverManager.getConnection("jdbc:h2:mem:" + getClass().getSimpleName());
+	}
+	
+	@After
+	public void closeDatabase() throws SQLException {
+		// Closing the only connection drops the in-memory database
+		connection.close();
+	}
+	
+	protected void execute(String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.execute(sql);
+		}
+		finally {
+			stmt.close();
+		}
+	}
+}
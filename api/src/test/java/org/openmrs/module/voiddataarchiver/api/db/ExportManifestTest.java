@@ -0,0 +1,62 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.io.File;
+import java.sql.Types;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the export manifest and the chunk line format; they have no database or context
+ * dependencies.
+ */
+public class ExportManifestTest {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testStoresAndLoadsManifest() throws Exception {
+		ExportManifest manifest = new ExportManifest("obs", Arrays.asList("obs_id", "date_voided"), new int[] {
+		        Types.INTEGER, Types.TIMESTAMP });
+		manifest.addChunk("archive_obs-1-00001.ndjson.gz", 50000, "abc");
+		manifest.addChunk("archive_obs-1-00002.ndjson.gz", 12, "def");
+		File file = new File(folder.getRoot(), "archive_obs-1.properties");
+		manifest.store(file);
+		
+		ExportManifest loaded = ExportManifest.load(file);
+		assertEquals("obs", loaded.getTableName());
+		assertEquals(Arrays.asList("obs_id", "date_voided"), loaded.getColumnNames());
+		assertArrayEquals(new int[] { Types.INTEGER, Types.TIMESTAMP }, loaded.getColumnTypes());
+		assertEquals(2, loaded.getChunkCount());
+		assertEquals("archive_obs-1-00002.ndjson.gz", loaded.getChunkFile(1));
+		assertEquals(50012, loaded.getRowCount());
+		assertEquals("def", loaded.getChunkChecksum(1));
+		assertFalse(loaded.isComplete());
+		assertEquals(manifest.getSchemaHeader(), loaded.getSchemaHeader());
+	}
+	
+	@Test
+	public void testParsesRowValues() throws Exception {
+		assertEquals(Arrays.asList("12", null, "a \"quoted\"\nvalue", "true"), ChunkFormat.parseRow("[12,null,"
+		        + ChunkFormat.quote("a \"quoted\"\nvalue") + ",true]"));
+		assertTrue(ChunkFormat.parseRow("[]").isEmpty());
+	}
+	
+	@Test(expected = java.io.IOException.class)
+	public void testRejectsTruncatedRow() throws Exception {
+		ChunkFormat.parseRow("[12,\"abc");
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the statements of the H2 dialect against an in-memory database, the way the archiver runs
+ * them when it moves rows between a table and its archive table.
+ */
+public class H2ArchiverDialectTest extends BaseH2DatabaseTest {
+	
+	private ArchiverDialect dialect;
+	
+	private TableKey key;
+	
+	@Before
+	public void setUp() throws SQLException {
+		dialect = ArchiverDialect.forConnection(connection);
+		execute("CREATE TABLE obs (obs_id INT PRIMARY KEY, uuid CHAR(38) NOT NULL UNIQUE, value_text VARCHAR(50), "
+		        + "voided BOOLEAN NOT NULL)");
+		for (String statement : dialect.getCreateArchiveTable("archive_obs", "obs", Arrays.asList("obs_id"))) {
+			execute(statement);
+		}
+		
+		TableMetadata table = new TableMetadata("obs");
+		table.addColumn(new ColumnMetadata("obs_id", "INT", Types.INTEGER, 10));
+		table.addPrimaryKeyColumn(1, "obs_id");
+		key = TableKey.forTable(table);
+	}
+	
+	@Test
+	public void testChoosesH2Dialect() {
+		assertEquals("h2", dialect.getName());
+	}
+	
+	@Test
+	public void testCreatesArchiveTableWithPrimaryKey() throws SQLException {
+		execute("INSERT INTO archive_obs VALUES (1, 'a', 'first', TRUE)");
+		try {
+			execute("INSERT INTO archive_obs VALUES (1, 'b', 'second', TRUE)");
+			fail("The archive table has no primary key");
+		}
+		catch (SQLException expected) {}
+		
+		// Unlike the source table, the archive table has no unique index on uuid
+		execute("INSERT INTO archive_obs VALUES (2, 'a', 'third', TRUE)");
+	}
+	
+	@Test
+	public void testMovesVoidedRowsSkippingRowsAlreadyArchived() throws SQLException {
+		execute("INSERT INTO obs VALUES (1, 'a', 'first', TRUE)");
+		execute("INSERT INTO obs VALUES (2, 'b', 'second', TRUE)");
+		execute("INSERT INTO obs VALUES (3, 'c', 'third', FALSE)");
+		// Left behind by an interrupted batch, with an older value
+		execute("INSERT INTO archive_obs VALUES (2, 'b', 'old', TRUE)");
+		
+		String condition = key.getMatchPredicate(3) + " AND " + dialect.getVoidedPredicate();
+		assertNull(dialect.getMoveStatement("obs", "archive_obs", condition, key));
+		assertEquals(1, executeForKeys(dialect.getInsertIgnore("archive_obs", "SELECT * FROM obs WHERE " + condition,
+		    key), 1, 2, 3));
+		assertEquals(2, executeForKeys("DELETE FROM obs WHERE " + condition, 1, 2, 3));
+		
+		assertEquals("3", list("SELECT obs_id FROM obs"));
+		assertEquals("1 first, 2 old", list("SELECT obs_id, value_text FROM archive_obs"));
+	}
+	
+	@Test
+	public void testInsertIgnoreRowLeavesLiveRowUntouched() throws SQLException {
+		execute("INSERT INTO obs VALUES (1, 'a', 'live', FALSE)");
+		
+		PreparedStatement insert = connection.prepareStatement(dialect.getInsertIgnoreRow("obs",
+		    Arrays.asList("uuid", "value_text", "voided", "obs_id"), key));
+		try {
+			bindRow(insert, "a", "restored", 1);
+			bindRow(insert, "b", "restored", 2);
+			int[] counts = insert.executeBatch();
+			assertEquals(0, counts[0]);
+			assertEquals(1, counts[1]);
+		}
+		finally {
+			insert.close();
+		}
+		assertEquals("1 live, 2 restored", list("SELECT obs_id, value_text FROM obs"));
+	}
+	
+	@Test
+	public void testInsertIgnoreFailsRatherThanDroppingRowWithConflictingUuid() throws SQLException {
+		execute("INSERT INTO obs VALUES (9, 'a', 'live', FALSE)");
+		execute("INSERT INTO archive_obs VALUES (1, 'a', 'archived', TRUE)");
+		
+		try {
+			executeForKeys(dialect.getInsertIgnore("obs", "SELECT * FROM archive_obs WHERE " + key.getMatchPredicate(1),
+			    key), 1);
+			fail("A row with the uuid of a live row was restored");
+		}
+		catch (SQLException expected) {}
+		assertEquals("1 archived", list("SELECT obs_id, value_text FROM archive_obs"));
+		assertEquals("9 live", list("SELECT obs_id, value_text FROM obs"));
+	}
+	
+	@Test
+	public void testDeleteLimit() throws SQLException {
+		for (int i = 1; i <= 5; i++) {
+			execute("INSERT INTO archive_obs VALUES (" + i + ", 'u" + i + "', NULL, TRUE)");
+		}
+		assertEquals(2, connection.createStatement().executeUpdate(dialect.getDeleteLimit("archive_obs", "obs_id > 1",
+		    2)));
+		assertEquals(3, Integer.parseInt(list("SELECT COUNT(*) FROM archive_obs")));
+	}
+	
+	@Test
+	public void testKeepsForeignKeyChecks() throws SQLException {
+		execute("CREATE TABLE obs_child (child_id INT PRIMARY KEY, obs_id INT REFERENCES obs (obs_id))");
+		// Turning the checks off would affect every connection to the database
+		dialect.setForeignKeyChecks(connection, false);
+		try {
+			execute("INSERT INTO obs_child VALUES (1, 42)");
+			fail("Foreign key checks were turned off");
+		}
+		catch (SQLException expected) {}
+	}
+	
+	private int executeForKeys(String sql, int... ids) throws SQLException {
+		PreparedStatement ps = connection.prepareStatement(sql);
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				ps.setInt(i + 1, ids[i]);
+			}
+			return ps.executeUpdate();
+		}
+		finally {
+			ps.close();
+		}
+	}
+	
+	private static void bindRow(PreparedStatement insert, String uuid, String value, int obsId) throws SQLException {
+		insert.setString(1, uuid);
+		insert.setString(2, value);
+		insert.setBoolean(3, true);
+		insert.setInt(4, obsId);
+		insert.addBatch();
+	}
+	
+	/**
+	 * @return the rows of a query ordered by its first column, as space separated values joined by
+	 *         commas
+	 */
+	private String list(String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql + (sql.contains("COUNT") ? "" : " ORDER BY 1"));
+			StringBuilder sb = new StringBuilder();
+			while (rs.next()) {
+				sb.append(sb.length() > 0 ? ", " : "");
+				for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+					sb.append(i > 1 ? " " : "").append(rs.getString(i));
+				}
+			}
+			return sb.toString();
+		}
+		finally {
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the keyset and key matching SQL of a composite key, and that the parameters are bound in
+ * the order the SQL expects them.
+ */
+public class TableKeyTest {
+	
+	@Test
+	public void testBeforePredicateOfSingleColumnKey() {
+		assertEquals("obs_id < ?", key("obs_id").getBeforePredicate());
+	}
+	
+	@Test
+	public void testBeforePredicateOfTwoColumnKey() {
+		assertEquals("patient_id <= ? AND ((patient_id < ?) OR (patient_id = ? AND program_id < ?))", key(
+		    "patient_id", "program_id").getBeforePredicate());
+	}
+	
+	@Test
+	public void testBindsBeforePredicateInOrder() throws SQLException {
+		List<String> bound = new ArrayList<String>();
+		assertEquals(6, key("patient_id", "program_id").bindBefore(recorder(bound), 2, new Object[] { 7L, 3L }));
+		// patient_id <= 7, patient_id < 7, patient_id = 7, program_id < 3
+		assertEquals(Arrays.asList("2=7", "3=7", "4=7", "5=3"), bound);
+	}
+	
+	@Test
+	public void testMatchPredicateOfTwoColumnKey() throws SQLException {
+		TableKey key = key("patient_id", "program_id");
+		assertEquals("((patient_id = ? AND program_id = ?) OR (patient_id = ? AND program_id = ?) OR "
+		        + "(patient_id = ? AND program_id = ?))", key.getMatchPredicate(3));
+		
+		List<String> bound = new ArrayList<String>();
+		List<Object[]> keys = Arrays.asList(new Object[] { 1L, 2L }, new Object[] { 4L, 5L });
+		assertEquals(7, key.bindKeys(recorder(bound), 1, keys, 3));
+		// The last key is repeated to fill the statement
+		assertEquals(Arrays.asList("1=1", "2=2", "3=4", "4=5", "5=4", "6=5"), bound);
+	}
+	
+	@Test
+	public void testPagesThroughTwoColumnKeyOnDatabase() throws SQLException {
+		TableKey key = key("patient_id", "program_id");
+		Connection connection = DriverManager.getConnection("jdbc:h2:mem:tablekey");
+		try {
+			Statement stmt = connection.createStatement();
+			stmt.execute("CREATE TABLE patient_program (patient_id INT, program_id INT, PRIMARY KEY (patient_id, "
+			        + "program_id))");
+			for (int patient = 1; patient <= 3; patient++) {
+				for (int program = 1; program <= 3; program++) {
+					stmt.execute("INSERT INTO patient_program VALUES (" + patient + ", " + program + ")");
+				}
+			}
+			stmt.close();
+			
+			// Pages of two rows in descending key order, each continuing below the last key of the previous
+			PreparedStatement first = connection.prepareStatement("SELECT " + key.getColumnList()
+			        + " FROM patient_program ORDER BY " + key.getDescendingOrder() + " LIMIT 2");
+			PreparedStatement next = connection.prepareStatement("SELECT " + key.getColumnList()
+			        + " FROM patient_program WHERE " + key.getBeforePredicate() + " ORDER BY " + key.getDescendingOrder()
+			        + " LIMIT 2");
+			List<String> rows = new ArrayList<String>();
+			Object[] lastKey = null;
+			while (true) {
+				PreparedStatement page = lastKey == null ? first : next;
+				if (lastKey != null) {
+					key.bindBefore(page, 1, lastKey);
+				}
+				ResultSet rs = page.executeQuery();
+				int count = 0;
+				while (rs.next()) {
+					lastKey = key.readKey(rs);
+					rows.add(key.format(lastKey));
+					count++;
+				}
+				rs.close();
+				if (count == 0) {
+					break;
+				}
+			}
+			assertEquals(Arrays.asList("3,3", "3,2", "3,1", "2,3", "2,2", "2,1", "1,3", "1,2", "1,1"), rows);
+		}
+		finally {
+			connection.close();
+		}
+	}
+	
+	@Test
+	public void testParsesFormattedKey() {
+		TableKey key = key("patient_id", "program_id");
+		Object[] parsed = key.parse(key.format(new Object[] { 12, 34 }));
+		assertArrayEquals(new Object[] { 12L, 34L }, parsed);
+		assertNull(key.parse("12"));
+	}
+	
+	@Test
+	public void testParsesDateAndTimeKeys() {
+		TableMetadata table = new TableMetadata("t");
+		table.addColumn(new ColumnMetadata("day", "DATE", Types.DATE, 10));
+		table.addColumn(new ColumnMetadata("at", "TIME", Types.TIME, 8));
+		table.addColumn(new ColumnMetadata("changed", "DATETIME", Types.TIMESTAMP, 19));
+		table.addPrimaryKeyColumn(1, "day");
+		table.addPrimaryKeyColumn(2, "at");
+		table.addPrimaryKeyColumn(3, "changed");
+		TableKey key = TableKey.forTable(table);
+		
+		Object[] original = { Date.valueOf("2024-02-29"), Time.valueOf("13:45:07"),
+		        Timestamp.valueOf("2024-02-29 13:45:07.25") };
+		Object[] parsed = key.parse(key.format(original));
+		assertArrayEquals(original, parsed);
+		assertEquals(Timestamp.class, parsed[2].getClass());
+	}
+	
+	private static TableKey key(String... columns) {
+		TableMetadata table = new TableMetadata("t");
+		for (int i = 0; i < columns.length; i++) {
+			table.addColumn(new ColumnMetadata(columns[i], "INT", Types.INTEGER, 10));
+			table.addPrimaryKeyColumn(i + 1, columns[i]);
+		}
+		return TableKey.forTable(table);
+	}
+	
+	/**
+	 * @return a statement that only records the values bound with setObject, as index=value
+	 */
+	private static PreparedStatement recorder(final List<String> bound) {
+		return (PreparedStatement) Proxy.newProxyInstance(TableKeyTest.class.getClassLoader(),
+		    new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+			    
+			    @Override
+			    public Object invoke(Object proxy, Method method, Object[] args) {
+				    if (method.getName().equals("setObject")) {
+					    bound.add(args[0] + "=" + args[1]);
+				    }
+				    return null;
+			    }
+		    });
+	}
+}
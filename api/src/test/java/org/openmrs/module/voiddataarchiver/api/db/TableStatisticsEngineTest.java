@@ -0,0 +1,63 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.voiddataarchiver.api.StatisticsMode;
+import org.openmrs.module.voiddataarchiver.api.TableInfo;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the estimated voided count on an in-memory table whose older half is voided, where a sample
+ * of the first rows alone would report every row as voided.
+ */
+public class TableStatisticsEngineTest extends BaseH2DatabaseTest {
+	
+	private static final int ROWS = 2 * TableStatisticsEngine.SAMPLE_SIZE;
+	
+	private static final long ESTIMATE = 10 * TableStatisticsEngine.EXACT_COUNT_THRESHOLD;
+	
+	private final TableStatisticsEngine engine = new TableStatisticsEngine();
+	
+	@Before
+	public void setUp() throws SQLException {
+		execute("CREATE TABLE obs (obs_id INT PRIMARY KEY, uuid CHAR(38), voided BOOLEAN)");
+		execute("INSERT INTO obs SELECT X, CONCAT('uuid-', X), X <= " + ROWS / 2 + " FROM SYSTEM_RANGE(1, " + ROWS + ")");
+	}
+	
+	@Test
+	public void testSamplesAcrossTheKeyRange() throws SQLException {
+		TableKey key = TableKey.forTable(new SchemaCatalog().getTable(connection, "obs"));
+		TableInfo info = new TableInfo("obs", true);
+		engine.collect(connection, "obs", key, info, StatisticsMode.ESTIMATED, estimates());
+		assertEquals(ESTIMATE, info.getTotalRecords().longValue());
+		assertEquals(ESTIMATE / 2, info.getVoidedRecords().longValue());
+		assertTrue(info.isTotalEstimated());
+		assertTrue(info.isVoidedEstimated());
+	}
+	
+	@Test
+	public void testCountsExactlyInExactMode() throws SQLException {
+		TableInfo info = new TableInfo("obs", true);
+		engine.collect(connection, "obs", null, info, StatisticsMode.EXACT, estimates());
+		assertEquals(ROWS, info.getTotalRecords().longValue());
+		assertEquals(ROWS / 2, info.getVoidedRecords().longValue());
+		assertFalse(info.isVoidedEstimated());
+	}
+	
+	private Map<String, Long> estimates() {
+		return Collections.singletonMap("obs", ESTIMATE);
+	}
+}
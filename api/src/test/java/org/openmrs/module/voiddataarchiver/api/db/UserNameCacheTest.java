@@ -0,0 +1,99 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.voiddataarchiver.api.UserName;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the user name cache keeps the most recently used users, on an in-memory database whose
+ * user names are changed behind the cache's back to tell cached users from reloaded ones.
+ */
+public class UserNameCacheTest extends BaseH2DatabaseTest {
+	
+	private static final int USERS = 1001;
+	
+	private final UserNameCache cache = new UserNameCache();
+	
+	@Before
+	public void setUp() throws SQLException {
+		execute("CREATE TABLE users (user_id INT PRIMARY KEY, username VARCHAR(50), system_id VARCHAR(50), "
+		        + "person_id INT)");
+		execute("CREATE TABLE person_name (person_name_id INT PRIMARY KEY, person_id INT, given_name VARCHAR(50), "
+		        + "family_name VARCHAR(50), preferred BOOLEAN, voided BOOLEAN)");
+		PreparedStatement user = connection.prepareStatement("INSERT INTO users VALUES (?, ?, ?, ?)");
+		for (int i = 1; i <= USERS; i++) {
+			user.setInt(1, i);
+			user.setString(2, "user" + i);
+			user.setString(3, i + "-1");
+			user.setInt(4, i);
+			user.addBatch();
+		}
+		user.executeBatch();
+		user.close();
+		execute("INSERT INTO person_name VALUES (1, 1, 'Super', 'User', TRUE, FALSE)");
+		execute("INSERT INTO person_name VALUES (2, 1, 'Old', 'Name', FALSE, FALSE)");
+	}
+	
+	@Test
+	public void testResolvesUsersByPreferredName() throws SQLException {
+		Map<Integer, UserName> users = cache.getUsers(connection, Arrays.asList(1, 2, 5000));
+		assertEquals(2, users.size());
+		assertEquals("user1", users.get(1).getUsername());
+		assertEquals("Super User", users.get(1).getDisplayName());
+		assertNull(users.get(2).getDisplayName());
+	}
+	
+	@Test
+	public void testEvictsLeastRecentlyUsedUser() throws SQLException {
+		cache.getUsers(connection, range(1, USERS - 1));
+		// User 1 is used again, which leaves user 2 the least recently used one
+		cache.getUsers(connection, Arrays.asList(1));
+		cache.getUsers(connection, Arrays.asList(USERS));
+		
+		execute("UPDATE users SET username = CONCAT('renamed', user_id)");
+		Map<Integer, UserName> users = cache.getUsers(connection, Arrays.asList(1, 2, 3, USERS));
+		assertEquals("user1", users.get(1).getUsername());
+		assertEquals("renamed2", users.get(2).getUsername());
+		assertEquals("user3", users.get(3).getUsername());
+		assertEquals("user" + USERS, users.get(USERS).getUsername());
+	}
+	
+	@Test
+	public void testInvalidateDiscardsCachedUsers() throws SQLException {
+		cache.getUsers(connection, Arrays.asList(1, 2, 3));
+		execute("UPDATE users SET username = CONCAT('renamed', user_id)");
+		
+		cache.invalidate(1);
+		Map<Integer, UserName> users = cache.getUsers(connection, Arrays.asList(1, 2));
+		assertEquals("renamed1", users.get(1).getUsername());
+		assertEquals("user2", users.get(2).getUsername());
+		
+		cache.invalidate();
+		assertEquals("renamed3", cache.getUsers(connection, Arrays.asList(3)).get(3).getUsername());
+	}
+	
+	private static List<Integer> range(int from, int to) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i = from; i <= to; i++) {
+			ids.add(i);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db;
+
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the in-memory void counters; they have no database or context dependencies.
+ */
+public class VoidCountersTest {
+	
+	@Test
+	public void testVoidsAndUnvoidsAddUp() {
+		VoidCounters counters = new VoidCounters();
+		counters.add("obs", 3);
+		counters.add("obs", -1);
+		assertEquals(2, counters.getPending("obs"));
+		assertEquals(0, counters.getPending("visit"));
+	}
+	
+	@Test
+	public void testDrainReturnsNonZeroCountsAndResets() {
+		VoidCounters counters = new VoidCounters();
+		counters.add("obs", 2);
+		counters.add("visit", 1);
+		counters.add("visit", -1);
+		Map<String, Long> deltas = counters.drain();
+		assertEquals(1, deltas.size());
+		assertEquals(Long.valueOf(2), deltas.get("obs"));
+		assertEquals(0, counters.getPending("obs"));
+		assertTrue(counters.drain().isEmpty());
+	}
+	
+	@Test
+	public void testAddAllRestoresDrainedCounts() {
+		VoidCounters counters = new VoidCounters();
+		counters.add("obs", 5);
+		Map<String, Long> deltas = counters.drain();
+		counters.add("obs", 1);
+		counters.addAll(deltas);
+		assertEquals(6, counters.getPending("obs"));
+	}
+	
+	@Test
+	public void testResetDiscardsTableCounts() {
+		VoidCounters counters = new VoidCounters();
+		counters.add("obs", 5);
+		counters.add("visit", 1);
+		counters.reset("obs");
+		assertEquals(0, counters.getPending("obs"));
+		assertEquals(1, counters.getPending("visit"));
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.db.hibernate;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.voiddataarchiver.api.RestoreCriteria;
+import org.openmrs.module.voiddataarchiver.api.db.BaseH2DatabaseTest;
+import org.openmrs.module.voiddataarchiver.api.db.SchemaCatalog;
+import org.openmrs.module.voiddataarchiver.api.db.TableMetadata;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the conditions restore criteria translate to, and the rows they select on an in-memory
+ * database.
+ */
+public class RestoreCriteriaSqlTest extends BaseH2DatabaseTest {
+	
+	private final HibernateVoidDataArchiverDao dao = new HibernateVoidDataArchiverDao();
+	
+	private TableMetadata archiveObs;
+	
+	@Before
+	public void setUp() throws SQLException {
+		execute("CREATE TABLE archive_obs (obs_id INT PRIMARY KEY, person_id INT, uuid CHAR(38), "
+		        + "date_voided TIMESTAMP, voided_by INT, void_reason VARCHAR(255), voided BOOLEAN)");
+		execute("INSERT INTO archive_obs VALUES (1, 7, 'u1', '2024-01-10 00:00:00', 2, 'Entered in error', TRUE)");
+		execute("INSERT INTO archive_obs VALUES (2, 7, 'u2', '2024-02-10 00:00:00', 2, 'Duplicate', TRUE)");
+		execute("INSERT INTO archive_obs VALUES (3, 8, 'u3', '2024-02-20 00:00:00', 3, 'Entered in error', TRUE)");
+		execute("INSERT INTO archive_obs VALUES (4, 7, 'u4', '2024-03-10 00:00:00', 2, 'Entered in error', TRUE)");
+		execute("CREATE TABLE archive_drug_order (order_id INT PRIMARY KEY, patient_id INT, person_id INT)");
+		execute("CREATE TABLE archive_concept_name (concept_name_id INT PRIMARY KEY, uuid CHAR(38))");
+		archiveObs = new SchemaCatalog().getTable(connection, "archive_obs");
+	}
+	
+	@Test
+	public void testNoCriteriaAddNoConditions() throws SQLException {
+		List<String> conditions = new ArrayList<String>();
+		List<Object> params = new ArrayList<Object>();
+		dao.addCriteria(archiveObs, null, conditions, params);
+		dao.addCriteria(archiveObs, new RestoreCriteria(), conditions, params);
+		assertTrue(conditions.isEmpty());
+		assertTrue(params.isEmpty());
+	}
+	
+	@Test
+	public void testTranslatesEveryCriterion() throws SQLException {
+		RestoreCriteria criteria = new RestoreCriteria();
+		criteria.setUuids(new LinkedHashSet<String>(Arrays.asList("u1", "u2", "u3", "u4")));
+		criteria.setVoidedFrom(Timestamp.valueOf("2024-02-01 00:00:00"));
+		criteria.setVoidedTo(Timestamp.valueOf("2024-03-01 00:00:00"));
+		criteria.setVoidedBy(2);
+		criteria.setVoidReasonPattern("Dup%");
+		criteria.setPersonId(7);
+		
+		List<String> conditions = new ArrayList<String>();
+		List<Object> params = new ArrayList<Object>();
+		dao.addCriteria(archiveObs, criteria, conditions, params);
+		assertEquals(Arrays.asList("uuid IN (?, ?, ?, ?)", "date_voided >= ?", "date_voided < ?", "voided_by = ?",
+		    "void_reason LIKE ?", "person_id = ?"), conditions);
+		assertEquals(Arrays.<Object> asList("u1", "u2", "u3", "u4", Timestamp.valueOf("2024-02-01 00:00:00"), Timestamp
+		        .valueOf("2024-03-01 00:00:00"), 2, "Dup%", 7), params);
+		assertEquals(Arrays.asList(2), select(conditions, params));
+	}
+	
+	@Test
+	public void testSelectsRowsVoidedInRangeForReason() throws SQLException {
+		RestoreCriteria criteria = new RestoreCriteria();
+		criteria.setVoidedFrom(Timestamp.valueOf("2024-01-01 00:00:00"));
+		criteria.setVoidedTo(Timestamp.valueOf("2024-03-01 00:00:00"));
+		criteria.setVoidReasonPattern("%in error");
+		
+		List<String> conditions = new ArrayList<String>();
+		List<Object> params = new ArrayList<Object>();
+		dao.addCriteria(archiveObs, criteria, conditions, params);
+		assertEquals(Arrays.asList(1, 3), select(conditions, params));
+	}
+	
+	@Test
+	public void testMatchesPersonOnEitherPersonColumn() throws SQLException {
+		RestoreCriteria criteria = new RestoreCriteria();
+		criteria.setPersonId(7);
+		
+		List<String> conditions = new ArrayList<String>();
+		List<Object> params = new ArrayList<Object>();
+		dao.addCriteria(new SchemaCatalog().getTable(connection, "archive_drug_order"), criteria, conditions, params);
+		assertEquals(Arrays.asList("(person_id = ? OR patient_id = ?)"), conditions);
+		assertEquals(Arrays.<Object> asList(7, 7), params);
+	}
+	
+	@Test
+	public void testRejectsCriteriaOnMissingColumns() throws SQLException {
+		TableMetadata conceptName = new SchemaCatalog().getTable(connection, "archive_concept_name");
+		RestoreCriteria byPerson = new RestoreCriteria();
+		byPerson.setPersonId(7);
+		RestoreCriteria byVoider = new RestoreCriteria();
+		byVoider.setVoidedBy(2);
+		for (RestoreCriteria criteria : Arrays.asList(byPerson, byVoider)) {
+			try {
+				dao.addCriteria(conceptName, criteria, new ArrayList<String>(), new ArrayList<Object>());
+				fail("Accepted a criterion on a column archive_concept_name does not have");
+			}
+			catch (SQLException expected) {}
+		}
+	}
+	
+	/**
+	 * @return the ids of the archive_obs rows matching all conditions, in order
+	 */
+	private List<Integer> select(List<String> conditions, List<Object> params) throws SQLException {
+		StringBuilder sql = new StringBuilder("SELECT obs_id FROM archive_obs");
+		for (int i = 0; i < conditions.size(); i++) {
+			sql.append(i == 0 ? " WHERE " : " AND ").append(conditions.get(i));
+		}
+		PreparedStatement ps = connection.prepareStatement(sql.append(" ORDER BY obs_id").toString());
+		try {
+			for (int i = 0; i < params.size(); i++) {
+				ps.setObject(i + 1, params.get(i));
+			}
+			ResultSet rs = ps.executeQuery();
+			List<Integer> ids = new ArrayList<Integer>();
+			while (rs.next()) {
+				ids.add(rs.getInt(1));
+			}
+			return ids;
+		}
+		finally {
+			ps.close();
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the grouping of tables into levels that can be archived in parallel, and which tables a
+ * failed table holds back.
+ */
+public class TopologicalSortTest {
+	
+	private final VoidDataArchiverServiceImpl service = new VoidDataArchiverServiceImpl();
+	
+	@Test
+	public void testPlacesChildrenBeforeTheirParents() {
+		Map<String, List<String>> deps = new HashMap<String, List<String>>();
+		deps.put("obs", Arrays.asList("encounter", "patient"));
+		deps.put("encounter", Arrays.asList("patient"));
+		
+		List<List<String>> levels = service.topologicalSort(deps, nodes("patient", "encounter", "obs", "note"));
+		assertEquals(3, levels.size());
+		assertEquals(nodes("obs", "note"), new HashSet<String>(levels.get(0)));
+		assertEquals(Arrays.asList("encounter"), levels.get(1));
+		assertEquals(Arrays.asList("patient"), levels.get(2));
+	}
+	
+	@Test
+	public void testPlacesTableAfterItsLastChild() {
+		// patient is referenced by obs directly and, one level further down, through encounter
+		Map<String, List<String>> deps = new HashMap<String, List<String>>();
+		deps.put("obs", Arrays.asList("encounter", "patient"));
+		deps.put("encounter", Arrays.asList("visit"));
+		deps.put("visit", Arrays.asList("patient"));
+		
+		List<List<String>> levels = service.topologicalSort(deps, nodes("obs", "encounter", "visit", "patient"));
+		assertEquals(Arrays.asList(Arrays.asList("obs"), Arrays.asList("encounter"), Arrays.asList("visit"), Arrays
+		        .asList("patient")), levels);
+	}
+	
+	@Test
+	public void testIgnoresTablesOutsideTheSelection() {
+		Map<String, List<String>> deps = new HashMap<String, List<String>>();
+		deps.put("obs", Arrays.asList("encounter", "concept"));
+		deps.put("archive_obs", Arrays.asList("encounter"));
+		
+		List<List<String>> levels = service.topologicalSort(deps, nodes("obs", "encounter", "archive_obs"));
+		assertEquals(2, levels.size());
+		assertEquals(nodes("obs", "archive_obs"), new HashSet<String>(levels.get(0)));
+		assertEquals(Arrays.asList("encounter"), levels.get(1));
+	}
+	
+	@Test
+	public void testAppendsTablesOnACycleOnePerLevel() {
+		Map<String, List<String>> deps = new HashMap<String, List<String>>();
+		deps.put("person", Arrays.asList("users"));
+		deps.put("users", Arrays.asList("person"));
+		
+		List<List<String>> levels = service.topologicalSort(deps, nodes("person", "users", "note"));
+		assertEquals(3, levels.size());
+		assertEquals(Arrays.asList("note"), levels.get(0));
+		assertEquals(nodes("person", "users"), nodes(levels.get(1).get(0), levels.get(2).get(0)));
+		assertEquals(Collections.singletonList(levels.get(1).get(0)), levels.get(1));
+	}
+	
+	@Test
+	public void testFindsFailedChildOfTable() {
+		Map<String, List<String>> deps = new HashMap<String, List<String>>();
+		deps.put("obs", Arrays.asList("encounter", "patient"));
+		deps.put("encounter", Arrays.asList("patient"));
+		
+		assertEquals("obs", service.getFailedChild(deps, nodes("obs"), "encounter"));
+		assertEquals("encounter", service.getFailedChild(deps, nodes("encounter"), "patient"));
+		assertNull(service.getFailedChild(deps, nodes("obs"), "visit"));
+		assertNull(service.getFailedChild(deps, Collections.<String> emptySet(), "patient"));
+	}
+	
+	private static Set<String> nodes(String... names) {
+		return new LinkedHashSet<String>(Arrays.asList(names));
+	}
+}
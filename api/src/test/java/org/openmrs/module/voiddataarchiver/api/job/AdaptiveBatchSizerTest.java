@@ -0,0 +1,53 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the batch size controller in isolation; it has no database or context dependencies.
+ */
+public class AdaptiveBatchSizerTest {
+	
+	@Test
+	public void testGrowsByMinSizeWhileFullBatchesAreFast() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1000, 200, 500);
+		assertEquals(600, sizer.batchCompleted(500, 50));
+		assertEquals(700, sizer.batchCompleted(600, 150));
+	}
+	
+	@Test
+	public void testDoesNotGrowAfterPartialBatch() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1000, 200, 500);
+		assertEquals(500, sizer.batchCompleted(20, 10));
+	}
+	
+	@Test
+	public void testHalvesAfterSlowBatch() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1000, 200, 800);
+		assertEquals(400, sizer.batchCompleted(800, 500));
+	}
+	
+	@Test
+	public void testStaysWithinBounds() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1000, 200, 1000);
+		assertEquals(1000, sizer.batchCompleted(1000, 10));
+		sizer = new AdaptiveBatchSizer(100, 1000, 200, 150);
+		assertEquals(100, sizer.batchCompleted(150, 900));
+		assertEquals(100, sizer.backOff());
+	}
+	
+	@Test
+	public void testClampsInitialSize() {
+		assertEquals(1000, new AdaptiveBatchSizer(100, 1000, 200, 5000).getBatchSize());
+		assertEquals(100, new AdaptiveBatchSizer(100, 1000, 200, 10).getBatchSize());
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the job bookkeeping; it has no database or context dependencies.
+ */
+public class ArchivalJobTest {
+	
+	@Test
+	public void testListsFailedTablesInOrder() {
+		ArchivalJob job = new ArchivalJob(1, JobType.ARCHIVE, null);
+		job.addTable("obs", 10).finish(JobStatus.FAILED);
+		job.addTable("encounter", 10).finish(JobStatus.COMPLETED);
+		job.addTable("visit", 10).finish(JobStatus.FAILED);
+		job.addTable("patient", 10);
+		assertEquals(Arrays.asList("obs", "visit"), job.getFailedTables());
+	}
+	
+	@Test
+	public void testHasNoFailedTablesWhenAllComplete() {
+		ArchivalJob job = new ArchivalJob(1, JobType.ARCHIVE, null);
+		job.addTable("obs", 10).finish(JobStatus.COMPLETED);
+		assertEquals(Collections.emptyList(), job.getFailedTables());
+	}
+}
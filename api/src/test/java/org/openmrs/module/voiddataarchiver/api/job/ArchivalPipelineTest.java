@@ -0,0 +1,120 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.api.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the pipeline on plain threads; it has no database or context dependencies.
+ */
+public class ArchivalPipelineTest {
+	
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+	
+	@Test
+	public void testPassesBatchesThroughStagesInOrder() throws Exception {
+		final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+		new ArchivalPipeline<Integer>("test", 2, executor).addStage("double", new ArchivalPipeline.Stage<Integer>() {
+			
+			@Override
+			public Integer process(Integer batch) {
+				return batch * 2;
+			}
+		}).addStage("collect", new ArchivalPipeline.Stage<Integer>() {
+			
+			@Override
+			public Integer process(Integer batch) {
+				received.add(batch);
+				return null;
+			}
+		}).run(new CountingSource(100));
+		
+		assertEquals(100, received.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.valueOf(2 * i), received.get(i));
+		}
+	}
+	
+	@Test
+	public void testBoundsBatchesInFlight() throws Exception {
+		final CountingSource source = new CountingSource(50);
+		final AtomicInteger processed = new AtomicInteger();
+		final int[] maxAhead = new int[1];
+		new ArchivalPipeline<Integer>("test", 2, executor).addStage("slow", new ArchivalPipeline.Stage<Integer>() {
+			
+			@Override
+			public Integer process(Integer batch) throws Exception {
+				Thread.sleep(2);
+				maxAhead[0] = Math.max(maxAhead[0], source.produced.get() - processed.incrementAndGet());
+				return null;
+			}
+		}).run(source);
+		
+		assertEquals(50, processed.get());
+		// The queue, the batch the source is blocked on and the batch being processed
+		assertTrue("Source ran " + maxAhead[0] + " batches ahead", maxAhead[0] <= 3);
+	}
+	
+	@Test
+	public void testStopsAndRethrowsOnFailure() throws Exception {
+		CountingSource source = new CountingSource(Integer.MAX_VALUE);
+		try {
+			new ArchivalPipeline<Integer>("test", 2, executor).addStage("fail", new ArchivalPipeline.Stage<Integer>() {
+				
+				@Override
+				public Integer process(Integer batch) {
+					if (batch == 10) {
+						throw new IllegalStateException("batch 10");
+					}
+					return null;
+				}
+			}).run(source);
+			fail("Expected the failure of the stage");
+		}
+		catch (IllegalStateException e) {
+			assertEquals("batch 10", e.getMessage());
+		}
+		assertTrue(source.produced.get() < 20);
+	}
+	
+	private static class CountingSource implements ArchivalPipeline.Source<Integer> {
+		
+		private final int count;
+		
+		private final AtomicInteger produced = new AtomicInteger();
+		
+		CountingSource(int count) {
+			this.count = count;
+		}
+		
+		@Override
+		public Integer next() {
+			int next = produced.get();
+			if (next >= count) {
+				return null;
+			}
+			return produced.getAndIncrement();
+		}
+	}
+}
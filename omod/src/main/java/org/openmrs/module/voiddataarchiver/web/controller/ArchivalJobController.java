@@ -0,0 +1,118 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.web.controller;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.module.voiddataarchiver.api.job.ArchivalJob;
+import org.openmrs.module.voiddataarchiver.api.job.TableProgress;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.quote;
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.time;
+
+/**
+ * JSON endpoint polled by the admin page to show the live progress of archival jobs, and to pause,
+ * resume or cancel them. Kept separate from {@link VoidDataArchiverController} so that polling does
+ * not trigger its model attributes.
+ */
+@Controller("voiddataarchiver.ArchivalJobController")
+@RequestMapping(value = "module/voiddataarchiver/jobs.form")
+public class ArchivalJobController {
+	
+	/**
+	 * @param jobId optional id of a single job
+	 * @return a JSON array with the requested job, or all known jobs
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	@ResponseBody
+	public String getJobs(@RequestParam(value = "jobId", required = false) Long jobId) {
+		VoidDataArchiverService service = Context.getService(VoidDataArchiverService.class);
+		List<ArchivalJob> jobs;
+		if (jobId != null) {
+			ArchivalJob job = service.getJob(jobId);
+			jobs = job != null ? Collections.singletonList(job) : Collections.<ArchivalJob> emptyList();
+		} else {
+			jobs = service.getJobs();
+		}
+		
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < jobs.size(); i++) {
+			if (i > 0) {
+				json.append(",");
+			}
+			appendJob(json, jobs.get(i));
+		}
+		return json.append("]").toString();
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, params = "pause")
+	@ResponseBody
+	public String pause(@RequestParam("pause") Long jobId) {
+		Context.getService(VoidDataArchiverService.class).pauseJob(jobId);
+		return getJobs(jobId);
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, params = "resume")
+	@ResponseBody
+	public String resume(@RequestParam("resume") Long jobId) {
+		Context.getService(VoidDataArchiverService.class).resumeJob(jobId);
+		return getJobs(jobId);
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, params = "cancel")
+	@ResponseBody
+	public String cancel(@RequestParam("cancel") Long jobId) {
+		Context.getService(VoidDataArchiverService.class).cancelJob(jobId);
+		return getJobs(jobId);
+	}
+	
+	private void appendJob(StringBuilder json, ArchivalJob job) {
+		json.append("{\"id\":").append(job.getId());
+		json.append(",\"type\":").append(quote(job.getType().name()));
+		json.append(",\"tableName\":").append(quote(job.getTableName()));
+		json.append(",\"status\":").append(quote(job.getStatus().name()));
+		json.append(",\"submitted\":").append(time(job.getSubmitted()));
+		json.append(",\"started\":").append(time(job.getStarted()));
+		json.append(",\"finished\":").append(time(job.getFinished()));
+		json.append(",\"error\":").append(quote(job.getError()));
+		json.append(",\"rowsProcessed\":").append(job.getRowsProcessed());
+		json.append(",\"expectedRows\":").append(job.getExpectedRows());
+		json.append(",\"throughput\":").append(Math.round(job.getThroughput()));
+		json.append(",\"etaSeconds\":").append(job.getEtaSeconds());
+		json.append(",\"tables\":[");
+		boolean first = true;
+		for (TableProgress table : job.getTables()) {
+			if (!first) {
+				json.append(",");
+			}
+			json.append("{\"tableName\":").append(quote(table.getTableName()));
+			json.append(",\"status\":").append(quote(table.getStatus().name()));
+			json.append(",\"rowsProcessed\":").append(table.getRowsProcessed());
+			json.append(",\"expectedRows\":").append(table.getExpectedRows());
+			json.append(",\"batches\":").append(table.getBatches());
+			json.append(",\"batchSize\":").append(table.getLastBatchSize());
+			json.append(",\"lastBatchMs\":").append(table.getLastBatchMs());
+			json.append(",\"batchSizeHistory\":").append(table.getBatchSizeHistory());
+			json.append(",\"throughput\":").append(Math.round(table.getThroughput()));
+			json.append(",\"etaSeconds\":").append(table.getEtaSeconds());
+			json.append("}");
+			first = false;
+		}
+		json.append("]}");
+	}
+}
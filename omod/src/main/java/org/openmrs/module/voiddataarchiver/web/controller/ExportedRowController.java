@@ -0,0 +1,61 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.web.controller;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.module.voiddataarchiver.api.VoidedEntry;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.appendVoidedEntry;
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.quote;
+
+/**
+ * JSON endpoint to look up rows in an export file by uuid or key, without importing the export.
+ */
+@Controller("voiddataarchiver.ExportedRowController")
+@RequestMapping(value = "module/voiddataarchiver/exportedRows.form")
+public class ExportedRowController {
+	
+	/**
+	 * @param export the file name of the export manifest
+	 * @param column the column to match, the uuid by default
+	 * @param values the values to look for
+	 * @return a JSON object with the void details of the matching rows
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	@ResponseBody
+	public String find(@RequestParam("export") String export,
+	        @RequestParam(value = "column", defaultValue = "uuid") String column,
+	        @RequestParam("value") String[] values) {
+		List<VoidedEntry> rows = Context.getService(VoidDataArchiverService.class).findExportedRows(export, column,
+		    new LinkedHashSet<String>(Arrays.asList(values)));
+		
+		StringBuilder json = new StringBuilder("{\"export\":").append(quote(export));
+		json.append(",\"rows\":[");
+		boolean first = true;
+		for (VoidedEntry row : rows) {
+			if (!first) {
+				json.append(",");
+			}
+			appendVoidedEntry(json, row);
+			first = false;
+		}
+		return json.append("]}").toString();
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.web.controller;
+
+import java.util.Date;
+
+import org.openmrs.module.voiddataarchiver.api.VoidedEntry;
+
+/**
+ * Formats values for the hand-written JSON responses of this module's endpoints.
+ */
+final class Json {
+	
+	private Json() {
+	}
+	
+	/**
+	 * @return the date as epoch milliseconds, or null
+	 */
+	static String time(Date date) {
+		return date != null ? String.valueOf(date.getTime()) : "null";
+	}
+	
+	/**
+	 * @return the value as a quoted, escaped JSON string, or null
+	 */
+	static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append("\"").toString();
+	}
+	
+	/**
+	 * Appends a voided row as a JSON object, with null for a missing voider or void date.
+	 */
+	static void appendVoidedEntry(StringBuilder json, VoidedEntry row) {
+		json.append("{\"uuid\":").append(quote(row.getUuid()));
+		json.append(",\"voidedById\":");
+		if (row.getVoidedById() != 0) {
+			json.append(row.getVoidedById());
+		} else {
+			json.append("null");
+		}
+		json.append(",\"dateVoided\":");
+		if (row.getDateVoidedMillis() != VoidedEntry.NO_DATE) {
+			json.append(row.getDateVoidedMillis());
+		} else {
+			json.append("null");
+		}
+		json.append(",\"voidReason\":").append(quote(row.getVoidReason()));
+		json.append("}");
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.web.controller;
+
+import java.util.Map;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.TableInfo;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.quote;
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.time;
+
+/**
+ * JSON endpoint for monitoring the voided rows of all scanned tables. Counts come from the statistics
+ * snapshot and the in-memory void counters, so polling it never touches the tables themselves.
+ */
+@Controller("voiddataarchiver.VoidCountController")
+@RequestMapping(value = "module/voiddataarchiver/voidCounts.form")
+public class VoidCountController {
+	
+	/**
+	 * @return a JSON object with the total and voided counts of each table, by table name
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	@ResponseBody
+	public String getCounts() {
+		Map<String, TableInfo> statistics = Context.getService(VoidDataArchiverService.class).getTableStatistics();
+		StringBuilder json = new StringBuilder("{");
+		boolean first = true;
+		for (TableInfo info : statistics.values()) {
+			if (!first) {
+				json.append(",");
+			}
+			json.append(quote(info.getTableName()));
+			json.append(":{\"totalRecords\":").append(info.getTotalRecords());
+			json.append(",\"voidedRecords\":").append(info.getVoidedRecords());
+			json.append(",\"estimated\":").append(info.isTotalEstimated() || info.isVoidedEstimated());
+			json.append(",\"lastRefreshed\":").append(time(info.getLastRefreshed()));
+			json.append("}");
+			first = false;
+		}
+		return json.append("}").toString();
+	}
+}
@@ -11,6 +11,7 @@ package org.openmrs.module.voiddataarchiver.web.controller;
 
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
 import org.apache.commons.logging.Log;
@@ -18,6 +19,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.voiddataarchiver.api.TableInfo;
 import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.module.voiddataarchiver.api.job.ArchivalJob;
 import org.springframework.stereotype.Controller;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.ModelAttribute;
@@ -41,6 +43,11 @@ public class VoidDataArchiverController {
 	/** Redirect URL for POST-Redirect-GET pattern */
 	private final String REDIRECT = "redirect:/module/voiddataarchiver/voiddataarchiver.form";
 	
+	/** Request attributes holding the per-request table statistics and dependency graph */
+	private static final String TABLE_INFO_ATTR = VoidDataArchiverController.class.getName() + ".tableInfo";
+	
+	private static final String DEPENDENCIES_ATTR = VoidDataArchiverController.class.getName() + ".dependencies";
+	
 	/**
 	 * Initially called after the getUsers method to get the landing form name
 	 * 
@@ -74,8 +81,9 @@ public class VoidDataArchiverController {
 	public String archive(@org.springframework.web.bind.annotation.RequestParam("archive") String tableName,
 	        HttpSession httpSession) {
 		try {
-			Context.getService(VoidDataArchiverService.class).runArchival(tableName);
-			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Archived table: " + tableName);
+			ArchivalJob job = Context.getService(VoidDataArchiverService.class).submitArchival(tableName);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Started archival job #" + job.getId()
+			        + " for table: " + tableName);
 		}
 		catch (Exception e) {
 			log.error("Failed to archive table: " + tableName, e);
@@ -89,8 +97,9 @@ public class VoidDataArchiverController {
 	public String restore(@org.springframework.web.bind.annotation.RequestParam("restore") String tableName,
 	        HttpSession httpSession) {
 		try {
-			Context.getService(VoidDataArchiverService.class).restoreTable(tableName);
-			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Restored table: " + tableName);
+			ArchivalJob job = Context.getService(VoidDataArchiverService.class).submitRestore(tableName);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Started restore job #" + job.getId()
+			        + " for table: " + tableName);
 		}
 		catch (Exception e) {
 			log.error("Failed to restore table: " + tableName, e);
@@ -100,6 +109,60 @@ public class VoidDataArchiverController {
 		return REDIRECT;
 	}
 	
+	@RequestMapping(method = RequestMethod.POST, params = "exportArchive")
+	public String exportArchive(@org.springframework.web.bind.annotation.RequestParam("exportArchive") String tableName,
+	        HttpSession httpSession) {
+		try {
+			ArchivalJob job = Context.getService(VoidDataArchiverService.class).submitExport(tableName);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Started export job #" + job.getId()
+			        + " for table: archive_" + tableName);
+		}
+		catch (Exception e) {
+			log.error("Failed to export archive table: archive_" + tableName, e);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_ERROR_ATTR, "Failed to export archive_"
+			        + tableName + ": " + e.getMessage());
+		}
+		return REDIRECT;
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, params = "importArchive")
+	public String importArchive(@org.springframework.web.bind.annotation.RequestParam("importArchive") String manifest,
+	        HttpSession httpSession) {
+		try {
+			ArchivalJob job = Context.getService(VoidDataArchiverService.class).submitImport(manifest);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Started import job #" + job.getId()
+			        + " for export: " + manifest);
+		}
+		catch (Exception e) {
+			log.error("Failed to import export: " + manifest, e);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_ERROR_ATTR, "Failed to import " + manifest
+			        + ": " + e.getMessage());
+		}
+		return REDIRECT;
+	}
+	
+	@RequestMapping(method = RequestMethod.POST, params = "restoreExported")
+	public String restoreExported(@org.springframework.web.bind.annotation.RequestParam("restoreExported") String manifest,
+	        @org.springframework.web.bind.annotation.RequestParam("uuids") String uuids, HttpSession httpSession) {
+		try {
+			java.util.Set<String> selected = new java.util.LinkedHashSet<String>();
+			for (String uuid : uuids.split("[\\s,]+")) {
+				if (!uuid.isEmpty()) {
+					selected.add(uuid);
+				}
+			}
+			long restored = Context.getService(VoidDataArchiverService.class).restoreExportedRows(manifest, selected);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_MSG_ATTR, "Restored " + restored + " of "
+			        + selected.size() + " rows from export: " + manifest);
+		}
+		catch (Exception e) {
+			log.error("Failed to restore rows from export: " + manifest, e);
+			httpSession.setAttribute(org.openmrs.web.WebConstants.OPENMRS_ERROR_ATTR, "Failed to restore rows from "
+			        + manifest + ": " + e.getMessage());
+		}
+		return REDIRECT;
+	}
+	
 	@RequestMapping(method = RequestMethod.POST, params = "dropArchive")
 	public String dropArchive(@org.springframework.web.bind.annotation.RequestParam("dropArchive") String tableName,
 	        HttpSession httpSession) {
@@ -120,33 +183,83 @@ public class VoidDataArchiverController {
 		return Context.getService(VoidDataArchiverService.class).getArchivedTables();
 	}
 	
+	@ModelAttribute("exports")
+	protected List<String> getExports() throws Exception {
+		return Context.getService(VoidDataArchiverService.class).getExports();
+	}
+	
 	@ModelAttribute("dependencyGraph")
-	protected java.util.Map<String, List<String>> getDependencyGraph() throws Exception {
-		return Context.getService(VoidDataArchiverService.class).getTableDependencies();
+	protected java.util.Map<String, List<String>> getDependencyGraph(HttpServletRequest request) throws Exception {
+		return getDependencies(request);
 	}
 	
 	@ModelAttribute("nonVoidableTables")
-	protected List<TableInfo> getNonVoidableTables() throws Exception {
-		return getFilteredTables(false, null);
+	protected List<TableInfo> getNonVoidableTables(HttpServletRequest request) throws Exception {
+		return getFilteredTables(request, false, null);
 	}
 	
 	@ModelAttribute("voidableCleanTables")
-	protected List<TableInfo> getVoidableCleanTables() throws Exception {
-		return getFilteredTables(true, false);
+	protected List<TableInfo> getVoidableCleanTables(HttpServletRequest request) throws Exception {
+		return getFilteredTables(request, true, false);
 	}
 	
 	@ModelAttribute("voidableDataTables")
-	protected List<TableInfo> getVoidableDataTables() throws Exception {
-		return getFilteredTables(true, true);
+	protected List<TableInfo> getVoidableDataTables(HttpServletRequest request) throws Exception {
+		return getFilteredTables(request, true, true);
 	}
 	
 	@ModelAttribute("allVoidableTables")
-	protected List<TableInfo> getAllVoidableTables() throws Exception {
-		return getFilteredTables(true, null);
+	protected List<TableInfo> getAllVoidableTables(HttpServletRequest request) throws Exception {
+		return getFilteredTables(request, true, null);
+	}
+	
+	/**
+	 * The age of the statistics shown on the page: the oldest refresh time among the voidable tables
+	 * that have been scanned, or null if none has been scanned yet.
+	 */
+	@ModelAttribute("statisticsAsOf")
+	protected java.util.Date getStatisticsAsOf(HttpServletRequest request) throws Exception {
+		java.util.Date oldest = null;
+		for (TableInfo info : getAllTables(request)) {
+			if (info.isVoidable() && info.getLastRefreshed() != null
+			        && (oldest == null || info.getLastRefreshed().before(oldest))) {
+				oldest = info.getLastRefreshed();
+			}
+		}
+		return oldest;
 	}
 	
-	private List<TableInfo> getFilteredTables(boolean isVoidable, Boolean hasVoidedData) {
-		List<TableInfo> allTables = Context.getService(VoidDataArchiverService.class).getAllTableInfo();
+	/**
+	 * Returns the table statistics for the current request. They are loaded once and kept as a
+	 * request attribute, so all model attributes are partitioned from the same snapshot.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<TableInfo> getAllTables(HttpServletRequest request) {
+		List<TableInfo> allTables = (List<TableInfo>) request.getAttribute(TABLE_INFO_ATTR);
+		if (allTables == null) {
+			allTables = Context.getService(VoidDataArchiverService.class).getAllTableInfo();
+			request.setAttribute(TABLE_INFO_ATTR, allTables);
+		}
+		return allTables;
+	}
+	
+	/**
+	 * Returns the foreign key graph for the current request, loaded once like
+	 * {@link #getAllTables(HttpServletRequest)}.
+	 */
+	@SuppressWarnings("unchecked")
+	private java.util.Map<String, List<String>> getDependencies(HttpServletRequest request) {
+		java.util.Map<String, List<String>> dependencies = (java.util.Map<String, List<String>>) request
+		        .getAttribute(DEPENDENCIES_ATTR);
+		if (dependencies == null) {
+			dependencies = Context.getService(VoidDataArchiverService.class).getTableDependencies();
+			request.setAttribute(DEPENDENCIES_ATTR, dependencies);
+		}
+		return dependencies;
+	}
+	
+	private List<TableInfo> getFilteredTables(HttpServletRequest request, boolean isVoidable, Boolean hasVoidedData) {
+		List<TableInfo> allTables = getAllTables(request);
 		List<TableInfo> filtered = new java.util.ArrayList<TableInfo>();
 		
 		for (TableInfo info : allTables) {
@@ -165,17 +278,16 @@ public class VoidDataArchiverController {
 	}
 	
 	@ModelAttribute("visGraphData")
-	public String getVisGraphData() throws Exception {
+	public String getVisGraphData(HttpServletRequest request) throws Exception {
 		// 1. Get tables that actually have voided data
-		List<TableInfo> voidedTables = getFilteredTables(true, true);
+		List<TableInfo> voidedTables = getFilteredTables(request, true, true);
 		java.util.Set<String> activeTableNames = new java.util.HashSet<String>();
 		for (TableInfo t : voidedTables) {
 			activeTableNames.add(t.getTableName());
 		}
 		
 		// 2. Get all dependencies
-		java.util.Map<String, List<String>> allDeps = Context.getService(VoidDataArchiverService.class)
-		        .getTableDependencies();
+		java.util.Map<String, List<String>> allDeps = getDependencies(request);
 		
 		// 3. Build Nodes JSON
 		StringBuilder nodes = new StringBuilder("[");
@@ -212,5 +324,5 @@ public class VoidDataArchiverController {
 		
 		return "{nodes: " + nodes.toString() + ", edges: " + edges.toString() + "}";
 	}
-	
+
 }
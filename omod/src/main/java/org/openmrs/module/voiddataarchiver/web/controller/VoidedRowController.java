@@ -0,0 +1,82 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.voiddataarchiver.web.controller;
+
+import java.util.Map;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.voiddataarchiver.api.UserName;
+import org.openmrs.module.voiddataarchiver.api.VoidDataArchiverService;
+import org.openmrs.module.voiddataarchiver.api.VoidedEntry;
+import org.openmrs.module.voiddataarchiver.api.VoidedRowPage;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.appendVoidedEntry;
+import static org.openmrs.module.voiddataarchiver.web.controller.Json.quote;
+
+/**
+ * JSON endpoint the admin page uses to browse the voided rows of a table, or the rows of its archive
+ * table, one page at a time as the user asks for them.
+ */
+@Controller("voiddataarchiver.VoidedRowController")
+@RequestMapping(value = "module/voiddataarchiver/voidedRows.form")
+public class VoidedRowController {
+	
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	
+	/**
+	 * @param table the source table
+	 * @param archived true to browse the archive table of the table
+	 * @param after the nextKey of the previous page, omitted for the first page
+	 * @param size the maximum number of rows
+	 * @return a JSON object with the rows of the page, the users who voided them, and
+	 *         the key of the next page, null on the last
+	 */
+	@RequestMapping(method = RequestMethod.GET)
+	@ResponseBody
+	public String getPage(@RequestParam("table") String table,
+	        @RequestParam(value = "archived", defaultValue = "false") boolean archived,
+	        @RequestParam(value = "after", required = false) String after,
+	        @RequestParam(value = "size", required = false) Integer size) {
+		VoidedRowPage page = Context.getService(VoidDataArchiverService.class).getVoidedRows(table, archived, after,
+		    size != null ? size : DEFAULT_PAGE_SIZE);
+		
+		StringBuilder json = new StringBuilder("{\"tableName\":").append(quote(page.getTableName()));
+		json.append(",\"archived\":").append(page.isArchived());
+		json.append(",\"rows\":[");
+		boolean first = true;
+		for (VoidedEntry row : page.getRows()) {
+			if (!first) {
+				json.append(",");
+			}
+			appendVoidedEntry(json, row);
+			first = false;
+		}
+		// Each user is sent once, however many rows of the page they voided
+		json.append("],\"users\":{");
+		first = true;
+		for (Map.Entry<Integer, UserName> user : page.getUsers().entrySet()) {
+			if (!first) {
+				json.append(",");
+			}
+			json.append(quote(String.valueOf(user.getKey())));
+			json.append(":{\"username\":").append(quote(user.getValue().getUsername()));
+			json.append(",\"displayName\":").append(quote(user.getValue().getDisplayName()));
+			json.append("}");
+			first = false;
+		}
+		json.append("},\"nextKey\":").append(quote(page.getNextKey()));
+		return json.append("}").toString();
+	}
+}
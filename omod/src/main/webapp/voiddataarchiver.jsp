@@ -230,13 +230,175 @@
           </div>
         </details>
 
+        <%--========Section: Archival Jobs========--%>
+          <details class="section-toggle" id="archivalJobsSection" open>
+            <summary>Archival Jobs</summary>
+            <div class="section-content">
+              <p><i>Archival and restore run in the background. Progress is refreshed every few seconds while a job is active.
+                  Paused and cancelled jobs stop between batches.</i></p>
+              <table cellpadding="2" cellspacing="0" class="archiver-data-table">
+                <thead>
+                  <tr>
+                    <th>Job</th>
+                    <th>Table</th>
+                    <th>Status</th>
+                    <th>Rows Moved</th>
+                    <th>Throughput</th>
+                    <th>ETA</th>
+                    <th>Action</th>
+                  </tr>
+                </thead>
+                <tbody id="archivalJobsBody">
+                  <tr>
+                    <td colspan="7">No archival jobs.</td>
+                  </tr>
+                </tbody>
+              </table>
+            </div>
+          </details>
+
+          <script type="text/javascript">
+            var archivalJobsUrl = '${pageContext.request.contextPath}/module/voiddataarchiver/jobs.form';
+
+            function formatEta(seconds) {
+              if (seconds === null) {
+                return '-';
+              }
+              var h = Math.floor(seconds / 3600), m = Math.floor((seconds % 3600) / 60), s = seconds % 60;
+              return (h > 0 ? h + 'h ' : '') + (h > 0 || m > 0 ? m + 'm ' : '') + s + 's';
+            }
+
+            function escapeHtml(value) {
+              return String(value === null ? '' : value).replace(/&/g, '&amp;').replace(/</g, '&lt;')
+                .replace(/>/g, '&gt;').replace(/"/g, '&quot;');
+            }
+
+            function jobAction(action, jobId) {
+              var xhr = new XMLHttpRequest();
+              xhr.open('POST', archivalJobsUrl, true);
+              xhr.setRequestHeader('Content-Type', 'application/x-www-form-urlencoded');
+              xhr.onload = function () { pollArchivalJobs(); };
+              xhr.send(action + '=' + jobId);
+            }
+
+            function renderArchivalJobs(jobs) {
+              var body = document.getElementById('archivalJobsBody');
+              if (jobs.length === 0) {
+                body.innerHTML = '<tr><td colspan="7">No archival jobs.</td></tr>';
+                return false;
+              }
+              var html = '', active = false;
+              for (var i = 0; i < jobs.length; i++) {
+                var job = jobs[i];
+                var running = job.status === 'RUNNING' || job.status === 'PAUSED' || job.status === 'QUEUED';
+                active = active || running;
+                var current = '';
+                for (var j = 0; j < job.tables.length; j++) {
+                  if (job.tables[j].status === 'RUNNING') {
+                    current = ' (' + escapeHtml(job.tables[j].tableName) + ', batch ' + job.tables[j].batches
+                      + ' of ' + job.tables[j].batchSize + ' rows in ' + job.tables[j].lastBatchMs + ' ms)';
+                  }
+                }
+                html += '<tr><td>#' + job.id + '</td>'
+                  + '<td>' + (job.type === 'RESTORE' ? 'Restore ' : '')
+                  + escapeHtml(job.tableName === null ? 'All tables' : job.tableName) + '</td>'
+                  + '<td>' + job.status + current + (job.error ? ': ' + escapeHtml(job.error) : '') + '</td>'
+                  + '<td>' + job.rowsProcessed + ' / ' + job.expectedRows + '</td>'
+                  + '<td>' + job.throughput + ' rows/s</td>'
+                  + '<td>' + (running ? formatEta(job.etaSeconds) : '-') + '</td><td>';
+                if (job.status === 'RUNNING') {
+                  html += '<input type="button" value="Pause" class="btn-drop" onclick="jobAction(\'pause\', ' + job.id + ')" /> ';
+                }
+                if (job.status === 'PAUSED') {
+                  html += '<input type="button" value="Resume" class="btn-restore" onclick="jobAction(\'resume\', ' + job.id + ')" /> ';
+                }
+                if (running) {
+                  html += '<input type="button" value="Cancel" class="btn-archive" onclick="jobAction(\'cancel\', ' + job.id + ')" />';
+                }
+                html += '</td></tr>';
+              }
+              body.innerHTML = html;
+              return active;
+            }
+
+            function pollArchivalJobs() {
+              var xhr = new XMLHttpRequest();
+              xhr.open('GET', archivalJobsUrl, true);
+              xhr.onload = function () {
+                if (xhr.status === 200 && renderArchivalJobs(JSON.parse(xhr.responseText))) {
+                  setTimeout(pollArchivalJobs, 3000);
+                }
+              };
+              xhr.send();
+            }
+
+            var voidedRowsUrl = '${pageContext.request.contextPath}/module/voiddataarchiver/voidedRows.form';
+
+            function formatUser(users, userId) {
+              var user = userId === null ? null : users[userId];
+              if (!user) {
+                return userId === null ? '' : 'User #' + userId;
+              }
+              return user.displayName ? user.displayName + ' (' + user.username + ')' : user.username;
+            }
+
+            function loadVoidedRows(container) {
+              var after = container.getAttribute('data-next-key');
+              var more = container.querySelector('.load-more');
+              var xhr = new XMLHttpRequest();
+              xhr.open('GET', voidedRowsUrl + '?table=' + encodeURIComponent(container.getAttribute('data-table'))
+                + '&archived=' + container.getAttribute('data-archived') + (after ? '&after=' + encodeURIComponent(after) : ''), true);
+              xhr.onload = function () {
+                if (xhr.status !== 200) {
+                  more.value = 'Failed to load rows, retry';
+                  more.style.display = '';
+                  return;
+                }
+                var page = JSON.parse(xhr.responseText), html = '';
+                for (var i = 0; i < page.rows.length; i++) {
+                  var row = page.rows[i];
+                  html += '<tr style="background-color: #ffebee;"><td>' + escapeHtml(row.uuid) + '</td>'
+                    + '<td>' + escapeHtml(formatUser(page.users, row.voidedById)) + '</td>'
+                    + '<td>' + (row.dateVoided === null ? '' : new Date(row.dateVoided).toLocaleString()) + '</td>'
+                    + '<td>' + escapeHtml(row.voidReason) + '</td></tr>';
+                }
+                container.querySelector('tbody').insertAdjacentHTML('beforeend', html);
+                container.setAttribute('data-next-key', page.nextKey === null ? '' : page.nextKey);
+                more.value = 'Load more';
+                more.style.display = page.nextKey === null ? 'none' : '';
+              };
+              xhr.send();
+            }
+
+            function browseVoidedRows(details) {
+              if (details.open && !details.getAttribute('data-loaded')) {
+                details.setAttribute('data-loaded', 'true');
+                loadVoidedRows(details);
+              }
+            }
+
+            pollArchivalJobs();
+          </script>
+
         <%--========Section 2: Voidable Tables Overview========--%>
           <details class="section-toggle" open>
             <summary>2. Voidable Tables &mdash; Live &amp; Voided Data (${fn:length(allVoidableTables)} tables)
             </summary>
             <div class="section-content">
               <p><i><span style="color: #2e7d32;">&#9632; Green = Live</span> &nbsp; <span
-                    style="color: #c62828;">&#9632; Red = Voided</span></i></p>
+                    style="color: #c62828;">&#9632; Red = Voided</span> &nbsp; ~ = estimated</i></p>
+              <p style="font-size: 12px; color: #666;">
+                <c:choose>
+                  <c:when test="${not empty statisticsAsOf}">
+                    Statistics as of ${statisticsAsOf}. They are refreshed in the background by the
+                    <i>VoidData Archiver - Refresh Table Statistics</i> scheduler task.
+                  </c:when>
+                  <c:otherwise>
+                    Statistics have not been computed yet. They are refreshed in the background by the
+                    <i>VoidData Archiver - Refresh Table Statistics</i> scheduler task.
+                  </c:otherwise>
+                </c:choose>
+              </p>
 
               <table cellpadding="2" cellspacing="0" class="archiver-data-table">
                 <thead>
@@ -250,15 +412,15 @@
                 </thead>
                 <tbody>
                   <c:forEach var="info" items="${allVoidableTables}">
-                    <tr>
+                    <tr title="<c:if test="${not empty info.lastRefreshed}">Refreshed ${info.lastRefreshed} (scan took ${info.scanDurationMs} ms)</c:if>">
                       <td title="${info.tableName}"><b>${info.prettyName}</b> <span
                           style="font-size: 11px; color: #888;">(${info.tableName})</span></td>
-                      <td>${info.totalRecords}</td>
-                      <td><span class="badge-live">${info.liveRecords}</span></td>
+                      <td><c:if test="${info.totalEstimated}">~</c:if>${info.totalRecords}</td>
+                      <td><span class="badge-live"><c:if test="${info.totalEstimated || info.voidedEstimated}">~</c:if>${info.liveRecords}</span></td>
                       <td>
                         <c:choose>
                           <c:when test="${info.voidedRecords > 0}">
-                            <span class="badge-voided">${info.voidedRecords}</span>
+                            <span class="badge-voided"><c:if test="${info.voidedEstimated}">~</c:if>${info.voidedRecords}</span>
                           </c:when>
                           <c:otherwise>
                             <span style="color: #999;">0</span>
@@ -273,9 +435,12 @@
                               onclick="return confirm('Archive ${info.voidedRecords} voided records from ${info.tableName}?');" />
                           </form>
                         </c:if>
-                        <c:if test="${info.voidedRecords == 0 || info.voidedRecords == null}">
+                        <c:if test="${info.voidedRecords == 0}">
                           <span style="color: #4caf50; font-size: 12px;">&#10004; Clean</span>
                         </c:if>
+                        <c:if test="${empty info.lastRefreshed}">
+                          <span style="color: #999; font-size: 12px;">Not scanned yet</span>
+                        </c:if>
                       </td>
                     </tr>
                   </c:forEach>
@@ -289,10 +454,10 @@
               <details class="section-toggle">
                 <summary>3. Voided Records Detail (${fn:length(voidableDataTables)} tables)</summary>
                 <div class="section-content">
-                  <p><i>Individual voided records for each table. Each sub-section is also expandable.</i></p>
+                  <p><i>Individual voided records for each table, most recent first. Rows are loaded when a sub-section is expanded.</i></p>
 
                   <c:forEach var="info" items="${voidableDataTables}">
-                    <details
+                    <details data-table="${info.tableName}" data-archived="false" ontoggle="browseVoidedRows(this)"
                       style="margin: 6px 0; border: 1px solid #e57373; border-radius: 4px; background-color: #fff8f8;">
                       <summary
                         style="padding: 6px 10px; cursor: pointer; color: #c62828; font-weight: bold; font-size: 13px;">
@@ -310,17 +475,10 @@
                               <th>Void Reason</th>
                             </tr>
                           </thead>
-                          <tbody>
-                            <c:forEach var="entry" items="${info.voidedEntries}">
-                              <tr style="background-color: #ffebee;">
-                                <td>${entry['uuid']}</td>
-                                <td>${entry['voidedBy']}</td>
-                                <td>${entry['dateVoided']}</td>
-                                <td>${entry['voidReason']}</td>
-                              </tr>
-                            </c:forEach>
-                          </tbody>
+                          <tbody></tbody>
                         </table>
+                        <input type="button" value="Load more" class="load-more" style="display: none;"
+                          onclick="loadVoidedRows(this.parentNode.parentNode)" />
                       </div>
                     </details>
                   </c:forEach>
@@ -352,7 +510,12 @@
                             <form method="post" style="display:inline-block; margin:0;">
                               <input type="hidden" name="restore" value="${info.tableName}" />
                               <input type="submit" value="Restore" class="btn-restore"
-                                onclick="return confirm('Restore ${info.tableName}? This will move data back and drop the archive table.');" />
+                                onclick="return confirm('Restore ${info.tableName}? This will move data back in the background and drop the archive table once it is empty.');" />
+                            </form>
+                            <form method="post" style="display:inline-block; margin:0; margin-left: 4px;">
+                              <input type="hidden" name="exportArchive" value="${info.tableName}" />
+                              <input type="submit" value="Export"
+                                onclick="return confirm('Export archive_${info.tableName} to compressed files? Exported rows are removed from the database.');" />
                             </form>
                             <form method="post" style="display:inline-block; margin:0; margin-left: 4px;">
                               <input type="hidden" name="dropArchive" value="archive_${info.tableName}" />
@@ -369,6 +532,62 @@
                       </c:if>
                     </tbody>
                   </table>
+
+                  <c:forEach var="info" items="${archivedTables}">
+                    <details data-table="${info.tableName}" data-archived="true" ontoggle="browseVoidedRows(this)"
+                      style="margin: 6px 0; border: 1px solid #90caf9; border-radius: 4px; background-color: #f5faff;">
+                      <summary
+                        style="padding: 6px 10px; cursor: pointer; color: #1565c0; font-weight: bold; font-size: 13px;">
+                        Browse archive_${info.tableName} &mdash; ${info.totalRecords} rows
+                      </summary>
+                      <div style="padding: 6px 10px;">
+                        <table cellpadding="2" cellspacing="0" class="archiver-data-table">
+                          <thead>
+                            <tr>
+                              <th>UUID</th>
+                              <th>Voided By</th>
+                              <th>Date Voided</th>
+                              <th>Void Reason</th>
+                            </tr>
+                          </thead>
+                          <tbody></tbody>
+                        </table>
+                        <input type="button" value="Load more" class="load-more" style="display: none;"
+                          onclick="loadVoidedRows(this.parentNode.parentNode)" />
+                      </div>
+                    </details>
+                  </c:forEach>
+
+                  <c:if test="${not empty exports}">
+                    <p><i>Archives exported to files, which can be imported back into their archive table, or
+                        have individual rows restored by uuid without importing the rest.</i></p>
+                    <table cellpadding="2" cellspacing="0" class="archiver-data-table">
+                      <thead>
+                        <tr>
+                          <th>Export</th>
+                          <th>Action</th>
+                        </tr>
+                      </thead>
+                      <tbody>
+                        <c:forEach var="export" items="${exports}">
+                          <tr>
+                            <td>${export}</td>
+                            <td>
+                              <form method="post" style="display:inline-block; margin:0;">
+                                <input type="hidden" name="importArchive" value="${export}" />
+                                <input type="submit" value="Import" class="btn-restore" />
+                              </form>
+                              <form method="post" style="display:inline-block; margin:0;">
+                                <input type="hidden" name="restoreExported" value="${export}" />
+                                <input type="text" name="uuids" size="40" placeholder="uuids, comma separated" />
+                                <input type="submit" value="Restore rows" class="btn-restore" />
+                              </form>
+                            </td>
+                          </tr>
+                        </c:forEach>
+                      </tbody>
+                    </table>
+                  </c:if>
                 </div>
               </details>
 